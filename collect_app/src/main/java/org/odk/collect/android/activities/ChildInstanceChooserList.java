@@ -33,6 +33,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.RelativeLayout;
 import android.widget.SimpleCursorAdapter;
@@ -42,12 +43,10 @@ import android.widget.Toast;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FormRelationsDb;
+import org.odk.collect.android.listeners.CursorPageListener;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
-
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import org.odk.collect.android.tasks.PagedCursorLoader;
 
 /**
  *  Responsible for displaying all the valid child instances, given a parent.
@@ -57,13 +56,16 @@ import java.util.Set;
  *  Created: 4 September 2015
  *  Last modified: 8 September 2015
  */
-public class ChildInstanceChooserList extends ListActivity {
+public class ChildInstanceChooserList extends ListActivity implements CursorPageListener {
 
     private static final boolean EXIT = true;
     private static final boolean DO_NOT_EXIT = false;
     private AlertDialog mAlertDialog;
     private boolean mRelativesSent;
 
+    private PagedCursorLoader mLoader;
+    private SimpleCursorAdapter mInstances;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -86,42 +88,21 @@ public class ChildInstanceChooserList extends ListActivity {
         long parentId = getIntent().getLongExtra("parent", -1);
         long[] childrenIds = FormRelationsDb.getChildren(parentId);
 
-        Set<Long> familyIds = new HashSet<Long>();
-        familyIds.add(parentId);
-        for (int i = 0; i < childrenIds.length; i++) {
-            familyIds.add(childrenIds[i]);
-        }
-        mRelativesSent = isAnySent(familyIds);
+        mRelativesSent = isAnySent(parentId);
 
         if (childrenIds.length > 0) {
-            StringBuilder listQuery = new StringBuilder();
-            listQuery.append(InstanceColumns.STATUS);
-            listQuery.append(" !=? AND (");
-            for (int i = 0; i < childrenIds.length; i++) {
-                listQuery.append(InstanceColumns._ID);
-                listQuery.append(" = ");
-                listQuery.append(childrenIds[i]);
-                if ( i != childrenIds.length - 1 ) {
-                    listQuery.append(" OR ");
-                }
-            }
-            listQuery.append(")");
-
-            String[] projection = {
-                    InstanceColumns._ID,
-                    InstanceColumns.DISPLAY_NAME,
-                    InstanceColumns.DISPLAY_SUBTEXT,
-                    InstanceColumns.STATUS,
-                    InstanceColumns.CAN_EDIT_WHEN_COMPLETE
-            };
-            String selection = listQuery.toString();
+            // the provider picks out the children with a sub-query on the
+            // relations database rather than a clause per child
+            Uri uri = InstanceColumns.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(InstanceProviderAPI.CHILDREN_OF, String.valueOf(parentId))
+                    .build();
+            String selection = InstanceColumns.STATUS + " != ?";
             String[] selectionArgs = {
                     InstanceProviderAPI.STATUS_SUBMITTED
             };
-            String sortOrder = InstanceColumns.STATUS + " DESC, " + InstanceColumns.DISPLAY_NAME
-                    + " ASC";
-            Cursor c = managedQuery(InstanceColumns.CONTENT_URI, projection, selection,
-                    selectionArgs, sortOrder);
+            String[] sortOrder = {
+                    InstanceColumns.STATUS + " DESC", InstanceColumns.DISPLAY_NAME + " ASC"
+            };
 
             String[] fromColumns = new String[] {
                     InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
@@ -130,9 +111,28 @@ public class ChildInstanceChooserList extends ListActivity {
                     R.id.text1, R.id.text2
             };
 
-            SimpleCursorAdapter instances =
-                    new SimpleCursorAdapter(this, R.layout.two_item, c, fromColumns, toViews);
-            setListAdapter(instances);
+            // filled in as pages are loaded
+            mInstances = new SimpleCursorAdapter(this, R.layout.two_item, null, fromColumns,
+                    toViews);
+            setListAdapter(mInstances);
+            getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                }
+
+                @Override
+                public void onScroll(AbsListView view, int firstVisibleItem,
+                        int visibleItemCount, int totalItemCount) {
+                    if (firstVisibleItem + 2 * visibleItemCount >= totalItemCount) {
+                        mLoader.loadMore();
+                    }
+                }
+            });
+            mLoader = new PagedCursorLoader(getContentResolver(), uri, selection, selectionArgs,
+                    sortOrder, PagedCursorLoader.DEFAULT_PAGE_SIZE);
+            mLoader.setNotNull(InstanceColumns.STATUS);
+            mLoader.setCursorPageListener(this);
+            mLoader.start();
         }
 
         final Uri formUri = Uri.withAppendedPath(InstanceColumns.CONTENT_URI,
@@ -164,13 +164,25 @@ public class ChildInstanceChooserList extends ListActivity {
         });
     }
 
+    @Override
+    public void cursorPageLoaded(Cursor cursor, boolean complete) {
+        mInstances.changeCursor(cursor);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mLoader != null) {
+            mLoader.close();
+        }
+        super.onDestroy();
+    }
+
     /**
      * Stores the path of selected instance in the parent class and finishes.
      */
     @Override
     protected void onListItemClick(ListView listView, View view, int position, long id) {
         Cursor c = (Cursor) getListAdapter().getItem(position);
-        startManagingCursor(c);
         Uri instanceUri =
                 ContentUris.withAppendedId(InstanceColumns.CONTENT_URI,
                         c.getLong(c.getColumnIndex(InstanceColumns._ID)));
@@ -231,35 +243,32 @@ public class ChildInstanceChooserList extends ListActivity {
         super.onStop();
     }
 
-    private boolean isAnySent(Set<Long> ids) {
-        boolean toReturn = false;
-        if ( !ids.isEmpty() ) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(InstanceColumns.STATUS);
-            sb.append(" =? AND (");
-            for (Iterator<Long> it = ids.iterator(); it.hasNext(); ) {
-                Long id = it.next();
-                sb.append(InstanceColumns._ID);
-                sb.append(" = ");
-                sb.append(id);
-                if ( it.hasNext() ) {
-                    sb.append(" OR ");
+    private boolean isAnySent(long parentId) {
+        String[] projection = {
+                InstanceColumns._ID
+        };
+        String selection = InstanceColumns.STATUS + " =?";
+        String[] selectionArgs = {
+                InstanceProviderAPI.STATUS_SUBMITTED
+        };
+        Uri[] family = {
+                ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, parentId),
+                InstanceColumns.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(InstanceProviderAPI.CHILDREN_OF,
+                                String.valueOf(parentId))
+                        .build()
+        };
+        for (Uri uri : family) {
+            Cursor c = getContentResolver().query(uri, projection, selection, selectionArgs, null);
+            if (c != null) {
+                boolean sent = c.getCount() > 0;
+                c.close();
+                if (sent) {
+                    return true;
                 }
             }
-            sb.append(")");
-
-            String[] projection = {
-                    InstanceColumns._ID
-            };
-            String selection = sb.toString();
-            String[] selectionArgs = {
-                    InstanceProviderAPI.STATUS_SUBMITTED
-            };
-            Cursor c = getContentResolver().query(InstanceColumns.CONTENT_URI, projection,
-                    selection, selectionArgs, null);
-            toReturn = c != null && c.getCount() > 0;
         }
-        return toReturn;
+        return false;
     }
 
     private void createErrorDialog(String errorMsg, final boolean shouldExit) {
@@ -15,23 +15,31 @@
 package org.odk.collect.android.activities;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FormRelationsDb;
+import org.odk.collect.android.listeners.CursorPageListener;
 import org.odk.collect.android.listeners.DeleteInstancesListener;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.tasks.DeleteInstancesTask;
+import org.odk.collect.android.tasks.PagedCursorLoader;
 
 import android.app.AlertDialog;
+import android.app.Dialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -45,14 +53,20 @@ import android.widget.Toast;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
 public class DataManagerList extends ListActivity implements
-		DeleteInstancesListener {
+		DeleteInstancesListener, CursorPageListener {
 	private static final String t = "DataManagerList";
+	private static final int PROGRESS_DIALOG = 1;
 	private AlertDialog mAlertDialog;
+	private ProgressDialog mProgressDialog;
+	private String mProgressMsg;
 	private Button mDeleteButton;
 	private Button mToggleButton;
 
 	private SimpleCursorAdapter mInstances;
 	private ArrayList<Long> mSelected = new ArrayList<Long>();
+	private PagedCursorLoader mLoader;
+	// every row is to be checked, including pages that are still loading
+	private boolean mCheckAllPending = false;
 
 	DeleteInstancesTask mDeleteInstancesTask = null;
 
@@ -72,17 +86,12 @@ public class DataManagerList extends ListActivity implements
 				if (mSelected.size() > 0) {
 
 					// PMA-Linking BEGIN
+					// Test if any has a parent or child(ren), reading the
+					// relations once rather than twice per selected form
 					boolean related = false;
+					Set<Long> allRelated = FormRelationsDb.getAllRelated();
 					for (Long selectedId : mSelected) {
-						// Test if it has parent
-						long parent = FormRelationsDb.getParent(selectedId);
-						if (parent != -1) {
-							related = true;
-							break;
-						}
-						// Test if it has child(ren)
-						long[] children = FormRelationsDb.getChildren(selectedId);
-						if (children.length > 0) {
+						if (allRelated.contains(selectedId)) {
 							related = true;
 							break;
 						}
@@ -108,46 +117,98 @@ public class DataManagerList extends ListActivity implements
         mToggleButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                boolean checkAll = false;
-                // if everything is checked, uncheck
-                if (mSelected.size() == mInstances.getCount()) {
-                    checkAll = false;
+                // if everything is loaded and checked, uncheck
+                if (mLoader.isComplete() && mSelected.size() == mInstances.getCount()) {
                     mSelected.clear();
                     mDeleteButton.setEnabled(false);
-                } else {
-                    // otherwise check everything
-                    checkAll = true;
                     for (int pos = 0; pos < DataManagerList.this.getListView().getCount(); pos++) {
-                        Long id = getListAdapter().getItemId(pos);
-                        if (!mSelected.contains(id)) {
-                            mSelected.add(id);
-                        }
+                        DataManagerList.this.getListView().setItemChecked(pos, false);
                     }
-                    mDeleteButton.setEnabled(true);
-                }
-                for (int pos = 0; pos < DataManagerList.this.getListView().getCount(); pos++) {
-                    DataManagerList.this.getListView().setItemChecked(pos, checkAll);
+                } else {
+                    // otherwise check everything, once the rest is loaded
+                    mCheckAllPending = true;
+                    checkLoadedRows();
+                    mLoader.loadAll();
                 }
             }
         });
 
-		Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, null, null,
-				InstanceColumns.DISPLAY_NAME + " ASC");
-
 		String[] data = new String[] { InstanceColumns.DISPLAY_NAME,
 				InstanceColumns.DISPLAY_SUBTEXT };
 		int[] view = new int[] { R.id.text1, R.id.text2 };
 
+		// filled in as pages are loaded; checking everything loads the rest
 		mInstances = new SimpleCursorAdapter(this,
-				R.layout.two_item_multiple_choice, c, data, view);
+				R.layout.two_item_multiple_choice, null, data, view);
 		setListAdapter(mInstances);
 		getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
 		getListView().setItemsCanFocus(false);
+		getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+					int totalItemCount) {
+				if (firstVisibleItem + 2 * visibleItemCount >= totalItemCount) {
+					mLoader.loadMore();
+				}
+			}
+		});
 		mDeleteButton.setEnabled(false);
 
+		mLoader = new PagedCursorLoader(getContentResolver(),
+				InstanceColumns.CONTENT_URI, null, null,
+				new String[] { InstanceColumns.DISPLAY_NAME + " ASC" },
+				PagedCursorLoader.DEFAULT_PAGE_SIZE);
+		mLoader.setCursorPageListener(this);
+		mLoader.start();
+
 		mDeleteInstancesTask = (DeleteInstancesTask) getLastNonConfigurationInstance();
 	}
 
+	@Override
+	public void cursorPageLoaded(Cursor cursor, boolean complete) {
+		mInstances.changeCursor(cursor);
+		if (mCheckAllPending) {
+			mCheckAllPending = !complete;
+			checkLoadedRows();
+		} else {
+			// rows may have moved if the list was reloaded, so check by id
+			ListView ls = getListView();
+			Set<Long> selected = new HashSet<Long>(mSelected);
+			for (int pos = 0; pos < mInstances.getCount(); pos++) {
+				ls.setItemChecked(pos, selected.contains(mInstances.getItemId(pos)));
+			}
+		}
+	}
+
+	/**
+	 * Checks every row loaded so far. Deleting waits until the last page is
+	 * in when everything is to be checked.
+	 */
+	private void checkLoadedRows() {
+		ListView ls = getListView();
+		Set<Long> selected = new HashSet<Long>(mSelected);
+		for (int pos = 0; pos < mInstances.getCount(); pos++) {
+			Long id = mInstances.getItemId(pos);
+			if (selected.add(id)) {
+				mSelected.add(id);
+			}
+			ls.setItemChecked(pos, true);
+		}
+		mDeleteButton.setEnabled(!mCheckAllPending && mSelected.size() > 0);
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (mLoader != null) {
+			mLoader.close();
+		}
+		super.onDestroy();
+	}
+
     @Override
     protected void onStart() {
     	super.onStart();
@@ -292,6 +353,8 @@ public class DataManagerList extends ListActivity implements
 			mDeleteInstancesTask = new DeleteInstancesTask();
 			mDeleteInstancesTask.setContentResolver(getContentResolver());
 			mDeleteInstancesTask.setDeleteListener(this);
+			mProgressMsg = getString(R.string.please_wait);
+			showDialog(PROGRESS_DIALOG);
 			mDeleteInstancesTask.execute(mSelected.toArray(new Long[mSelected
 					.size()]));
 		} else {
@@ -316,12 +379,38 @@ public class DataManagerList extends ListActivity implements
 
 		Collect.getInstance().getActivityLogger().logAction(this, "onListItemClick", Long.toString(k));
 
-		mDeleteButton.setEnabled(!(mSelected.size() == 0));
+		mDeleteButton.setEnabled(!mCheckAllPending && mSelected.size() > 0);
+	}
+
+	@Override
+	protected Dialog onCreateDialog(int id) {
+		switch (id) {
+		case PROGRESS_DIALOG:
+			mProgressDialog = new ProgressDialog(this);
+			mProgressDialog.setTitle(getString(R.string.deleting_data));
+			mProgressDialog.setMessage(mProgressMsg);
+			mProgressDialog.setIndeterminate(true);
+			mProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+			mProgressDialog.setCancelable(false);
+			return mProgressDialog;
+		}
+		return null;
+	}
+
+	@Override
+	public void deleteProgress(int cleanedInstances, int totalInstances, long bytesFreed) {
+		mProgressMsg = getString(R.string.delete_progress, cleanedInstances,
+				totalInstances, Formatter.formatShortFileSize(this, bytesFreed));
+		if (mProgressDialog != null) {
+			mProgressDialog.setMessage(mProgressMsg);
+		}
 	}
 
 	@Override
 	public void deleteComplete(int deletedInstances) {
 		Log.i(t, "Delete instances complete");
+		removeDialog(PROGRESS_DIALOG);
+		mProgressDialog = null;
         Collect.getInstance().getActivityLogger().logAction(this, "deleteComplete", Integer.toString(deletedInstances));
 		if (deletedInstances == mSelected.size()) {
 			// all deletes were successful
@@ -16,9 +16,11 @@ package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.CursorPageListener;
 import org.odk.collect.android.listeners.DiskSyncListener;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.tasks.DiskSyncTask;
+import org.odk.collect.android.tasks.PagedCursorLoader;
 import org.odk.collect.android.utilities.VersionHidingCursorAdapter;
 
 import android.app.AlertDialog;
@@ -32,6 +34,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
@@ -43,7 +46,8 @@ import android.widget.TextView;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  * @author Carl Hartung (carlhartung@gmail.com)
  */
-public class FormChooserList extends ListActivity implements DiskSyncListener {
+public class FormChooserList extends ListActivity implements DiskSyncListener,
+        CursorPageListener {
 
     private static final String t = "FormChooserList";
     private static final boolean EXIT = true;
@@ -53,6 +57,9 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
 
     private AlertDialog mAlertDialog;
 
+    private PagedCursorLoader mLoader;
+    private SimpleCursorAdapter mForms;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -68,8 +75,9 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
         setContentView(R.layout.chooser_list_layout);
         setTitle(getString(R.string.app_name) + " > " + getString(R.string.enter_data));
 
-        String sortOrder = FormsColumns.DISPLAY_NAME + " ASC, " + FormsColumns.JR_VERSION + " DESC";
-        Cursor c = managedQuery(FormsColumns.CONTENT_URI, null, null, null, sortOrder);
+        String[] sortOrder = {
+                FormsColumns.DISPLAY_NAME + " ASC", FormsColumns.JR_VERSION + " DESC"
+        };
 
         String[] data = new String[] {
                 FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT, FormsColumns.JR_VERSION
@@ -78,10 +86,28 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
                 R.id.text1, R.id.text2, R.id.text3
         };
 
-        // render total instance view
-        SimpleCursorAdapter instances =
-            new VersionHidingCursorAdapter(FormsColumns.JR_VERSION, this, R.layout.two_item, c, data, view);
-        setListAdapter(instances);
+        // render total form view, filled in as pages are loaded
+        mForms = new VersionHidingCursorAdapter(FormsColumns.JR_VERSION, this, R.layout.two_item,
+                null, data, view);
+        setListAdapter(mForms);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + 2 * visibleItemCount >= totalItemCount) {
+                    mLoader.loadMore();
+                }
+            }
+        });
+
+        mLoader = new PagedCursorLoader(getContentResolver(), FormsColumns.CONTENT_URI, null,
+                null, sortOrder, PagedCursorLoader.DEFAULT_PAGE_SIZE);
+        mLoader.setCursorPageListener(this);
+        mLoader.start();
 
         if (savedInstanceState != null && savedInstanceState.containsKey(syncMsgKey)) {
             TextView tv = (TextView) findViewById(R.id.status_text);
@@ -100,6 +126,21 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
     }
 
 
+    @Override
+    public void cursorPageLoaded(Cursor cursor, boolean complete) {
+        mForms.changeCursor(cursor);
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mLoader != null) {
+            mLoader.close();
+        }
+        super.onDestroy();
+    }
+
+
     @Override
     public Object onRetainNonConfigurationInstance() {
         // pass the thread on restart
@@ -34,6 +34,7 @@ import org.odk.collect.android.exception.JavaRosaException;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.listeners.FormSavedListener;
+import org.odk.collect.android.listeners.ImageResizeListener;
 import org.odk.collect.android.listeners.SavePointListener;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.FormController.FailedConstraint;
@@ -43,7 +44,9 @@ import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.tasks.ArchiveInstancesTask;
 import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.tasks.ImageResizeTask;
 import org.odk.collect.android.tasks.SavePointTask;
 import org.odk.collect.android.tasks.SaveResult;
 import org.odk.collect.android.tasks.SaveToDiskTask;
@@ -51,15 +54,16 @@ import org.odk.collect.android.tasks.UseLog;
 import org.odk.collect.android.tasks.UseLogContract;
 import org.odk.collect.android.utilities.CompatibilityUtils;
 import org.odk.collect.android.utilities.FileUtils;
-import org.odk.collect.android.utilities.ImageScaler;
 import org.odk.collect.android.utilities.MediaUtils;
 import org.odk.collect.android.views.ODKView;
 import org.odk.collect.android.widgets.QuestionWidget;
+import org.odk.collect.android.widgets.WidgetPool;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -72,6 +76,10 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore.Images;
 import android.text.InputFilter;
@@ -114,7 +122,7 @@ import android.widget.Toast;
  */
 public class FormEntryActivity extends Activity implements AnimationListener,
 		FormLoaderListener, FormSavedListener, AdvanceToNextListener,
-		OnGestureListener, SavePointListener {
+		OnGestureListener, SavePointListener, ImageResizeListener {
 	private static final String t = "FormEntryActivity";
 
 	// save with every swipe forward or back. Timings indicate this takes .25
@@ -181,6 +189,15 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 	private static final int PROGRESS_DIALOG = 1;
 	private static final int SAVING_DIALOG = 2;
+	private static final int RESIZING_DIALOG = 3;
+
+	// PMA-Photo: width captured and chosen images are scaled down to
+	private static final int SCALED_IMAGE_WIDTH = 600;
+
+	// how long a screen must go untouched before the next one is built
+	private static final long LOOK_AHEAD_DELAY = 750;
+	// how long one idle callback may spend building widgets of the next screen
+	private static final long LOOK_AHEAD_SLICE = 8;
 	
 	private boolean mAutoSaved;
 
@@ -213,6 +230,63 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 	private FormLoaderTask mFormLoaderTask;
 	private SaveToDiskTask mSaveToDiskTask;
+	private ImageResizeTask mImageResizeTask;
+
+	/**
+	 * The screen after the current one, built ahead of time by
+	 * prepareNextView() and buildPreparedWidgets().
+	 */
+	private static class PreparedView {
+		// index shown when the view was built
+		FormIndex from;
+		// index the view is for
+		FormIndex index;
+		// FormController change count once the "from" screen had been saved
+		int changeCount;
+		FormEntryPrompt[] prompts;
+		FormEntryCaption[] groups;
+		boolean readOnlyOverride;
+		// built one slice at a time, the first "built" are done
+		QuestionWidget[] widgets;
+		int built;
+		long buildMillis;
+		// set once all widgets are built
+		ODKView view;
+	}
+
+	private PreparedView mPreparedView;
+
+	// widgets of screens that have been swiped away, reused by later screens
+	private WidgetPool mWidgetPool = new WidgetPool();
+	private boolean mLookAheadPending = false;
+	// bumped for every new screen, so idle handlers of older ones stop
+	private int mLookAheadGeneration = 0;
+	private final Handler mLookAheadHandler = new Handler();
+	private final Runnable mLookAheadRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mLookAheadPending = false;
+			final int generation = mLookAheadGeneration;
+			Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+				private PreparedView mPrepared;
+
+				@Override
+				public boolean queueIdle() {
+					if (generation != mLookAheadGeneration) {
+						return false;
+					}
+					if (mPrepared == null) {
+						mPrepared = prepareNextView();
+					} else if (mPrepared == mPreparedView) {
+						buildPreparedWidgets(mPrepared);
+					}
+					// keep going, a slice per idle callback, until it is built
+					return mPrepared != null && mPrepared == mPreparedView
+							&& mPrepared.view == null;
+				}
+			});
+		}
+	};
 
 	private ImageButton mNextButton;
 	private ImageButton mBackButton;
@@ -320,6 +394,8 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			mFormLoaderTask = (FormLoaderTask) data;
 		} else if (data instanceof SaveToDiskTask) {
 			mSaveToDiskTask = (SaveToDiskTask) data;
+		} else if (data instanceof ImageResizeTask) {
+			mImageResizeTask = (ImageResizeTask) data;
 		} else if (data == null) {
 			if (!newForm) {
 				if (Collect.getInstance().getFormController() != null) {
@@ -654,9 +730,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			String out = mInstanceFolder + File.separator
 					+ System.currentTimeMillis() + ".jpg";
 
-			int SCALED_WIDTH = 600;
-			ImageScaler.resize(Collect.TMPFILE_PATH, out, SCALED_WIDTH);
-			((ODKView) mCurrentView).setBinaryData(new File(out));
+			resizeImage(Collect.TMPFILE_PATH, out);
 			// PMA-Photo END
 
 			// PMA uncomment below to get original
@@ -693,9 +767,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			out = mInstanceFolder + File.separator
 					+ System.currentTimeMillis() + ".jpg";
 
-			SCALED_WIDTH = 600;
-			ImageScaler.resize(path, out, SCALED_WIDTH);
-			((ODKView) mCurrentView).setBinaryData(new File(out));
+			resizeImage(path, out);
 			// PMA-Photo END
 
 			// PMA uncomment below to go back to original
@@ -738,9 +810,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 					+ System.currentTimeMillis() + ".jpg";
 
 			// PMA-Photo BEGIN
-			SCALED_WIDTH = 600;
-			ImageScaler.resize(sourceImagePath, destImagePath, SCALED_WIDTH);
-			((ODKView) mCurrentView).setBinaryData(new File(destImagePath));
+			resizeImage(sourceImagePath, destImagePath);
 			// PMA-Photo END
 
 			// PMA uncomment below to go back to original
@@ -1074,7 +1144,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		if (formController != null && formController.currentPromptIsQuestion()) {
 			saveAnswersForCurrentScreen(DO_NOT_EVALUATE_CONSTRAINTS);
 		}
-		return null;
+
+		// if an image is being scaled, pass the resize task; its result is
+		// handed to the new view once it has been built
+		return mImageResizeTask;
 	}
 
 	/**
@@ -1321,7 +1394,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				FormEntryCaption[] groups = formController
 						.getGroupsForCurrentIndex();
 				odkv = new ODKView(this, formController.getQuestionPrompts(),
-						groups, advancingPage);
+						groups, advancingPage, mWidgetPool);
 				Log.i(t,
 						"created view for group "
 								+ (groups.length > 0 ? groups[groups.length - 1]
@@ -1342,17 +1415,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                 return createView(event, advancingPage);
             }
 
-			// Makes a "clear answer" menu pop up on long-click
-			for (QuestionWidget qw : odkv.getWidgets()) {
-				if (!qw.getPrompt().isReadOnly()) {
-					registerForContextMenu(qw);
-				}
-			}
-
-			if (mBackButton.isShown() && mNextButton.isShown()) {
-				mBackButton.setEnabled(true);
-				mNextButton.setEnabled(true);
-			}
+			attachQuestionView(odkv);
 			return odkv;
 		default:
 			Log.e(t, "Attempted to create a view that does not exist.");
@@ -1368,8 +1431,189 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		}
 	}
 
+	/**
+	 * Hooks a question view up to the activity before it is shown.
+	 */
+	private void attachQuestionView(ODKView odkv) {
+		// Makes a "clear answer" menu pop up on long-click
+		for (QuestionWidget qw : odkv.getWidgets()) {
+			if (!qw.getPrompt().isReadOnly()) {
+				registerForContextMenu(qw);
+			}
+		}
+
+		if (mBackButton.isShown() && mNextButton.isShown()) {
+			mBackButton.setEnabled(true);
+			mNextButton.setEnabled(true);
+		}
+	}
+
+	/**
+	 * Schedules the look-ahead for the screen that was just shown. It waits
+	 * until the screen has gone untouched for LOOK_AHEAD_DELAY and then runs
+	 * in short slices whenever the UI thread has nothing else to do, so it
+	 * competes neither with the swipe animation and first draw nor with the
+	 * user starting to answer, however many questions the next screen has.
+	 */
+	private void scheduleLookAhead() {
+		discardPreparedView();
+		mLookAheadGeneration++;
+		mLookAheadHandler.removeCallbacks(mLookAheadRunnable);
+		mLookAheadHandler.postDelayed(mLookAheadRunnable, LOOK_AHEAD_DELAY);
+		mLookAheadPending = true;
+	}
+
+	/**
+	 * Stops any look-ahead that is waiting or half done. A screen that has
+	 * been built completely is kept.
+	 */
+	private void cancelLookAhead() {
+		mLookAheadGeneration++;
+		mLookAheadHandler.removeCallbacks(mLookAheadRunnable);
+		mLookAheadPending = false;
+	}
+
+	/**
+	 * Works out which screen a forward swipe would lead to and gets its
+	 * prompts; buildPreparedWidgets() then builds its view. The answers on the
+	 * current screen are saved to the model first, without checking
+	 * constraints, so that labels, calculations and relevance on the next
+	 * screen see them. The controller is returned to the current index
+	 * afterwards.
+	 *
+	 * @return the screen being prepared, or null if there is nothing to prepare
+	 */
+	private PreparedView prepareNextView() {
+		discardPreparedView();
+		FormController formController = Collect.getInstance()
+				.getFormController();
+		if (formController == null || !(mCurrentView instanceof ODKView)
+				|| formController.getIndexWaitingForData() != null
+				|| mStaleView != null || isFinishing()) {
+			return null;
+		}
+
+		FormIndex from = formController.getFormIndex();
+		try {
+			if (formController.currentPromptIsQuestion()) {
+				formController.saveAllScreenAnswers(
+						((ODKView) mCurrentView).getAnswers(), DO_NOT_EVALUATE_CONSTRAINTS);
+			}
+			int changeCount = formController.getChangeCount();
+			int event = formController.stepToNextScreenEvent();
+			if (event == FormEntryController.EVENT_QUESTION
+					|| event == FormEntryController.EVENT_GROUP) {
+				PreparedView prepared = new PreparedView();
+				prepared.from = from;
+				prepared.index = formController.getFormIndex();
+				prepared.changeCount = changeCount;
+				prepared.prompts = formController.getQuestionPrompts();
+				prepared.groups = formController.getGroupsForCurrentIndex();
+				prepared.readOnlyOverride = ODKView.isReadOnlyOverride(prepared.groups);
+				prepared.widgets = new QuestionWidget[prepared.prompts.length];
+				mPreparedView = prepared;
+			}
+		} catch (JavaRosaException e) {
+			Log.w(t, "Could not look ahead: " + e.getMessage());
+		} catch (RuntimeException e) {
+			// createView() deals with this when the user actually gets there
+			Log.w(t, "Could not look ahead: " + e.getMessage());
+		} finally {
+			formController.jumpToIndex(from);
+		}
+		return mPreparedView;
+	}
+
+	/**
+	 * Builds widgets of the prepared screen for up to LOOK_AHEAD_SLICE, and
+	 * its view once they are all done. The prompts carry their own indexes,
+	 * so this works with the controller back on the current screen. The
+	 * screen is dropped if the model changes in between.
+	 */
+	private void buildPreparedWidgets(PreparedView prepared) {
+		FormController formController = Collect.getInstance()
+				.getFormController();
+		if (formController == null
+				|| formController.getChangeCount() != prepared.changeCount) {
+			discardPreparedView();
+			return;
+		}
+		long start = SystemClock.uptimeMillis();
+		try {
+			do {
+				if (prepared.built < prepared.widgets.length) {
+					prepared.widgets[prepared.built] = mWidgetPool.obtain(
+							prepared.prompts[prepared.built], this, prepared.readOnlyOverride);
+					prepared.built++;
+				} else {
+					// built as if not advancing, autoplay is started when shown
+					prepared.view = new ODKView(this, prepared.prompts, prepared.groups,
+							false, mWidgetPool, prepared.widgets);
+					break;
+				}
+			} while (SystemClock.uptimeMillis() - start < LOOK_AHEAD_SLICE);
+		} catch (RuntimeException e) {
+			// createView() deals with this when the user actually gets there
+			Log.w(t, "Could not look ahead: " + e.getMessage());
+			discardPreparedView();
+			return;
+		}
+		prepared.buildMillis += SystemClock.uptimeMillis() - start;
+		if (prepared.view != null) {
+			Log.i(t, "Prepared next screen of " + prepared.prompts.length
+					+ " questions in " + prepared.buildMillis + "ms");
+		}
+	}
+
+	/**
+	 * Returns the view built ahead of time if the controller has just stepped
+	 * from the same screen to the same index, and the model has not changed
+	 * since the view was built: the answers saved on the way out of the
+	 * screen are the ones it was built with. Either way the prepared view is
+	 * used up.
+	 */
+	private ODKView takePreparedView(FormIndex from) {
+		PreparedView prepared = mPreparedView;
+		if (prepared == null) {
+			return null;
+		}
+		FormController formController = Collect.getInstance()
+				.getFormController();
+		if (prepared.view == null
+				|| !prepared.from.equals(from)
+				|| !prepared.index.equals(formController.getFormIndex())
+				|| prepared.changeCount != formController.getChangeCount()) {
+			Log.i(t, "Discarding prepared screen");
+			discardPreparedView();
+			return null;
+		}
+		mPreparedView = null;
+		attachQuestionView(prepared.view);
+		prepared.view.startAutoplay();
+		return prepared.view;
+	}
+
+	/**
+	 * Drops the prepared screen, handing the widgets built for it so far to
+	 * the pool.
+	 */
+	private void discardPreparedView() {
+		PreparedView prepared = mPreparedView;
+		mPreparedView = null;
+		if (prepared == null) {
+			return;
+		}
+		for (int i = 0; i < prepared.built; i++) {
+			mWidgetPool.recycle(prepared.widgets[i], prepared.readOnlyOverride);
+		}
+	}
+
 	@Override
 	public boolean dispatchTouchEvent(MotionEvent mv) {
+		if (mLookAheadPending) {
+			// the user is busy with this screen; wait until they stop
+			scheduleLookAhead();
+		}
 		boolean handled = mGestureDetector.onTouchEvent(mv);
 		if (!handled) {
 			return super.dispatchTouchEvent(mv);
@@ -1419,6 +1663,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			}
 
             View next;
+            FormIndex from = formController.getFormIndex();
             int event = formController.stepToNextScreenEvent();
 
 
@@ -1432,7 +1677,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 						mUseLog.flush(true);
 						// PMA-Logging END
                     }
-                    next = createView(event, true);
+                    next = takePreparedView(from);
+                    if (next == null) {
+                        next = createView(event, true);
+                    }
                     showView(next, AnimationType.RIGHT);
 					// PMA-Logging BEGIN
 					mUseLog.log(UseLogContract.ENTER_PROMPT);
@@ -1579,6 +1827,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		RelativeLayout.LayoutParams lp = new RelativeLayout.LayoutParams(
 				LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT);
 
+		// whatever was prepared belonged to the screen being replaced
+		discardPreparedView();
+
 		// adjust which view is in the layout container...
 		mStaleView = mCurrentView;
 		mCurrentView = next;
@@ -2124,7 +2375,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 												"createQuitDialog",
 												"discardAndExit");
 
-								// close all open databases of external data.
+								// release the external data of this form
 								Collect.getInstance().getExternalDataManager().close();
 
 								removeTempInstance();
@@ -2341,6 +2592,46 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		mAlertDialog.show();
 	}
 
+	/**
+	 * Scales an image into the instance folder in the background. The question
+	 * keeps waiting for data, behind a progress dialog, until imageResized()
+	 * hands it the result.
+	 */
+	private void resizeImage(String source, String destination) {
+		mImageResizeTask = new ImageResizeTask(source, new File(destination),
+				SCALED_IMAGE_WIDTH);
+		mImageResizeTask.setImageResizeListener(this);
+		showDialog(RESIZING_DIALOG);
+		mImageResizeTask.execute();
+	}
+
+	/**
+	 * Called by ImageResizeTask once the scaled image has been written.
+	 */
+	@Override
+	public void imageResized(File image, boolean success) {
+		mImageResizeTask = null;
+		try {
+			dismissDialog(RESIZING_DIALOG);
+		} catch (IllegalArgumentException e) {
+			Log.i(t, "Attempting to close a dialog that was not previously opened");
+		}
+
+		if (!(mCurrentView instanceof ODKView)) {
+			Log.w(t, "Resized image " + image + " but the question is no longer shown");
+			return;
+		}
+		if (success) {
+			((ODKView) mCurrentView).setBinaryData(image);
+			saveAnswersForCurrentScreen(DO_NOT_EVALUATE_CONSTRAINTS);
+		} else {
+			((ODKView) mCurrentView).cancelWaitingForBinaryData();
+			Toast.makeText(this,
+					getString(R.string.error_attaching_binary_file, image.getName()),
+					Toast.LENGTH_LONG).show();
+		}
+	}
+
 	/**
 	 * We use Android's dialog management for loading/saving progress dialogs
 	 */
@@ -2411,6 +2702,14 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                 }
             });
 			return mProgressDialog;
+		case RESIZING_DIALOG:
+			mProgressDialog = new ProgressDialog(this);
+			mProgressDialog.setIcon(android.R.drawable.ic_dialog_info);
+			mProgressDialog.setTitle(getString(R.string.resizing_image));
+			mProgressDialog.setMessage(getString(R.string.please_wait));
+			mProgressDialog.setIndeterminate(true);
+			mProgressDialog.setCancelable(false);
+			return mProgressDialog;
 		}
 		return null;
 	}
@@ -2438,6 +2737,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		FormController formController = Collect.getInstance()
 				.getFormController();
 		dismissDialogs();
+		cancelLookAhead();
 
 		// make sure we're not already saving to disk. if we are, currentPrompt
 		// is getting constantly updated
@@ -2511,6 +2811,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			mSaveToDiskTask.setFormSavedListener(this);
 		}
 
+		if (mImageResizeTask != null) {
+			mImageResizeTask.setImageResizeListener(this);
+		}
+
 		// only check the buttons if it's enabled in preferences
 		SharedPreferences sharedPreferences = PreferenceManager
 				.getDefaultSharedPreferences(this);
@@ -2588,6 +2892,13 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				mSaveToDiskTask = null;
 			}
 		}
+		if (mImageResizeTask != null) {
+			mImageResizeTask.setImageResizeListener(null);
+		}
+		mWidgetPool.clear();
+		if (isFinishing()) {
+			archiveViewedInstance();
+		}
 
 		super.onDestroy();
 
@@ -2598,6 +2909,26 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		// PMA-LOGGING: END
 	}
 
+	/**
+	 * Opening a sent instance restores it from the InstanceArchive. If it was
+	 * only looked at and is still sent, pack it away again.
+	 */
+	private void archiveViewedInstance() {
+		Uri uri = (getIntent() == null) ? null : getIntent().getData();
+		if (uri == null
+				|| !InstanceColumns.CONTENT_ITEM_TYPE.equals(getContentResolver().getType(uri))
+				|| !PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
+						PreferencesActivity.KEY_ARCHIVE_SENT, false)) {
+			return;
+		}
+		if (mSaveToDiskTask != null && mSaveToDiskTask.getStatus() != AsyncTask.Status.FINISHED) {
+			// being saved, so no longer a sent instance
+			return;
+		}
+		// the task skips the instance unless its status is still submitted
+		new ArchiveInstancesTask().execute(ContentUris.parseId(uri));
+	}
+
 	private int mAnimationCompletionSet = 0;
 
 	private void afterAllAnimations() {
@@ -2606,12 +2937,14 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			if (mStaleView instanceof ODKView) {
 				// http://code.google.com/p/android/issues/detail?id=8488
 				((ODKView) mStaleView).recycleDrawables();
+				((ODKView) mStaleView).recycleWidgets(mWidgetPool);
 			}
 			mStaleView = null;
 		}
 
 		if (mCurrentView != null && mCurrentView instanceof ODKView) {
 			((ODKView) mCurrentView).setFocus(this);
+			scheduleLookAhead();
 		}
 		mBeenSwiped = false;
 	}
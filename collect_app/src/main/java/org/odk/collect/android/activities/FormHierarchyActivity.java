@@ -14,10 +14,13 @@
 
 package org.odk.collect.android.activities;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.IFormElement;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryPrompt;
@@ -37,6 +40,8 @@ import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -60,6 +65,30 @@ public class FormHierarchyActivity extends ListActivity {
     FormIndex mStartIndex;
     private FormIndex currentIndex;
 
+    // number of elements read from the form at a time
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * The elements of one level of the hierarchy, read from the form a page at
+     * a time as the list is scrolled.
+     */
+    private static class Level {
+        String contextGroupRef;
+        // where to continue reading, null once the whole level has been read
+        FormIndex resumeIndex;
+        ArrayList<HierarchyElement> elements = new ArrayList<HierarchyElement>();
+    }
+
+    // levels already read, valid while the form is unchanged
+    private static final HashMap<String, Level> sLevels = new HashMap<String, Level>();
+    private static WeakReference<FormController> sLevelsController;
+    private static int sLevelsChangeCount;
+
+    private Level mLevel;
+    // number of mLevel's elements that have been added to formList
+    private int mLoadedCount;
+    private HierarchyListAdapter mAdapter;
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -116,18 +145,75 @@ public class FormHierarchyActivity extends ListActivity {
             getListView().post(new Runnable() {
                 @Override
                 public void run() {
-                    int position = 0;
-                    for (int i = 0; i < getListAdapter().getCount(); i++) {
-                        HierarchyElement he = (HierarchyElement) getListAdapter().getItem(i);
-                        if (mStartIndex.equals(he.getFormIndex())) {
-                            position = i;
-                            break;
-                        }
-                    }
-                    getListView().setSelection(position);
+                    getListView().setSelection(findStartPosition());
                 }
             });
         }
+
+        getListView().setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                // read the next page before the user reaches the end of this one
+                if (mLevel != null && mLevel.resumeIndex != null
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+                    showMore();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        // the cached elements outlive this activity, its drawables must not
+        for (Level level : sLevels.values()) {
+            for (HierarchyElement he : level.elements) {
+                he.setIcon(null);
+            }
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Returns the position of the question the user was looking at, reading
+     * further into the level until it is found or the level ends.
+     */
+    private int findStartPosition() {
+        int i = 0;
+        while (true) {
+            for (; i < formList.size(); i++) {
+                if (mStartIndex.equals(formList.get(i).getFormIndex())) {
+                    return i;
+                }
+            }
+            if (mLevel == null || mLevel.resumeIndex == null || !showMore()) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Shows the next page of the current level.
+     *
+     * @return false if reading the form failed.
+     */
+    private boolean showMore() {
+        FormController formController = Collect.getInstance().getFormController();
+        try {
+            loadMore(formController);
+            return true;
+        } catch (Exception e) {
+            Log.e(t, e.getMessage(), e);
+            mLevel.resumeIndex = null;
+            createErrorDialog(e.getMessage());
+            return false;
+        } finally {
+            formController.jumpToIndex(currentIndex);
+        }
     }
 
     @Override
@@ -228,103 +314,13 @@ public class FormHierarchyActivity extends ListActivity {
                 jumpPreviousButton.setEnabled(true);
             }
 
-            // Refresh the current event in case we did step forward.
-            event = formController.getEvent();
-
-            // Big change from prior implementation:
-            //
-            // The ref strings now include the instance number designations
-            // i.e., [0], [1], etc. of the repeat groups (and also [1] for
-            // non-repeat elements).
-            //
-            // The contextGroupRef is now also valid for the top-level form.
-            //
-            // The repeatGroupRef is null if we are not skipping a repeat
-            // section.
-            //
-            String repeatGroupRef = null;
-
-            event_search: while (event != FormEntryController.EVENT_END_OF_FORM) {
-
-        		// get the ref to this element
-        		String currentRef = formController.getFormIndex().getReference().toString(true);
-
-        		// retrieve the current group
-        		String curGroup = (repeatGroupRef == null) ? contextGroupRef : repeatGroupRef;
-
-        		if (!currentRef.startsWith(curGroup)) {
-                    // We have left the current group
-        			if ( repeatGroupRef == null ) {
-        				// We are done.
-        				break event_search;
-        			} else {
-        				// exit the inner repeat group
-        				repeatGroupRef = null;
-        			}
-                }
-
-        		if (repeatGroupRef != null) {
-                    // We're in a repeat group within the one we want to list
-                	// skip this question/group/repeat and move to the next index.
-                    event =
-                            formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-                    continue;
-                }
-
-        		switch (event) {
-                    case FormEntryController.EVENT_QUESTION:
-
-                        FormEntryPrompt fp = formController.getQuestionPrompt();
-                        String label = fp.getLongText();
-                        if ( !fp.isReadOnly() || (label != null && label.length() > 0) ) {
-                            // show the question if it is an editable field.
-                            // or if it is read-only and the label is not blank.
-                            formList.add(new HierarchyElement(fp.getLongText(), fp.getAnswerText(), null,
-                                    Color.WHITE, QUESTION, fp.getIndex()));
-                        }
-                        break;
-                    case FormEntryController.EVENT_GROUP:
-                        // ignore group events
-                        break;
-                    case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
-                    	// this would display the 'add new repeat' dialog
-                    	// ignore it.
-                        break;
-                    case FormEntryController.EVENT_REPEAT:
-                        FormEntryCaption fc = formController.getCaptionPrompt();
-                        // push this repeat onto the stack.
-                        repeatGroupRef = currentRef;
-                        // Because of the guard conditions above, we will skip
-                        // everything until we exit this repeat.
-                        //
-                        // Note that currentRef includes the multiplicity of the
-                        // repeat (e.g., [0], [1], ...), so every repeat will be
-                        // detected as different and reach this case statement.
-                        // Only the [0] emits the repeat header.
-                        // Every one displays the descend-into action element.
-
-                        if (fc.getMultiplicity() == 0) {
-                            // Display the repeat header for the group.
-                            HierarchyElement group =
-                                new HierarchyElement(fc.getLongText(), null, getResources()
-                                        .getDrawable(R.drawable.expander_ic_minimized), Color.WHITE,
-                                        COLLAPSED, fc.getIndex());
-                            formList.add(group);
-                        }
-                        // Add this group name to the drop down list for this repeating group.
-                        HierarchyElement h = formList.get(formList.size() - 1);
-                        h.addChild(new HierarchyElement(mIndent + fc.getLongText() + " "
-                                + (fc.getMultiplicity() + 1), null, null, Color.WHITE, CHILD, fc
-                                .getIndex()));
-                        break;
-            	}
-                event =
-                        formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-            }
-
-            HierarchyListAdapter itla = new HierarchyListAdapter(this);
-            itla.setListItems(formList);
-            setListAdapter(itla);
+            mLevel = getLevel(formController, contextGroupRef);
+            formList = new ArrayList<HierarchyElement>();
+            mLoadedCount = 0;
+            mAdapter = new HierarchyListAdapter(this);
+            mAdapter.setListItems(formList);
+            loadMore(formController);
+            setListAdapter(mAdapter);
 
             // set the controller back to the current index in case the user hits 'back'
             formController.jumpToIndex(currentIndex);
@@ -334,6 +330,135 @@ public class FormHierarchyActivity extends ListActivity {
         }
     }
 
+    /**
+     * Returns the cached level for contextGroupRef, or a new, unread one. The
+     * whole cache is dropped when a different form is open or the answers or
+     * repeats of this one have changed since it was filled.
+     */
+    private static Level getLevel(FormController formController, String contextGroupRef) {
+        if (sLevelsController == null || sLevelsController.get() != formController
+                || sLevelsChangeCount != formController.getChangeCount()) {
+            sLevels.clear();
+            sLevelsController = new WeakReference<FormController>(formController);
+            sLevelsChangeCount = formController.getChangeCount();
+        }
+        Level level = sLevels.get(contextGroupRef);
+        if (level == null) {
+            level = new Level();
+            level.contextGroupRef = contextGroupRef;
+            level.resumeIndex = formController.getFormIndex();
+            sLevels.put(contextGroupRef, level);
+        }
+        return level;
+    }
+
+
+    /**
+     * Shows the next page of the current level, reading it from the form
+     * first if it is not cached yet. Leaves the controller wherever the read
+     * stopped, so callers must jump back to currentIndex.
+     */
+    private void loadMore(FormController formController) {
+        if (mLoadedCount == mLevel.elements.size() && mLevel.resumeIndex != null) {
+            long start = System.currentTimeMillis();
+            readLevel(formController, mLevel, PAGE_SIZE);
+            Log.i(t, "Read " + (mLevel.elements.size() - mLoadedCount) + " elements in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        for (; mLoadedCount < mLevel.elements.size(); mLoadedCount++) {
+            HierarchyElement he = mLevel.elements.get(mLoadedCount);
+            if (he.getType() == EXPANDED || he.getType() == COLLAPSED) {
+                // repeats always start out collapsed
+                he.setType(COLLAPSED);
+                he.setIcon(getResources().getDrawable(R.drawable.expander_ic_minimized));
+            }
+            formList.add(he);
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+
+    /**
+     * Reads up to count more elements of level, starting from where the last
+     * read stopped. Repeat instances are stepped over rather than into: each
+     * repeat contributes a single collapsed header, and its instances are only
+     * listed once it is expanded.
+     */
+    private void readLevel(FormController formController, Level level, int count) {
+        int event = formController.jumpToIndex(level.resumeIndex);
+        int added = 0;
+        boolean done = false;
+        while (added < count) {
+            if (event == FormEntryController.EVENT_END_OF_FORM) {
+                done = true;
+                break;
+            }
+
+            // get the ref to this element
+            String currentRef = formController.getFormIndex().getReference().toString(true);
+            if (!currentRef.startsWith(level.contextGroupRef)) {
+                // We have left the current group
+                done = true;
+                break;
+            }
+
+            switch (event) {
+                case FormEntryController.EVENT_QUESTION:
+                    FormEntryPrompt fp = formController.getQuestionPrompt();
+                    String label = fp.getLongText();
+                    if ( !fp.isReadOnly() || (label != null && label.length() > 0) ) {
+                        // show the question if it is an editable field.
+                        // or if it is read-only and the label is not blank.
+                        level.elements.add(new HierarchyElement(fp.getLongText(), fp.getAnswerText(), null,
+                                Color.WHITE, QUESTION, fp.getIndex()));
+                        added++;
+                    }
+                    break;
+                case FormEntryController.EVENT_REPEAT:
+                    FormEntryCaption fc = formController.getCaptionPrompt();
+                    if (fc.getMultiplicity() == 0) {
+                        // Display the repeat header for the group.
+                        level.elements.add(new HierarchyElement(fc.getLongText(), null, null,
+                                Color.WHITE, COLLAPSED, fc.getIndex()));
+                        added++;
+                    }
+                    // nothing inside an instance is shown at this level
+                    event = formController.stepOverRepeat();
+                    continue;
+                default:
+                    // groups and 'add new repeat' prompts are not shown
+                    break;
+            }
+            event = formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+        }
+        level.resumeIndex = done ? null : formController.getFormIndex();
+    }
+
+
+    /**
+     * Lists the instances of the repeat whose header is h, if that hasn't been
+     * done yet.
+     */
+    private void loadRepeatChildren(HierarchyElement h) {
+        if (!h.getChildren().isEmpty()) {
+            return;
+        }
+        FormController formController = Collect.getInstance().getFormController();
+        int event = formController.jumpToIndex(h.getFormIndex());
+        IFormElement repeat = formController.getCaptionPrompt().getFormElement();
+        while (event == FormEntryController.EVENT_REPEAT
+                && formController.getCaptionPrompt().getFormElement() == repeat) {
+            FormEntryCaption fc = formController.getCaptionPrompt();
+            h.addChild(new HierarchyElement(mIndent + fc.getLongText() + " "
+                    + (fc.getMultiplicity() + 1), null, null, Color.WHITE, CHILD, fc
+                    .getIndex()));
+            event = formController.stepOverRepeat();
+        }
+        formController.jumpToIndex(currentIndex);
+    }
+
+
     /**
      * Creates and displays dialog with the given errorMsg.
      */
@@ -388,6 +513,7 @@ public class FormHierarchyActivity extends ListActivity {
             case COLLAPSED:
                 Collect.getInstance().getActivityLogger().logInstanceAction(this, "onListItemClick", "EXPANDED", h.getFormIndex());
                 h.setType(EXPANDED);
+                loadRepeatChildren(h);
                 ArrayList<HierarchyElement> children1 = h.getChildren();
                 for (int i = 0; i < children1.size(); i++) {
                     Log.i(t, "adding child: " + children1.get(i).getFormIndex());
@@ -421,10 +547,7 @@ public class FormHierarchyActivity extends ListActivity {
         }
 
         // Should only get here if we've expanded or collapsed a group
-        HierarchyListAdapter itla = new HierarchyListAdapter(this);
-        itla.setListItems(formList);
-        setListAdapter(itla);
-        getListView().setSelection(position);
+        mAdapter.notifyDataSetChanged();
     }
 
 
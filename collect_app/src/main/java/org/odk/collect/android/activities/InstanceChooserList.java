@@ -16,8 +16,10 @@ package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.CursorPageListener;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.tasks.PagedCursorLoader;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
@@ -28,6 +30,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
@@ -38,12 +41,15 @@ import android.widget.TextView;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  * @author Carl Hartung (carlhartung@gmail.com)
  */
-public class InstanceChooserList extends ListActivity {
+public class InstanceChooserList extends ListActivity implements CursorPageListener {
 
     private static final boolean EXIT = true;
     private static final boolean DO_NOT_EXIT = false;
     private AlertDialog mAlertDialog;
 
+    private PagedCursorLoader mLoader;
+    private SimpleCursorAdapter mInstances;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -63,8 +69,9 @@ public class InstanceChooserList extends ListActivity {
 
         String selection = InstanceColumns.STATUS + " != ?";
         String[] selectionArgs = {InstanceProviderAPI.STATUS_SUBMITTED};
-        String sortOrder = InstanceColumns.STATUS + " DESC, " + InstanceColumns.DISPLAY_NAME + " ASC";
-        Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, selection, selectionArgs, sortOrder);
+        String[] sortOrder = {
+                InstanceColumns.STATUS + " DESC", InstanceColumns.DISPLAY_NAME + " ASC"
+        };
 
         String[] data = new String[] {
                 InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
@@ -73,10 +80,41 @@ public class InstanceChooserList extends ListActivity {
                 R.id.text1, R.id.text2
         };
 
-        // render total instance view
-        SimpleCursorAdapter instances =
-            new SimpleCursorAdapter(this, R.layout.two_item, c, data, view);
-        setListAdapter(instances);
+        // render total instance view, filled in as pages are loaded
+        mInstances = new SimpleCursorAdapter(this, R.layout.two_item, null, data, view);
+        setListAdapter(mInstances);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + 2 * visibleItemCount >= totalItemCount) {
+                    mLoader.loadMore();
+                }
+            }
+        });
+
+        mLoader = new PagedCursorLoader(getContentResolver(), InstanceColumns.CONTENT_URI,
+                selection, selectionArgs, sortOrder, PagedCursorLoader.DEFAULT_PAGE_SIZE);
+        mLoader.setNotNull(InstanceColumns.STATUS);
+        mLoader.setCursorPageListener(this);
+        mLoader.start();
+    }
+
+    @Override
+    public void cursorPageLoaded(Cursor cursor, boolean complete) {
+        mInstances.changeCursor(cursor);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mLoader != null) {
+            mLoader.close();
+        }
+        super.onDestroy();
     }
 
 
@@ -92,7 +130,6 @@ public class InstanceChooserList extends ListActivity {
     @Override
     protected void onListItemClick(ListView listView, View view, int position, long id) {
         Cursor c = (Cursor) getListAdapter().getItem(position);
-        startManagingCursor(c);
         Uri instanceUri =
             ContentUris.withAppendedId(InstanceColumns.CONTENT_URI,
                 c.getLong(c.getColumnIndex(InstanceColumns._ID)));
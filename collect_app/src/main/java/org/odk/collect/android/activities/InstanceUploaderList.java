@@ -20,11 +20,13 @@ import java.util.Set;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.CursorPageListener;
 import org.odk.collect.android.logic.FormRelationsManager;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.receivers.NetworkReceiver;
+import org.odk.collect.android.tasks.PagedCursorLoader;
 import org.odk.collect.android.utilities.CompatibilityUtils;
 
 import android.app.AlertDialog;
@@ -44,6 +46,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnLongClickListener;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -58,7 +61,7 @@ import android.widget.Toast;
  */
 
 public class InstanceUploaderList extends ListActivity implements
-		OnLongClickListener {
+		OnLongClickListener, CursorPageListener {
 
 	private static final String BUNDLE_SELECTED_ITEMS_KEY = "selected_items";
 	private static final String BUNDLE_TOGGLED_KEY = "toggled";
@@ -75,33 +78,102 @@ public class InstanceUploaderList extends ListActivity implements
 	private boolean mShowUnsent = true;
 	private SimpleCursorAdapter mInstances;
 	private ArrayList<Long> mSelected = new ArrayList<Long>();
-	private boolean mRestored = false;
 	private boolean mToggled = false;
+	// every row is to be checked, including pages that are still loading
+	private boolean mCheckAllPending = false;
+	private boolean mFinishIfEmpty = false;
+
+	private PagedCursorLoader mLoader;
+
+	/**
+	 * Starts loading the instances to show, replacing any earlier load. More
+	 * pages are loaded as the list is scrolled, or all of them when every row
+	 * is to be checked.
+	 */
+	private void startLoader() {
+		String selection;
+		String selectionArgs[];
+		if (mShowUnsent) {
+			// get all complete or failed submission instances
+			selection = InstanceColumns.STATUS + "=? or "
+					+ InstanceColumns.STATUS + "=?";
+			selectionArgs = new String[] { InstanceProviderAPI.STATUS_COMPLETE,
+					InstanceProviderAPI.STATUS_SUBMISSION_FAILED };
+		} else {
+			// also include the ones already submitted
+			selection = InstanceColumns.STATUS + "=? or "
+					+ InstanceColumns.STATUS + "=? or " + InstanceColumns.STATUS
+					+ "=?";
+			selectionArgs = new String[] { InstanceProviderAPI.STATUS_COMPLETE,
+					InstanceProviderAPI.STATUS_SUBMISSION_FAILED,
+					InstanceProviderAPI.STATUS_SUBMITTED };
+		}
+		String[] sortOrder = { InstanceColumns.DISPLAY_NAME + " ASC" };
 
-	public Cursor getUnsentCursor() {
-		// get all complete or failed submission instances
-		String selection = InstanceColumns.STATUS + "=? or "
-				+ InstanceColumns.STATUS + "=?";
-		String selectionArgs[] = { InstanceProviderAPI.STATUS_COMPLETE,
-				InstanceProviderAPI.STATUS_SUBMISSION_FAILED };
-		String sortOrder = InstanceColumns.DISPLAY_NAME + " ASC";
-		Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, selection,
-				selectionArgs, sortOrder);
-		return c;
+		if (mLoader != null) {
+			// the old rows go with the old loader
+			mInstances.changeCursor(null);
+			mLoader.close();
+		}
+		mLoader = new PagedCursorLoader(getContentResolver(),
+				InstanceColumns.CONTENT_URI, selection, selectionArgs,
+				sortOrder, PagedCursorLoader.DEFAULT_PAGE_SIZE);
+		mLoader.setCursorPageListener(this);
+		mLoader.start();
+		if (mCheckAllPending) {
+			mLoader.loadAll();
+		}
 	}
 
-	public Cursor getAllCursor() {
-		// get all complete or failed submission instances
-		String selection = InstanceColumns.STATUS + "=? or "
-				+ InstanceColumns.STATUS + "=? or " + InstanceColumns.STATUS
-				+ "=?";
-		String selectionArgs[] = { InstanceProviderAPI.STATUS_COMPLETE,
-				InstanceProviderAPI.STATUS_SUBMISSION_FAILED,
-				InstanceProviderAPI.STATUS_SUBMITTED };
-		String sortOrder = InstanceColumns.DISPLAY_NAME + " ASC";
-		Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, selection,
-				selectionArgs, sortOrder);
-		return c;
+	@Override
+	public void cursorPageLoaded(Cursor cursor, boolean complete) {
+		mInstances.changeCursor(cursor);
+		getListView().invalidate();
+
+		if (mCheckAllPending) {
+			mCheckAllPending = !complete;
+			checkLoadedRows();
+		} else {
+			// restore the check marks for the ones selected, which also covers
+			// the activity being reinitialized due to changing orientation
+			ListView ls = getListView();
+			Set<Long> selected = new HashSet<Long>(mSelected);
+			for (int pos = 0; pos < mInstances.getCount(); pos++) {
+				ls.setItemChecked(pos, selected.contains(mInstances.getItemId(pos)));
+			}
+		}
+
+		if (complete && mFinishIfEmpty) {
+			mFinishIfEmpty = false;
+			if (mInstances.isEmpty()) {
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * Checks every row loaded so far. Sending waits until the last page is in
+	 * when everything is to be checked.
+	 */
+	private void checkLoadedRows() {
+		ListView ls = getListView();
+		Set<Long> selected = new HashSet<Long>(mSelected);
+		for (int pos = 0; pos < mInstances.getCount(); pos++) {
+			Long id = mInstances.getItemId(pos);
+			if (selected.add(id)) {
+				mSelected.add(id);
+			}
+			ls.setItemChecked(pos, true);
+		}
+		mUploadButton.setEnabled(!mCheckAllPending && mSelected.size() > 0);
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (mLoader != null) {
+			mLoader.close();
+		}
+		super.onDestroy();
 	}
 
 	@Override
@@ -183,53 +255,54 @@ public class InstanceUploaderList extends ListActivity implements
 								Boolean.toString(mToggled));
 				// remove all items from selected list
 				mSelected.clear();
-				for (int pos = 0; pos < ls.getCount(); pos++) {
-					ls.setItemChecked(pos, mToggled);
-					// add all items if mToggled sets to select all
-					if (mToggled)
-						mSelected.add(ls.getItemIdAtPosition(pos));
+				if (mToggled) {
+					// select all, including the pages not loaded yet
+					mCheckAllPending = true;
+					checkLoadedRows();
+					mLoader.loadAll();
+				} else {
+					mCheckAllPending = false;
+					for (int pos = 0; pos < ls.getCount(); pos++) {
+						ls.setItemChecked(pos, false);
+					}
+					mUploadButton.setEnabled(false);
 				}
-				mUploadButton.setEnabled(!(mSelected.size() == 0));
 
 			}
 		});
 		mToggleButton.setOnLongClickListener(this);
 
-		Cursor c = mShowUnsent ? getUnsentCursor() : getAllCursor();
-
 		String[] data = new String[] { InstanceColumns.DISPLAY_NAME,
 				InstanceColumns.DISPLAY_SUBTEXT };
 		int[] view = new int[] { R.id.text1, R.id.text2 };
 
-		// render total instance view
+		// render total instance view, filled in as pages are loaded
 		mInstances = new SimpleCursorAdapter(this,
-				R.layout.two_item_multiple_choice, c, data, view);
+				R.layout.two_item_multiple_choice, null, data, view);
 
 		setListAdapter(mInstances);
 		getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
 		getListView().setItemsCanFocus(false);
+		getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+					int totalItemCount) {
+				if (firstVisibleItem + 2 * visibleItemCount >= totalItemCount) {
+					mLoader.loadMore();
+				}
+			}
+		});
 		mUploadButton.setEnabled(!(mSelected.size() == 0));
 
 		// set title
 		setTitle(getString(R.string.app_name) + " > "
 				+ getString(R.string.send_data));
 
-		// if current activity is being reinitialized due to changing
-		// orientation restore all check
-		// marks for ones selected
-		if (mRestored) {
-			ListView ls = getListView();
-			for (long id : mSelected) {
-				for (int pos = 0; pos < ls.getCount(); pos++) {
-					if (id == ls.getItemIdAtPosition(pos)) {
-						ls.setItemChecked(pos, true);
-						break;
-					}
-				}
-
-			}
-			mRestored = false;
-		}
+		startLoader();
 	}
 
 	@Override
@@ -364,7 +437,7 @@ public class InstanceUploaderList extends ListActivity implements
 		else
 			mSelected.add(k);
 
-		mUploadButton.setEnabled(!(mSelected.size() == 0));
+		mUploadButton.setEnabled(!mCheckAllPending && mSelected.size() > 0);
 
 	}
 
@@ -376,7 +449,6 @@ public class InstanceUploaderList extends ListActivity implements
 		for (int i = 0; i < selectedArray.length; i++)
 			mSelected.add(selectedArray[i]);
 		mToggled = savedInstanceState.getBoolean(BUNDLE_TOGGLED_KEY);
-		mRestored = true;
 		mUploadButton.setEnabled(selectedArray.length > 0);
 	}
 
@@ -402,9 +474,9 @@ public class InstanceUploaderList extends ListActivity implements
 			if (intent.getBooleanExtra(FormEntryActivity.KEY_SUCCESS, false)) {
 				mSelected.clear();
 				getListView().clearChoices();
-				if (mInstances.isEmpty()) {
-					finish();
-				}
+				// the statuses have changed, so check once they are read again
+				mFinishIfEmpty = true;
+				mLoader.reload();
 			}
 			break;
 		default:
@@ -415,32 +487,12 @@ public class InstanceUploaderList extends ListActivity implements
 
 	private void showUnsent() {
 		mShowUnsent = true;
-		Cursor c = mShowUnsent ? getUnsentCursor() : getAllCursor();
-		Cursor old = mInstances.getCursor();
-		try {
-			mInstances.changeCursor(c);
-		} finally {
-			if (old != null) {
-				old.close();
-				this.stopManagingCursor(old);
-			}
-		}
-		getListView().invalidate();
+		startLoader();
 	}
 
 	private void showAll() {
 		mShowUnsent = false;
-		Cursor c = mShowUnsent ? getUnsentCursor() : getAllCursor();
-		Cursor old = mInstances.getCursor();
-		try {
-			mInstances.changeCursor(c);
-		} finally {
-			if (old != null) {
-				old.close();
-				this.stopManagingCursor(old);
-			}
-		}
-		getListView().invalidate();
+		startLoader();
 	}
 
 	@Override
@@ -19,16 +19,16 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.lang.ref.WeakReference;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.InstanceCountsListener;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
-import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.provider.InstanceStatistics;
 import org.odk.collect.android.utilities.CompatibilityUtils;
 
 import android.app.Activity;
@@ -38,11 +38,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.database.ContentObserver;
-import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.preference.PreferenceManager;
 import android.text.InputType;
 import android.text.method.PasswordTransformationMethod;
@@ -64,7 +60,7 @@ import android.widget.Toast;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class MainMenuActivity extends Activity {
+public class MainMenuActivity extends Activity implements InstanceCountsListener {
 	private static final String t = "MainMenuActivity";
 
 	private static final int PASSWORD_DIALOG = 1;
@@ -89,12 +85,6 @@ public class MainMenuActivity extends Activity {
 	private int mCompletedCount;
 	private int mSavedCount;
 
-	private Cursor mFinalizedCursor;
-	private Cursor mSavedCursor;
-
-	private IncomingHandler mHandler = new IncomingHandler(this);
-	private MyContentObserver mContentObserver = new MyContentObserver();
-
 	private static boolean EXIT = true;
 
 	// private static boolean DO_NOT_EXIT = false;
@@ -228,52 +218,14 @@ public class MainMenuActivity extends Activity {
 			}
 		});
 
-		// count for finalized instances
-		String selection = InstanceColumns.STATUS + "=? or "
-				+ InstanceColumns.STATUS + "=?";
-		String selectionArgs[] = { InstanceProviderAPI.STATUS_COMPLETE,
-				InstanceProviderAPI.STATUS_SUBMISSION_FAILED };
-
-        try {
-            mFinalizedCursor = managedQuery(InstanceColumns.CONTENT_URI, null,
-                    selection, selectionArgs, null);
-        } catch (Exception e) {
-            createErrorDialog(e.getMessage(), EXIT);
-            return;
-        }
-
-    if (mFinalizedCursor != null) {
-      startManagingCursor(mFinalizedCursor);
-    }
-    mCompletedCount = mFinalizedCursor != null ? mFinalizedCursor.getCount() : 0;
-        getContentResolver().registerContentObserver(InstanceColumns.CONTENT_URI, true, mContentObserver);
-//		mFinalizedCursor.registerContentObserver(mContentObserver);
-
-		// count for finalized instances
-		String selectionSaved = InstanceColumns.STATUS + "=?";
-		String selectionArgsSaved[] = { InstanceProviderAPI.STATUS_INCOMPLETE };
-
-        try {
-            mSavedCursor = managedQuery(InstanceColumns.CONTENT_URI, null,
-                    selectionSaved, selectionArgsSaved, null);
-        } catch (Exception e) {
-            createErrorDialog(e.getMessage(), EXIT);
-            return;
-        }
-
-    if (mSavedCursor != null) {
-      startManagingCursor(mSavedCursor);
-    }
-    mSavedCount = mSavedCursor != null ? mSavedCursor.getCount() : 0;
-		// don't need to set a content observer because it can't change in the
-		// background
-
 		updateButtons();
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
+		InstanceStatistics.getInstance().addListener(this);
+		updateButtons();
 		SharedPreferences sharedPreferences = this.getSharedPreferences(
 				AdminPreferencesActivity.ADMIN_PREFERENCES, 0);
 
@@ -317,6 +269,7 @@ public class MainMenuActivity extends Activity {
 	@Override
 	protected void onPause() {
 		super.onPause();
+		InstanceStatistics.getInstance().removeListener(this);
 		if (mAlertDialog != null && mAlertDialog.isShowing()) {
 			mAlertDialog.dismiss();
 		}
@@ -472,68 +425,28 @@ public class MainMenuActivity extends Activity {
 		return null;
 	}
 
-	private void updateButtons() {
-    if (mFinalizedCursor != null && !mFinalizedCursor.isClosed()) {
-      mFinalizedCursor.requery();
-      mCompletedCount = mFinalizedCursor.getCount();
-      if (mCompletedCount > 0) {
-        mSendDataButton.setText(getString(R.string.send_data_button, mCompletedCount));
-      } else {
-        mSendDataButton.setText(getString(R.string.send_data));
-      }
-    } else {
-      mSendDataButton.setText(getString(R.string.send_data));
-      Log.w(t, "Cannot update \"Send Finalized\" button label since the database is closed. Perhaps the app is running in the background?");
-    }
-
-    if (mSavedCursor != null && !mSavedCursor.isClosed()) {
-      mSavedCursor.requery();
-      mSavedCount = mSavedCursor.getCount();
-      if (mSavedCount > 0) {
-        mReviewDataButton.setText(getString(R.string.review_data_button,
-                mSavedCount));
-      } else {
-        mReviewDataButton.setText(getString(R.string.review_data));
-      }
-    } else {
-      mReviewDataButton.setText(getString(R.string.review_data));
-      Log.w(t, "Cannot update \"Edit Form\" button label since the database is closed. Perhaps the app is running in the background?");
-    }
-  }
-
-	/**
-	 * notifies us that something changed
-	 *
-	 */
-	private class MyContentObserver extends ContentObserver {
-
-		public MyContentObserver() {
-			super(null);
-		}
-
-		@Override
-		public void onChange(boolean selfChange) {
-			super.onChange(selfChange);
-			mHandler.sendEmptyMessage(0);
-		}
+	@Override
+	public void instanceCountsChanged() {
+		updateButtons();
 	}
 
-	/*
-	 * Used to prevent memory leaks
-	 */
-	static class IncomingHandler extends Handler {
-		private final WeakReference<MainMenuActivity> mTarget;
-
-		IncomingHandler(MainMenuActivity target) {
-			mTarget = new WeakReference<MainMenuActivity>(target);
+	private void updateButtons() {
+		// kept up to date by the provider, so reading them costs no query
+		InstanceStatistics statistics = InstanceStatistics.getInstance();
+		mCompletedCount = statistics.getCount(InstanceProviderAPI.STATUS_COMPLETE,
+				InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+		if (mCompletedCount > 0) {
+			mSendDataButton.setText(getString(R.string.send_data_button, mCompletedCount));
+		} else {
+			mSendDataButton.setText(getString(R.string.send_data));
 		}
 
-		@Override
-		public void handleMessage(Message msg) {
-			MainMenuActivity target = mTarget.get();
-			if (target != null) {
-				target.updateButtons();
-			}
+		mSavedCount = statistics.getCount(InstanceProviderAPI.STATUS_INCOMPLETE);
+		if (mSavedCount > 0) {
+			mReviewDataButton.setText(getString(R.string.review_data_button,
+					mSavedCount));
+		} else {
+			mReviewDataButton.setText(getString(R.string.review_data));
 		}
 	}
 
@@ -33,6 +33,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
@@ -41,11 +42,10 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.adapters.ParentFormListAdapter;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FormRelationsDb;
+import org.odk.collect.android.listeners.CursorPageListener;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
-
-import java.util.Iterator;
-import java.util.Set;
+import org.odk.collect.android.tasks.PagedCursorLoader;
 
 /**
  *  Responsible for displaying all the valid instances in the instance directory.
@@ -57,7 +57,7 @@ import java.util.Set;
  *  Created: 4 September 2015
  *  Last modified: 8 September 2015
  */
-public class ParentInstanceChooserList extends ListActivity {
+public class ParentInstanceChooserList extends ListActivity implements CursorPageListener {
 
     private static final String TAG = "ParentChooser";
     private static final boolean LOCAL_LOG = true;
@@ -66,6 +66,9 @@ public class ParentInstanceChooserList extends ListActivity {
     private static final boolean DO_NOT_EXIT = false;
     private AlertDialog mAlertDialog;
 
+    private PagedCursorLoader mLoader;
+    private SimpleCursorAdapter mInstances;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -85,45 +88,19 @@ public class ParentInstanceChooserList extends ListActivity {
         tv.setVisibility(View.GONE);
 
 
-        String[] projection = {
-                InstanceColumns._ID,
-                InstanceColumns.DISPLAY_NAME,
-                InstanceColumns.DISPLAY_SUBTEXT,
-                InstanceColumns.STATUS,
-                InstanceColumns.CAN_EDIT_WHEN_COMPLETE
-        };
+        // children are listed under their parent, so leave them out. The
+        // provider filters them with one sub-query on the relations database.
+        Uri uri = InstanceColumns.CONTENT_URI.buildUpon()
+                .appendQueryParameter(InstanceProviderAPI.EXCLUDE_CHILDREN, "true")
+                .build();
         String selection = InstanceColumns.STATUS + " != ?";
-
-        Set<Long> children = FormRelationsDb.getAllChildren();
-        if ( children.size() > 0 ) {
-            // Build extra selection string
-            StringBuilder sb = new StringBuilder();
-            for (Iterator<Long> it = children.iterator(); it.hasNext(); ) {
-                Long child = it.next();
-                sb.append(InstanceColumns._ID + " != " + String.valueOf(child));
-                if (it.hasNext()) {
-                    sb.append(" AND ");
-                }
-            }
-            // Concatenate
-            selection += " AND " + sb.toString();
-        }
-
-        if (LOCAL_LOG) {
-            Log.d(TAG, "Building chooser query: " + selection);
-        }
-
         String[] selectionArgs = {
                 InstanceProviderAPI.STATUS_SUBMITTED
         };
 
-        String sortOrder = InstanceColumns.STATUS + " DESC, " +
-                InstanceColumns.DISPLAY_NAME + " ASC";
-        Cursor c = managedQuery(InstanceColumns.CONTENT_URI, projection, selection, selectionArgs, sortOrder);
-
-        if (LOCAL_LOG) {
-            Log.d(TAG, "Query for parents returned " + c.getCount() + " view(s) to display");
-        }
+        String[] sortOrder = {
+                InstanceColumns.STATUS + " DESC", InstanceColumns.DISPLAY_NAME + " ASC"
+        };
 
         int[] toViews = new int[] {
                 R.id.text1, R.id.text2
@@ -135,9 +112,44 @@ public class ParentInstanceChooserList extends ListActivity {
                 InstanceProviderAPI.InstanceColumns.DISPLAY_SUBTEXT
         };
 
-        SimpleCursorAdapter adapter =
-                new ParentFormListAdapter(this,  R.layout.two_item, c, fromColumns, toViews);
-        setListAdapter(adapter);
+        mInstances = new ParentFormListAdapter(this,  R.layout.two_item, null, fromColumns,
+                toViews);
+        setListAdapter(mInstances);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + 2 * visibleItemCount >= totalItemCount) {
+                    mLoader.loadMore();
+                }
+            }
+        });
+
+        mLoader = new PagedCursorLoader(getContentResolver(), uri, selection, selectionArgs,
+                sortOrder, PagedCursorLoader.DEFAULT_PAGE_SIZE);
+        mLoader.setNotNull(InstanceColumns.STATUS);
+        mLoader.setCursorPageListener(this);
+        mLoader.start();
+    }
+
+    @Override
+    public void cursorPageLoaded(Cursor cursor, boolean complete) {
+        if (LOCAL_LOG) {
+            Log.d(TAG, "Query for parents returned " + cursor.getCount() + " view(s) to display");
+        }
+        mInstances.changeCursor(cursor);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mLoader != null) {
+            mLoader.close();
+        }
+        super.onDestroy();
     }
 
     /**
@@ -146,7 +158,6 @@ public class ParentInstanceChooserList extends ListActivity {
     @Override
     protected void onListItemClick(ListView listView, View view, int position, long id) {
         Cursor c = (Cursor) getListAdapter().getItem(position);
-        startManagingCursor(c);
         Long parentId = c.getLong(c.getColumnIndex(InstanceColumns._ID));
         Uri instanceUri =
                 ContentUris.withAppendedId(InstanceProviderAPI.InstanceColumns.CONTENT_URI,
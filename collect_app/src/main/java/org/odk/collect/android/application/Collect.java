@@ -19,10 +19,12 @@ import java.io.File;
 import org.odk.collect.android.R;
 import org.odk.collect.android.database.ActivityLogger;
 import org.odk.collect.android.external.ExternalDataManager;
+import org.odk.collect.android.external.ExternalDataRegistry;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.utilities.AgingCredentialsProvider;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.opendatakit.httpclientandroidlib.client.CookieStore;
 import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
 import org.opendatakit.httpclientandroidlib.client.protocol.ClientContext;
@@ -49,6 +51,8 @@ public class Collect extends Application {
             + File.separator + "odk";
     public static final String FORMS_PATH = ODK_ROOT + File.separator + "forms";
     public static final String INSTANCES_PATH = ODK_ROOT + File.separator + "instances";
+    public static final String ARCHIVE_PATH = ODK_ROOT + File.separator + "archive";
+    public static final String BLOBS_PATH = ODK_ROOT + File.separator + ".blobs";
     public static final String CACHE_PATH = ODK_ROOT + File.separator + ".cache";
     public static final String METADATA_PATH = ODK_ROOT + File.separator + "metadata";
     public static final String TMPFILE_PATH = CACHE_PATH + File.separator + "tmp.jpg";
@@ -229,4 +233,18 @@ public class Collect extends Application {
                 mgr.getSingularProperty(PropertyManager.DEVICE_ID_PROPERTY));
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        // decoded images are the largest thing we hold on to that can be rebuilt
+        BitmapCache.getInstance().clear();
+        ExternalDataRegistry.getInstance().closeAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ExternalDataRegistry.getInstance().trimMemory(level);
+    }
+
 }
@@ -39,8 +39,10 @@ public class FormRelationsContract {
     // give it a private, empty constructor.
     private FormRelationsContract() {}
 
-    public static final int DATABASE_VERSION = 6;
+    public static final int DATABASE_VERSION = 7;
     public static final String DATABASE_NAME = "relations.db";
+    // Name of the database when attached to the instances database
+    public static final String ATTACHED_NAME = "form_relations";
     private static final String TEXT_TYPE = " TEXT";
     private static final String INT_TYPE = " INTEGER";
     private static final String COMMA_SEP = ", ";
@@ -87,5 +89,12 @@ public class FormRelationsContract {
                 COLUMN_REPEATABLE + TEXT_TYPE + ");";
 
         public static final String DELETE_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
+
+        public static final String CREATE_CHILD_INDEX = "CREATE INDEX IF NOT EXISTS " +
+                TABLE_NAME + "_child ON " + TABLE_NAME + "(" + COLUMN_CHILD_INSTANCE_ID + ");";
+
+        public static final String CREATE_PARENT_INDEX = "CREATE INDEX IF NOT EXISTS " +
+                TABLE_NAME + "_parent ON " + TABLE_NAME + "(" + COLUMN_PARENT_INSTANCE_ID +
+                COMMA_SEP + COLUMN_PARENT_INDEX + ");";
     }
 }
@@ -31,8 +31,12 @@ import android.util.Log;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FormRelationsContract.FormRelations;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -54,6 +58,9 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
     private static final String TAG = "FormRelationsDb";
     private static final boolean LOCAL_LOG = true;
 
+    // SQLite allows at most 999 bound arguments per statement
+    private static final int MAX_ARGS = 500;
+
     public FormRelationsDb() {
         super(Collect.METADATA_PATH, FormRelationsContract.DATABASE_NAME, null,
                 FormRelationsContract.DATABASE_VERSION);
@@ -65,6 +72,8 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
             Log.i(TAG, "onCreate. Created relations table.");
         }
         db.execSQL(FormRelations.CREATE_TABLE);
+        db.execSQL(FormRelations.CREATE_CHILD_INDEX);
+        db.execSQL(FormRelations.CREATE_PARENT_INDEX);
     }
 
     /**
@@ -79,6 +88,8 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
 
         db.execSQL(FormRelations.DELETE_TABLE);
         db.execSQL(FormRelations.CREATE_TABLE);
+        db.execSQL(FormRelations.CREATE_CHILD_INDEX);
+        db.execSQL(FormRelations.CREATE_PARENT_INDEX);
 
         db.close();
     }
@@ -88,7 +99,8 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
      *
      * Nafundi's database had some typing errors and did not capture all the
      * information needed for managing form relations. Hence out with old and
-     * in with the new.
+     * in with the new. Version 7 only adds indexes, so version 6 keeps its
+     * data.
      *
      * @param db The database.
      * @param oldVersion The old database version.
@@ -96,12 +108,77 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 6) {
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+                    + ", adding indexes");
+            db.execSQL(FormRelations.CREATE_CHILD_INDEX);
+            db.execSQL(FormRelations.CREATE_PARENT_INDEX);
+            return;
+        }
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                 + newVersion + ", which will destroy all old data");
         db.execSQL(FormRelations.DELETE_TABLE);
         onCreate(db);
     }
 
+    /**
+     * Attaches the relations database to another database.
+     *
+     * Attaching lets queries on the other database, e.g. the instances
+     * database, filter on form relations with a sub-query instead of first
+     * reading ids from here and pasting them into the selection. The tables
+     * are then named `ATTACHED_NAME.TABLE_NAME`. Does nothing if the
+     * database is already attached.
+     *
+     * @param db The database to attach to. Must not be in a transaction.
+     */
+    public static void attachTo(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA database_list", null);
+        try {
+            while (c.moveToNext()) {
+                if (FormRelationsContract.ATTACHED_NAME.equals(c.getString(1))) {
+                    return;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        // Make sure the file exists and is upgraded before attaching it
+        FormRelationsDb frdb = new FormRelationsDb();
+        frdb.getWritableDatabase().close();
+
+        if (LOCAL_LOG) {
+            Log.i(TAG, "Attaching relations database");
+        }
+        String path = Collect.METADATA_PATH + File.separator + FormRelationsContract.DATABASE_NAME;
+        db.execSQL("ATTACH DATABASE ? AS " + FormRelationsContract.ATTACHED_NAME,
+                new Object[] { path });
+    }
+
+    /**
+     * Returns a sub-query selecting the instance id of every child form, for
+     * use on a database that the relations database is attached to. NULL ids
+     * are left out, as a single one would make NOT IN match no row at all.
+     */
+    public static String getAllChildrenQuery() {
+        return "SELECT " + FormRelations.COLUMN_CHILD_INSTANCE_ID + " FROM " +
+                FormRelationsContract.ATTACHED_NAME + "." + FormRelations.TABLE_NAME +
+                " WHERE " + FormRelations.COLUMN_CHILD_INSTANCE_ID + " IS NOT NULL";
+    }
+
+    /**
+     * Returns a sub-query selecting the instance ids of the children of a
+     * parent form, for use on a database that the relations database is
+     * attached to.
+     *
+     * @param parentId The instance id of the parent form.
+     */
+    public static String getChildrenQuery(long parentId) {
+        return getAllChildrenQuery() + " AND " + FormRelations.COLUMN_PARENT_INSTANCE_ID +
+                " = " + parentId;
+    }
+
     /**
      * A container class used in `getMappingsToParent`
      */
@@ -228,6 +305,32 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
         return allChildren;
     }
 
+    /**
+     * Gets the instance ids of all forms that have a parent or a child.
+     *
+     * @return Returns a set of all instance ids in the form relations table.
+     */
+    public static Set<Long> getAllRelated() {
+        Set<Long> allRelated = new HashSet<Long>();
+
+        FormRelationsDb frdb = new FormRelationsDb();
+        SQLiteDatabase db = frdb.getReadableDatabase();
+
+        Cursor c = db.rawQuery("SELECT " + FormRelations.COLUMN_PARENT_INSTANCE_ID + " FROM " +
+                FormRelations.TABLE_NAME + " UNION SELECT " +
+                FormRelations.COLUMN_CHILD_INSTANCE_ID + " FROM " + FormRelations.TABLE_NAME,
+                null);
+        if ( null != c ) {
+            while( c.moveToNext() ) {
+                allRelated.add(c.getLong(0));
+            }
+            c.close();
+        }
+
+        db.close();
+        return allRelated;
+    }
+
     /**
      * Gets a child instance id based on the parent id and repeat index.
      *
@@ -471,6 +574,103 @@ public class FormRelationsDb extends ODKSQLiteOpenHelper {
         return recordsDeleted;
     }
 
+    /**
+     * Gets the parents of many instances at once.
+     *
+     * Ids are queried in chunks of `MAX_ARGS` to stay under SQLite's limit on
+     * bound arguments.
+     *
+     * @param instanceIds Instance ids, which need not be children.
+     * @return Returns a map from child instance id to parent instance id for
+     * the supplied ids that are children.
+     */
+    public static Map<Long, Long> getParents(List<Long> instanceIds) {
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+
+        FormRelationsDb frdb = new FormRelationsDb();
+        SQLiteDatabase db = frdb.getReadableDatabase();
+
+        String[] projection = {
+                FormRelations.COLUMN_CHILD_INSTANCE_ID,
+                FormRelations.COLUMN_PARENT_INSTANCE_ID
+        };
+        for (int start = 0; start < instanceIds.size(); start += MAX_ARGS) {
+            List<Long> chunk = instanceIds.subList(start,
+                    Math.min(start + MAX_ARGS, instanceIds.size()));
+            String selection = FormRelations.COLUMN_CHILD_INSTANCE_ID + " IN (" +
+                    placeholders(chunk.size()) + ")";
+            Cursor c = db.query(FormRelations.TABLE_NAME, projection, selection,
+                    toArgs(chunk), null, null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    parents.put(c.getLong(0), c.getLong(1));
+                }
+                c.close();
+            }
+        }
+
+        db.close();
+        return parents;
+    }
+
+    /**
+     * Deletes every record that mentions any of the supplied instance ids.
+     *
+     * This is `deleteAsParent` and `deleteAsChild` for many instances, in one
+     * transaction. Only use it when the parent forms of any children are
+     * being deleted too, since sibling information is not updated.
+     *
+     * @param instanceIds Instance ids
+     * @return Returns the number of rows deleted from the database.
+     */
+    public static int deleteAll(List<Long> instanceIds) {
+        FormRelationsDb frdb = new FormRelationsDb();
+        SQLiteDatabase db = frdb.getWritableDatabase();
+
+        int recordsDeleted = 0;
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < instanceIds.size(); start += MAX_ARGS / 2) {
+                List<Long> chunk = instanceIds.subList(start,
+                        Math.min(start + MAX_ARGS / 2, instanceIds.size()));
+                String in = " IN (" + placeholders(chunk.size()) + ")";
+                String where = FormRelations.COLUMN_PARENT_INSTANCE_ID + in + " OR " +
+                        FormRelations.COLUMN_CHILD_INSTANCE_ID + in;
+                String[] ids = toArgs(chunk);
+                String[] whereArgs = new String[ids.length * 2];
+                System.arraycopy(ids, 0, whereArgs, 0, ids.length);
+                System.arraycopy(ids, 0, whereArgs, ids.length, ids.length);
+                recordsDeleted += db.delete(FormRelations.TABLE_NAME, where, whereArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (LOCAL_LOG) {
+            Log.d(TAG, recordsDeleted + " records deleted for " + instanceIds.size() +
+                    " instances");
+        }
+        db.close();
+        return recordsDeleted;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
+    private static String[] toArgs(List<Long> ids) {
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = String.valueOf(ids.get(i));
+        }
+        return args;
+    }
+
     /**
      * Deletes the specified child in the db. Updates sibling db info.
      *
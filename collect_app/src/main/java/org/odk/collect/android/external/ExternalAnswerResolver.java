@@ -19,20 +19,25 @@
 package org.odk.collect.android.external;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
 import org.javarosa.core.model.QuestionDef;
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectMultiData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.model.utils.DateUtils;
-import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xform.util.XFormAnswerDataParser;
 import org.javarosa.xform.util.XFormAnswerDataSerializer;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 
@@ -45,22 +50,21 @@ import android.util.Log;
  */
 public class ExternalAnswerResolver extends DefaultAnswerResolver {
 
+    // Select questions by their generic reference, built on first use. Saved
+    // instances are restored one answer at a time, and walking the form for
+    // each select answer (as XFormParser.ghettoGetQuestionDef does) makes
+    // large instances quadratic.
+    private FormDef mIndexedForm;
+    private Map<TreeReference, QuestionDef> mSelectQuestions;
+
+    // Whether each select question has a search() appearance
+    private final Map<QuestionDef, Boolean> mSearchAppearances = new HashMap<QuestionDef, Boolean>();
+
     @Override
     public IAnswerData resolveAnswer(String textVal, TreeElement treeElement, FormDef formDef) {
-        QuestionDef questionDef = XFormParser.ghettoGetQuestionDef(treeElement.getDataType(), formDef, treeElement.getRef());
+        QuestionDef questionDef = getSelectQuestionDef(treeElement, formDef);
         if (questionDef != null && (questionDef.getControlType() == Constants.CONTROL_SELECT_ONE || questionDef.getControlType() == Constants.CONTROL_SELECT_MULTI)) {
-            boolean containsSearchExpression = false;
-
-            XPathFuncExpr xPathExpression = null;
-            try {
-                xPathExpression = ExternalDataUtil.getSearchXPathExpression(questionDef.getAppearanceAttr());
-            } catch (Exception e) {
-                Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
-                // there is a search expression, but has syntax errors
-                containsSearchExpression = true;
-            }
-
-            if (xPathExpression != null || containsSearchExpression) {
+            if (hasSearchAppearance(questionDef)) {
                 // that means that we have dynamic selects
 
                 // read the static choices from the options sheet
@@ -142,8 +146,58 @@ public class ExternalAnswerResolver extends DefaultAnswerResolver {
                 throw createBugRuntimeException(treeElement, textVal);
             }
         }
-        // default behavior matches original behavior (for static selects, etc.)
-        return super.resolveAnswer(textVal, treeElement, formDef);
+        // default behavior matches original behavior (for static selects, etc.),
+        // without searching the form for the question again
+        return XFormAnswerDataParser.getAnswerData(textVal, treeElement.getDataType(), questionDef);
+    }
+
+    /**
+     * Same as XFormParser.ghettoGetQuestionDef, using the index.
+     */
+    private QuestionDef getSelectQuestionDef(TreeElement treeElement, FormDef formDef) {
+        int dataType = treeElement.getDataType();
+        if (dataType != Constants.DATATYPE_CHOICE && dataType != Constants.DATATYPE_CHOICE_LIST) {
+            return null;
+        }
+        if (mIndexedForm != formDef) {
+            mIndexedForm = formDef;
+            mSelectQuestions = new HashMap<TreeReference, QuestionDef>();
+            indexQuestions(formDef);
+        }
+        return mSelectQuestions.get(treeElement.getRef().genericize());
+    }
+
+    private void indexQuestions(IFormElement element) {
+        if (element instanceof QuestionDef) {
+            QuestionDef questionDef = (QuestionDef) element;
+            TreeReference ref = FormInstance.unpackReference(questionDef.getBind());
+            // the search takes the first match, so keep that one
+            if (!mSelectQuestions.containsKey(ref)) {
+                mSelectQuestions.put(ref, questionDef);
+            }
+            return;
+        }
+        List<IFormElement> children = element.getChildren();
+        if (children != null) {
+            for (IFormElement child : children) {
+                indexQuestions(child);
+            }
+        }
+    }
+
+    private boolean hasSearchAppearance(QuestionDef questionDef) {
+        Boolean hasSearch = mSearchAppearances.get(questionDef);
+        if (hasSearch == null) {
+            try {
+                hasSearch = ExternalDataUtil.getSearchXPathExpression(questionDef.getAppearanceAttr()) != null;
+            } catch (Exception e) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+                // there is a search expression, but has syntax errors
+                hasSearch = true;
+            }
+            mSearchAppearances.put(questionDef, hasSearch);
+        }
+        return hasSearch;
     }
 
     private RuntimeException createBugRuntimeException(TreeElement treeElement, String textVal) {
@@ -37,5 +37,13 @@ public interface ExternalDataManager {
      */
     ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required);
 
+    /**
+     * Hands back a database returned by {@link #getDatabase(String, boolean)},
+     * once the caller is done with it and its cursors.
+     *
+     * @param sqLiteOpenHelper the database, or null
+     */
+    void releaseDatabase(ExternalSQLiteOpenHelper sqLiteOpenHelper);
+
     void close();
 }
@@ -24,8 +24,6 @@ import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.ExternalDataException;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Author: Meletis Margaritis
@@ -34,52 +32,49 @@ import java.util.Map;
  */
 public class ExternalDataManagerImpl implements ExternalDataManager {
 
-    private Map<String, ExternalSQLiteOpenHelper> dbMap = new HashMap<String, ExternalSQLiteOpenHelper>();
-
     private final File mediaFolder;
 
     public ExternalDataManagerImpl(File mediaFolder) {
         this.mediaFolder = mediaFolder;
     }
 
+    /**
+     * Leases the database from ExternalDataRegistry on every call, so it
+     * can't be closed while the caller is using it.
+     */
     @Override
     public ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required) {
-        ExternalSQLiteOpenHelper sqLiteOpenHelper = dbMap.get(dataSetName);
-        if (sqLiteOpenHelper == null) {
-            if (mediaFolder == null) {
-                String msg = Collect.getInstance().getString(R.string.ext_not_initialized_error);
-                Log.e(ExternalDataUtil.LOGGER_NAME, msg);
-                if (required) {
-                    throw new ExternalDataException(msg);
-                } else {
-                    return null;
-                }
-            } else {
-                File dbFile = new File(mediaFolder, dataSetName + ".db");
-                if (!dbFile.exists()) {
-                    String msg = Collect.getInstance().getString(R.string.ext_import_csv_missing_error, dataSetName, dataSetName);
-                    Log.e(ExternalDataUtil.LOGGER_NAME, msg);
-                    if (required) {
-                        throw new ExternalDataException(msg);
-                    } else {
-                        return null;
-                    }
-                } else {
-                    sqLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
-                    dbMap.put(dataSetName, sqLiteOpenHelper);
-                }
+        String msg;
+        if (mediaFolder == null) {
+            msg = Collect.getInstance().getString(R.string.ext_not_initialized_error);
+        } else {
+            File dbFile = new File(mediaFolder, dataSetName + ".db");
+            if (dbFile.exists()) {
+                return ExternalDataRegistry.getInstance().acquire(dbFile);
             }
+            msg = Collect.getInstance().getString(R.string.ext_import_csv_missing_error, dataSetName, dataSetName);
+        }
+
+        Log.e(ExternalDataUtil.LOGGER_NAME, msg);
+        if (required) {
+            throw new ExternalDataException(msg);
+        } else {
+            return null;
         }
-        return sqLiteOpenHelper;
     }
 
     @Override
-    public void close() {
-        if (dbMap != null) {
-            for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
-                Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database handler:" + externalSQLiteOpenHelper.toString());
-                externalSQLiteOpenHelper.close();
-            }
+    public void releaseDatabase(ExternalSQLiteOpenHelper sqLiteOpenHelper) {
+        if (sqLiteOpenHelper != null) {
+            ExternalDataRegistry.getInstance().release(sqLiteOpenHelper);
         }
     }
+
+    /**
+     * Nothing to do; the connections belong to ExternalDataRegistry, which
+     * keeps them open for the next save or form.
+     */
+    @Override
+    public void close() {
+    }
 }
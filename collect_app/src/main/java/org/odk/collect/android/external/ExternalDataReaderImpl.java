@@ -47,6 +47,8 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
             File dataSetFile = stringFileEntry.getValue();
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
+                // any open connection is to the old data
+                ExternalDataRegistry.getInstance().invalidate(dbFile);
                 if (dbFile.exists()) {
                     // this means the someone updated the csv file, so we need to reload it
                     boolean deleted = dbFile.delete();
@@ -0,0 +1,203 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.external;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the external dataset databases open across saves and form sessions.
+ *
+ * Opening a dataset and warming its page cache is the slow part of the first
+ * pulldata() or search() after a form is opened, so the connections are shared
+ * by every ExternalDataManagerImpl. Each query leases its connection with
+ * acquire() and hands it back with release(). A connection that is not
+ * leased is closed after IDLE_TIMEOUT, or at once when the app's UI is hidden.
+ * Every connection is closed when memory runs low or its CSV is imported
+ * again; one that is leased at that moment is retired instead, and closed
+ * when its last lease is released.
+ */
+public class ExternalDataRegistry {
+
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    private static ExternalDataRegistry sInstance = null;
+
+    private static class Entry {
+        final ExternalSQLiteOpenHelper helper;
+        long lastUsed;
+        int leases;
+        // no longer handed out, close once the leases are released
+        boolean retired;
+
+        Entry(ExternalSQLiteOpenHelper helper) {
+            this.helper = helper;
+        }
+    }
+
+    // connections handed out by acquire(), by absolute path of the .db file
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // every open connection, including retired ones still leased
+    private final Map<ExternalSQLiteOpenHelper, Entry> mByHelper =
+            new IdentityHashMap<ExternalSQLiteOpenHelper, Entry>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mEvictionScheduled = false;
+
+    private final Runnable mEvictIdle = new Runnable() {
+        @Override
+        public void run() {
+            evictIdle(IDLE_TIMEOUT);
+        }
+    };
+
+    public static synchronized ExternalDataRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new ExternalDataRegistry();
+        }
+        return sInstance;
+    }
+
+    private ExternalDataRegistry() {
+    }
+
+    /**
+     * Leases the shared helper for dbFile, which must exist. The helper stays
+     * open until the lease is handed back with release().
+     */
+    public synchronized ExternalSQLiteOpenHelper acquire(File dbFile) {
+        String key = dbFile.getAbsolutePath();
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(new ExternalSQLiteOpenHelper(dbFile));
+            mEntries.put(key, entry);
+            mByHelper.put(entry.helper, entry);
+        }
+        entry.leases++;
+        entry.lastUsed = SystemClock.uptimeMillis();
+        scheduleEviction();
+        return entry.helper;
+    }
+
+    /**
+     * Hands back a lease taken with acquire().
+     */
+    public synchronized void release(ExternalSQLiteOpenHelper helper) {
+        Entry entry = mByHelper.get(helper);
+        if (entry == null || entry.leases == 0) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Released a database handler that was not leased: "
+                    + helper);
+            return;
+        }
+        entry.leases--;
+        entry.lastUsed = SystemClock.uptimeMillis();
+        if (entry.retired && entry.leases == 0) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Closes and forgets the connection to dbFile, if any. Must be called
+     * before the file is deleted or imported again.
+     */
+    public synchronized void invalidate(File dbFile) {
+        Entry entry = mEntries.remove(dbFile.getAbsolutePath());
+        if (entry != null) {
+            Log.i(ExternalDataUtil.LOGGER_NAME, "Closing database handler: " + dbFile);
+            retire(entry);
+        }
+    }
+
+    /**
+     * Closes every connection. They are opened again on the next use.
+     */
+    public synchronized void closeAll() {
+        for (Entry entry : mEntries.values()) {
+            retire(entry);
+        }
+        Log.i(ExternalDataUtil.LOGGER_NAME, "Closed " + mEntries.size() + " database handler(s)");
+        mEntries.clear();
+    }
+
+    /**
+     * Called from Application.onTrimMemory().
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            closeAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // nothing is being entered while hidden; only queries in flight need theirs
+            evictIdle(0);
+        }
+    }
+
+    /**
+     * Closes the connections that are not leased and have not been for at
+     * least minIdle milliseconds.
+     */
+    private synchronized void evictIdle(long minIdle) {
+        mEvictionScheduled = false;
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.leases == 0 && now - entry.lastUsed >= minIdle) {
+                Log.i(ExternalDataUtil.LOGGER_NAME, "Closing idle database handler: "
+                        + entry.helper);
+                it.remove();
+                close(entry);
+            }
+        }
+        scheduleEviction();
+    }
+
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (entry.leases == 0) {
+            close(entry);
+        }
+    }
+
+    private void close(Entry entry) {
+        mByHelper.remove(entry.helper);
+        entry.helper.close();
+    }
+
+    private void scheduleEviction() {
+        if (!mEvictionScheduled && !mEntries.isEmpty()) {
+            mEvictionScheduled = true;
+            mHandler.postDelayed(mEvictIdle, IDLE_TIMEOUT);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import java.util.regex.Pattern;
 
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.condition.IFunctionHandler;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
@@ -43,6 +44,9 @@ import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.exception.InvalidSyntaxException;
 import org.odk.collect.android.external.handler.ExternalDataHandlerSearch;
+import org.odk.collect.android.logic.EvaluationProfiler;
+
+import android.support.v4.util.LruCache;
 
 /**
  * Author: Meletis Margaritis
@@ -56,6 +60,12 @@ public final class ExternalDataUtil {
     public static final String SORT_COLUMN_NAME = "c_sortby";
 
     private static final Pattern SEARCH_FUNCTION_REGEX = Pattern.compile("search\\(.+\\)");
+
+    // Parsed search() expressions by appearance string. Every select widget
+    // asks for one each time it is built, and the appearances of a form are
+    // few. Appearances without search() map to NO_SEARCH.
+    private static final LruCache<String, Object> sSearchExpressions = new LruCache<String, Object>(128);
+    private static final Object NO_SEARCH = new Object();
     private static final String COLUMN_SEPARATOR = ",";
     private static final String FALLBACK_COLUMN_SEPARATOR = " ";
     public static final String JR_IMAGES_PREFIX = "jr://images/";
@@ -93,12 +103,30 @@ public final class ExternalDataUtil {
         return null;
     }
 
+    /**
+     * Returns the search() call in the appearance, or null if there is none.
+     * The result is shared, so it must not be modified.
+     *
+     * @throws InvalidSyntaxException if the search() call is not valid
+     */
     public static XPathFuncExpr getSearchXPathExpression(String appearance) {
         if (appearance == null) {
             appearance = "";
         }
         appearance = appearance.trim();
 
+        Object cached = sSearchExpressions.get(appearance);
+        if (cached != null) {
+            return (cached == NO_SEARCH) ? null : (XPathFuncExpr) cached;
+        }
+        // errors are not cached, so they are reported again each time
+        XPathFuncExpr xPathFuncExpr = parseSearchXPathExpression(appearance);
+        sSearchExpressions.put(appearance, (xPathFuncExpr == null) ? NO_SEARCH : xPathFuncExpr);
+        return xPathFuncExpr;
+    }
+
+    private static XPathFuncExpr parseSearchXPathExpression(String appearance) {
+
         Matcher matcher = SEARCH_FUNCTION_REGEX.matcher(appearance);
         if (matcher.find()) {
             String function = matcher.group(0);
@@ -153,7 +181,12 @@ public final class ExternalDataUtil {
                     EvaluationContext baseEvaluationContext = new EvaluationContext(formInstance);
                     EvaluationContext evaluationContext = new EvaluationContext(baseEvaluationContext, formEntryPrompt.getIndex().getReference());
                     // we can only add only the appropriate by querying the xPathFuncExpr.id.name
-                    evaluationContext.addFunctionHandler(new ExternalDataHandlerSearch(externalDataManager, displayColumns, value, imageColumn));
+                    IFunctionHandler searchHandler = new ExternalDataHandlerSearch(externalDataManager, displayColumns, value, imageColumn);
+                    EvaluationProfiler profiler = Collect.getInstance().getFormController().getEvaluationProfiler();
+                    if (profiler != null) {
+                        searchHandler = profiler.wrap(searchHandler);
+                    }
+                    evaluationContext.addFunctionHandler(searchHandler);
 
                     Object eval = xPathFuncExpr.eval(formInstance, evaluationContext);
                     if (eval.getClass().isAssignableFrom(ArrayList.class)) {
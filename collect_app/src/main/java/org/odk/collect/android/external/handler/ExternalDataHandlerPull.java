@@ -80,9 +80,10 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         dataSetName = normalize(dataSetName);
 
         Cursor c = null;
+        ExternalSQLiteOpenHelper sqLiteOpenHelper = null;
         try {
 
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, false);
+            sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, false);
             if (sqLiteOpenHelper == null) {
                 return "";
             }
@@ -107,6 +108,7 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
             if (c != null) {
                 c.close();
             }
+            getExternalDataManager().releaseDatabase(sqLiteOpenHelper);
         }
     }
 }
@@ -127,8 +127,9 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         dataSetName = normalize(dataSetName);
 
         Cursor c = null;
+        ExternalSQLiteOpenHelper sqLiteOpenHelper = null;
         try {
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, true);
+            sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, true);
 
             SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
             LinkedHashMap<String, String> selectColumnMap = ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(), getDisplayColumns());
@@ -176,6 +177,7 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
             if (c != null) {
                 c.close();
             }
+            getExternalDataManager().releaseDatabase(sqLiteOpenHelper);
         }
     }
 
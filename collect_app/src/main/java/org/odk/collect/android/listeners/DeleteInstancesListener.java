@@ -22,4 +22,10 @@ package org.odk.collect.android.listeners;
  */
 public interface DeleteInstancesListener {
 	void deleteComplete(int deletedInstances);
+
+	/**
+	 * Reports how many of the deleted instances have had their files removed,
+	 * and how many bytes that has freed so far.
+	 */
+	void deleteProgress(int cleanedInstances, int totalInstances, long bytesFreed);
 }
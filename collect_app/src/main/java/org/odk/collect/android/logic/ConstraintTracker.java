@@ -0,0 +1,166 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.logic;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.condition.Constraint;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathConditional;
+
+/**
+ * Remembers which answers are known to satisfy their constraint, so that
+ * finalizing an instance only re-checks answers that may have become invalid
+ * since they were last checked.
+ *
+ * An answer stops being valid when it changes, or when an answer its
+ * constraint reads changes. A constraint that reads anything that can change
+ * without going through FormController, such as a calculated node, a
+ * read-only question or now(), is never considered checked.
+ */
+class ConstraintTracker {
+
+    private final FormDef mFormDef;
+
+    // reference -> generic reference, for answers whose constraint held when last checked
+    private final HashMap<String, String> mValid = new HashMap<String, String>();
+
+    // generic reference -> generic references of the questions whose constraints read it
+    private final HashMap<String, HashSet<String>> mDependents =
+            new HashMap<String, HashSet<String>>();
+
+    // generic references of the questions whose constraints have been looked at
+    private final HashSet<String> mAnalyzed = new HashSet<String>();
+
+    // generic references of the questions whose constraints must always be re-checked
+    private final HashSet<String> mVolatile = new HashSet<String>();
+
+    ConstraintTracker(FormDef formDef) {
+        mFormDef = formDef;
+    }
+
+    boolean isValid(TreeReference ref) {
+        return mValid.containsKey(ref.toString(true));
+    }
+
+    /**
+     * Records that the answer at ref satisfies its constraint.
+     */
+    void markValid(TreeReference ref) {
+        String generic = ref.genericize().toString();
+        if (!mAnalyzed.contains(generic)) {
+            analyze(ref, generic);
+        }
+        if (!mVolatile.contains(generic)) {
+            mValid.put(ref.toString(true), generic);
+        }
+    }
+
+    /**
+     * Forgets that the answer at ref and the answers whose constraints read
+     * it were valid.
+     */
+    void answerChanged(TreeReference ref) {
+        mValid.remove(ref.toString(true));
+
+        Set<String> dependents = mDependents.get(ref.genericize().toString());
+        if (dependents == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, String>> it = mValid.entrySet().iterator();
+        while (it.hasNext()) {
+            if (dependents.contains(it.next().getValue())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets everything, for when references shift, such as after a repeat
+     * is deleted.
+     */
+    void clear() {
+        mValid.clear();
+    }
+
+    private void analyze(TreeReference ref, String generic) {
+        mAnalyzed.add(generic);
+
+        TreeElement element = mFormDef.getMainInstance().resolveReference(ref);
+        if (element == null) {
+            mVolatile.add(generic);
+            return;
+        }
+        Constraint constraint = element.getConstraint();
+        if (constraint == null || constraint.constraint == null) {
+            // nothing to re-check, only required, which is always checked
+            return;
+        }
+        if (constraint.constraint instanceof XPathConditional
+                && ((XPathConditional) constraint.constraint).hasNow) {
+            mVolatile.add(generic);
+            return;
+        }
+
+        for (TreeReference trigger : constraint.constraint.getTriggers(ref)) {
+            if (trigger.getInstanceName() != null) {
+                // secondary instances don't change while the form is open
+                continue;
+            }
+            TreeReference genericTrigger = trigger.genericize();
+            if (!isAnsweredByUser(genericTrigger)) {
+                mVolatile.add(generic);
+                return;
+            }
+            String key = genericTrigger.toString();
+            HashSet<String> dependents = mDependents.get(key);
+            if (dependents == null) {
+                dependents = new HashSet<String>();
+                mDependents.put(key, dependents);
+            }
+            dependents.add(generic);
+        }
+    }
+
+    /**
+     * Returns true if the node at genericRef only changes when the user
+     * answers it, as opposed to being calculated.
+     */
+    private boolean isAnsweredByUser(TreeReference genericRef) {
+        QuestionDef question = FormDef.findQuestionByRef(genericRef, mFormDef);
+        if (question == null) {
+            return false;
+        }
+        TreeElement template = mFormDef.getMainInstance().getTemplatePath(genericRef);
+        return template != null && template.isEnabled();
+    }
+}
@@ -0,0 +1,251 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.logic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.condition.IFunctionHandler;
+import org.odk.collect.android.application.Collect;
+
+import android.util.Log;
+
+/**
+ * Records how often, and for how long, the expressions of a form are
+ * evaluated, so form designers can find the relevants, constraints and
+ * calculates that make a form slow. Profiling is disabled by default.
+ *
+ * Profiling is enabled if the file "/sdcard/odk/log/profile" exists. The
+ * report is written to "/sdcard/odk/log/profile_[instance].txt" every time
+ * the instance is saved.
+ *
+ * Three things are timed:
+ * <ul>
+ * <li>answering each question, which includes every relevant, constraint and
+ * calculate the answer triggers. Questions are listed by their generic
+ * reference, so all iterations of a repeat add up together.</li>
+ * <li>each call of a function handler (pulldata(), search() and so on),
+ * listed by function and first argument.</li>
+ * <li>whole phases such as loading, saving a screen and validating.</li>
+ * </ul>
+ * JavaRosa evaluates its built-in functions such as count() inline, so those
+ * show up in the time of the question that triggered them.
+ */
+public class EvaluationProfiler {
+
+    private static final String t = "EvaluationProfiler";
+
+    private static final String ENABLE_PROFILING = "profile";
+
+    private static class Entry {
+        final String key;
+        int count;
+        long totalNanos;
+        long maxNanos;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private final HashMap<String, Entry> mQuestions = new HashMap<String, Entry>();
+    private final HashMap<String, Entry> mFunctions = new HashMap<String, Entry>();
+    private final HashMap<String, Entry> mPhases = new HashMap<String, Entry>();
+
+    /**
+     * Returns a new profiler if profiling is switched on, null otherwise.
+     */
+    public static EvaluationProfiler createIfEnabled() {
+        if (new File(Collect.LOG_PATH, ENABLE_PROFILING).exists()) {
+            Log.i(t, "Evaluation profiling is enabled");
+            return new EvaluationProfiler();
+        }
+        return null;
+    }
+
+    public void recordQuestion(FormIndex index, long nanos) {
+        String key = (index.getReference() == null) ? index.toString()
+                : index.getReference().genericize().toString();
+        record(mQuestions, key, nanos);
+    }
+
+    public void recordPhase(String phase, long nanos) {
+        record(mPhases, phase, nanos);
+    }
+
+    public void recordFunction(String key, long nanos) {
+        record(mFunctions, key, nanos);
+    }
+
+    private synchronized void record(Map<String, Entry> entries, String key, long nanos) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            e = new Entry(key);
+            entries.put(key, e);
+        }
+        e.count++;
+        e.totalNanos += nanos;
+        e.maxNanos = Math.max(e.maxNanos, nanos);
+    }
+
+    /**
+     * Replaces every function handler registered with ec by one that times
+     * it.
+     */
+    public void wrapFunctionHandlers(EvaluationContext ec) {
+        HashMap<String, IFunctionHandler> handlers = ec.getFunctionHandlers();
+        for (Map.Entry<String, IFunctionHandler> e : handlers.entrySet()) {
+            e.setValue(wrap(e.getValue()));
+        }
+    }
+
+    /**
+     * Returns a function handler that behaves like handler and times each
+     * call.
+     */
+    public IFunctionHandler wrap(final IFunctionHandler handler) {
+        if (handler instanceof ProfiledFunctionHandler) {
+            return handler;
+        }
+        return new ProfiledFunctionHandler(handler);
+    }
+
+    private class ProfiledFunctionHandler implements IFunctionHandler {
+        private final IFunctionHandler mHandler;
+
+        ProfiledFunctionHandler(IFunctionHandler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public String getName() {
+            return mHandler.getName();
+        }
+
+        @Override
+        public List<Class[]> getPrototypes() {
+            return mHandler.getPrototypes();
+        }
+
+        @Override
+        public boolean rawArgs() {
+            return mHandler.rawArgs();
+        }
+
+        @Override
+        public boolean realTime() {
+            return mHandler.realTime();
+        }
+
+        @Override
+        public Object eval(Object[] args, EvaluationContext ec) {
+            long start = System.nanoTime();
+            try {
+                return mHandler.eval(args, ec);
+            } finally {
+                String key = mHandler.getName() + "(";
+                if (args.length > 0 && args[0] instanceof String) {
+                    key += "'" + args[0] + "'" + (args.length > 1 ? ", ..." : "");
+                } else if (args.length > 0) {
+                    key += "...";
+                }
+                recordFunction(key + ")", System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Writes the report to the log folder, named after the instance.
+     */
+    public void writeReport(String instanceName) {
+        File dir = new File(Collect.LOG_PATH);
+        dir.mkdirs();
+        File report = new File(dir, "profile_" + instanceName + ".txt");
+        Writer w = null;
+        try {
+            w = new FileWriter(report);
+            w.write(getReport());
+            Log.i(t, "Wrote evaluation profile to " + report.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(t, "Unable to write " + report.getAbsolutePath(), e);
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the report as text, the most expensive entries first.
+     */
+    public synchronized String getReport() {
+        StringBuilder b = new StringBuilder();
+        appendSection(b, "Phases", mPhases);
+        appendSection(b, "Questions (answer and triggered recalculation)", mQuestions);
+        appendSection(b, "Functions", mFunctions);
+        return b.toString();
+    }
+
+    private static void appendSection(StringBuilder b, String title, Map<String, Entry> entries) {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return (lhs.totalNanos < rhs.totalNanos) ? 1
+                        : ((lhs.totalNanos == rhs.totalNanos) ? 0 : -1);
+            }
+        });
+
+        b.append(title).append('\n');
+        b.append("total ms\tcount\tavg ms\tmax ms\tname\n");
+        for (Entry e : sorted) {
+            b.append(millis(e.totalNanos)).append('\t')
+                    .append(e.count).append('\t')
+                    .append(millis(e.totalNanos / e.count)).append('\t')
+                    .append(millis(e.maxNanos)).append('\t')
+                    .append(e.key).append('\n');
+        }
+        b.append('\n');
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.2f", nanos / 1000000.0);
+    }
+}
@@ -17,6 +17,7 @@ package org.odk.collect.android.logic;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -155,6 +156,18 @@ public class FormController {
     private File mInstancePath;
     private FormEntryController mFormEntryController;
     private FormIndex mIndexWaitingForData = null;
+    // xpath -> index for the part of the form getIndexFromXPath() has walked so far
+    private HashMap<String, FormIndex> mXPathIndex = null;
+    // the last index walked, or null once the walk has reached the end of the form
+    private FormIndex mXPathWalkIndex = null;
+    // change count the xpath map was built against
+    private int mXPathIndexChangeCount = -1;
+    // bumped whenever an answer, a repeat or the language changes
+    private int mChangeCount = 0;
+    // null unless evaluation profiling is switched on
+    private EvaluationProfiler mProfiler = null;
+    // answers known to satisfy their constraints, see validateChangedAnswers()
+    private ConstraintTracker mConstraintTracker = null;
 
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
     	mMediaFolder = mediaFolder;
@@ -162,6 +175,14 @@ public class FormController {
         mInstancePath = instancePath;
     }
 
+    public void setEvaluationProfiler(EvaluationProfiler profiler) {
+        mProfiler = profiler;
+    }
+
+    public EvaluationProfiler getEvaluationProfiler() {
+        return mProfiler;
+    }
+
     public FormDef getFormDef() {
         return mFormEntryController.getModel().getForm();
     }
@@ -223,6 +244,15 @@ public class FormController {
     	return value;
     }
 
+    /**
+     * Returns the index whose {@link #getXPath} value is xPath, or null if no relevant index
+     * has it. Like the plain step-through, a lookup walks the relevant events of the form until
+     * it finds xPath, but every xpath it passes is remembered and the next lookup carries on from
+     * where the last one stopped. So a lookup never walks more than the step-through did, and
+     * the walks of all lookups between two changes to the form add up to at most one pass.
+     * Answers can change relevance and count-driven repeats, so the map is dropped whenever
+     * {@link #getChangeCount()} moves.
+     */
     public FormIndex getIndexFromXPath(String xPath) {
     	if ( xPath.equals("beginningOfForm") ) {
             return FormIndex.createBeginningOfFormIndex();
@@ -232,29 +262,77 @@ public class FormController {
     		Log.e(t, "Unexpected string from XPath");
     		throw new IllegalArgumentException("unexpected string from XPath");
     	} else {
-    		FormIndex returned = null;
-			FormIndex saved = getFormIndex();
-			// the only way I know how to do this is to step through the entire form
-			// until the XPath of a form entry matches that of the supplied XPath
-			try {
-				jumpToIndex(FormIndex.createBeginningOfFormIndex());
-				int event = stepToNextEvent(true);
-				while ( event != FormEntryController.EVENT_END_OF_FORM ) {
-					String candidateXPath = getXPath(getFormIndex());
-					// Log.i(t, "xpath: " + candidateXPath);
-					if ( candidateXPath.equals(xPath) ) {
-						returned = getFormIndex();
-						break;
-					}
-					event = stepToNextEvent(true);
-				}
-			} finally {
-				jumpToIndex(saved);
+			if ( mXPathIndex == null || mXPathIndexChangeCount != mChangeCount ) {
+				invalidateXPathIndex();
+			}
+			FormIndex returned = mXPathIndex.get(xPath);
+			if ( returned != null && !isXPathAt(returned, xPath) ) {
+				// the form changed underneath us without the change count moving
+				invalidateXPathIndex();
+				returned = null;
+			}
+			if ( returned == null ) {
+				returned = walkToXPath(xPath);
 			}
 			return returned;
     	}
     }
 
+    /**
+     * Forgets the xpath to FormIndex map. Called whenever the change count moves; also safe to
+     * call directly.
+     */
+    public void invalidateXPathIndex() {
+    	mXPathIndex = new HashMap<String, FormIndex>();
+    	mXPathWalkIndex = FormIndex.createBeginningOfFormIndex();
+    	mXPathIndexChangeCount = mChangeCount;
+    }
+
+    /**
+     * Whether index still exists, is relevant and has the given xpath.
+     */
+    private boolean isXPathAt(FormIndex index, String xPath) {
+    	try {
+    		return mFormEntryController.getModel().isIndexRelevant(index)
+    				&& xPath.equals(getXPath(index));
+    	} catch (RuntimeException e) {
+    		return false;
+    	}
+    }
+
+    /**
+     * Steps through the relevant events after the last walked index, recording each xpath,
+     * until xPath is found or the form ends.
+     */
+    private FormIndex walkToXPath(String xPath) {
+    	if ( mXPathWalkIndex == null ) {
+    		// already walked the whole form
+    		return null;
+    	}
+		FormIndex returned = null;
+		FormIndex saved = getFormIndex();
+		try {
+			jumpToIndex(mXPathWalkIndex);
+			int event = stepToNextEvent(true);
+			while ( event != FormEntryController.EVENT_END_OF_FORM ) {
+				FormIndex index = getFormIndex();
+				String candidateXPath = getXPath(index);
+				if ( !mXPathIndex.containsKey(candidateXPath) ) {
+					mXPathIndex.put(candidateXPath, index);
+				}
+				if ( candidateXPath.equals(xPath) ) {
+					returned = index;
+					break;
+				}
+				event = stepToNextEvent(true);
+			}
+			mXPathWalkIndex = returned;
+		} finally {
+			jumpToIndex(saved);
+		}
+		return returned;
+    }
+
     /**
      * returns the event for the current FormIndex.
      *
@@ -470,13 +548,59 @@ public class FormController {
      * @return
      */
     public int answerQuestion(FormIndex index, IAnswerData data) throws JavaRosaException {
+       long start = (mProfiler != null) ? System.nanoTime() : 0;
        try {
-          return mFormEntryController.answerQuestion(index, data, true);
+          noteAnswerChange(index, data);
+          int status = mFormEntryController.answerQuestion(index, data, true);
+          if (status == FormEntryController.ANSWER_OK) {
+             getConstraintTracker().markValid(index.getReference());
+          }
+          return status;
       } catch (Exception e) {
          throw new JavaRosaException(e);
+      } finally {
+         if (mProfiler != null) {
+            mProfiler.recordQuestion(index, System.nanoTime() - start);
+         }
       }
     }
 
+    /**
+     * Bumps the change count if data differs from what is stored at index.
+     * Screens are saved on every swipe, so rewriting the same value must not
+     * count as a change.
+     */
+    private void noteAnswerChange(FormIndex index, IAnswerData data) {
+        try {
+            IAnswerData old = getQuestionPrompt(index).getAnswerValue();
+            String before = (old == null) ? null : old.uncast().getString();
+            String after = (data == null) ? null : data.uncast().getString();
+            if (before == null ? after == null : before.equals(after)) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            // can't tell, assume it changed
+        }
+        mChangeCount++;
+        getConstraintTracker().answerChanged(index.getReference());
+    }
+
+    private ConstraintTracker getConstraintTracker() {
+        if (mConstraintTracker == null) {
+            mConstraintTracker = new ConstraintTracker(getFormDef());
+        }
+        return mConstraintTracker;
+    }
+
+    /**
+     * Returns a number that changes whenever an answer is changed, a repeat is
+     * added or removed or the language is switched. Anything derived from the
+     * form's answers or structure can be cached against it.
+     */
+    public int getChangeCount() {
+        return mChangeCount;
+    }
+
     /**
      * Goes through the entire form to make sure all entered answers comply with their constraints.
      * Constraints are ignored on 'jump to', so answers can be outside of constraints. We don't
@@ -488,7 +612,11 @@ public class FormController {
     * @throws JavaRosaException 
      */
     public int validateAnswers(Boolean markCompleted) throws JavaRosaException {
+       long start = (mProfiler != null) ? System.nanoTime() : 0;
        ValidateOutcome outcome = getFormDef().validate(markCompleted);
+       if (mProfiler != null) {
+          mProfiler.recordPhase("validate", System.nanoTime() - start);
+       }
        if ( outcome != null ) {
           this.jumpToIndex(outcome.failedPrompt);
           return outcome.outcome;
@@ -497,6 +625,67 @@ public class FormController {
     }
 
 
+    /**
+     * Like validateAnswers(), but only re-checks the answers that may have
+     * become invalid since they were last checked. Answers accepted by
+     * answerQuestion(), on swipe or by an earlier call of this method, are
+     * skipped unless they, or an answer their constraint reads, have changed
+     * since. Required questions are always checked, since their relevance can
+     * change with any answer.
+     *
+     * @param markCompleted
+     * @return ANSWER_OK and leave index unchanged or change index to bad value and return error type.
+     * @throws JavaRosaException
+     */
+    public int validateChangedAnswers(boolean markCompleted) throws JavaRosaException {
+        if (!markCompleted) {
+            // validateAnswers() reports nothing either unless completing
+            return FormEntryController.ANSWER_OK;
+        }
+
+        long start = System.nanoTime();
+        int checked = 0;
+        int total = 0;
+        try {
+            // walk with a separate controller, like FormDef.validate()
+            FormEntryController fec = new FormEntryController(new FormEntryModel(getFormDef()));
+            fec.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+            ConstraintTracker tracker = getConstraintTracker();
+            int event;
+            while ((event = fec.stepToNextEvent()) != FormEntryController.EVENT_END_OF_FORM) {
+                if (event != FormEntryController.EVENT_QUESTION) {
+                    continue;
+                }
+                total++;
+                FormIndex index = fec.getModel().getFormIndex();
+                FormEntryPrompt prompt = fec.getModel().getQuestionPrompt();
+                IAnswerData value = prompt.getAnswerValue();
+                if (tracker.isValid(index.getReference())
+                        && !(prompt.isRequired() && value == null)) {
+                    continue;
+                }
+                checked++;
+                int status = fec.answerQuestion(index, value, true);
+                if (status != FormEntryController.ANSWER_OK) {
+                    jumpToIndex(index);
+                    return status;
+                }
+                tracker.markValid(index.getReference());
+            }
+            return FormEntryController.ANSWER_OK;
+        } catch (Exception e) {
+            throw new JavaRosaException(e);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            Log.i(t, "Re-checked " + checked + " of " + total + " questions in "
+                    + (elapsed / 1000000) + "ms");
+            if (mProfiler != null) {
+                mProfiler.recordPhase("validate changed", elapsed);
+            }
+        }
+    }
+
+
     /**
      * saveAnswer attempts to save the current answer into the data model without doing any
      * constraint checking. Only use this if you know what you're doing. For normal form filling you
@@ -507,10 +696,16 @@ public class FormController {
      * @return true if saved successfully, false otherwise.
      */
     public boolean saveAnswer(FormIndex index, IAnswerData data) throws JavaRosaException {
+        long start = (mProfiler != null) ? System.nanoTime() : 0;
         try {
+            noteAnswerChange(index, data);
             return mFormEntryController.saveAnswer(index, data, true);
         } catch (Exception e) {
             throw new JavaRosaException(e);
+        } finally {
+            if (mProfiler != null) {
+                mProfiler.recordQuestion(index, System.nanoTime() - start);
+            }
         }
     }
 
@@ -532,6 +727,24 @@ public class FormController {
     }
 
 
+    /**
+     * Moves past the repeat instance at the current index without visiting any
+     * of the questions inside it, and lands on the next relevant event. This is
+     * the next instance of the same repeat, its "add another" prompt, or
+     * whatever follows it.
+     *
+     * @return the event at the new index.
+     */
+    public int stepOverRepeat() {
+        FormEntryModel model = mFormEntryController.getModel();
+        FormIndex index = model.incrementIndex(getFormIndex(), false);
+        while (index.isInForm() && !model.isIndexRelevant(index)) {
+            index = model.incrementIndex(index, true);
+        }
+        return jumpToIndex(index);
+    }
+
+
     /**
      * If using a view like HierarchyView that doesn't support multi-question per screen, step over
      * the group represented by the FormIndex.
@@ -725,6 +938,17 @@ public class FormController {
      * @return FailedConstraint of first failed constraint or null if all questions were saved.
      */
     public FailedConstraint saveAllScreenAnswers(LinkedHashMap<FormIndex,IAnswerData> answers, boolean evaluateConstraints) throws JavaRosaException {
+        long start = (mProfiler != null) ? System.nanoTime() : 0;
+        try {
+            return saveScreenAnswers(answers, evaluateConstraints);
+        } finally {
+            if (mProfiler != null) {
+                mProfiler.recordPhase("save screen", System.nanoTime() - start);
+            }
+        }
+    }
+
+    private FailedConstraint saveScreenAnswers(LinkedHashMap<FormIndex,IAnswerData> answers, boolean evaluateConstraints) throws JavaRosaException {
     	if (currentPromptIsQuestion()) {
             Iterator<FormIndex> it = answers.keySet().iterator();
             while (it.hasNext()) {
@@ -830,6 +1054,7 @@ public class FormController {
      */
     public void newRepeat() {
         mFormEntryController.newRepeat();
+        mChangeCount++;
     }
 
 
@@ -840,6 +1065,11 @@ public class FormController {
      */
     public void deleteRepeat() {
         FormIndex fi = mFormEntryController.deleteRepeat();
+        mChangeCount++;
+        // the references of later instances have shifted
+        if (mConstraintTracker != null) {
+            mConstraintTracker.clear();
+        }
         mFormEntryController.jumpToIndex(fi);
     }
 
@@ -851,6 +1081,7 @@ public class FormController {
      */
     public void setLanguage(String language) {
         mFormEntryController.setLanguage(language);
+        mChangeCount++;
     }
 
 
@@ -50,6 +50,7 @@ import org.odk.collect.android.tasks.SaveToDiskTask;
 import org.odk.collect.android.tasks.UseLog;
 import org.odk.collect.android.tasks.UseLogContract;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.MediaBlobStore;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
@@ -71,6 +72,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -1172,6 +1174,33 @@ public class FormRelationsManager {
         FormRelationsDb.deleteAsParent(instanceId);
     }
 
+    /**
+     * Removes all references for many instances being deleted together.
+     *
+     * Children whose parent stays go through `removeAllReferences(long)`,
+     * since the repeat in the parent form must be removed. Everything else
+     * only needs its records gone, which is done in one transaction rather
+     * than opening the relations database several times per instance.
+     *
+     * @param instanceIds The ids of the instances being deleted.
+     */
+    public static void removeAllReferences(List<Long> instanceIds) {
+        Set<Long> deleting = new HashSet<Long>(instanceIds);
+        Map<Long, Long> parents = FormRelationsDb.getParents(instanceIds);
+        List<Long> others = new ArrayList<Long>();
+        for (Long instanceId : instanceIds) {
+            Long parentId = parents.get(instanceId);
+            if (parentId != null && !deleting.contains(parentId)) {
+                removeAllReferences(instanceId);
+            } else {
+                others.add(instanceId);
+            }
+        }
+        if (!others.isEmpty()) {
+            FormRelationsDb.deleteAll(others);
+        }
+    }
+
     /**
      * Writes a Document object to the supplied path.
      *
@@ -1288,7 +1317,8 @@ public class FormRelationsManager {
                     parentFile.getParent() + " to " + childFile.getParent());
         }
 
-        FileUtils.copyFile(parentImage, childImage);
+        // the child shares the parent's bytes where the file system allows
+        MediaBlobStore.getInstance().copy(parentImage, childImage);
         return true;
     }
 
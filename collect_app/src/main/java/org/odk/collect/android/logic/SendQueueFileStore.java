@@ -0,0 +1,128 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.logic;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Saves the auto-send queue as a small tab-separated file so that pending
+ * retries and server backoff survive process death. The file is rewritten
+ * to a temporary name and renamed over the old one.
+ */
+public class SendQueueFileStore implements SendScheduler.Store {
+    private static final String TAG = SendQueueFileStore.class.getSimpleName();
+
+    private static final String INSTANCE = "i";
+    private static final String SERVER = "s";
+
+    private final File mFile;
+
+    public SendQueueFileStore(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public void load(Map<Long, SendScheduler.Entry> entries,
+            Map<String, SendScheduler.Backoff> servers) {
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                try {
+                    if (INSTANCE.equals(parts[0]) && parts.length == 6) {
+                        long id = Long.parseLong(parts[1]);
+                        SendScheduler.Backoff b = new SendScheduler.Backoff(
+                                Integer.parseInt(parts[2]), Long.parseLong(parts[3]));
+                        entries.put(id, new SendScheduler.Entry(id, parts[5],
+                                Long.parseLong(parts[4]), b));
+                    } else if (SERVER.equals(parts[0]) && parts.length == 4) {
+                        servers.put(parts[3], new SendScheduler.Backoff(
+                                Integer.parseInt(parts[1]), Long.parseLong(parts[2])));
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Skipping malformed line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile.getAbsolutePath(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // no-op
+                }
+            }
+        }
+    }
+
+    @Override
+    public void save(Collection<SendScheduler.Entry> entries,
+            Map<String, SendScheduler.Backoff> servers) {
+        File tmp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            for (SendScheduler.Entry e : entries) {
+                writer.write(INSTANCE + "\t" + e.instanceId + "\t" + e.backoff.failures + "\t"
+                        + e.backoff.notBefore + "\t" + e.bytes + "\t" + e.server + "\n");
+            }
+            for (Map.Entry<String, SendScheduler.Backoff> s : servers.entrySet()) {
+                writer.write(SERVER + "\t" + s.getValue().failures + "\t"
+                        + s.getValue().notBefore + "\t" + s.getKey() + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to rename " + tmp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + tmp.getAbsolutePath(), e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // no-op
+                }
+            }
+        }
+    }
+}
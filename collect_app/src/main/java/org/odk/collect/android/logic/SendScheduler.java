@@ -0,0 +1,379 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides which finalized instances the auto-send path uploads and when.
+ *
+ * The scheduler keeps a queue of instances waiting to be sent. A failed
+ * instance, and the server it was sent to, are each backed off exponentially
+ * with jitter, so a flapping network or an unreachable server does not cause
+ * the same uploads to be retried on every connectivity broadcast. Each run is
+ * limited to a byte budget per time window, and bursts of connectivity events
+ * are coalesced into a single run.
+ *
+ * This class has no Android dependencies. Time comes from a {@link Clock} and
+ * the queue is saved through a {@link Store}, so both can be faked in tests.
+ * It is not thread-safe; callers serialize access.
+ */
+public class SendScheduler {
+
+    public interface Clock {
+        long now();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Persistence for the queue and the per-server backoff state.
+     */
+    public interface Store {
+        void load(Map<Long, Entry> entries, Map<String, Backoff> servers);
+
+        void save(Collection<Entry> entries, Map<String, Backoff> servers);
+    }
+
+    /**
+     * Failure count and earliest next attempt, for an instance or a server.
+     */
+    public static class Backoff {
+        public int failures;
+        public long notBefore;
+
+        public Backoff(int failures, long notBefore) {
+            this.failures = failures;
+            this.notBefore = notBefore;
+        }
+    }
+
+    public static class Entry {
+        public final long instanceId;
+        public String server;
+        public long bytes;
+        public final Backoff backoff;
+
+        public Entry(long instanceId, String server, long bytes, Backoff backoff) {
+            this.instanceId = instanceId;
+            this.server = server;
+            this.bytes = bytes;
+            this.backoff = backoff;
+        }
+    }
+
+    // wait this long after the last connectivity event before running
+    public static final long DEFAULT_COALESCE_MS = 10 * 1000L;
+    public static final long DEFAULT_BASE_BACKOFF_MS = 30 * 1000L;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 6 * 60 * 60 * 1000L;
+    public static final long DEFAULT_BUDGET_WINDOW_MS = 15 * 60 * 1000L;
+    public static final long DEFAULT_BUDGET_BYTES = 25 * 1024 * 1024L;
+
+    private final Clock mClock;
+    private final Store mStore;
+    private final Random mRandom;
+
+    private long mCoalesceMs = DEFAULT_COALESCE_MS;
+    private long mBaseBackoffMs = DEFAULT_BASE_BACKOFF_MS;
+    private long mMaxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+    private long mBudgetWindowMs = DEFAULT_BUDGET_WINDOW_MS;
+    private long mBudgetBytes = DEFAULT_BUDGET_BYTES;
+
+    private final Map<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    private final Map<String, Backoff> mServers = new HashMap<String, Backoff>();
+
+    private boolean mNetworkOk = true;
+    private boolean mPowerOk = true;
+
+    private long mWindowStart = 0L;
+    private long mWindowBytes = 0L;
+    // time at which a coalesced run should start, or -1 if none is pending
+    private long mPendingRunAt = -1L;
+
+    public SendScheduler(Clock clock, Store store, Random random) {
+        mClock = clock;
+        mStore = store;
+        mRandom = random;
+        if (mStore != null) {
+            mStore.load(mEntries, mServers);
+        }
+    }
+
+    public void setCoalesceMs(long coalesceMs) {
+        mCoalesceMs = coalesceMs;
+    }
+
+    public void setBackoff(long baseMs, long maxMs) {
+        mBaseBackoffMs = baseMs;
+        mMaxBackoffMs = maxMs;
+    }
+
+    /**
+     * @return the delay after a first failure, the shortest wait between runs
+     *         that found nothing to send
+     */
+    public long getBaseBackoffMs() {
+        return mBaseBackoffMs;
+    }
+
+    public void setByteBudget(long bytes, long windowMs) {
+        mBudgetBytes = bytes;
+        mBudgetWindowMs = windowMs;
+    }
+
+    /**
+     * Record the current device conditions. While either is false no batch is
+     * handed out.
+     *
+     * @param networkOk the active network is usable for uploads (connected,
+     *                  allowed by the autosend settings and not too slow)
+     * @param powerOk   the device is charging or the battery is not low
+     */
+    public void setConditions(boolean networkOk, boolean powerOk) {
+        mNetworkOk = networkOk;
+        mPowerOk = powerOk;
+    }
+
+    public boolean isPaused() {
+        return !mNetworkOk || !mPowerOk;
+    }
+
+    /**
+     * Bring the queue in line with the instances that are currently waiting to
+     * be sent. New instances are added, ones that are no longer waiting (sent
+     * manually, deleted) are dropped, and existing entries keep their backoff.
+     *
+     * @param pending instance id to (server, size in bytes); a negative size
+     *                keeps the size already recorded for that instance
+     */
+    public void sync(Map<Long, Entry> pending) {
+        Set<Long> gone = new HashSet<Long>(mEntries.keySet());
+        gone.removeAll(pending.keySet());
+        for (Long id : gone) {
+            mEntries.remove(id);
+        }
+        for (Entry e : pending.values()) {
+            Entry existing = mEntries.get(e.instanceId);
+            if (existing == null) {
+                if (e.bytes < 0) {
+                    e.bytes = 0;
+                }
+                mEntries.put(e.instanceId, e);
+            } else {
+                existing.server = e.server;
+                if (e.bytes >= 0) {
+                    existing.bytes = e.bytes;
+                }
+            }
+        }
+        save();
+    }
+
+    public boolean contains(long instanceId) {
+        return mEntries.containsKey(instanceId);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Note a connectivity (or form saved) event. Events that arrive within the
+     * coalescing window of each other push the run back, so that a burst of
+     * broadcasts results in one run.
+     *
+     * @return the delay in milliseconds after which {@link #isRunDue()} will be
+     *         true, i.e. when the caller should attempt the run
+     */
+    public long onTrigger() {
+        mPendingRunAt = mClock.now() + mCoalesceMs;
+        return mCoalesceMs;
+    }
+
+    public boolean isRunDue() {
+        return mPendingRunAt != -1L && mClock.now() >= mPendingRunAt;
+    }
+
+    /**
+     * Take the instances to upload now, oldest-due first, skipping instances
+     * and servers that are backing off, and stopping once the byte budget for
+     * the current window is used up. A single instance larger than the whole
+     * budget is still sent when the window is empty so that it cannot starve.
+     *
+     * @return instance ids, possibly empty
+     */
+    public List<Long> takeBatch() {
+        mPendingRunAt = -1L;
+        List<Long> batch = new ArrayList<Long>();
+        if (isPaused()) {
+            return batch;
+        }
+        long now = mClock.now();
+        if (now - mWindowStart >= mBudgetWindowMs) {
+            mWindowStart = now;
+            mWindowBytes = 0L;
+        }
+
+        List<Entry> due = getDueEntries(now);
+        for (Entry e : due) {
+            if (mWindowBytes + e.bytes > mBudgetBytes && mWindowBytes > 0) {
+                break;
+            }
+            mWindowBytes += e.bytes;
+            batch.add(e.instanceId);
+        }
+        return batch;
+    }
+
+    /**
+     * @return the entries that may be sent at now, in the order they are sent
+     */
+    private List<Entry> getDueEntries(long now) {
+        List<Entry> due = new ArrayList<Entry>();
+        for (Entry e : mEntries.values()) {
+            if (e.backoff.notBefore > now) {
+                continue;
+            }
+            Backoff server = mServers.get(e.server);
+            if (server != null && server.notBefore > now) {
+                continue;
+            }
+            due.add(e);
+        }
+        Collections.sort(due, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                if (lhs.backoff.notBefore != rhs.backoff.notBefore) {
+                    return lhs.backoff.notBefore < rhs.backoff.notBefore ? -1 : 1;
+                }
+                return lhs.instanceId < rhs.instanceId ? -1
+                        : (lhs.instanceId == rhs.instanceId ? 0 : 1);
+            }
+        });
+        return due;
+    }
+
+    /**
+     * Record the outcome of uploading one instance.
+     */
+    public void onResult(long instanceId, boolean success) {
+        Entry e = mEntries.get(instanceId);
+        if (e == null) {
+            return;
+        }
+        long now = mClock.now();
+        if (success) {
+            mEntries.remove(instanceId);
+            mServers.remove(e.server);
+        } else {
+            fail(e.backoff, now);
+            Backoff server = mServers.get(e.server);
+            if (server == null) {
+                server = new Backoff(0, 0L);
+                mServers.put(e.server, server);
+            }
+            // several instances of one failed batch count as one server failure
+            if (server.notBefore <= now) {
+                fail(server, now);
+            }
+        }
+        save();
+    }
+
+    /**
+     * @return the earliest time at which {@link #takeBatch()} will hand out
+     *         an instance, or -1 if the queue is empty or the scheduler is
+     *         paused; a change in conditions comes with a broadcast that
+     *         triggers a run anyway. When the next instance does not fit in
+     *         the byte budget, this is the time the budget window resets.
+     */
+    public long nextDueTime() {
+        if (isPaused()) {
+            return -1L;
+        }
+        long now = mClock.now();
+        long next = -1L;
+        for (Entry e : mEntries.values()) {
+            long t = e.backoff.notBefore;
+            Backoff server = mServers.get(e.server);
+            if (server != null && server.notBefore > t) {
+                t = server.notBefore;
+            }
+            if (next == -1L || t < next) {
+                next = t;
+            }
+        }
+        long windowEnd = mWindowStart + mBudgetWindowMs;
+        if (next != -1L && mWindowBytes > 0 && now < windowEnd) {
+            if (mWindowBytes >= mBudgetBytes) {
+                next = Math.max(next, windowEnd);
+            } else if (next <= now) {
+                List<Entry> due = getDueEntries(now);
+                if (!due.isEmpty() && mWindowBytes + due.get(0).bytes > mBudgetBytes) {
+                    next = windowEnd;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void fail(Backoff backoff, long now) {
+        backoff.failures++;
+        backoff.notBefore = now + backoffDelay(backoff.failures);
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half of the delay is fixed and
+     * the other half random, so retries spread out but never come early.
+     */
+    long backoffDelay(int failures) {
+        long delay = mBaseBackoffMs;
+        for (int i = 1; i < failures && delay < mMaxBackoffMs; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxBackoffMs);
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private void save() {
+        if (mStore != null) {
+            mStore.save(mEntries.values(), mServers);
+        }
+    }
+}
@@ -63,9 +63,22 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
   public static final String KEY_SPLASH_PATH = "splashPath";
   public static final String KEY_FONT_SIZE = "font_size";
   public static final String KEY_DELETE_AFTER_SEND = "delete_send";
+  public static final String KEY_ARCHIVE_SENT = "archive_sent";
+  public static final String KEY_ARCHIVE_MAX_AGE = "archive_max_age";
+  public static final String KEY_ARCHIVE_MAX_SIZE = "archive_max_size";
+
+  // days and megabytes
+  public static final String ARCHIVE_MAX_AGE_DEFAULT = "90";
+  public static final String ARCHIVE_MAX_SIZE_DEFAULT = "500";
 
   public static final String KEY_PROTOCOL = "protocol";
   public static final String KEY_PROTOCOL_SETTINGS = "protocol_settings";
+  public static final String KEY_MAX_CONNECTIONS = "max_connections";
+  public static final String KEY_MAX_CONNECTIONS_PER_SERVER = "max_connections_per_server";
+
+  // read by HttpTransport
+  public static final String MAX_CONNECTIONS_DEFAULT = "20";
+  public static final String MAX_CONNECTIONS_PER_SERVER_DEFAULT = "4";
 
   // leaving these in the main screen because username can be used as a
   // pre-fill
@@ -83,6 +96,7 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
   // OTHER SPECIFIC
   public static final String KEY_FORMLIST_URL = "formlist_url";
   public static final String KEY_SUBMISSION_URL = "submission_url";
+  public static final String KEY_COMPRESS_SUBMISSIONS = "compress_submissions";
 
   public static final String NAVIGATION_SWIPE = "swipe";
   public static final String NAVIGATION_BUTTONS = "buttons";
@@ -92,6 +106,8 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
 
   public static final String KEY_COMPLETED_DEFAULT = "default_completed";
 
+  public static final String KEY_FULL_VALIDATION = "full_validation";
+
   public static final String KEY_HIGH_RESOLUTION = "high_resolution";
 
   public static final String KEY_AUTOSEND_WIFI = "autosend_wifi";
@@ -106,6 +122,10 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
   private ListPreference mFontSizePreference;
   private ListPreference mNavigationPreference;
   private ListPreference mConstraintBehaviorPreference;
+  private ListPreference mArchiveMaxAgePreference;
+  private ListPreference mArchiveMaxSizePreference;
+  private ListPreference mMaxConnectionsPreference;
+  private ListPreference mMaxConnectionsPerServerPreference;
 
   private CheckBoxPreference mAutosendWifiPreference;
   private CheckBoxPreference mAutosendNetworkPreference;
@@ -147,6 +167,9 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
     mFontSizePreference = (ListPreference) findPreference(KEY_FONT_SIZE);
     Preference defaultFinalized = findPreference(KEY_COMPLETED_DEFAULT);
     Preference deleteAfterSend = findPreference(KEY_DELETE_AFTER_SEND);
+    Preference archiveSent = findPreference(KEY_ARCHIVE_SENT);
+    mArchiveMaxAgePreference = (ListPreference) findPreference(KEY_ARCHIVE_MAX_AGE);
+    mArchiveMaxSizePreference = (ListPreference) findPreference(KEY_ARCHIVE_MAX_SIZE);
     mSplashPathPreference = (PreferenceScreen) findPreference(KEY_SPLASH_PATH);
     mConstraintBehaviorPreference = (ListPreference) findPreference(KEY_CONSTRAINT_BEHAVIOR);
 
@@ -154,6 +177,9 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
     mPasswordPreference = (EditTextPreference) findPreference(PreferencesActivity.KEY_PASSWORD);
 
     mProtocolSettings = (PreferenceScreen) findPreference(KEY_PROTOCOL_SETTINGS);
+    mMaxConnectionsPreference = (ListPreference) findPreference(KEY_MAX_CONNECTIONS);
+    mMaxConnectionsPerServerPreference =
+        (ListPreference) findPreference(KEY_MAX_CONNECTIONS_PER_SERVER);
 
     boolean autosendWifiAvailable = adminPreferences.getBoolean(
         AdminPreferencesActivity.KEY_AUTOSEND_WIFI, true);
@@ -230,6 +256,26 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
       serverCategory.removePreference(mProtocolSettings);
     }
 
+    // HttpTransport applies a change to its pool as soon as it is saved
+    OnPreferenceChangeListener connectionSummaryListener = new OnPreferenceChangeListener() {
+
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+        String entry = (String) ((ListPreference) preference).getEntries()[index];
+        ((ListPreference) preference).setSummary(entry);
+        return true;
+      }
+    };
+    mMaxConnectionsPreference.setSummary(mMaxConnectionsPreference.getEntry());
+    mMaxConnectionsPreference.setOnPreferenceChangeListener(connectionSummaryListener);
+    mMaxConnectionsPerServerPreference.setSummary(mMaxConnectionsPerServerPreference.getEntry());
+    mMaxConnectionsPerServerPreference.setOnPreferenceChangeListener(connectionSummaryListener);
+    if (!(changeProtocolSettings || adminMode)) {
+      serverCategory.removePreference(mMaxConnectionsPreference);
+      serverCategory.removePreference(mMaxConnectionsPerServerPreference);
+    }
+
     // get list of google accounts
     final Account[] accounts = AccountManager.get(getApplicationContext()).getAccountsByType(
         "com.google");
@@ -364,6 +410,28 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
       clientCategory.removePreference(deleteAfterSend);
     }
 
+    // keeping sent data is the other side of deleting it, so the same
+    // admin setting governs both
+    OnPreferenceChangeListener archiveSummaryListener = new OnPreferenceChangeListener() {
+
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+        String entry = (String) ((ListPreference) preference).getEntries()[index];
+        ((ListPreference) preference).setSummary(entry);
+        return true;
+      }
+    };
+    mArchiveMaxAgePreference.setSummary(mArchiveMaxAgePreference.getEntry());
+    mArchiveMaxAgePreference.setOnPreferenceChangeListener(archiveSummaryListener);
+    mArchiveMaxSizePreference.setSummary(mArchiveMaxSizePreference.getEntry());
+    mArchiveMaxSizePreference.setOnPreferenceChangeListener(archiveSummaryListener);
+    if (!(deleteAfterAvailable || adminMode)) {
+      clientCategory.removePreference(archiveSent);
+      clientCategory.removePreference(mArchiveMaxAgePreference);
+      clientCategory.removePreference(mArchiveMaxSizePreference);
+    }
+
     boolean resolutionAvailable = adminPreferences.getBoolean(
         AdminPreferencesActivity.KEY_HIGH_RESOLUTION, true);
 
@@ -285,7 +285,7 @@ public class FormsProvider extends ContentProvider {
 		// Get the database and run the query
 		SQLiteDatabase db = getDbHelper().getReadableDatabase();
 		Cursor c = qb.query(db, projection, selection, selectionArgs, null,
-				null, sortOrder);
+				null, sortOrder, InstanceProvider.getLimit(uri, FormsProviderAPI.LIMIT));
 
 		// Tell the cursor what uri to watch, so it knows when its source data
 		// changes
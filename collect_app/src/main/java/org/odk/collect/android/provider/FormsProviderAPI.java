@@ -27,6 +27,9 @@ public final class FormsProviderAPI {
 
     // This class cannot be instantiated
     private FormsProviderAPI() {}
+
+    // query parameter that caps the number of rows a query returns
+    public static final String LIMIT = "limit";
     
     /**
      * Notes table
@@ -16,13 +16,18 @@ package org.odk.collect.android.provider;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FormRelationsDb;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.InstanceArchive;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -34,9 +39,12 @@ import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  *
@@ -46,8 +54,8 @@ public class InstanceProvider extends ContentProvider {
     private static final String t = "InstancesProvider";
 
     private static final String DATABASE_NAME = "instances.db";
-    private static final int DATABASE_VERSION = 3;
-    private static final String INSTANCES_TABLE_NAME = "instances";
+    private static final int DATABASE_VERSION = 5;
+    static final String INSTANCES_TABLE_NAME = "instances";
 
     private static HashMap<String, String> sInstancesProjectionMap;
 
@@ -79,6 +87,25 @@ public class InstanceProvider extends ContentProvider {
                + InstanceColumns.STATUS + " text not null, "
                + InstanceColumns.LAST_STATUS_CHANGE_DATE + " date not null, "
                + InstanceColumns.DISPLAY_SUBTEXT + " text not null );");
+           createIndexes(db);
+        }
+
+
+        /**
+         * Indexes for the filters and sort orders of the instance lists. Each
+         * sort index has the directions of the list's ORDER BY, so SQLite can
+         * walk it instead of sorting, and seek in it for the next page. The
+         * _id tiebreak is the rowid every index ends with; naming it as a
+         * column would stop SQLite seeking on it.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_status_desc_name ON "
+                    + INSTANCES_TABLE_NAME + " (" + InstanceColumns.STATUS + " DESC, "
+                    + InstanceColumns.DISPLAY_NAME + " ASC);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_name ON "
+                    + INSTANCES_TABLE_NAME + " (" + InstanceColumns.DISPLAY_NAME + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_form ON "
+                    + INSTANCES_TABLE_NAME + " (" + InstanceColumns.JR_FORM_ID + ");");
         }
 
 
@@ -97,6 +124,17 @@ public class InstanceProvider extends ContentProvider {
         	if ( oldVersion == 2 ) {
         		db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN " +
     					InstanceColumns.JR_VERSION + " text;");
+        		oldVersion = 3;
+        	}
+        	if ( oldVersion == 3 ) {
+        		createIndexes(db);
+        		oldVersion = 4;
+        	}
+        	if ( oldVersion == 4 ) {
+        		// replaced by indexes in the lists' sort directions, ending in the rowid
+        		db.execSQL("DROP INDEX IF EXISTS " + INSTANCES_TABLE_NAME + "_status_name;");
+        		db.execSQL("DROP INDEX IF EXISTS " + INSTANCES_TABLE_NAME + "_name;");
+        		createIndexes(db);
         	}
             Log.w(t, "Successfully upgraded database from version " + initialVersion + " to " + newVersion
                     + ", without destroying all the old data");
@@ -105,6 +143,14 @@ public class InstanceProvider extends ContentProvider {
 
     private DatabaseHelper mDbHelper;
 
+    // instance paths deleted in the open transaction, dropped from the archive when it commits
+    private final ThreadLocal<List<String>> mDeletedPaths = new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+            return new ArrayList<String>();
+        }
+    };
+
     private DatabaseHelper getDbHelper() {
         // wrapper to test and reset/set the dbHelper based upon the attachment state of the device.
         try {
@@ -128,9 +174,66 @@ public class InstanceProvider extends ContentProvider {
         if ( h == null ) {
         	return false;
         }
+        InstanceStatistics.getInstance().setProvider(this);
         return true;
     }
 
+    SQLiteDatabase getStatisticsDatabase() {
+        DatabaseHelper h = getDbHelper();
+        return h == null ? null : h.getReadableDatabase();
+    }
+
+
+    /**
+     * Returns the given LIMIT query parameter of uri, or null if it is absent.
+     */
+    static String getLimit(Uri uri, String parameter) {
+        String limit = uri.getQueryParameter(parameter);
+        if (limit == null) {
+            return null;
+        }
+        try {
+            return Integer.toString(Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+    }
+
+
+    /**
+     * Returns the selection for the form relations query parameters of uri
+     * ANDed with selection. The relations database is attached to db if
+     * needed.
+     */
+    private String getRelationsSelection(SQLiteDatabase db, Uri uri, String selection) {
+        String relation = null;
+        if (Boolean.parseBoolean(uri.getQueryParameter(InstanceProviderAPI.EXCLUDE_CHILDREN))) {
+            relation = InstanceColumns._ID + " NOT IN (" + FormRelationsDb.getAllChildrenQuery()
+                    + ")";
+        }
+        String parent = uri.getQueryParameter(InstanceProviderAPI.CHILDREN_OF);
+        if (parent != null) {
+            long parentId;
+            try {
+                parentId = Long.parseLong(parent);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid parent id " + parent);
+            }
+            String children = InstanceColumns._ID + " IN ("
+                    + FormRelationsDb.getChildrenQuery(parentId) + ")";
+            relation = (relation == null) ? children : relation + " AND " + children;
+        }
+
+        if (relation == null) {
+            return selection;
+        }
+        FormRelationsDb.attachTo(db);
+        if (TextUtils.isEmpty(selection)) {
+            return relation;
+        }
+        return relation + " AND (" + selection + ")";
+    }
+
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
@@ -154,7 +257,9 @@ public class InstanceProvider extends ContentProvider {
 
         // Get the database and run the query
         SQLiteDatabase db = getDbHelper().getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        selection = getRelationsSelection(db, uri, selection);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+                getLimit(uri, InstanceProviderAPI.LIMIT));
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -209,7 +314,21 @@ public class InstanceProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = getDbHelper().getWritableDatabase();
-        long rowId = db.insert(INSTANCES_TABLE_NAME, null, values);
+        long rowId;
+        boolean ok = false;
+        beginTransaction(db);
+        try {
+            rowId = db.insert(INSTANCES_TABLE_NAME, null, values);
+            if (rowId > 0) {
+                Map<String, Integer> added = new HashMap<String, Integer>();
+                added.put(values.getAsString(InstanceColumns.STATUS), 1);
+                InstanceStatistics.getInstance().record(added);
+            }
+            db.setTransactionSuccessful();
+            ok = true;
+        } finally {
+            endTransaction(db, ok);
+        }
         if (rowId > 0) {
             Uri instanceUri = ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, rowId);
             getContext().getContentResolver().notifyChange(instanceUri, null);
@@ -274,9 +393,14 @@ public class InstanceProvider extends ContentProvider {
     public int delete(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = getDbHelper().getWritableDatabase();
         int count;
+        boolean keepFiles = "true".equals(uri.getQueryParameter(InstanceProviderAPI.KEEP_FILES));
 
         switch (sUriMatcher.match(uri)) {
             case INSTANCES:
+                if (keepFiles) {
+                    count = deleteRows(db, where, whereArgs);
+                    break;
+                }
                 Cursor del = null;
                 try {
                 	del = this.query(uri, null, where, whereArgs, null);
@@ -294,7 +418,7 @@ public class InstanceProvider extends ContentProvider {
                 		del.close();
                 	}
                 }
-                count = db.delete(INSTANCES_TABLE_NAME, where, whereArgs);
+                count = deleteRows(db, where, whereArgs);
                 break;
 
             case INSTANCE_ID:
@@ -302,8 +426,10 @@ public class InstanceProvider extends ContentProvider {
 
                 Cursor c = null;
                 try {
-                	c = this.query(uri, null, where, whereArgs, null);
-                	if (c.getCount() > 0) {
+                	if (!keepFiles) {
+                		c = this.query(uri, null, where, whereArgs, null);
+                	}
+                	if (c != null && c.getCount() > 0) {
                 		c.moveToFirst();
                 		do {
 		                    String instanceFile = c.getString(c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
@@ -319,7 +445,7 @@ public class InstanceProvider extends ContentProvider {
                 }
 
                 count =
-                    db.delete(INSTANCES_TABLE_NAME,
+                    deleteRows(db,
                         InstanceColumns._ID + "=" + instanceId
                                 + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
                         whereArgs);
@@ -334,6 +460,135 @@ public class InstanceProvider extends ContentProvider {
     }
 
 
+    /**
+     * Begins a transaction whose moves of the InstanceStatistics counts are
+     * applied when it commits. Must be paired with endTransaction().
+     */
+    private void beginTransaction(SQLiteDatabase db) {
+        InstanceStatistics.getInstance().beginChange();
+        try {
+            db.beginTransaction();
+        } catch (RuntimeException e) {
+            InstanceStatistics.getInstance().endChange(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Ends a transaction begun with beginTransaction(). When the outermost one
+     * commits, the instances it deleted are dropped from the InstanceArchive.
+     *
+     * @param ok true if setTransactionSuccessful() was called
+     */
+    private void endTransaction(SQLiteDatabase db, boolean ok) {
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = ok;
+        } finally {
+            InstanceStatistics.getInstance().endChange(committed);
+            List<String> deletedPaths = mDeletedPaths.get();
+            if (!committed) {
+                deletedPaths.clear();
+            } else if (!db.inTransaction() && !deletedPaths.isEmpty()) {
+                // deletes that skip DeleteInstancesTask must not leave archive entries behind
+                InstanceArchive.getInstance().remove(deletedPaths);
+                deletedPaths.clear();
+            }
+        }
+    }
+
+    /**
+     * Deletes rows, recording how they move the InstanceStatistics counts.
+     */
+    private int deleteRows(SQLiteDatabase db, String where, String[] whereArgs) {
+        InstanceStatistics statistics = InstanceStatistics.getInstance();
+        boolean ok = false;
+        beginTransaction(db);
+        try {
+            Cursor c = db.query(INSTANCES_TABLE_NAME,
+                    new String[] { InstanceColumns.INSTANCE_FILE_PATH }, where, whereArgs,
+                    null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    mDeletedPaths.get().add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            Map<String, Integer> removed = statistics.isLoaded()
+                    ? InstanceStatistics.countByStatus(db, INSTANCES_TABLE_NAME, where, whereArgs)
+                    : null;
+            int count = db.delete(INSTANCES_TABLE_NAME, where, whereArgs);
+            if (removed != null) {
+                for (Map.Entry<String, Integer> entry : removed.entrySet()) {
+                    entry.setValue(-entry.getValue());
+                }
+                statistics.record(removed);
+            }
+            db.setTransactionSuccessful();
+            ok = true;
+            return count;
+        } finally {
+            endTransaction(db, ok);
+        }
+    }
+
+    /**
+     * Updates rows, recording how they move between the InstanceStatistics
+     * counts when the status changes.
+     */
+    private int updateRows(SQLiteDatabase db, ContentValues values, String where,
+                           String[] whereArgs) {
+        InstanceStatistics statistics = InstanceStatistics.getInstance();
+        String status = values.getAsString(InstanceColumns.STATUS);
+        boolean ok = false;
+        beginTransaction(db);
+        try {
+            Map<String, Integer> moved = (status != null && statistics.isLoaded())
+                    ? InstanceStatistics.countByStatus(db, INSTANCES_TABLE_NAME, where, whereArgs)
+                    : null;
+            int count = db.update(INSTANCES_TABLE_NAME, values, where, whereArgs);
+            if (moved != null) {
+                int total = 0;
+                for (Map.Entry<String, Integer> entry : moved.entrySet()) {
+                    total += entry.getValue();
+                    entry.setValue(-entry.getValue());
+                }
+                Integer unchanged = moved.get(status);
+                moved.put(status, (unchanged == null ? 0 : unchanged) + total);
+                statistics.record(moved);
+            }
+            db.setTransactionSuccessful();
+            ok = true;
+            return count;
+        } finally {
+            endTransaction(db, ok);
+        }
+    }
+
+
+    /**
+     * Applies all the operations in a single transaction, so a batch of
+     * deletes costs one journal commit instead of one per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = getDbHelper().getWritableDatabase();
+        boolean ok = false;
+        beginTransaction(db);
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            ok = true;
+            return results;
+        } finally {
+            endTransaction(db, ok);
+        }
+    }
+
+
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
         SQLiteDatabase db = getDbHelper().getWritableDatabase();
@@ -359,7 +614,7 @@ public class InstanceProvider extends ContentProvider {
                     }
                 }
 
-                count = db.update(INSTANCES_TABLE_NAME, values, where, whereArgs);
+                count = updateRows(db, values, where, whereArgs);
                 break;
 
             case INSTANCE_ID:
@@ -376,7 +631,7 @@ public class InstanceProvider extends ContentProvider {
                 }
 
                 count =
-                    db.update(INSTANCES_TABLE_NAME, values, InstanceColumns._ID + "=" + instanceId
+                    updateRows(db, values, InstanceColumns._ID + "=" + instanceId
                             + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
                 break;
 
@@ -33,6 +33,20 @@ public final class InstanceProviderAPI {
     public static final String STATUS_COMPLETE = "complete";
     public static final String STATUS_SUBMITTED = "submitted";
     public static final String STATUS_SUBMISSION_FAILED = "submissionFailed";
+
+    // query parameter that caps the number of rows a query returns
+    public static final String LIMIT = "limit";
+
+    // query parameter that, set to "true", leaves out instances that are
+    // children of another instance
+    public static final String EXCLUDE_CHILDREN = "excludeChildren";
+
+    // query parameter that keeps only the children of the given instance id
+    public static final String CHILDREN_OF = "childrenOf";
+
+    // query parameter that, set to "true", makes a delete remove only the
+    // rows and leave the instance files to the caller
+    public static final String KEEP_FILES = "keepFiles";
     
     /**
      * Notes table
@@ -0,0 +1,320 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.odk.collect.android.listeners.InstanceCountsListener;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of instances in each status, kept current by InstanceProvider.
+ *
+ * The counts are read once, in the background, with a GROUP BY over the status
+ * index. After that every insert, update and delete records how it moves the
+ * counts, and the moves are applied once the outermost transaction around them
+ * commits, so reading a count never touches the database. A transaction that
+ * rolls back drops the counts, and they are read again. Listeners hear about
+ * changes on the main thread, at most once per MIN_NOTIFY_INTERVAL, however
+ * many rows a bulk upload or delete changes.
+ */
+public class InstanceStatistics {
+    private static final String t = "InstanceStatistics";
+
+    private static final long MIN_NOTIFY_INTERVAL = 500;
+
+    private static InstanceStatistics sInstance = null;
+
+    private InstanceProvider mProvider;
+
+    // attempts at reading the counts while writers keep changing them
+    private static final int MAX_LOAD_ATTEMPTS = 10;
+    private static final long LOAD_RETRY_DELAY = 50;
+
+    // by status, null until loaded
+    private Map<String, Integer> mCounts = null;
+    private boolean mLoading = false;
+
+    // transactions in progress, and how many have finished
+    private int mWriters = 0;
+    private long mFinishedWrites = 0;
+
+    /**
+     * The moves recorded in the transaction running on one thread.
+     */
+    private static class Change {
+        int depth;
+        boolean failed;
+        final Map<String, Integer> deltas = new HashMap<String, Integer>();
+    }
+
+    private final ThreadLocal<Change> mChange = new ThreadLocal<Change>();
+
+    private final List<InstanceCountsListener> mListeners = new ArrayList<InstanceCountsListener>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mNotifyScheduled = false;
+    private long mLastNotified = 0;
+
+    private final Runnable mNotify = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (InstanceStatistics.this) {
+                mNotifyScheduled = false;
+                mLastNotified = SystemClock.uptimeMillis();
+            }
+            for (InstanceCountsListener listener : new ArrayList<InstanceCountsListener>(mListeners)) {
+                listener.instanceCountsChanged();
+            }
+        }
+    };
+
+    public static synchronized InstanceStatistics getInstance() {
+        if (sInstance == null) {
+            sInstance = new InstanceStatistics();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the number of instances in any of the given statuses, or 0 if
+     *         the counts are still being read; listeners are told once they
+     *         are in
+     */
+    public int getCount(String... statuses) {
+        Map<String, Integer> counts;
+        synchronized (this) {
+            if (mCounts == null) {
+                startLoad();
+                return 0;
+            }
+            counts = mCounts;
+        }
+        int count = 0;
+        synchronized (this) {
+            for (String status : statuses) {
+                Integer n = counts.get(status);
+                if (n != null) {
+                    count += n;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Must be called on the main thread; the listener is called there too.
+     */
+    public void addListener(InstanceCountsListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(InstanceCountsListener listener) {
+        mListeners.remove(listener);
+    }
+
+    void setProvider(InstanceProvider provider) {
+        mProvider = provider;
+    }
+
+    synchronized boolean isLoaded() {
+        return mCounts != null;
+    }
+
+    /**
+     * Called by InstanceProvider before each beginTransaction().
+     */
+    void beginChange() {
+        Change change = mChange.get();
+        if (change == null) {
+            change = new Change();
+            mChange.set(change);
+            synchronized (this) {
+                mWriters++;
+            }
+        }
+        change.depth++;
+    }
+
+    /**
+     * Called by InstanceProvider inside a transaction, once a change is made,
+     * with how it moves the counts.
+     */
+    void record(Map<String, Integer> deltas) {
+        Map<String, Integer> pending = mChange.get().deltas;
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            Integer n = pending.get(delta.getKey());
+            pending.put(delta.getKey(), (n == null ? 0 : n) + delta.getValue());
+        }
+    }
+
+    /**
+     * Called by InstanceProvider after each endTransaction(). The recorded
+     * moves are applied when the outermost transaction has committed.
+     *
+     * @param committed false if the transaction was rolled back or failed to
+     *            commit
+     */
+    void endChange(boolean committed) {
+        Change change = mChange.get();
+        if (!committed) {
+            change.failed = true;
+        }
+        if (--change.depth > 0) {
+            return;
+        }
+        mChange.remove();
+
+        synchronized (this) {
+            mWriters--;
+            mFinishedWrites++;
+            if (mCounts == null) {
+                return;
+            }
+            if (change.failed) {
+                // can't tell what was undone, read them again
+                Log.w(t, "Transaction rolled back, reloading instance counts");
+                mCounts = null;
+                startLoad();
+                return;
+            }
+            if (change.deltas.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, Integer> delta : change.deltas.entrySet()) {
+                Integer n = mCounts.get(delta.getKey());
+                mCounts.put(delta.getKey(), (n == null ? 0 : n) + delta.getValue());
+            }
+            scheduleNotify();
+        }
+    }
+
+    /**
+     * Counts the rows a change is about to touch, by status.
+     */
+    static Map<String, Integer> countByStatus(SQLiteDatabase db, String table, String where,
+                                              String[] whereArgs) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        Cursor c = db.query(table, new String[] { InstanceColumns.STATUS, "COUNT(*)" }, where,
+                whereArgs, InstanceColumns.STATUS, null, null);
+        try {
+            while (c.moveToNext()) {
+                counts.put(c.getString(0), c.getInt(1));
+            }
+        } finally {
+            c.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Reads the counts on a worker thread, unless that is already under way.
+     * Runs on the main thread, where the task has to be started.
+     */
+    private synchronized void startLoad() {
+        if (mLoading || mProvider == null) {
+            return;
+        }
+        mLoading = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                new LoadTask().execute();
+            }
+        });
+    }
+
+    private class LoadTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(Void... params) {
+            try {
+                load();
+            } finally {
+                synchronized (InstanceStatistics.this) {
+                    mLoading = false;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads the counts without a transaction. Writers only move the counts
+     * once they have committed, so the read is kept only if no writer was in
+     * progress or finished while it ran; otherwise it is tried again.
+     */
+    private void load() {
+        SQLiteDatabase db = mProvider.getStatisticsDatabase();
+        if (db == null) {
+            return;
+        }
+        for (int attempt = 0; attempt < MAX_LOAD_ATTEMPTS; attempt++) {
+            long finished;
+            synchronized (this) {
+                if (mCounts != null) {
+                    return;
+                }
+                finished = mFinishedWrites;
+                if (mWriters > 0) {
+                    finished = -1;
+                }
+            }
+            if (finished != -1) {
+                Map<String, Integer> counts = countByStatus(db,
+                        InstanceProvider.INSTANCES_TABLE_NAME, null, null);
+                synchronized (this) {
+                    if (mWriters == 0 && mFinishedWrites == finished) {
+                        mCounts = counts;
+                        Log.i(t, "Loaded instance counts " + counts);
+                        scheduleNotify();
+                        return;
+                    }
+                }
+            }
+            SystemClock.sleep(LOAD_RETRY_DELAY);
+        }
+        Log.w(t, "Instance counts kept changing, will read them again later");
+    }
+
+    private synchronized void scheduleNotify() {
+        if (mNotifyScheduled) {
+            return;
+        }
+        mNotifyScheduled = true;
+        long wait = mLastNotified + MIN_NOTIFY_INTERVAL - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mNotify, Math.max(wait, 0));
+    }
+}
@@ -1,15 +1,21 @@
 package org.odk.collect.android.receivers;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.activities.NotificationActivity;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.InstanceUploaderListener;
+import org.odk.collect.android.logic.SendQueueFileStore;
+import org.odk.collect.android.logic.SendScheduler;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
@@ -17,19 +23,24 @@ import org.odk.collect.android.tasks.GoogleSheetsAbstractUploader;
 import org.odk.collect.android.tasks.InstanceUploaderTask;
 import org.odk.collect.android.utilities.WebUtils;
 
+import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Environment;
 import android.preference.PreferenceManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
 import android.support.v4.app.NotificationCompat;
 
 import com.google.android.gms.auth.GoogleAuthException;
@@ -38,12 +49,27 @@ import com.google.android.gms.auth.UserRecoverableAuthException;
 
 public class NetworkReceiver extends BroadcastReceiver implements InstanceUploaderListener {
 
+    private static final String t = "NetworkReceiver";
+
+    // sent by the AlarmManager when a backed-off upload becomes due
+    public static final String ACTION_AUTOSEND_RETRY = "org.odk.collect.android.AutoSendRetry";
+    // sent by the AlarmManager once a burst of events has been coalesced
+    public static final String ACTION_AUTOSEND_RUN = "org.odk.collect.android.AutoSendRun";
+    private static final String SEND_QUEUE_FILE = "autosend.queue";
+    private static final int LOW_BATTERY_PERCENT = 15;
+
     // turning on wifi often gets two CONNECTED events. we only want to run one thread at a time
     public static boolean running = false;
     InstanceUploaderTask mInstanceUploaderTask;
 
     GoogleSheetsAutoUploadTask mGoogleSheetsUploadTask;
 
+    // the scheduler outlives individual broadcasts
+    private static SendScheduler sScheduler;
+
+    private Context mContext;
+    private List<Long> mBatch;
+
    @Override
 	public void onReceive(Context context, Intent intent) {
         // make sure sd card is ready, if not don't try to send
@@ -52,26 +78,29 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
         }
 
 		String action = intent.getAction();
-		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo currentNetworkInfo = manager.getActiveNetworkInfo();
-
-		if (action.equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
-			if (currentNetworkInfo != null && currentNetworkInfo.getState() == NetworkInfo.State.CONNECTED) {
-				if (interfaceIsEnabled(context, currentNetworkInfo)) {
-					uploadForms(context);
-				}
+		if (action.equals(ACTION_AUTOSEND_RUN)) {
+			// the coalesced run is due; conditions are checked again in uploadForms
+			ConnectivityManager manager = (ConnectivityManager) context
+					.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo ni = manager.getActiveNetworkInfo();
+			if (ni != null && ni.isConnected() && interfaceIsEnabled(context, ni)) {
+				uploadForms(context.getApplicationContext());
 			}
-		} else if (action.equals("org.odk.collect.android.FormSaved")) {
-			ConnectivityManager connectivityManager = (ConnectivityManager) context
+		} else if (action.equals(ConnectivityManager.CONNECTIVITY_ACTION)
+				|| action.equals("org.odk.collect.android.FormSaved")
+				|| action.equals(ACTION_AUTOSEND_RETRY)
+				|| action.equals(Intent.ACTION_BATTERY_OKAY)
+				|| action.equals(Intent.ACTION_POWER_CONNECTED)) {
+			ConnectivityManager manager = (ConnectivityManager) context
 					.getSystemService(Context.CONNECTIVITY_SERVICE);
-			NetworkInfo ni = connectivityManager.getActiveNetworkInfo();
+			NetworkInfo ni = manager.getActiveNetworkInfo();
 
-			if (ni == null || !ni.isConnected()) {
-				// not connected, do nothing
+			if (ni == null || !ni.isConnected() || !interfaceIsEnabled(context, ni)) {
+				// not connected, or not allowed to send on this interface.
+				// Drop any coalesced run; the next CONNECTED event reschedules.
+				cancelPendingRun(context);
 			} else {
-				if (interfaceIsEnabled(context, ni)) {
-					uploadForms(context);
-				}
+				scheduleRun(context);
 			}
 		}
 	}
@@ -91,54 +120,208 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
 				&& sendnetwork);
 	}
 
+    private static synchronized SendScheduler getScheduler() {
+        if (sScheduler == null) {
+            File queue = new File(Collect.METADATA_PATH, SEND_QUEUE_FILE);
+            sScheduler = new SendScheduler(SendScheduler.SYSTEM_CLOCK,
+                    new SendQueueFileStore(queue), new Random());
+        }
+        return sScheduler;
+    }
 
-    private void uploadForms(Context context) {
-        if (!running) {
-            running = true;
+    /**
+     * Coalesce this event with any others arriving shortly after it into a
+     * single upload run. The run is an alarm rather than a posted callback so
+     * that it still happens if the process is killed in the meantime; setting
+     * it again replaces the earlier alarm.
+     */
+    private static void scheduleRun(Context context) {
+        long delay = getScheduler().onTrigger();
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.RTC, System.currentTimeMillis() + delay, getRunIntent(context));
+    }
 
-            String selection = InstanceColumns.STATUS + "=? or " + InstanceColumns.STATUS + "=?";
-            String selectionArgs[] =
-                {
-                        InstanceProviderAPI.STATUS_COMPLETE,
-                        InstanceProviderAPI.STATUS_SUBMISSION_FAILED
-                };
+    private static void cancelPendingRun(Context context) {
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(getRunIntent(context));
+    }
 
-            ArrayList<Long> toUpload = new ArrayList<Long>();
-            Cursor c = context.getContentResolver().query(InstanceColumns.CONTENT_URI, null,
-                    selection, selectionArgs, null);
-            try {
-                if (c != null && c.getCount() > 0) {
-                    c.move(-1);
-                    while (c.moveToNext()) {
-                        Long l = c.getLong(c.getColumnIndex(InstanceColumns._ID));
-                        toUpload.add(Long.valueOf(l));
+    private static PendingIntent getRunIntent(Context context) {
+        Intent intent = new Intent(context, NetworkReceiver.class);
+        intent.setAction(ACTION_AUTOSEND_RUN);
+        return PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Ask the AlarmManager to wake us when the next backed-off upload is due.
+     * The alarm is never set sooner than the shortest backoff, so a run that
+     * found nothing to send can't wake the device again right away.
+     */
+    private static void scheduleRetry(Context context, long when) {
+        if (when != -1L) {
+            when = Math.max(when,
+                    System.currentTimeMillis() + getScheduler().getBaseBackoffMs());
+        }
+        Intent intent = new Intent(context, NetworkReceiver.class);
+        intent.setAction(ACTION_AUTOSEND_RETRY);
+        PendingIntent pi = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (when == -1L) {
+            am.cancel(pi);
+        } else {
+            am.set(AlarmManager.RTC, when, pi);
+        }
+    }
+
+    /**
+     * 2G connections are too slow to push instances and their media through.
+     */
+    private static boolean isNetworkGood(Context context) {
+        ConnectivityManager manager = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = manager.getActiveNetworkInfo();
+        if (ni == null || !ni.isConnected()) {
+            return false;
+        }
+        if (ni.getType() == ConnectivityManager.TYPE_MOBILE) {
+            switch (ni.getSubtype()) {
+                case TelephonyManager.NETWORK_TYPE_GPRS:
+                case TelephonyManager.NETWORK_TYPE_EDGE:
+                case TelephonyManager.NETWORK_TYPE_CDMA:
+                case TelephonyManager.NETWORK_TYPE_1xRTT:
+                case TelephonyManager.NETWORK_TYPE_IDEN:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Uploading keeps the radio on; don't do it on a low battery unless the
+     * device is charging.
+     */
+    private static boolean isPowerOk(Context context) {
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return true;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return true;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) {
+            return true;
+        }
+        return level * 100 / scale > LOW_BATTERY_PERCENT;
+    }
+
+    /**
+     * @return every instance waiting to be sent, keyed by id. The size is
+     *         only computed for instances the scheduler has not seen yet.
+     */
+    private static Map<Long, SendScheduler.Entry> getPendingInstances(Context context,
+            SendScheduler scheduler, boolean googleSheets) {
+        Map<Long, SendScheduler.Entry> pending = new HashMap<Long, SendScheduler.Entry>();
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        String defaultServer = googleSheets ? context.getString(R.string.protocol_google_sheets)
+                : Uri.parse(settings.getString(PreferencesActivity.KEY_SERVER_URL,
+                        context.getString(R.string.default_server_url))).getHost();
+
+        String selection = InstanceColumns.STATUS + "=? or " + InstanceColumns.STATUS + "=?";
+        String selectionArgs[] =
+            {
+                    InstanceProviderAPI.STATUS_COMPLETE,
+                    InstanceProviderAPI.STATUS_SUBMISSION_FAILED
+            };
+        String[] projection = {
+                InstanceColumns._ID, InstanceColumns.SUBMISSION_URI,
+                InstanceColumns.INSTANCE_FILE_PATH
+        };
+
+        Cursor c = context.getContentResolver().query(InstanceColumns.CONTENT_URI, projection,
+                selection, selectionArgs, null);
+        try {
+            if (c != null && c.getCount() > 0) {
+                c.move(-1);
+                while (c.moveToNext()) {
+                    long id = c.getLong(c.getColumnIndex(InstanceColumns._ID));
+                    int subIdx = c.getColumnIndex(InstanceColumns.SUBMISSION_URI);
+                    String server = defaultServer;
+                    if (!googleSheets && !c.isNull(subIdx)) {
+                        server = Uri.parse(c.getString(subIdx)).getHost();
                     }
+                    long bytes = -1L;
+                    if (!scheduler.contains(id)) {
+                        bytes = getInstanceSize(c.getString(
+                                c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH)));
+                    }
+                    pending.put(id, new SendScheduler.Entry(id, server, bytes,
+                            new SendScheduler.Backoff(0, 0L)));
                 }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
             }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return pending;
+    }
+
+    private static long getInstanceSize(String instancePath) {
+        long bytes = 0L;
+        File[] files = new File(instancePath).getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                bytes += f.length();
+            }
+        }
+        return bytes;
+    }
+
+    private void uploadForms(Context context) {
+        if (!running) {
+            running = true;
+
+            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+
+            String protocol = settings.getString(PreferencesActivity.KEY_PROTOCOL,
+            		context.getString(R.string.protocol_odk_default));
+            boolean googleSheets = protocol.equals(context.getString(R.string.protocol_google_sheets));
+
+            SendScheduler scheduler = getScheduler();
+            scheduler.setConditions(isNetworkGood(context), isPowerOk(context));
+            scheduler.sync(getPendingInstances(context, scheduler, googleSheets));
+            List<Long> toUpload = scheduler.takeBatch();
 
             if (toUpload.size() < 1) {
+                Log.i(t, "Nothing to send now; " + scheduler.size() + " queued"
+                        + (scheduler.isPaused() ? " (paused)" : ""));
+                scheduleRetry(context, scheduler.nextDueTime());
                 running = false; 
                 return;
             }
+            mContext = context;
+            mBatch = toUpload;
 
             Long[] toSendArray = new Long[toUpload.size()];
             toUpload.toArray(toSendArray);
 
-            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-
-            String protocol = settings.getString(PreferencesActivity.KEY_PROTOCOL,
-            		context.getString(R.string.protocol_odk_default));
-
-            if (protocol.equals(context.getString(R.string.protocol_google_sheets))) {
+            if (googleSheets) {
                 mGoogleSheetsUploadTask = new GoogleSheetsAutoUploadTask(context);
                 String googleUsername = settings.getString(
                         PreferencesActivity.KEY_SELECTED_GOOGLE_ACCOUNT, null);
                 if (googleUsername == null || googleUsername.equalsIgnoreCase("")) {
                     // just quit if there's no username
+                    mBatch = null;
                     running = false;
                     return;
                 }
@@ -168,6 +351,32 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
         }
     }
 
+    /**
+     * Feed the outcome of the batch back to the scheduler, then either run
+     * again right away (more is due within the byte budget) or set an alarm
+     * for the next retry.
+     *
+     * @param sent ids that are now in the submitted state
+     */
+    private void batchFinished(Set<Long> sent) {
+        running = false;
+        if (mBatch == null) {
+            return;
+        }
+        SendScheduler scheduler = getScheduler();
+        for (Long id : mBatch) {
+            scheduler.onResult(id, sent.contains(id));
+        }
+        mBatch = null;
+
+        long next = scheduler.nextDueTime();
+        if (next != -1L && next <= System.currentTimeMillis()) {
+            scheduleRun(mContext);
+        } else {
+            scheduleRetry(mContext, next);
+        }
+    }
+
     @Override
     public void uploadingComplete(HashMap<String, String> result) {
         // task is done
@@ -177,7 +386,7 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
         if (mGoogleSheetsUploadTask != null) {
             mGoogleSheetsUploadTask.setUploaderListener(null);
         }
-        running = false;
+        Set<Long> sent = new HashSet<Long>();
 
         StringBuilder message = new StringBuilder();
         message.append(Collect.getInstance().getString(R.string.odk_auto_note) + " :: \n\n");
@@ -188,6 +397,7 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
 
             StringBuilder selection = new StringBuilder();
             Set<String> keys = result.keySet();
+            Set<String> found = new HashSet<String>();
             Iterator<String> it = keys.iterator();
 
             String[] selectionArgs = new String[keys.size()];
@@ -217,6 +427,12 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
                             String id = results.getString(results
                                     .getColumnIndex(InstanceColumns._ID));
                             message.append(name + " - " + result.get(id) + "\n\n");
+                            String status = results.getString(results
+                                    .getColumnIndex(InstanceColumns.STATUS));
+                            if (InstanceProviderAPI.STATUS_SUBMITTED.equals(status)) {
+                                sent.add(Long.valueOf(id));
+                            }
+                            found.add(id);
                         }
                     }
                 } finally {
@@ -225,6 +441,14 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
                     }
                 }
             }
+
+            // instances deleted after a successful send are gone by now; don't
+            // hold that against the server
+            for (String id : keys) {
+                if (!found.contains(id)) {
+                    sent.add(Long.valueOf(id));
+                }
+            }
         }
 
         Intent notifyIntent = new Intent(Collect.getInstance(), NotificationActivity.class);
@@ -247,6 +471,8 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
         NotificationManager mNotificationManager = (NotificationManager)Collect.getInstance()
                 .getSystemService(Context.NOTIFICATION_SERVICE);
         mNotificationManager.notify(1328974928, mBuilder.build());
+
+        batchFinished(sent);
     }
 
 
@@ -265,7 +491,8 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
         if (mGoogleSheetsUploadTask != null) {
             mGoogleSheetsUploadTask.setUploaderListener(null);
         }
-        running = false;
+        // back off the whole batch; retrying without credentials won't help
+        batchFinished(new HashSet<Long>());
     }
 
     private class GoogleSheetsAutoUploadTask extends
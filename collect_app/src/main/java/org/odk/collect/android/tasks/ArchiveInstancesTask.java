@@ -0,0 +1,147 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.preferences.PreferencesActivity;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.InstanceArchive;
+import org.odk.collect.android.utilities.MediaBlobStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves the given sent instances into the InstanceArchive, then applies the
+ * archive policy from the preferences. Instances the policy drops are gone for
+ * good, so their rows are deleted too.
+ */
+public class ArchiveInstancesTask extends AsyncTask<Long, Void, Integer> {
+    private static final String t = "ArchiveInstancesTask";
+
+    // stays under SQLite's limit of 999 bound arguments
+    private static final int MAX_ARGS = 500;
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long MEGABYTE = 1024L * 1024;
+
+    @Override
+    protected Integer doInBackground(Long... params) {
+        ContentResolver cr = Collect.getInstance().getContentResolver();
+        InstanceArchive archive = InstanceArchive.getInstance();
+        int archived = 0;
+
+        List<Long> ids = params == null ? new ArrayList<Long>() : Arrays.asList(params);
+        for (int start = 0; start < ids.size(); start += MAX_ARGS) {
+            List<Long> chunk = ids.subList(start, Math.min(start + MAX_ARGS, ids.size()));
+            String[] selectionArgs = new String[chunk.size() + 1];
+            selectionArgs[0] = InstanceProviderAPI.STATUS_SUBMITTED;
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i + 1] = chunk.get(i).toString();
+            }
+            Cursor c = null;
+            try {
+                c = cr.query(InstanceColumns.CONTENT_URI, new String[] {
+                        InstanceColumns.INSTANCE_FILE_PATH, InstanceColumns.LAST_STATUS_CHANGE_DATE
+                }, InstanceColumns.STATUS + "=? AND "
+                        + getInSelection(InstanceColumns._ID, chunk.size()), selectionArgs, null);
+                while (c != null && c.moveToNext()) {
+                    if (archive.archive(c.getString(0), c.getLong(1))) {
+                        archived++;
+                    }
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        long maxAge = getLong(settings, PreferencesActivity.KEY_ARCHIVE_MAX_AGE,
+                PreferencesActivity.ARCHIVE_MAX_AGE_DEFAULT) * DAY;
+        long maxBytes = getLong(settings, PreferencesActivity.KEY_ARCHIVE_MAX_SIZE,
+                PreferencesActivity.ARCHIVE_MAX_SIZE_DEFAULT) * MEGABYTE;
+        List<String> dropped = archive.applyPolicy(maxAge, maxBytes);
+        if (archived > 0) {
+            // archived copies hold their own bytes, so shared media may be unused now
+            MediaBlobStore.getInstance().prune();
+        }
+
+        List<Long> expired = new ArrayList<Long>();
+        for (int start = 0; start < dropped.size(); start += MAX_ARGS) {
+            List<String> chunk = dropped.subList(start, Math.min(start + MAX_ARGS, dropped.size()));
+            Cursor c = null;
+            try {
+                c = cr.query(InstanceColumns.CONTENT_URI, new String[] { InstanceColumns._ID },
+                        getInSelection(InstanceColumns.INSTANCE_FILE_PATH, chunk.size()),
+                        chunk.toArray(new String[chunk.size()]), null);
+                while (c != null && c.moveToNext()) {
+                    expired.add(c.getLong(0));
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        if (!expired.isEmpty()) {
+            // already on a background thread, and AsyncTasks can't be started from one
+            DeleteInstancesTask dit = new DeleteInstancesTask();
+            dit.setContentResolver(cr);
+            dit.deleteNow(expired.toArray(new Long[expired.size()]));
+        }
+
+        Log.i(t, "Archived " + archived + " instances, " + expired.size() + " expired");
+        return archived;
+    }
+
+    private static String getInSelection(String column, int count) {
+        StringBuilder selection = new StringBuilder(column + " IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(")").toString();
+    }
+
+    private static long getLong(SharedPreferences settings, String key, String defaultValue) {
+        String value = settings.getString(key, defaultValue);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.w(t, "Invalid " + key + " " + value);
+            return Long.parseLong(defaultValue);
+        }
+    }
+}
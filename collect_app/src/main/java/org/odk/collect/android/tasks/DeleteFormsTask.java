@@ -17,6 +17,7 @@ package org.odk.collect.android.tasks;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.DeleteFormsListener;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+import org.odk.collect.android.utilities.MediaBlobStore;
 
 import android.content.ContentResolver;
 import android.net.Uri;
@@ -64,6 +65,10 @@ public class DeleteFormsTask extends AsyncTask<Long, Void, Integer> {
 				Log.e(t,"Exception during delete of: " + params[i].toString() + " exception: "  + ex.toString());
 			}
 	    } 
+		if (deleted > 0) {
+			// media shared with other form versions may have lost its last user
+			MediaBlobStore.getInstance().prune();
+		}
 		successCount = deleted;
 		return deleted;
 	}
@@ -14,65 +14,234 @@
 
 package org.odk.collect.android.tasks;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.DeleteInstancesListener;
 import org.odk.collect.android.logic.FormRelationsManager;
+import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.MediaBlobStore;
+import org.odk.collect.android.utilities.MediaUtils;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.util.Log;
 
 /**
  * Task responsible for deleting selected instances.
+ *
+ * The rows are removed in one provider transaction, the relations in one
+ * more, and the instance files afterwards on a few threads, reporting how
+ * many instances have been cleaned up and how many bytes that freed.
+ *
  * @author norman86@gmail.com
  * @author mitchellsundt@gmail.com
  *
  */
-public class DeleteInstancesTask extends AsyncTask<Long, Void, Integer> {
+public class DeleteInstancesTask extends AsyncTask<Long, Long, Integer> {
 	private static final String t = "DeleteInstancesTask";
-	
+
+	// stays under SQLite's limit of 999 bound arguments
+	private static final int MAX_ARGS = 500;
+	private static final int FILE_THREADS = 4;
+
 	private ContentResolver cr;
 	private DeleteInstancesListener dl;
-	
+
 	private int successCount = 0;
-	
+
 	@Override
 	protected Integer doInBackground(Long... params) {
+		return delete(params, true);
+	}
+
+	/**
+	 * Deletes the instances on the calling thread, for callers that are
+	 * already in the background. No progress is reported.
+	 *
+	 * @return the number of instances deleted
+	 */
+	public int deleteNow(Long... ids) {
+		return delete(ids, false);
+	}
+
+	private int delete(Long[] params, boolean reportProgress) {
 		int deleted = 0;
 
-		if (params == null ||cr == null || dl == null) {
+		if (params == null || cr == null) {
 			return deleted;
 		}
-		
-		// delete files from database and then from file system
-		for (int i = 0; i < params.length; i++) {
-			if ( isCancelled() ) {
-				break;
-			}
+
+		// find the instance directories while the rows still exist
+		List<Long> ids = new ArrayList<Long>();
+		List<File> instanceDirs = new ArrayList<File>();
+		List<Long> all = Arrays.asList(params);
+		for (int start = 0; start < all.size(); start += MAX_ARGS) {
+			List<Long> chunk = all.subList(start, Math.min(start + MAX_ARGS, all.size()));
+			Cursor c = null;
 			try {
-	            Uri deleteForm =
-	                Uri.withAppendedPath(InstanceColumns.CONTENT_URI, params[i].toString());
-	            
-	            int wasDeleted = cr.delete(deleteForm, null, null); 
-	            deleted += wasDeleted;
-	            
-	            if (wasDeleted > 0) {
-	            	Collect.getInstance().getActivityLogger().logAction(this, "delete", deleteForm.toString());
-
-					// PMA-Linking BEGIN
-					FormRelationsManager.removeAllReferences(params[i]);
-					// PMA-Linking END
-	            }
-			} catch ( Exception ex ) {
-				Log.e(t,"Exception during delete of: " + params[i].toString() + " exception: "  + ex.toString());
+				c = cr.query(InstanceColumns.CONTENT_URI,
+						new String[] { InstanceColumns._ID, InstanceColumns.INSTANCE_FILE_PATH },
+						getIdSelection(chunk.size()), toArgs(chunk), null);
+				if (c == null) {
+					continue;
+				}
+				while (c.moveToNext()) {
+					String instanceFile = c.getString(1);
+					Collect.getInstance().getActivityLogger().logAction(this, "delete", instanceFile);
+					ids.add(c.getLong(0));
+					instanceDirs.add(new File(instanceFile).getParentFile());
+				}
+			} finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+
+		if (ids.isEmpty() || isCancelled()) {
+			return deleted;
+		}
+
+		// remove the rows in a single transaction, leaving the files to us
+		Uri deleteUri = InstanceColumns.CONTENT_URI.buildUpon()
+				.appendQueryParameter(InstanceProviderAPI.KEEP_FILES, "true").build();
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (int start = 0; start < ids.size(); start += MAX_ARGS) {
+			List<Long> chunk = ids.subList(start, Math.min(start + MAX_ARGS, ids.size()));
+			operations.add(ContentProviderOperation.newDelete(deleteUri)
+					.withSelection(getIdSelection(chunk.size()), toArgs(chunk)).build());
+		}
+		try {
+			ContentProviderResult[] results = cr.applyBatch(InstanceProviderAPI.AUTHORITY, operations);
+			for (ContentProviderResult result : results) {
+				deleted += result.count;
 			}
-	    } 
+		} catch (RemoteException e) {
+			Log.e(t, "Exception during delete of " + ids.size() + " instances: " + e.toString());
+			return 0;
+		} catch (OperationApplicationException e) {
+			Log.e(t, "Exception during delete of " + ids.size() + " instances: " + e.toString());
+			return 0;
+		}
 		successCount = deleted;
+
+		// PMA-Linking BEGIN
+		FormRelationsManager.removeAllReferences(ids);
+		// PMA-Linking END
+
+		deleteInstanceDirectories(instanceDirs, reportProgress);
+		MediaBlobStore.getInstance().prune();
 		return deleted;
 	}
-	
+
+	/**
+	 * Removes the files of the deleted instances, first from the media
+	 * provider in one pass and then from disk on a small pool of threads.
+	 */
+	private void deleteInstanceDirectories(List<File> instanceDirs, final boolean reportProgress) {
+		final int total = instanceDirs.size();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicLong bytesFreed = new AtomicLong();
+		if (reportProgress) {
+			publishProgress(0L, (long) total, 0L);
+		}
+
+		List<String> mediaPaths = new ArrayList<String>();
+		final List<File[]> contents = new ArrayList<File[]>(total);
+		for (File directory : instanceDirs) {
+			File[] files = null;
+			// do not empty the directory if it might be an ODK Tables
+			// instance data directory. Let ODK Tables manage the
+			// lifetimes of its filled-in form data media attachments.
+			if (directory.isDirectory() && !Collect.isODKTablesInstanceDataDirectory(directory)) {
+				files = directory.listFiles();
+			}
+			if (files != null) {
+				for (File f : files) {
+					mediaPaths.add(f.getAbsolutePath());
+				}
+			}
+			contents.add(files);
+		}
+		if (!mediaPaths.isEmpty()) {
+			MediaUtils.deleteFilesFromMediaProvider(mediaPaths);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(FILE_THREADS, total));
+		for (int i = 0; i < total; i++) {
+			final File directory = instanceDirs.get(i);
+			final File[] files = contents.get(i);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (files != null) {
+						for (File f : files) {
+							// should make this recursive if we get worried about
+							// the media directory containing directories
+							long length = f.length();
+							if (f.delete()) {
+								bytesFreed.addAndGet(length);
+							}
+						}
+					}
+					directory.delete();
+					long count = done.incrementAndGet();
+					if (reportProgress) {
+						publishProgress(count, (long) total, bytesFreed.get());
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Log.w(t, "Interrupted while deleting instance files");
+			Thread.currentThread().interrupt();
+		}
+		Log.i(t, "Deleted the files of " + done.get() + " instances, freeing "
+				+ bytesFreed.get() + " bytes");
+	}
+
+	private static String getIdSelection(int count) {
+		StringBuilder selection = new StringBuilder(InstanceColumns._ID + " IN (");
+		for (int i = 0; i < count; i++) {
+			selection.append(i == 0 ? "?" : ",?");
+		}
+		return selection.append(")").toString();
+	}
+
+	private static String[] toArgs(List<Long> ids) {
+		String[] args = new String[ids.size()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = ids.get(i).toString();
+		}
+		return args;
+	}
+
+	@Override
+	protected void onProgressUpdate(Long... values) {
+		if (dl != null) {
+			dl.deleteProgress(values[0].intValue(), values[1].intValue(), values[2]);
+		}
+	}
+
 	@Override
 	protected void onPostExecute(Integer result) {
 	  	cr = null;
@@ -81,7 +250,7 @@ public class DeleteInstancesTask extends AsyncTask<Long, Void, Integer> {
         }
         super.onPostExecute(result);
 	}
-	
+
 	@Override
 	protected void onCancelled() {
 		cr = null;
@@ -93,7 +262,7 @@ public class DeleteInstancesTask extends AsyncTask<Long, Void, Integer> {
     public void setDeleteListener(DeleteInstancesListener listener) {
         dl = listener;
     }
-    
+
     public void setContentResolver(ContentResolver resolver){
        	cr = resolver;
     }
@@ -30,10 +30,14 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.TaskCancelledException;
 import org.odk.collect.android.listeners.FormDownloaderListener;
+import org.odk.collect.android.listeners.MediaExtractionListener;
 import org.odk.collect.android.logic.FormDetails;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.DocumentFetchResult;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.HttpTransport;
+import org.odk.collect.android.utilities.MediaBlobStore;
+import org.odk.collect.android.utilities.MediaZipExtractor;
 import org.odk.collect.android.utilities.WebUtils;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpEntity;
@@ -44,9 +48,11 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.text.format.Formatter;
 import android.util.Log;
 
 /**
@@ -148,7 +154,9 @@ public class DownloadFormsTask extends
                     if (tempMediaPath != null) {
                         File formMediaPath = new File(uriResult.getMediaPath());
 
+                        deduplicateMedia(tempMediaPath);
                         FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
+                        prepareMedia(formMediaPath, fd, count, total);
                     }
                 } catch (IOException e) {
                     Log.e(t, e.getMessage());
@@ -175,6 +183,7 @@ public class DownloadFormsTask extends
             saveResult(result, fd, message);
         }
 
+        HttpTransport.getInstance().logStats();
         return result;
     }
 
@@ -479,7 +488,8 @@ public class DownloadFormsTask extends
 
         FileUtils.deleteAndReport(file);
 
-        String errorMessage = FileUtils.copyFile(tempFile, file);
+        // the temp file is deleted next, so the copy has to reach the disk
+        String errorMessage = FileUtils.copyFile(tempFile, file, true);
 
         if (file.exists()) {
             Log.w(t, "Copied " + tempFile.getAbsolutePath() + " over " + file.getAbsolutePath());
@@ -696,6 +706,39 @@ public class DownloadFormsTask extends
     }
 
 
+    /**
+     * Lets media that an earlier version of this or another form already has
+     * share the stored bytes instead of keeping a second copy.
+     */
+    private void deduplicateMedia(String tempMediaPath) {
+        File[] mediaFiles = new File(tempMediaPath).listFiles();
+        if (mediaFiles != null) {
+            for (File mediaFile : mediaFiles) {
+                MediaBlobStore.getInstance().deduplicate(mediaFile);
+            }
+        }
+    }
+
+
+    /**
+     * Expands the media zips now rather than on the first open of the form.
+     * Anything left unfinished is picked up again by FormLoaderTask.
+     */
+    private void prepareMedia(File formMediaPath, final FormDetails fd, final int count,
+                              final int total) {
+        MediaZipExtractor.extractAll(formMediaPath, new MediaExtractionListener() {
+            @Override
+            public void extractionProgress(long bytesDone, long bytesTotal) {
+                Context context = Collect.getInstance();
+                publishProgress(context.getString(R.string.form_media_extract_progress,
+                        fd.formName, Formatter.formatShortFileSize(context, bytesDone),
+                        Formatter.formatShortFileSize(context, bytesTotal)),
+                        Integer.valueOf(count).toString(), Integer.valueOf(total).toString());
+            }
+        });
+    }
+
+
     @Override
     protected void onPostExecute(HashMap<FormDetails, String> value) {
         synchronized (this) {
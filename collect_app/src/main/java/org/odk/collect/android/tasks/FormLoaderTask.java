@@ -14,6 +14,7 @@
 
 package org.odk.collect.android.tasks;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -21,8 +22,8 @@ import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -57,10 +58,14 @@ import org.odk.collect.android.external.ExternalDataReaderImpl;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
+import org.odk.collect.android.logic.EvaluationProfiler;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
+import org.odk.collect.android.utilities.FileIOUtils;
 import org.odk.collect.android.utilities.FileUtils;
-import org.odk.collect.android.utilities.ZipUtils;
+import org.odk.collect.android.utilities.InstanceArchive;
+import org.odk.collect.android.utilities.MediaBlobStore;
+import org.odk.collect.android.utilities.MediaZipExtractor;
 
 import android.content.Intent;
 import android.database.Cursor;
@@ -204,6 +209,12 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(externalDataManager);
     fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
 
+    EvaluationProfiler profiler = EvaluationProfiler.createIfEnabled();
+    if (profiler != null) {
+      profiler.wrapFunctionHandlers(fd.getEvaluationContext());
+    }
+    long initializeStart = System.nanoTime();
+
     try {
       loadExternalData(formMediaDir);
     } catch (Exception e) {
@@ -227,6 +238,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
       // import existing data into formdef
       if (mInstancePath != null) {
         File instance = new File(mInstancePath);
+        if (!instance.exists()) {
+          // sent instances may have been packed into the archive
+          InstanceArchive.getInstance().restore(mInstancePath);
+        }
         File shadowInstance = SaveToDiskTask.savepointFile(instance);
         if (shadowInstance.exists() && (shadowInstance.lastModified() > instance.lastModified())) {
           // the savepoint is newer than the saved value of the instance.
@@ -236,6 +251,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
           Log.w(t, "Loading instance from shadow file: " + shadowInstance.getAbsolutePath());
         }
         if (instance.exists()) {
+          // the widgets show and edit media in place, so shared media becomes real files
+          MediaBlobStore.getInstance().materialize(instance.getParentFile());
           // This order is important. Import data, then initialize.
           try {
             importData(instance, fec);
@@ -278,6 +295,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
       }
     }
 
+    if (profiler != null) {
+      profiler.recordPhase("load instance and initialize", System.nanoTime() - initializeStart);
+    }
+
     // Remove previous forms
     ReferenceManager._().clearSession();
 
@@ -343,6 +364,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
     FormController fc = new FormController(formMediaDir, fec, mInstancePath == null ? null
         : new File(mInstancePath));
+    fc.setEvaluationProfiler(profiler);
     if (mXPath != null) {
       // we are resuming after having terminated -- set index to this
       // position...
@@ -361,21 +383,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
   @SuppressWarnings("unchecked")
   private void loadExternalData(File mediaFolder) {
     // SCTO-594
-    File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
-      @Override
-      public boolean accept(File file) {
-        return file.getName().toLowerCase().endsWith(".zip");
-      }
-    });
-
-    if (zipFiles != null) {
-      ZipUtils.unzip(zipFiles);
-      for (File zipFile : zipFiles) {
-        boolean deleted = zipFile.delete();
-        if (!deleted) {
-          Log.w(t, "Cannot delete " + zipFile + ". It will be re-unzipped next time. :(");
-        }
-      }
+    // normally done by DownloadFormsTask; this finishes an interrupted run
+    // or handles media copied onto the device by hand
+    if (!MediaZipExtractor.extractAll(mediaFolder, null)) {
+      Log.w(t, "Some media zips in " + mediaFolder + " could not be extracted");
     }
 
     File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
@@ -424,11 +435,21 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
   public boolean importData(File instanceFile, FormEntryController fec) {
     publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
 
-    // convert files into a byte array
-    byte[] fileBytes = FileUtils.getFileAsBytes(instanceFile);
+    long start = System.currentTimeMillis();
 
-    // get the root of the saved and template instances
-    TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+    // get the root of the saved and template instances. The saved instance
+    // is parsed as it is read rather than first copied into a byte array.
+    TreeElement savedRoot;
+    InputStream is = null;
+    try {
+      is = new BufferedInputStream(new FileInputStream(instanceFile));
+      savedRoot = XFormParser.restoreDataModel(is, null).getRoot();
+    } catch (IOException e) {
+      // corrupted or unreadable, treated the same as a syntax error
+      throw new RuntimeException("Cannot read " + instanceFile.getName(), e);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
     TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
     // weak check for matching forms
@@ -448,6 +469,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
       // populated model to current form
       fec.getModel().getForm().getInstance().setRoot(templateRoot);
+      Log.i(t, "Restored " + instanceFile.length() + " byte instance in "
+          + (System.currentTimeMillis() - start) + "ms");
 
       // fix any language issues
       // :
@@ -619,7 +642,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         boolean withinTransaction = false;
 
         try {
-            reader = new CSVReader(new FileReader(csv));
+            reader = new CSVReader(FileIOUtils.newReader(csv, "UTF-8"));
 
             String[] nextLine;
             String[] columnHeaders = null;
@@ -18,16 +18,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,7 +47,7 @@ import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
-import org.xmlpull.v1.XmlPullParser;
+import org.odk.collect.android.utilities.InstanceArchive;
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.ContentValues;
@@ -54,9 +57,7 @@ import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore.Images;
 import android.text.Html;
-import android.text.TextUtils;
 import android.util.Log;
-import android.util.Xml;
 
 import com.google.android.gms.auth.GoogleAuthUtil;
 import com.google.api.client.extensions.android.http.AndroidHttp;
@@ -64,13 +65,6 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.gdata.client.spreadsheet.SpreadsheetService;
-import com.google.gdata.client.spreadsheet.WorksheetQuery;
-import com.google.gdata.data.spreadsheet.CellEntry;
-import com.google.gdata.data.spreadsheet.CellFeed;
-import com.google.gdata.data.spreadsheet.ListEntry;
-import com.google.gdata.data.spreadsheet.ListFeed;
-import com.google.gdata.data.spreadsheet.WorksheetEntry;
-import com.google.gdata.data.spreadsheet.WorksheetFeed;
 import com.google.gdata.util.ServiceException;
 
 /**
@@ -87,8 +81,30 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
     protected static final String oauth_fail = "OAUTH Error: ";
     protected static final String form_fail = "Form Error: ";
 
-    // needed in case of rate limiting
-    private static final int GOOGLE_SLEEP_TIME = 1000;
+    private static final Pattern LOCATION_PATTERN = Pattern
+            .compile("^-?[0-9]+\\.[0-9]+\\s-?[0-9]+\\.[0-9]+\\s-?[0-9]+\\.[0-9]+\\s[0-9]+\\.[0-9]+$");
+
+    /**
+     * An instance selected for upload, read from the cursor before any work starts.
+     */
+    private static class Submission {
+        String id;
+        String instanceFilePath;
+        String jrFormId;
+        String formFilePath;
+        String md5;
+        String urlString;
+    }
+
+    /**
+     * Columns and answers of one submission, produced off the upload thread. On failure only
+     * error is set.
+     */
+    private static class Flattened {
+        List<String> columns;
+        GoogleSheetsInstanceFlattener.Row row;
+        String error;
+    }
 
     /**
      * @param selection
@@ -97,481 +113,337 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
      */
     protected void uploadInstances(String selection, String[] selectionArgs, String token) {
 
+        List<Submission> submissions = getSubmissions(selection, selectionArgs);
+
+        SpreadsheetService service = new SpreadsheetService("ODK-Collect");
+        service.setAuthSubToken(token);
+        GoogleSheetsBatchWriter writer = new GoogleSheetsBatchWriter(service);
+
+        // instances are parsed a few ahead of the one being uploaded, so the
+        // parsing overlaps the photo uploads and sheet requests
+        int concurrency = GoogleSheetsInstanceFlattener.DEFAULT_CONCURRENCY;
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        LinkedList<Future<Flattened>> inFlight = new LinkedList<Future<Flattened>>();
+        int next = 0;
+        try {
+            for (int i = 0; i < submissions.size(); i++) {
+                while (next < submissions.size() && next - i < 2 * concurrency) {
+                    inFlight.add(executor.submit(newFlattenTask(submissions.get(next++))));
+                }
+                if (isCancelled()) {
+                    break;
+                }
+
+                Submission s = submissions.get(i);
+                Flattened flattened = getResult(inFlight.removeFirst());
+
+                publishProgress(i + 1, submissions.size());
+                String sheetId = getSheetId(s.id, s.urlString);
+                Map<String, String> values = sheetId == null ? null : prepareSubmission(s,
+                        flattened, token, sheetId, writer);
+                if (values == null) {
+                    setStatus(s.id, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+                    break;
+                }
+
+                if (!appendRow(writer, sheetId, s.id, values)) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the selected instances together with their form definitions. Stops at the first
+     * instance whose form is missing, as nothing after it would be uploaded either.
+     */
+    private List<Submission> getSubmissions(String selection, String[] selectionArgs) {
+        List<Submission> submissions = new ArrayList<Submission>();
         Cursor c = null;
         try {
             c = Collect.getInstance().getContentResolver()
                     .query(InstanceColumns.CONTENT_URI, null, selection, selectionArgs, null);
 
-            if (c.getCount() > 0) {
-                c.moveToPosition(-1);
-                while (c.moveToNext()) {
-                    if (isCancelled()) {
-                        return;
-                    }
-                    String instance = c.getString(c
-                            .getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
-                    String id = c.getString(c.getColumnIndex(InstanceColumns._ID));
-                    String jrformid = c.getString(c.getColumnIndex(InstanceColumns.JR_FORM_ID));
-                    Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
-                    ContentValues cv = new ContentValues();
-
-                    String formSelection = FormsColumns.JR_FORM_ID + "=?";
-                    String[] formSelectionArgs = {
-                        jrformid
-                    };
-                    Cursor formcursor = Collect
-                            .getInstance()
-                            .getContentResolver()
-                            .query(FormsColumns.CONTENT_URI, null, formSelection,
-                                    formSelectionArgs, null);
-                    String md5 = null;
-                    String formFilePath = null;
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                Submission s = new Submission();
+                s.instanceFilePath = c.getString(c
+                        .getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
+                // a re-send of an archived instance needs its files back
+                InstanceArchive.getInstance().restore(s.instanceFilePath);
+                s.id = c.getString(c.getColumnIndex(InstanceColumns._ID));
+                s.jrFormId = c.getString(c.getColumnIndex(InstanceColumns.JR_FORM_ID));
+                int subIdx = c.getColumnIndex(InstanceColumns.SUBMISSION_URI);
+                s.urlString = c.isNull(subIdx) ? null : c.getString(subIdx);
+
+                String formSelection = FormsColumns.JR_FORM_ID + "=?";
+                String[] formSelectionArgs = {
+                    s.jrFormId
+                };
+                Cursor formcursor = Collect
+                        .getInstance()
+                        .getContentResolver()
+                        .query(FormsColumns.CONTENT_URI, null, formSelection,
+                                formSelectionArgs, null);
+                String md5 = null;
+                try {
                     if (formcursor.getCount() > 0) {
                         formcursor.moveToFirst();
-                        md5 = formcursor
-                                .getString(formcursor.getColumnIndex(FormsColumns.MD5_HASH));
-                        formFilePath = formcursor.getString(formcursor
+                        md5 = formcursor.getString(formcursor
+                                .getColumnIndex(FormsColumns.MD5_HASH));
+                        s.formFilePath = formcursor.getString(formcursor
                                 .getColumnIndex(FormsColumns.FORM_FILE_PATH));
                     }
+                } finally {
+                    formcursor.close();
+                }
 
-                    if (md5 == null) {
-                        // fail and exit
-                        Log.e(tag, "no md5");
-                        return;
-                    }
-
-                    publishProgress(c.getPosition() + 1, c.getCount());
-                    if (!uploadOneSubmission(id, instance, jrformid, token, formFilePath)) {
-                        cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                        Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                        return;
-                    } else {
-                        cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMITTED);
-                        Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                    }
+                if (md5 == null) {
+                    // fail and exit
+                    Log.e(tag, "no md5");
+                    break;
                 }
+                s.md5 = md5;
+                submissions.add(s);
             }
         } finally {
             if (c != null) {
                 c.close();
             }
         }
+        return submissions;
     }
 
-    private boolean uploadOneSubmission(String id, String instanceFilePath, String jrFormId,
-            String token, String formFilePath) {
-        // if the token is null fail immediately
-        if (token == null) {
-            mResults.put(id, oauth_fail + Collect.getInstance().getString(R.string.invalid_oauth));
-            return false;
-        }
-
-        HashMap<String, String> answersToUpload = new HashMap<String, String>();
-        HashMap<String, String> photosToUpload = new HashMap<String, String>();
-        HashMap<String, PhotoEntry> uploadedPhotos = new HashMap<String, PhotoEntry>();
-
-        HttpTransport h = AndroidHttp.newCompatibleTransport();
-        GoogleCredential gc = new GoogleCredential();
-        gc.setAccessToken(token);
-
-        PicasaClient client = new PicasaClient(h.createRequestFactory(gc));
+    private Callable<Flattened> newFlattenTask(final Submission s) {
+        return new Callable<Flattened>() {
+            @Override
+            public Flattened call() {
+                Flattened flattened = new Flattened();
+                try {
+                    flattened.columns = GoogleSheetsInstanceFlattener.getColumns(s.jrFormId,
+                            s.md5, s.formFilePath);
+                } catch (XmlPullParserException e) {
+                    e.printStackTrace();
+                    flattened.error = e.getMessage();
+                    return flattened;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    flattened.error = e.getMessage();
+                    return flattened;
+                } catch (FormException e) {
+                    e.printStackTrace();
+                    flattened.error = e.getMessage();
+                    return flattened;
+                }
 
-        // get instance file
-        File instanceFile = new File(instanceFilePath);
+                // parses the instance file into answers and photos
+                try {
+                    flattened.row = GoogleSheetsInstanceFlattener.flatten(new File(
+                            s.instanceFilePath));
+                } catch (XmlPullParserException e) {
+                    e.printStackTrace();
+                    flattened.error = form_fail + e.getMessage();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    flattened.error = form_fail + e.getMessage();
+                }
+                return flattened;
+            }
+        };
+    }
 
-        // first check to see how many columns we have:
-        ArrayList<String> columnNames = new ArrayList<String>();
+    private Flattened getResult(Future<Flattened> future) {
         try {
-            getColumns(formFilePath, columnNames);
-        } catch (FileNotFoundException e2) {
-            e2.printStackTrace();
-            mResults.put(id, e2.getMessage());
-            return false;
-        } catch (XmlPullParserException e2) {
-            e2.printStackTrace();
-            mResults.put(id, e2.getMessage());
-            return false;
-        } catch (IOException e2) {
-            e2.printStackTrace();
-            mResults.put(id, e2.getMessage());
-            return false;
-        } catch (FormException e2) {
-            e2.printStackTrace();
-            mResults.put(id, e2.getMessage());
-            return false;
-        }
-
-        if (columnNames.size() > 255) {
-            mResults.put(id,
-                    Collect.getInstance()
-                            .getString(R.string.sheets_max_columns, columnNames.size()));
-            return false;
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Flattened flattened = new Flattened();
+            flattened.error = form_fail + e.getMessage();
+            return flattened;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            Flattened flattened = new Flattened();
+            flattened.error = form_fail + e.getCause().getMessage();
+            return flattened;
         }
+    }
 
-        // parses the instance file and populates the answers and photos
-        // hashmaps.
+    /**
+     * Appends the row of one instance to the sheet and records the outcome straight away, so
+     * the status of every instance is current even if the task is stopped.
+     *
+     * @return true if the row was written
+     */
+    private boolean appendRow(GoogleSheetsBatchWriter writer, String sheetId, String id,
+            Map<String, String> values) {
+        String failure = null;
         try {
-            processInstanceXML(instanceFile, answersToUpload, photosToUpload);
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
-        } catch (FormException e) {
-            mResults.put(id,
-                    form_fail + Collect.getInstance().getString(R.string.google_repeat_error));
-            return false;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
+            writer.appendRow(sheetId, values);
         } catch (IOException e) {
             e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
+            failure = form_fail + e.getMessage();
+        } catch (ServiceException e) {
+            e.printStackTrace();
+            failure = form_fail + getServiceErrorMessage(e);
         }
 
-        try {
-            Thread.sleep(GOOGLE_SLEEP_TIME);
-        } catch (InterruptedException e3) {
-            e3.printStackTrace();
+        if (failure == null) {
+            mResults.put(id, Collect.getInstance().getString(R.string.success));
+            setStatus(id, InstanceProviderAPI.STATUS_SUBMITTED);
+            return true;
         }
+        mResults.put(id, failure);
+        setStatus(id, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+        return false;
+    }
 
-        // if we have any photos to upload,
-        // get the picasa album or create a new one
-        // then upload the photos
-        if (photosToUpload.size() > 0) {
-            // First set up a picasa album to upload to:
-            // maybe we should move this, because if we don't have any
-            // photos we don't care...
-            AlbumEntry albumToUse;
-            try {
-                albumToUse = getOrCreatePicasaAlbum(client, jrFormId);
-            } catch (IOException e) {
-                e.printStackTrace();
-                GoogleAuthUtil.invalidateToken(Collect.getInstance(), token);
-                mResults.put(id, picasa_fail + e.getMessage());
-                return false;
-            }
+    private void setStatus(String id, String status) {
+        Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
+        ContentValues cv = new ContentValues();
+        cv.put(InstanceColumns.STATUS, status);
+        Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+    }
 
-            try {
-                uploadPhotosToPicasa(photosToUpload, uploadedPhotos, client, albumToUse,
-                        instanceFile);
-            } catch (IOException e1) {
-                e1.printStackTrace();
-                mResults.put(id, picasa_fail + e1.getMessage());
-                return false;
-            }
+    private String getServiceErrorMessage(ServiceException e) {
+        if ("forbidden".equalsIgnoreCase(e.getLocalizedMessage())) {
+            return Collect.getInstance().getString(R.string.google_sheets_access_denied);
+        } else if (e.getResponseBody() != null) {
+            return Html.fromHtml(e.getResponseBody()).toString();
+        } else {
+            return e.getMessage();
         }
+    }
 
-        // All photos have been sent to picasa (if there were any)
-        // now upload data to Google Sheet
-
-        String selection = InstanceColumns._ID + "=?";
-        String[] selectionArgs = {
-            id
-        };
-
-        Cursor cursor = null;
-        String urlString = null;
-        try {
-            // see if the submission element was defined in the form
-            cursor = Collect.getInstance().getContentResolver()
-                    .query(InstanceColumns.CONTENT_URI, null, selection, selectionArgs, null);
-
-            if (cursor.getCount() > 0) {
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext()) {
-                    int subIdx = cursor.getColumnIndex(InstanceColumns.SUBMISSION_URI);
-                    urlString = cursor.isNull(subIdx) ? null : cursor.getString(subIdx);
-
-                    // if we didn't find one in the content provider,
-                    // try to get from settings
-                    if (urlString == null) {
-                        SharedPreferences settings = PreferenceManager
-                                .getDefaultSharedPreferences(Collect.getInstance());
-                        urlString = settings
-                                .getString(PreferencesActivity.KEY_GOOGLE_SHEETS_URL, Collect
-                                        .getInstance()
-                                        .getString(R.string.default_google_sheets_url));
-                    }
-                }
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+    /**
+     * Works out the spreadsheet id from the instance's submission url, falling back to the
+     * one in the settings.
+     *
+     * @return the id, or null after recording the failure in mResults
+     */
+    private String getSheetId(String id, String urlString) {
+        // if we didn't find one in the content provider,
+        // try to get from settings
+        if (urlString == null) {
+            SharedPreferences settings = PreferenceManager
+                    .getDefaultSharedPreferences(Collect.getInstance());
+            urlString = settings.getString(PreferencesActivity.KEY_GOOGLE_SHEETS_URL, Collect
+                    .getInstance().getString(R.string.default_google_sheets_url));
         }
 
         // now parse the url string if we have one
         final String googleHeader = "docs.google.com/spreadsheets/d/";
-        String sheetId;
-        if (urlString == null || urlString.length() < googleHeader.length()) {
-            mResults.put(
-                    id,
-                    form_fail
-                            + Collect.getInstance().getString(R.string.invalid_sheet_id, urlString));
-            return false;
-        } else {
-            int start = urlString.indexOf(googleHeader) + googleHeader.length();
-            int end = urlString.indexOf("/", start);
-            if (end == -1) {
-                // if there wasn't a "/", just try to get the end
-                end = urlString.length();
-            }
-            if (start == -1 || end == -1) {
-                mResults.put(
-                        id,
-                        form_fail
-                                + Collect.getInstance().getString(R.string.invalid_sheet_id,
-                                        urlString));
-                return false;
-            }
-            sheetId = urlString.substring(start, end);
+        if (urlString == null || urlString.length() < googleHeader.length()
+                || urlString.indexOf(googleHeader) == -1) {
+            mResults.put(id,
+                    form_fail + Collect.getInstance().getString(R.string.invalid_sheet_id, urlString));
+            return null;
         }
+        int start = urlString.indexOf(googleHeader) + googleHeader.length();
+        int end = urlString.indexOf("/", start);
+        if (end == -1) {
+            // if there wasn't a "/", just try to get the end
+            end = urlString.length();
+        }
+        return urlString.substring(start, end);
+    }
 
-        SpreadsheetService service = new SpreadsheetService("ODK-Collect");
-        service.setAuthSubToken(token);
+    /**
+     * Reads the instance, uploads its photos and makes sure the sheet has the form's columns.
+     *
+     * @return the row to append, or null after recording the failure in mResults
+     */
+    private Map<String, String> prepareSubmission(Submission s, Flattened flattened,
+            String token, String sheetId, GoogleSheetsBatchWriter writer) {
+        String id = s.id;
+        String jrFormId = s.jrFormId;
 
-        // Define the URL to request.
-        URL spreadsheetFeedURL = null;
-        try {
-            spreadsheetFeedURL = new URL("https://spreadsheets.google.com/feeds/worksheets/"
-                    + sheetId + "/private/full");
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
+        // if the token is null fail immediately
+        if (token == null) {
+            mResults.put(id, oauth_fail + Collect.getInstance().getString(R.string.invalid_oauth));
+            return null;
         }
 
-        WorksheetQuery query = new WorksheetQuery(spreadsheetFeedURL);
-        WorksheetFeed feed = null;
-        try {
-            feed = service.query(query, WorksheetFeed.class);
-        } catch (IOException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
-        } catch (ServiceException e) {
-            e.printStackTrace();
-            if (e.getLocalizedMessage().equalsIgnoreCase("forbidden")) {
-                mResults.put(
-                        id,
-                        form_fail
-                                + Collect.getInstance().getString(
-                                        R.string.google_sheets_access_denied));
-            } else {
-                mResults.put(id, form_fail + Html.fromHtml(e.getResponseBody()));
-            }
-            return false;
+        if (flattened.error != null) {
+            mResults.put(id, flattened.error);
+            return null;
         }
 
-        List<WorksheetEntry> spreadsheets = feed.getEntries();
-        // get the first worksheet
-        WorksheetEntry we = spreadsheets.get(0);
+        HashMap<String, String> answersToUpload = flattened.row.answers;
+        HashMap<String, String> photosToUpload = flattened.row.photos;
+        HashMap<String, PhotoEntry> uploadedPhotos = new HashMap<String, PhotoEntry>();
 
-        // check the headers....
-        URL headerFeedUrl = null;
-        try {
-            headerFeedUrl = new URI(we.getCellFeedUrl().toString()
-                    + "?min-row=1&max-row=1&min-col=1&max-col=" + we.getColCount()
-                    + "&return-empty=true").toURL();
-        } catch (MalformedURLException e1) {
-            e1.printStackTrace();
-            mResults.put(id, form_fail + e1.getMessage());
-            return false;
-        } catch (URISyntaxException e1) {
-            e1.printStackTrace();
-            mResults.put(id, form_fail + e1.getMessage());
-            return false;
-        }
+        // get instance file
+        File instanceFile = new File(s.instanceFilePath);
 
-        CellFeed headerFeed = null;
-        try {
-            headerFeed = service.getFeed(headerFeedUrl, CellFeed.class);
-        } catch (IOException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
-        } catch (ServiceException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
+        List<String> columnNames = flattened.columns;
+        if (columnNames.size() > 255) {
+            mResults.put(id,
+                    Collect.getInstance()
+                            .getString(R.string.sheets_max_columns, columnNames.size()));
+            return null;
         }
 
-        boolean emptyheaders = true;
+        // if we have any photos to upload,
+        // get the picasa album or create a new one
+        // then upload the photos
+        if (photosToUpload.size() > 0) {
+            HttpTransport h = AndroidHttp.newCompatibleTransport();
+            GoogleCredential gc = new GoogleCredential();
+            gc.setAccessToken(token);
 
-        // go through headers
-        // if they're empty, resize and add
-        for (CellEntry c : headerFeed.getEntries()) {
-            if (c.getCell().getValue() != null) {
-                emptyheaders = false;
-                break;
-            }
-        }
+            PicasaClient client = new PicasaClient(h.createRequestFactory(gc));
 
-        if (emptyheaders) {
-            // if the headers were empty, resize the spreadsheet
-            // and add the headers
-            we.setColCount(columnNames.size());
+            // First set up a picasa album to upload to
+            AlbumEntry albumToUse;
             try {
-                we.update();
-            } catch (IOException e2) {
-                e2.printStackTrace();
-                mResults.put(id, form_fail + e2.getMessage());
-                return false;
-            } catch (ServiceException e2) {
-                e2.printStackTrace();
-                mResults.put(id, form_fail + e2.getMessage());
-                return false;
-            } catch (UnsupportedOperationException e) {
+                albumToUse = getOrCreatePicasaAlbum(client, jrFormId);
+            } catch (IOException e) {
                 e.printStackTrace();
-                mResults.put(
-                        id,
-                        form_fail
-                                + Collect.getInstance().getString(
-                                        R.string.google_sheets_update_error));
-                return false;
+                GoogleAuthUtil.invalidateToken(Collect.getInstance(), token);
+                mResults.put(id, picasa_fail + e.getMessage());
+                return null;
             }
 
-            // get the cell feed url
-            URL cellFeedUrl = null;
             try {
-                cellFeedUrl = new URI(we.getCellFeedUrl().toString()
-                        + "?min-row=1&max-row=1&min-col=1&max-col=" + columnNames.size()
-                        + "&return-empty=true").toURL();
-            } catch (MalformedURLException e1) {
-                e1.printStackTrace();
-                mResults.put(id, form_fail + e1.getMessage());
-                return false;
-            } catch (URISyntaxException e1) {
+                uploadPhotosToPicasa(photosToUpload, uploadedPhotos, client, albumToUse,
+                        instanceFile);
+            } catch (IOException e1) {
                 e1.printStackTrace();
-                mResults.put(id, form_fail + e1.getMessage());
-                return false;
-            }
-
-            // and the cell feed
-            CellFeed cellFeed = null;
-            try {
-                cellFeed = service.getFeed(cellFeedUrl, CellFeed.class);
-            } catch (IOException e) {
-                e.printStackTrace();
-                mResults.put(id, form_fail + e.getMessage());
-                return false;
-            } catch (ServiceException e) {
-                e.printStackTrace();
-                mResults.put(id, form_fail + e.getMessage());
-                return false;
-            }
-
-            // write the headers
-            for (int i = 0; i < cellFeed.getEntries().size(); i++) {
-                CellEntry cell = cellFeed.getEntries().get(i);
-                String column = columnNames.get(i);
-                cell.changeInputValueLocal(column);
-                try {
-                    cell.update();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    mResults.put(id, form_fail + e.getMessage());
-                    return false;
-                } catch (ServiceException e) {
-                    e.printStackTrace();
-                    mResults.put(id, form_fail + e.getMessage());
-                    return false;
-                }
+                mResults.put(id, picasa_fail + e1.getMessage());
+                return null;
             }
         }
 
-        // we may have updated the feed, so get a new one
-        // update the feed
-        try {
-            headerFeedUrl = new URI(we.getCellFeedUrl().toString()
-                    + "?min-row=1&max-row=1&min-col=1&max-col=" + we.getColCount()
-                    + "&return-empty=true").toURL();
-        } catch (MalformedURLException e3) {
-            e3.printStackTrace();
-            mResults.put(id, form_fail + e3.getMessage());
-            return false;
-        } catch (URISyntaxException e3) {
-            e3.printStackTrace();
-            mResults.put(id, form_fail + e3.getMessage());
-            return false;
-        }
-        try {
-            headerFeed = service.getFeed(headerFeedUrl, CellFeed.class);
-        } catch (IOException e2) {
-            e2.printStackTrace();
-            mResults.put(id, form_fail + e2.getMessage());
-            return false;
-        } catch (ServiceException e2) {
-            e2.printStackTrace();
-            mResults.put(id, form_fail + e2.getMessage());
-            return false;
-        }
-
-        // see if our columns match, now
-        URL cellFeedUrl = null;
-        try {
-            cellFeedUrl = new URI(we.getCellFeedUrl().toString()
-                    + "?min-row=1&max-row=1&min-col=1&max-col=" + headerFeed.getEntries().size()
-                    + "&return-empty=true").toURL();
-        } catch (MalformedURLException e1) {
-            e1.printStackTrace();
-            mResults.put(id, form_fail + e1.getMessage());
-            return false;
-        } catch (URISyntaxException e1) {
-            e1.printStackTrace();
-            mResults.put(id, form_fail + e1.getMessage());
-            return false;
-        }
-        CellFeed cellFeed = null;
+        // All photos have been sent to picasa (if there were any)
+        // now make sure the sheet has our columns; the header map is cached by
+        // the writer so this only goes to the network for the first instance
         try {
-            cellFeed = service.getFeed(cellFeedUrl, CellFeed.class);
+            writer.prepare(sheetId, columnNames);
         } catch (IOException e) {
             e.printStackTrace();
             mResults.put(id, form_fail + e.getMessage());
-            return false;
+            return null;
         } catch (ServiceException e) {
             e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
-        }
-
-        // first, get all the columns in the spreadsheet
-        ArrayList<String> sheetCols = new ArrayList<String>();
-        for (int i = 0; i < cellFeed.getEntries().size(); i++) {
-            CellEntry cell = cellFeed.getEntries().get(i);
-            sheetCols.add(cell.getPlainTextContent());
-        }
-
-        ArrayList<String> missingColumns = new ArrayList<String>();
-        for (String col : columnNames) {
-            if (!sheetCols.contains(col)) {
-                missingColumns.add(col);
-            }
-        }
-
-        if (missingColumns.size() > 0) {
+            mResults.put(id, form_fail + getServiceErrorMessage(e));
+            return null;
+        } catch (UnsupportedOperationException e) {
+            e.printStackTrace();
+            mResults.put(id,
+                    form_fail + Collect.getInstance().getString(R.string.google_sheets_update_error));
+            return null;
+        } catch (FormException e) {
             // we had some missing columns, so error out
-            String missingString = "";
-            for (int i = 0; i < missingColumns.size(); i++) {
-                missingString += missingColumns.get(i);
-                if (i < missingColumns.size() - 1) {
-                    missingString += ", ";
-                }
-            }
             mResults.put(
                     id,
                     form_fail
                             + Collect.getInstance().getString(
-                                    R.string.google_sheets_missing_columns, missingString));
-            return false;
+                                    R.string.google_sheets_missing_columns, e.getMessage()));
+            return null;
         }
 
-        // if we get here.. all has matched
-        // so write the values
-        ListEntry row = new ListEntry();
-
         // add photos to answer set
         Iterator<String> photoIterator = uploadedPhotos.keySet().iterator();
         while (photoIterator.hasNext()) {
@@ -580,6 +452,7 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
             answersToUpload.put(key, url);
         }
 
+        HashMap<String, String> row = new HashMap<String, String>();
         Iterator<String> answerIterator = answersToUpload.keySet().iterator();
         while (answerIterator.hasNext()) {
             String path = answerIterator.next();
@@ -589,9 +462,7 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
             // try to match a fairly specific pattern to determine
             // if it's a location
             // [-]#.# [-]#.# #.# #.#
-            Pattern p = Pattern
-                    .compile("^-?[0-9]+\\.[0-9]+\\s-?[0-9]+\\.[0-9]+\\s-?[0-9]+\\.[0-9]+\\s[0-9]+\\.[0-9]+$");
-            Matcher m = p.matcher(answer);
+            Matcher m = LOCATION_PATTERN.matcher(answer);
             if (m.matches()) {
                 // get rid of everything after the second space
                 int firstSpace = answer.indexOf(" ");
@@ -599,33 +470,9 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
                 answer = answer.substring(0, secondSpace);
                 answer = answer.replace(' ', ',');
             }
-            row.getCustomElements().setValueLocal(TextUtils.htmlEncode(path), answer);
+            row.put(path, answer);
         }
-
-        // Send the new row to the API for insertion.
-        try {
-            URL listFeedUrl = we.getListFeedUrl();
-            row = service.insert(listFeedUrl, row);
-        } catch (IOException e) {
-            e.printStackTrace();
-            mResults.put(id, form_fail + e.getMessage());
-            return false;
-        } catch (ServiceException e) {
-            e.printStackTrace();
-            if (e.getLocalizedMessage().equalsIgnoreCase("Forbidden")) {
-                mResults.put(
-                        id,
-                        form_fail
-                                + "Access denied. Please make sure the spreadsheet owner has granted you access permission.");
-            } else {
-                mResults.put(id, form_fail + Html.fromHtml(e.getResponseBody()));
-            }
-            return false;
-        }
-
-        mResults.put(id, Collect.getInstance().getString(R.string.success));
-        return true;
-
+        return row;
     }
 
     private void uploadPhotosToPicasa(HashMap<String, String> photos,
@@ -741,150 +588,6 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
         return albumToUse;
     }
 
-    private void getColumns(String filePath, ArrayList<String> columns)
-            throws XmlPullParserException, IOException, FormException {
-        File formFile = new File(filePath);
-        FileInputStream in;
-
-        in = new FileInputStream(formFile);
-        XmlPullParser parser = Xml.newPullParser();
-
-        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-        parser.setInput(in, null);
-        readFormFeed(parser, columns);
-        in.close();
-    }
-
-    private void readFormFeed(XmlPullParser parser, ArrayList<String> columns)
-            throws XmlPullParserException, IOException, FormException {
-        ArrayList<String> path = new ArrayList<String>();
-
-        // we put path names in here as we go, and if we hit a duplicate we
-        // blow up
-        boolean getPaths = false;
-        boolean inBody = false;
-        int event = parser.next();
-        int depth = 0;
-        int lastpush = 0;
-        while (event != XmlPullParser.END_DOCUMENT) {
-            switch (event) {
-                case XmlPullParser.START_TAG:
-                    if (parser.getName().equalsIgnoreCase("body")
-                            || parser.getName().equalsIgnoreCase("h:body")) {
-                        inBody = true;
-                    } else if (inBody && parser.getName().equalsIgnoreCase("repeat")) {
-                        throw new FormException(Collect.getInstance().getString(
-                                R.string.google_repeat_error));
-                    } else if (parser.getName().equalsIgnoreCase("upload")) {
-                        for (int i = 0; i < parser.getAttributeCount(); i++) {
-                            String attr = parser.getAttributeName(i);
-                            if (attr.startsWith("mediatype")) {
-                                String attrValue = parser.getAttributeValue(i);
-                                if (attrValue.startsWith("audio")) {
-                                    throw new FormException(Collect.getInstance().getString(
-                                            R.string.google_audio_error));
-                                } else if (attrValue.startsWith("video")) {
-                                    throw new FormException(Collect.getInstance().getString(
-                                            R.string.google_video_error));
-                                }
-                            }
-                        }
-                    }
-                    if (getPaths) {
-                        path.add(parser.getName());
-                        depth++;
-                        lastpush = depth;
-                    }
-                    if (parser.getName().equals("instance")) {
-                        getPaths = true;
-                    }
-                    break;
-                case XmlPullParser.TEXT:
-                    // skip it
-                    break;
-                case XmlPullParser.END_TAG:
-                    if (parser.getName().equals("body") || parser.getName().equals("h:body")) {
-                        inBody = false;
-                    }
-                    if (parser.getName().equals("instance")) {
-                        getPaths = false;
-                    }
-                    if (getPaths) {
-                        if (depth == lastpush) {
-                            columns.add(getPath(path));
-                        } else {
-                            lastpush--;
-                        }
-                        path.remove(path.size() - 1);
-                        depth--;
-                    }
-                    break;
-                default:
-                    Log.i(tag, "DEFAULTING: " + parser.getName() + " :: " + parser.getEventType());
-                    break;
-            }
-            event = parser.next();
-        }
-    }
-
-    private void processInstanceXML(File instanceFile, HashMap<String, String> answersToUpload,
-            HashMap<String, String> photosToUpload) throws XmlPullParserException, IOException,
-            FormException {
-        FileInputStream in;
-
-        in = new FileInputStream(instanceFile);
-        XmlPullParser parser = Xml.newPullParser();
-
-        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-        parser.setInput(in, null);
-        readInstanceFeed(parser, answersToUpload, photosToUpload);
-        in.close();
-    }
-
-    private void readInstanceFeed(XmlPullParser parser, HashMap<String, String> answersToUpload,
-            HashMap<String, String> photosToUpload) throws XmlPullParserException, IOException,
-            FormException {
-        ArrayList<String> path = new ArrayList<String>();
-
-        int event = parser.next();
-        while (event != XmlPullParser.END_DOCUMENT) {
-            switch (event) {
-                case XmlPullParser.START_TAG:
-                    path.add(parser.getName());
-                    break;
-                case XmlPullParser.TEXT:
-                    String answer = parser.getText();
-                    if (answer.endsWith(".jpg") || answer.endsWith(".png")) {
-                        photosToUpload.put(getPath(path), answer);
-                    } else {
-                        answersToUpload.put(getPath(path), answer);
-                    }
-                    break;
-                case XmlPullParser.END_TAG:
-                    path.remove(path.size() - 1);
-                    break;
-                default:
-                    Log.i(tag, "DEFAULTING: " + parser.getName() + " :: " + parser.getEventType());
-                    break;
-            }
-            event = parser.next();
-        }
-    }
-
-    private String getPath(ArrayList<String> path) {
-        String currentPath = "";
-        boolean first = true;
-        for (String node : path) {
-            if (first) {
-                currentPath = node;
-                first = false;
-            } else {
-                currentPath += "-" + node;
-            }
-        }
-        return currentPath;
-    }
-
     @Override
     protected void onPostExecute(HashMap<String, String> results) {
         synchronized (this) {
@@ -936,6 +639,11 @@ public abstract class GoogleSheetsAbstractUploader<Params, Progress, Result> ext
                                 DeleteInstancesTask dit = new DeleteInstancesTask();
                                 dit.setContentResolver(Collect.getInstance().getContentResolver());
                                 dit.execute(toDelete);
+                            } else if (PreferenceManager.getDefaultSharedPreferences(
+                                    Collect.getInstance().getApplicationContext()).getBoolean(
+                                    PreferencesActivity.KEY_ARCHIVE_SENT, false)) {
+                                ArchiveInstancesTask ait = new ArchiveInstancesTask();
+                                ait.execute(toDelete);
                             }
 
                         }
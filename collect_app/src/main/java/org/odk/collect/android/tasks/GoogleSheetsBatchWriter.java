@@ -0,0 +1,358 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.tasks;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.odk.collect.android.exception.FormException;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.gdata.client.spreadsheet.CellQuery;
+import com.google.gdata.client.spreadsheet.SpreadsheetService;
+import com.google.gdata.client.spreadsheet.WorksheetQuery;
+import com.google.gdata.data.ILink;
+import com.google.gdata.data.batch.BatchOperationType;
+import com.google.gdata.data.batch.BatchStatus;
+import com.google.gdata.data.batch.BatchUtils;
+import com.google.gdata.data.spreadsheet.CellEntry;
+import com.google.gdata.data.spreadsheet.CellFeed;
+import com.google.gdata.data.spreadsheet.ListEntry;
+import com.google.gdata.data.spreadsheet.WorksheetEntry;
+import com.google.gdata.data.spreadsheet.WorksheetFeed;
+import com.google.gdata.util.RateLimitExceededException;
+import com.google.gdata.util.ServiceException;
+import com.google.gdata.util.ServiceUnavailableException;
+
+/**
+ * Writes submissions to the first worksheet of a Google spreadsheet.
+ *
+ * The header row of every spreadsheet is read once per upload session and kept as a column map,
+ * and missing headers are written with a single cell batch request. Rows are appended through
+ * the list feed, whose insert always lands below the last row holding data, so uploads from
+ * several devices and sheets with blank rows never overwrite each other. Requests go through an
+ * adaptive rate limiter that only waits after the server has pushed back, instead of sleeping
+ * before every call.
+ *
+ * Not thread safe; use one writer per upload task.
+ */
+public class GoogleSheetsBatchWriter {
+
+    private static final String tag = "GoogleSheetsBatchWriter";
+
+    // attempts per request before a rate limit error is passed on to the caller
+    private static final int MAX_ATTEMPTS = 6;
+
+    // HTTP status sent by the feed when the per-user quota is exhausted
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final String WORKSHEETS_FEED = "https://spreadsheets.google.com/feeds/worksheets/";
+
+    private final SpreadsheetService mService;
+    private final RateLimiter mRateLimiter;
+    private final Map<String, Sheet> mSheets = new HashMap<String, Sheet>();
+
+    public GoogleSheetsBatchWriter(SpreadsheetService service) {
+        this(service, new RateLimiter());
+    }
+
+    GoogleSheetsBatchWriter(SpreadsheetService service, RateLimiter rateLimiter) {
+        mService = service;
+        mRateLimiter = rateLimiter;
+    }
+
+    /**
+     * Per spreadsheet state cached for the session.
+     */
+    private static class Sheet {
+        WorksheetEntry worksheet;
+        // header text -> 1 based column number
+        final Map<String, Integer> columns = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Opens the spreadsheet and makes sure its header row contains every column in
+     * columnNames. An empty header row is filled in with one batch request. The header map is
+     * cached, so later calls for the same sheet do not touch the network.
+     *
+     * @throws FormException listing the missing columns, comma separated, if the sheet already
+     *             has headers that do not cover columnNames
+     */
+    public void prepare(String sheetId, List<String> columnNames) throws IOException,
+            ServiceException, FormException {
+        Sheet sheet = mSheets.get(sheetId);
+        if (sheet == null) {
+            sheet = openSheet(sheetId);
+            mSheets.put(sheetId, sheet);
+        }
+
+        if (sheet.columns.isEmpty()) {
+            writeHeaders(sheet, columnNames);
+        }
+
+        StringBuilder missing = new StringBuilder();
+        for (String col : columnNames) {
+            if (!sheet.columns.containsKey(col)) {
+                if (missing.length() > 0) {
+                    missing.append(", ");
+                }
+                missing.append(col);
+            }
+        }
+        if (missing.length() > 0) {
+            throw new FormException(missing.toString());
+        }
+    }
+
+    /**
+     * Appends one row to a sheet that has been through {@link #prepare}. The row maps header
+     * text to cell value. The insert is atomic: when this returns the row is in the sheet, and
+     * when it throws the row was not written, so the caller can retry it safely.
+     */
+    public void appendRow(String sheetId, Map<String, String> row) throws IOException,
+            ServiceException {
+        Sheet sheet = mSheets.get(sheetId);
+        if (sheet == null) {
+            throw new IllegalStateException("prepare() was not called for " + sheetId);
+        }
+
+        final ListEntry entry = new ListEntry();
+        for (Map.Entry<String, String> value : row.entrySet()) {
+            entry.getCustomElements().setValueLocal(TextUtils.htmlEncode(value.getKey()),
+                    value.getValue());
+        }
+        final URL listFeedUrl = sheet.worksheet.getListFeedUrl();
+        // an insert that may have reached the sheet is not repeated
+        execute(new Call<ListEntry>() {
+            @Override
+            public ListEntry call() throws IOException, ServiceException {
+                return mService.insert(listFeedUrl, entry);
+            }
+        }, false);
+    }
+
+    private Sheet openSheet(String sheetId) throws IOException, ServiceException {
+        final WorksheetQuery query = new WorksheetQuery(new URL(WORKSHEETS_FEED + sheetId
+                + "/private/full"));
+        WorksheetFeed feed = execute(new Call<WorksheetFeed>() {
+            @Override
+            public WorksheetFeed call() throws IOException, ServiceException {
+                return mService.query(query, WorksheetFeed.class);
+            }
+        });
+
+        Sheet sheet = new Sheet();
+        // always use the first worksheet
+        sheet.worksheet = feed.getEntries().get(0);
+
+        CellFeed header = queryCells(sheet.worksheet, 1, 1, 1, sheet.worksheet.getColCount());
+        for (CellEntry cell : header.getEntries()) {
+            String value = cell.getCell().getValue();
+            if (value != null) {
+                sheet.columns.put(value, cell.getCell().getCol());
+            }
+        }
+        return sheet;
+    }
+
+    private void writeHeaders(Sheet sheet, List<String> columnNames) throws IOException,
+            ServiceException {
+        // resize the worksheet to fit exactly the columns we are about to write
+        sheet.worksheet.setColCount(columnNames.size());
+        sheet.worksheet = updateWorksheet(sheet.worksheet);
+
+        CellFeed header = queryCells(sheet.worksheet, 1, 1, 1, columnNames.size());
+        CellFeed batch = new CellFeed();
+        for (CellEntry cell : header.getEntries()) {
+            // someone else filled in the headers since the sheet was opened
+            if (cell.getCell().getValue() != null) {
+                throw new ServiceException("Header row of " + sheet.worksheet.getTitle()
+                        .getPlainText() + " was written by another upload, retry");
+            }
+            int col = cell.getCell().getCol();
+            cell.changeInputValueLocal(columnNames.get(col - 1));
+            addToBatch(batch, cell);
+        }
+        submitBatch(header, batch);
+
+        for (int i = 0; i < columnNames.size(); i++) {
+            sheet.columns.put(columnNames.get(i), i + 1);
+        }
+    }
+
+    private CellFeed queryCells(WorksheetEntry worksheet, int minRow, int maxRow, int minCol,
+            int maxCol) throws IOException, ServiceException {
+        final CellQuery query = new CellQuery(worksheet.getCellFeedUrl());
+        query.setMinimumRow(minRow);
+        query.setMaximumRow(maxRow);
+        query.setMinimumCol(minCol);
+        query.setMaximumCol(maxCol);
+        query.setReturnEmpty(true);
+        return execute(new Call<CellFeed>() {
+            @Override
+            public CellFeed call() throws IOException, ServiceException {
+                return mService.query(query, CellFeed.class);
+            }
+        });
+    }
+
+    private WorksheetEntry updateWorksheet(final WorksheetEntry worksheet) throws IOException,
+            ServiceException {
+        return execute(new Call<WorksheetEntry>() {
+            @Override
+            public WorksheetEntry call() throws IOException, ServiceException {
+                return worksheet.update();
+            }
+        });
+    }
+
+    private static void addToBatch(CellFeed batch, CellEntry cell) {
+        BatchUtils.setBatchId(cell, cellKey(cell.getCell().getRow(), cell.getCell().getCol()));
+        BatchUtils.setBatchOperationType(cell, BatchOperationType.UPDATE);
+        batch.getEntries().add(cell);
+    }
+
+    private void submitBatch(CellFeed source, final CellFeed batch) throws IOException,
+            ServiceException {
+        final URL batchUrl = new URL(source.getLink(ILink.Rel.FEED_BATCH, ILink.Type.ATOM)
+                .getHref());
+        CellFeed result = execute(new Call<CellFeed>() {
+            @Override
+            public CellFeed call() throws IOException, ServiceException {
+                // cell entries returned by a range query carry no usable etag for batching
+                mService.setHeader("If-Match", "*");
+                try {
+                    return mService.batch(batchUrl, batch);
+                } finally {
+                    mService.setHeader("If-Match", null);
+                }
+            }
+        });
+
+        for (CellEntry entry : result.getEntries()) {
+            if (!BatchUtils.isSuccess(entry)) {
+                BatchStatus status = BatchUtils.getBatchStatus(entry);
+                throw new ServiceException("Batch update of " + BatchUtils.getBatchId(entry)
+                        + " failed: " + (status == null ? "no status" : status.getCode() + " "
+                        + status.getReason()));
+            }
+        }
+    }
+
+    private static String cellKey(int row, int col) {
+        return "R" + row + "C" + col;
+    }
+
+    private interface Call<T> {
+        T call() throws IOException, ServiceException;
+    }
+
+    private <T> T execute(Call<T> call) throws IOException, ServiceException {
+        return execute(call, true);
+    }
+
+    /**
+     * @param repeatable false if the call changes the sheet and must not be sent again once the
+     *            server may have applied it; it is then only retried after a rate limit refusal
+     */
+    private <T> T execute(Call<T> call, boolean repeatable) throws IOException,
+            ServiceException {
+        for (int attempt = 1;; attempt++) {
+            mRateLimiter.acquire();
+            try {
+                T result = call.call();
+                mRateLimiter.onSuccess();
+                return result;
+            } catch (ServiceException e) {
+                boolean retry = repeatable ? isThrottled(e) : isRateLimited(e);
+                if (!retry || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                mRateLimiter.onThrottled();
+                Log.w(tag, "Throttled by the sheets feed, waiting " + mRateLimiter.getDelay()
+                        + "ms before attempt " + (attempt + 1));
+            }
+        }
+    }
+
+    /**
+     * True if the request was refused for exceeding the quota, so it was not applied.
+     */
+    static boolean isRateLimited(ServiceException e) {
+        return e instanceof RateLimitExceededException
+                || e.getHttpErrorCodeOverride() == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    static boolean isThrottled(ServiceException e) {
+        if (e instanceof RateLimitExceededException || e instanceof ServiceUnavailableException) {
+            return true;
+        }
+        int code = e.getHttpErrorCodeOverride();
+        return code == HTTP_TOO_MANY_REQUESTS || code == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * Spaces out requests only once the server has signalled throttling. The delay doubles on
+     * every throttled response and halves on every success until it drops back to zero.
+     */
+    static class RateLimiter {
+        static final long MIN_DELAY = 500;
+        static final long MAX_DELAY = 32000;
+
+        private long mDelay = 0;
+
+        long getDelay() {
+            return mDelay;
+        }
+
+        void acquire() {
+            if (mDelay == 0) {
+                return;
+            }
+            try {
+                Thread.sleep(mDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void onThrottled() {
+            mDelay = Math.min(MAX_DELAY, Math.max(MIN_DELAY, mDelay * 2));
+        }
+
+        void onSuccess() {
+            mDelay = mDelay / 2;
+            if (mDelay < MIN_DELAY) {
+                mDelay = 0;
+            }
+        }
+    }
+}
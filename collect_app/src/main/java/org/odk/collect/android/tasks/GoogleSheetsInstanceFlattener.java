@@ -0,0 +1,279 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.exception.FormException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * Turns form definitions into Google Sheets column lists and instances into flat rows keyed by
+ * the same column names ("data-group-question").
+ *
+ * Column lists are cached per (jrFormId, md5) so that a batch of instances of one form parses
+ * the form definition once. Instances are flattened in a single streaming pass; the path buffer
+ * used while parsing is kept per thread so several instances can be flattened in parallel
+ * without allocating a new path string for every element.
+ */
+public class GoogleSheetsInstanceFlattener {
+
+    private static final String tag = "GoogleSheetsInstanceFlattener";
+
+    /** Instances flattened at the same time by one upload. */
+    public static final int DEFAULT_CONCURRENCY = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // a handful of forms is plenty; each entry is just a list of column names
+    private static final int MAX_CACHED_SCHEMAS = 8;
+
+    private static final Map<String, List<String>> sSchemas = new LinkedHashMap<String, List<String>>(
+            MAX_CACHED_SCHEMAS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_CACHED_SCHEMAS;
+        }
+    };
+
+    private static final ThreadLocal<PathBuffer> sPathBuffer = new ThreadLocal<PathBuffer>() {
+        @Override
+        protected PathBuffer initialValue() {
+            return new PathBuffer();
+        }
+    };
+
+    /**
+     * Answers and photo file names of one instance, keyed by column name.
+     */
+    public static class Row {
+        public final HashMap<String, String> answers = new HashMap<String, String>();
+        public final HashMap<String, String> photos = new HashMap<String, String>();
+    }
+
+    /**
+     * Returns the sheet columns for a form, parsing the form definition only if this version of
+     * the form has not been seen before.
+     *
+     * @throws FormException if the form uses repeats, audio or video, which sheets can't hold
+     */
+    public static List<String> getColumns(String jrFormId, String md5, String formFilePath)
+            throws XmlPullParserException, IOException, FormException {
+        String key = jrFormId + "|" + md5;
+        synchronized (sSchemas) {
+            List<String> columns = sSchemas.get(key);
+            if (columns != null) {
+                return columns;
+            }
+        }
+
+        ArrayList<String> columns = new ArrayList<String>();
+        InputStream in = new BufferedInputStream(new FileInputStream(new File(formFilePath)));
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            parser.setInput(in, null);
+            readFormFeed(parser, columns);
+        } finally {
+            in.close();
+        }
+
+        List<String> schema = Collections.unmodifiableList(columns);
+        synchronized (sSchemas) {
+            sSchemas.put(key, schema);
+        }
+        Log.i(tag, "Cached " + schema.size() + " columns for " + jrFormId);
+        return schema;
+    }
+
+    /**
+     * Reads an instance file into a row in one pass. Text ending in .jpg or .png is treated as a
+     * photo to upload, everything else as an answer.
+     */
+    public static Row flatten(File instanceFile) throws XmlPullParserException, IOException {
+        Row row = new Row();
+        PathBuffer path = sPathBuffer.get();
+        path.clear();
+
+        InputStream in = new BufferedInputStream(new FileInputStream(instanceFile));
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            parser.setInput(in, null);
+
+            int event = parser.next();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                switch (event) {
+                    case XmlPullParser.START_TAG:
+                        path.push(parser.getName());
+                        break;
+                    case XmlPullParser.TEXT:
+                        String answer = parser.getText();
+                        if (answer.endsWith(".jpg") || answer.endsWith(".png")) {
+                            row.photos.put(path.toString(), answer);
+                        } else {
+                            row.answers.put(path.toString(), answer);
+                        }
+                        break;
+                    case XmlPullParser.END_TAG:
+                        path.pop();
+                        break;
+                    default:
+                        break;
+                }
+                event = parser.next();
+            }
+        } finally {
+            in.close();
+        }
+        return row;
+    }
+
+    private static void readFormFeed(XmlPullParser parser, ArrayList<String> columns)
+            throws XmlPullParserException, IOException, FormException {
+        PathBuffer path = new PathBuffer();
+
+        // we put path names in here as we go, and if we hit a duplicate we
+        // blow up
+        boolean getPaths = false;
+        boolean inBody = false;
+        int event = parser.next();
+        int depth = 0;
+        int lastpush = 0;
+        while (event != XmlPullParser.END_DOCUMENT) {
+            switch (event) {
+                case XmlPullParser.START_TAG:
+                    if (parser.getName().equalsIgnoreCase("body")
+                            || parser.getName().equalsIgnoreCase("h:body")) {
+                        inBody = true;
+                    } else if (inBody && parser.getName().equalsIgnoreCase("repeat")) {
+                        throw new FormException(Collect.getInstance().getString(
+                                R.string.google_repeat_error));
+                    } else if (parser.getName().equalsIgnoreCase("upload")) {
+                        for (int i = 0; i < parser.getAttributeCount(); i++) {
+                            String attr = parser.getAttributeName(i);
+                            if (attr.startsWith("mediatype")) {
+                                String attrValue = parser.getAttributeValue(i);
+                                if (attrValue.startsWith("audio")) {
+                                    throw new FormException(Collect.getInstance().getString(
+                                            R.string.google_audio_error));
+                                } else if (attrValue.startsWith("video")) {
+                                    throw new FormException(Collect.getInstance().getString(
+                                            R.string.google_video_error));
+                                }
+                            }
+                        }
+                    }
+                    if (getPaths) {
+                        path.push(parser.getName());
+                        depth++;
+                        lastpush = depth;
+                    }
+                    if (parser.getName().equals("instance")) {
+                        getPaths = true;
+                    }
+                    break;
+                case XmlPullParser.TEXT:
+                    // skip it
+                    break;
+                case XmlPullParser.END_TAG:
+                    if (parser.getName().equals("body") || parser.getName().equals("h:body")) {
+                        inBody = false;
+                    }
+                    if (parser.getName().equals("instance")) {
+                        getPaths = false;
+                    }
+                    if (getPaths) {
+                        if (depth == lastpush) {
+                            columns.add(path.toString());
+                        } else {
+                            lastpush--;
+                        }
+                        path.pop();
+                        depth--;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            event = parser.next();
+        }
+    }
+
+    /**
+     * Element path joined with "-", maintained incrementally as elements open and close.
+     */
+    private static class PathBuffer {
+        private final StringBuilder mPath = new StringBuilder(128);
+        private int[] mLengths = new int[16];
+        private int mDepth = 0;
+
+        void clear() {
+            mPath.setLength(0);
+            mDepth = 0;
+        }
+
+        void push(String name) {
+            if (mDepth == mLengths.length) {
+                int[] grown = new int[mLengths.length * 2];
+                System.arraycopy(mLengths, 0, grown, 0, mLengths.length);
+                mLengths = grown;
+            }
+            mLengths[mDepth++] = mPath.length();
+            if (mPath.length() > 0) {
+                mPath.append('-');
+            }
+            mPath.append(name);
+        }
+
+        void pop() {
+            if (mDepth > 0) {
+                mPath.setLength(mLengths[--mDepth]);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mPath.toString();
+        }
+    }
+}
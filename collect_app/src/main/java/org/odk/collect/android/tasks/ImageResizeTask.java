@@ -0,0 +1,107 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.tasks;
+
+import java.io.File;
+
+import org.odk.collect.android.listeners.ImageResizeListener;
+import org.odk.collect.android.utilities.ImageScaler;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Scales a captured or chosen image into the instance folder off the UI thread.
+ *
+ * The task may outlive the activity that started it (e.g. on rotation); a result that arrives
+ * while no listener is attached is kept and delivered when the next listener is set.
+ */
+public class ImageResizeTask extends AsyncTask<Void, Void, Boolean> {
+
+    private static final String t = "ImageResizeTask";
+
+    // largest heap use seen by any resize since the process started
+    private static long sPeakHeapBytes = 0;
+
+    private final String mSource;
+    private final File mDestination;
+    private final int mScaledWidth;
+
+    private ImageResizeListener mListener;
+    private Boolean mResult = null;
+    private boolean mDelivered = false;
+
+    public ImageResizeTask(String source, File destination, int scaledWidth) {
+        mSource = source;
+        mDestination = destination;
+        mScaledWidth = scaledWidth;
+    }
+
+    public File getDestination() {
+        return mDestination;
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... params) {
+        long start = SystemClock.elapsedRealtime();
+        ImageScaler.Stats stats = new ImageScaler.Stats();
+        boolean success = ImageScaler.resize(mSource, mDestination.getAbsolutePath(),
+                mScaledWidth, stats);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        synchronized (ImageResizeTask.class) {
+            sPeakHeapBytes = Math.max(sPeakHeapBytes, stats.peakHeapBytes);
+        }
+        Log.i(t, "Resized " + mSource + " in " + elapsed + "ms: " + stats.width + "x"
+                + stats.height + " (1/" + stats.sampleSize + ", rotated " + stats.rotation
+                + "), bitmap " + stats.bitmapBytes / 1024 + "KB, peak heap "
+                + stats.peakHeapBytes / 1024 + "KB, session peak " + sPeakHeapBytes / 1024
+                + "KB");
+        return success;
+    }
+
+    @Override
+    protected void onPostExecute(Boolean success) {
+        synchronized (this) {
+            mResult = success;
+            deliver();
+        }
+    }
+
+    public void setImageResizeListener(ImageResizeListener listener) {
+        synchronized (this) {
+            mListener = listener;
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        if (mListener != null && mResult != null && !mDelivered) {
+            mDelivered = true;
+            mListener.imageResized(mDestination, mResult);
+        }
+    }
+}
@@ -38,8 +38,15 @@ import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.CountingHttpEntity;
+import org.odk.collect.android.utilities.GzipCompressingEntity;
+import org.odk.collect.android.utilities.GzipFileBody;
+import org.odk.collect.android.utilities.HttpTransport;
+import org.odk.collect.android.utilities.InstanceArchive;
+import org.odk.collect.android.utilities.MediaBlobStore;
 import org.odk.collect.android.utilities.WebUtils;
 import org.opendatakit.httpclientandroidlib.Header;
+import org.opendatakit.httpclientandroidlib.HttpEntity;
 import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
 import org.opendatakit.httpclientandroidlib.client.ClientProtocolException;
@@ -48,6 +55,7 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpHead;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
 import org.opendatakit.httpclientandroidlib.conn.ConnectTimeoutException;
 import org.opendatakit.httpclientandroidlib.conn.HttpHostConnectException;
+import org.opendatakit.httpclientandroidlib.entity.mime.FormBodyPart;
 import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntity;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.FileBody;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.StringBody;
@@ -90,10 +98,12 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
      * @param httpclient - client connection
      * @param localContext - context (e.g., credentials, cookies) for client connection
      * @param uriRemap - mapping of Uris to avoid redirects on subsequent invocations
+     * @param encodingRemap - compressed submission encoding advertised by the server for a Uri
      * @return false if credentials are required and we should terminate immediately.
      */
     private boolean uploadOneSubmission(String urlString, String id, String instanceFilePath,
-    			Uri toUpdate, HttpContext localContext, Map<Uri, Uri> uriRemap, Outcome outcome) {
+    			Uri toUpdate, HttpContext localContext, Map<Uri, Uri> uriRemap,
+    			Map<Uri, String> encodingRemap, Outcome outcome) {
 
     	Collect.getInstance().getActivityLogger().logAction(this, urlString, instanceFilePath);
 
@@ -103,12 +113,14 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         HttpClient httpclient = WebUtils.createHttpClient(CONNECTION_TIMEOUT);
 
         boolean openRosaServer = false;
+        String submissionEncoding = null;
         if (uriRemap.containsKey(u)) {
             // we already issued a head request and got a response,
             // so we know the proper URL to send the submission to
             // and the proper scheme. We also know that it was an
             // OpenRosa compliant server.
             openRosaServer = true;
+            submissionEncoding = encodingRemap.get(u);
             u = uriRemap.get(u);
 
             // if https then enable preemptive basic auth...
@@ -154,6 +166,13 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                                 // trust the server to tell us a new location
                                 // ... and possibly to use https instead.
                                 uriRemap.put(u, uNew);
+                                if (isCompressionEnabled()) {
+                                    submissionEncoding =
+                                            WebUtils.getAcceptedSubmissionEncoding(response);
+                                    if (submissionEncoding != null) {
+                                        encodingRemap.put(u, submissionEncoding);
+                                    }
+                                }
                                 u = uNew;
                             } else {
                                 // Don't follow a redirection attempt to a different host.
@@ -199,7 +218,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (ClientProtocolException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 outcome.mResults.put(id, fail + "Client Protocol Exception");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -207,7 +226,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (ConnectTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 outcome.mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -215,7 +234,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (UnknownHostException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 outcome.mResults.put(id, fail + e.toString() + " :: Network Connection Failed");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -223,7 +242,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (SocketTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 outcome.mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -231,7 +250,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (HttpHostConnectException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 outcome.mResults.put(id, fail + "Network Connection Refused");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -239,7 +258,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 String msg = e.getMessage();
                 if (msg == null) {
                     msg = e.toString();
@@ -291,7 +310,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         // add media files
         List<File> files = new ArrayList<File>();
         for (File f : allFiles) {
-            String fileName = f.getName();
+            String fileName = MediaBlobStore.getMediaName(f);
 
             int dotIndex = fileName.lastIndexOf(".");
             String extension = "";
@@ -324,6 +343,11 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             }
         }
 
+        if (submissionEncoding != null) {
+            Log.i(t, "Server accepts " + submissionEncoding + " submissions for " + id);
+        }
+        boolean gzipParts = WebUtils.SUBMISSION_ENCODING_GZIP_PARTS.equals(submissionEncoding);
+
         boolean first = true;
         int j = 0;
         int lastJ;
@@ -338,17 +362,18 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             long byteCount = 0L;
 
             // mime post
-            MultipartEntity entity = new MultipartEntity();
+            MultipartEntity entity = newSubmissionEntity();
 
             // add the submission file first...
-            FileBody fb = new FileBody(submissionFile, "text/xml");
-            entity.addPart("xml_submission_file", fb);
+            FileBody fb;
+            addTextPart(entity, "xml_submission_file", submissionFile, "text/xml", gzipParts);
             Log.i(t, "added xml_submission_file: " + submissionFile.getName());
             byteCount += submissionFile.length();
 
             for (; j < files.size(); j++) {
-                File f = files.get(j);
-                String fileName = f.getName();
+                // shared media is read from its blob but keeps its own name
+                String fileName = MediaBlobStore.getMediaName(files.get(j));
+                File f = MediaBlobStore.getInstance().resolve(files.get(j));
                 int idx = fileName.lastIndexOf(".");
                 String extension = "";
                 if (idx != -1) {
@@ -359,61 +384,65 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 // we will be processing every one of these, so
                 // we only need to deal with the content type determination...
                 if (extension.equals("xml")) {
-                    fb = new FileBody(f, "text/xml");
-                    entity.addPart(f.getName(), fb);
+                    addTextPart(entity, fileName, f, "text/xml", gzipParts);
                     byteCount += f.length();
-                    Log.i(t, "added xml file " + f.getName());
+                    Log.i(t, "added xml file " + fileName);
                 } else if (extension.equals("jpg")) {
-                    fb = new FileBody(f, "image/jpeg");
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, "image/jpeg", null);
+                    entity.addPart(fileName, fb);
                     byteCount += f.length();
-                    Log.i(t, "added image file " + f.getName());
+                    Log.i(t, "added image file " + fileName);
                 } else if (extension.equals("3gpp")) {
-                    fb = new FileBody(f, "audio/3gpp");
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, "audio/3gpp", null);
+                    entity.addPart(fileName, fb);
                     byteCount += f.length();
-                    Log.i(t, "added audio file " + f.getName());
+                    Log.i(t, "added audio file " + fileName);
                 } else if (extension.equals("3gp")) {
-                    fb = new FileBody(f, "video/3gpp");
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, "video/3gpp", null);
+                    entity.addPart(fileName, fb);
                     byteCount += f.length();
-                    Log.i(t, "added video file " + f.getName());
+                    Log.i(t, "added video file " + fileName);
                 } else if (extension.equals("mp4")) {
-                    fb = new FileBody(f, "video/mp4");
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, "video/mp4", null);
+                    entity.addPart(fileName, fb);
                     byteCount += f.length();
-                    Log.i(t, "added video file " + f.getName());
+                    Log.i(t, "added video file " + fileName);
                 } else if (extension.equals("csv")) {
-                    fb = new FileBody(f, "text/csv");
-                    entity.addPart(f.getName(), fb);
+                    addTextPart(entity, fileName, f, "text/csv", gzipParts);
                     byteCount += f.length();
-                    Log.i(t, "added csv file " + f.getName());
-                } else if (f.getName().endsWith(".amr")) {
-                    fb = new FileBody(f, "audio/amr");
-                    entity.addPart(f.getName(), fb);
-                    Log.i(t, "added audio file " + f.getName());
+                    Log.i(t, "added csv file " + fileName);
+                } else if (fileName.endsWith(".amr")) {
+                    fb = new FileBody(f, fileName, "audio/amr", null);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added audio file " + fileName);
                 } else if (extension.equals("xls")) {
-                    fb = new FileBody(f, "application/vnd.ms-excel");
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, "application/vnd.ms-excel", null);
+                    entity.addPart(fileName, fb);
+                    byteCount += f.length();
+                    Log.i(t, "added xls file " + fileName);
+                } else if (contentType != null && contentType.startsWith("text/")) {
+                    // e.g. the UseLog's log.txt
+                    addTextPart(entity, fileName, f, contentType, gzipParts);
                     byteCount += f.length();
-                    Log.i(t, "added xls file " + f.getName());
+                    Log.i(t, "added text file (" + contentType + ") " + fileName);
                 } else if (contentType != null) {
-                    fb = new FileBody(f, contentType);
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, contentType, null);
+                    entity.addPart(fileName, fb);
                     byteCount += f.length();
                     Log.i(t,
-                        "added recognized filetype (" + contentType + ") " + f.getName());
+                        "added recognized filetype (" + contentType + ") " + fileName);
                 } else {
                     contentType = "application/octet-stream";
-                    fb = new FileBody(f, contentType);
-                    entity.addPart(f.getName(), fb);
+                    fb = new FileBody(f, fileName, contentType, null);
+                    entity.addPart(fileName, fb);
                     byteCount += f.length();
-                    Log.w(t, "added unrecognized file (" + contentType + ") " + f.getName());
+                    Log.w(t, "added unrecognized file (" + contentType + ") " + fileName);
                 }
 
                 // we've added at least one attachment to the request...
                 if (j + 1 < files.size()) {
-                    if ((j-lastJ+1 > 100) || (byteCount + files.get(j + 1).length() > 10000000L)) {
+                    long nextLength = MediaBlobStore.getInstance().resolve(files.get(j + 1)).length();
+                    if ((j-lastJ+1 > 100) || (byteCount + nextLength > 10000000L)) {
                         // the next file would exceed the 10MB threshold...
                         Log.i(t, "Extremely long post is being split into multiple posts");
                         try {
@@ -428,7 +457,9 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 }
             }
 
-            httppost.setEntity(entity);
+            CountingHttpEntity counted =
+                    new CountingHttpEntity(encodeSubmission(entity, submissionEncoding));
+            httppost.setEntity(counted);
 
             // prepare response and return uploaded
             HttpResponse response = null;
@@ -438,6 +469,8 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 int responseCode = response.getStatusLine().getStatusCode();
                 WebUtils.discardEntityBytes(response);
 
+                Log.i(t, "Sent " + byteCount + " bytes of files as " + counted.getBytesWritten()
+                        + " bytes on the wire for " + id);
                 Log.i(t, "Response code:" + responseCode);
                 // verify that the response was a 201 or 202.
                 // If it wasn't, the submission has failed.
@@ -462,7 +495,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                WebUtils.evictStaleConnections();
                 String msg = e.getMessage();
                 if (msg == null) {
                     msg = e.toString();
@@ -504,6 +537,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         HttpContext localContext = Collect.getInstance().getHttpContext();
 
         Map<Uri, Uri> uriRemap = new HashMap<Uri, Uri>();
+        Map<Uri, String> encodingRemap = new HashMap<Uri, String>();
 
         Cursor c = null;
         try {
@@ -518,6 +552,8 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 	                }
 	                publishProgress(c.getPosition() + 1, c.getCount());
 	                String instance = c.getString(c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
+	                // a re-send of an archived instance needs its files back
+	                InstanceArchive.getInstance().restore(instance);
 	                String id = c.getString(c.getColumnIndex(InstanceColumns._ID));
 	                Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
 
@@ -549,7 +585,8 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 						// unreachable...
 					}
 
-	                if ( !uploadOneSubmission(urlString, id, instance, toUpdate, localContext, uriRemap, outcome) ) {
+	                if ( !uploadOneSubmission(urlString, id, instance, toUpdate, localContext, uriRemap,
+		                		encodingRemap, outcome) ) {
 	                	return outcome; // get credentials...
 	                }
 	            }
@@ -558,6 +595,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             if (c != null) {
                 c.close();
             }
+            HttpTransport.getInstance().logStats();
         }
 
         return outcome;
@@ -616,6 +654,11 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                                 DeleteInstancesTask dit = new DeleteInstancesTask();
                                 dit.setContentResolver(Collect.getInstance().getContentResolver());
                                 dit.execute(toDelete);
+                            } else if (PreferenceManager.getDefaultSharedPreferences(
+                                    Collect.getInstance().getApplicationContext()).getBoolean(
+                                    PreferencesActivity.KEY_ARCHIVE_SENT, false)) {
+                                ArchiveInstancesTask ait = new ArchiveInstancesTask();
+                                ait.execute(toDelete);
                             }
 
                         }
@@ -641,6 +684,53 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
     }
 
 
+    /**
+     * Gzipped parts have no length up front, which makes MultipartEntity
+     * report itself as not repeatable, so the retry after a 401 or digest
+     * challenge would have no body to send. Every part is a file or a string
+     * and writes again from the start.
+     */
+    static MultipartEntity newSubmissionEntity() {
+        return new MultipartEntity() {
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the body to post for entity, gzipped as a whole if the server
+     * accepts that.
+     */
+    static HttpEntity encodeSubmission(MultipartEntity entity, String submissionEncoding) {
+        if (WebUtils.SUBMISSION_ENCODING_GZIP.equals(submissionEncoding)) {
+            return new GzipCompressingEntity(entity);
+        }
+        return entity;
+    }
+
+    /**
+     * Add an xml or text file to the submission, gzipped if the server
+     * accepts compressed parts.
+     */
+    static void addTextPart(MultipartEntity entity, String name, File f,
+            String contentType, boolean gzip) {
+        if (gzip) {
+            FormBodyPart part = new FormBodyPart(name, new GzipFileBody(f, contentType));
+            part.addField("Content-Encoding", WebUtils.GZIP_CONTENT_ENCODING);
+            entity.addPart(part);
+        } else {
+            entity.addPart(name, new FileBody(f, contentType));
+        }
+    }
+
+    private static boolean isCompressionEnabled() {
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        return settings.getBoolean(PreferencesActivity.KEY_COMPRESS_SUBMISSIONS, true);
+    }
+
     public void setUploaderListener(InstanceUploaderListener sl) {
         synchronized (this) {
             mStateListener = sl;
@@ -0,0 +1,195 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.tasks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.provider.BaseColumns;
+
+/**
+ * The selections PagedCursorLoader reads a page with.
+ *
+ * Rows are sorted by the given columns and then by _id. The rows after the
+ * key (k0 ... kn-1, id) are read with one query per level, deepest first:
+ *
+ * <pre>
+ * c0 = k0 AND ... AND cn-1 = kn-1 AND _id > id
+ * c0 = k0 AND ... AND cn-2 = kn-2 AND cn-1 after kn-1
+ * ...
+ * c0 after k0
+ * </pre>
+ *
+ * Each level is an equality on a prefix of the sort columns plus a range on
+ * the next one, so SQLite seeks straight to its first row in an index on the
+ * sort columns (in the same directions, with the rowid as the implicit last
+ * column) and walks it in order. Taken one after the other, the levels
+ * return the rows after the key in sort order. ORing them into one selection
+ * means the same thing, but SQLite can't seek on an OR, and row values,
+ * which would say it directly, need SQLite 3.15. For the same reason, the
+ * nulls that sort after the key in a descending column get a level of their
+ * own rather than an OR with the range, unless the column is declared not
+ * null: SQLite ignores IS NULL on a NOT NULL column when picking an index,
+ * so that level would scan the whole table for nothing.
+ */
+class KeysetSelection {
+
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String[] mSortColumns;
+    private final boolean[] mDescending;
+    // the sort column each level ranges over, and whether it reads its nulls
+    private int[] mLevelColumns;
+    private boolean[] mLevelNulls;
+
+    /**
+     * @param sortOrder columns to sort by, each optionally followed by ASC or DESC
+     */
+    KeysetSelection(String selection, String[] selectionArgs, String[] sortOrder) {
+        mSelection = selection;
+        mSelectionArgs = (selectionArgs == null) ? new String[0] : selectionArgs;
+        mSortColumns = new String[sortOrder.length];
+        mDescending = new boolean[sortOrder.length];
+        for (int i = 0; i < sortOrder.length; i++) {
+            String[] parts = sortOrder[i].trim().split("\\s+");
+            mSortColumns[i] = parts[0];
+            mDescending[i] = parts.length > 1 && parts[1].equalsIgnoreCase("DESC");
+        }
+        setNotNull();
+    }
+
+    /**
+     * Declares sort columns that never hold null, so no level reads their nulls.
+     */
+    void setNotNull(String... notNullColumns) {
+        List<String> notNull = Arrays.asList(notNullColumns);
+        List<Integer> columns = new ArrayList<Integer>();
+        List<Boolean> nulls = new ArrayList<Boolean>();
+        for (int i = 0; i < mSortColumns.length; i++) {
+            if (mDescending[i] && !notNull.contains(mSortColumns[i])) {
+                columns.add(i);
+                nulls.add(true);
+            }
+            columns.add(i);
+            nulls.add(false);
+        }
+        columns.add(mSortColumns.length);
+        nulls.add(false);
+        mLevelColumns = new int[columns.size()];
+        mLevelNulls = new boolean[columns.size()];
+        for (int i = 0; i < mLevelColumns.length; i++) {
+            mLevelColumns[i] = columns.get(i);
+            mLevelNulls[i] = nulls.get(i);
+        }
+    }
+
+    /**
+     * @return the sort columns; a key is their values followed by the _id
+     */
+    String[] getSortColumns() {
+        return mSortColumns;
+    }
+
+    /**
+     * @return the deepest level, which is where reading after a key starts
+     */
+    int getDeepestLevel() {
+        return mLevelColumns.length - 1;
+    }
+
+    /**
+     * Returns the selection for one level of the rows that sort after key, or
+     * for every row if key is null, adding its arguments to args.
+     */
+    String getSelection(String[] key, int level, List<String> args) {
+        StringBuilder b = new StringBuilder();
+        for (String arg : mSelectionArgs) {
+            args.add(arg);
+        }
+        if (mSelection != null && mSelection.length() != 0) {
+            b.append("(").append(mSelection).append(")");
+        }
+        if (key == null) {
+            return (b.length() == 0) ? null : b.toString();
+        }
+        int column = mLevelColumns[level];
+        for (int i = 0; i < column; i++) {
+            appendAnd(b);
+            appendEquals(b, args, mSortColumns[i], key[i]);
+        }
+        appendAnd(b);
+        if (column == mSortColumns.length) {
+            b.append(BaseColumns._ID).append(" > ?");
+            args.add(key[column]);
+        } else if (mLevelNulls[level]) {
+            // a null key's ties are read by the deeper levels
+            b.append((key[column] == null) ? "0" : mSortColumns[column] + " IS NULL");
+        } else {
+            appendAfter(b, args, mSortColumns[column], mDescending[column], key[column]);
+        }
+        return b.toString();
+    }
+
+    String getSortOrder() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < mSortColumns.length; i++) {
+            b.append(mSortColumns[i]).append(mDescending[i] ? " DESC, " : " ASC, ");
+        }
+        b.append(BaseColumns._ID).append(" ASC");
+        return b.toString();
+    }
+
+    private static void appendAnd(StringBuilder b) {
+        if (b.length() != 0) {
+            b.append(" AND ");
+        }
+    }
+
+    private static void appendEquals(StringBuilder b, List<String> args, String column,
+            String value) {
+        if (value == null) {
+            b.append(column).append(" IS NULL");
+        } else {
+            b.append(column).append(" = ?");
+            args.add(value);
+        }
+    }
+
+    /**
+     * SQLite sorts nulls before everything else, so they come first in
+     * ascending order and last in descending order, where their own level
+     * reads them.
+     */
+    private static void appendAfter(StringBuilder b, List<String> args, String column,
+            boolean descending, String value) {
+        if (value == null) {
+            b.append(descending ? "0" : column + " IS NOT NULL");
+        } else {
+            b.append(column).append(descending ? " < ?" : " > ?");
+            args.add(value);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.tasks;
+
+import java.util.ArrayList;
+
+import org.odk.collect.android.listeners.CursorPageListener;
+import org.odk.collect.android.provider.FormsProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/**
+ * Loads the rows of a provider query a page at a time, off the UI thread.
+ *
+ * Pages are read with keyset pagination: each page asks for the rows that sort
+ * after the last row of the previous page, rather than using an OFFSET that
+ * makes SQLite skip over everything before it. The sort order is the given
+ * columns followed by _id, so every row has a unique position. See
+ * {@link KeysetSelection} for the queries.
+ *
+ * The listener gets a cursor over every row loaded so far after each page.
+ * When the provider reports a change, the rows loaded so far are read again.
+ *
+ * Must be created and used on the UI thread.
+ */
+public class PagedCursorLoader {
+
+    private static final String t = "PagedCursorLoader";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final ContentResolver mContentResolver;
+    private final Uri mUri;
+    private final String mLimitParameter;
+    private final KeysetSelection mKeyset;
+    private final int mPageSize;
+    // keep loading pages until every row is loaded, see loadAll()
+    private boolean mLoadAll = false;
+
+    private CursorPageListener mListener;
+
+    private ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+    private int mRowCount = 0;
+    // sort column values and _id of the last row loaded
+    private String[] mLastKey = null;
+    private boolean mComplete = false;
+
+    private PageTask mTask = null;
+    private boolean mReloadPending = false;
+    private boolean mClosed = false;
+
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload();
+        }
+    };
+
+    /**
+     * @param sortOrder columns to sort by, each optionally followed by ASC or DESC
+     */
+    public PagedCursorLoader(ContentResolver contentResolver, Uri uri, String selection,
+            String[] selectionArgs, String[] sortOrder, int pageSize) {
+        mContentResolver = contentResolver;
+        mUri = uri;
+        mLimitParameter = FormsProviderAPI.AUTHORITY.equals(uri.getAuthority())
+                ? FormsProviderAPI.LIMIT : InstanceProviderAPI.LIMIT;
+        mKeyset = new KeysetSelection(selection, selectionArgs, sortOrder);
+        mPageSize = pageSize;
+    }
+
+    public void setCursorPageListener(CursorPageListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Declares sort columns that never hold null, which saves a query per
+     * page for each descending one. Call before start().
+     */
+    public void setNotNull(String... columns) {
+        mKeyset.setNotNull(columns);
+    }
+
+    /**
+     * Loads the first page and starts watching for changes.
+     */
+    public void start() {
+        mContentResolver.registerContentObserver(mUri, true, mObserver);
+        execute(new PageTask(null, mPageSize, false));
+    }
+
+    /**
+     * Loads the next page, unless one is loading or everything is loaded.
+     */
+    public void loadMore() {
+        if (!mComplete && mTask == null && !mClosed) {
+            execute(new PageTask(mLastKey, mPageSize, false));
+        }
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Keeps loading pages until every row is loaded, for when the user asks
+     * for something that needs all of them, such as selecting every row.
+     */
+    public void loadAll() {
+        mLoadAll = true;
+        loadMore();
+    }
+
+    /**
+     * Reads the rows loaded so far again.
+     */
+    public void reload() {
+        if (mClosed) {
+            return;
+        }
+        if (mTask != null) {
+            mReloadPending = true;
+            return;
+        }
+        execute(new PageTask(null, Math.max(mRowCount, mPageSize), true));
+    }
+
+    public void close() {
+        mClosed = true;
+        mListener = null;
+        mContentResolver.unregisterContentObserver(mObserver);
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        closePages(mPages);
+        mPages = new ArrayList<Cursor>();
+    }
+
+    private void execute(PageTask task) {
+        mTask = task;
+        mTask.execute();
+    }
+
+    private void pageLoaded(PageTask task, Cursor page) {
+        mTask = null;
+        if (mClosed) {
+            page.close();
+            return;
+        }
+
+        int count = page.getCount();
+        if (task.mAfter == null) {
+            // first page, or everything again after a change
+            closePages(mPages);
+            mPages = new ArrayList<Cursor>();
+            mRowCount = 0;
+        }
+        mPages.add(page);
+        mRowCount += count;
+        mComplete = count < task.mLimit;
+        if (task.mAfter == null && count == 0) {
+            mLastKey = null;
+        } else if (count > 0) {
+            page.moveToLast();
+            String[] sortColumns = mKeyset.getSortColumns();
+            mLastKey = new String[sortColumns.length + 1];
+            for (int i = 0; i < sortColumns.length; i++) {
+                mLastKey[i] = page.getString(page.getColumnIndexOrThrow(sortColumns[i]));
+            }
+            mLastKey[sortColumns.length] =
+                    page.getString(page.getColumnIndexOrThrow(BaseColumns._ID));
+        }
+
+        if (mListener != null) {
+            Cursor[] cursors = new Cursor[mPages.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new PageCursor(mPages.get(i));
+            }
+            mListener.cursorPageLoaded(new MergeCursor(cursors), mComplete);
+        }
+
+        if (mReloadPending) {
+            mReloadPending = false;
+            reload();
+        } else if (mLoadAll) {
+            loadMore();
+        }
+    }
+
+    private static void closePages(ArrayList<Cursor> pages) {
+        for (Cursor c : pages) {
+            c.close();
+        }
+    }
+
+    private class PageTask extends AsyncTask<Void, Void, Cursor> {
+        final String[] mAfter;
+        final int mLimit;
+        final boolean mReload;
+
+        PageTask(String[] after, int limit, boolean reload) {
+            mAfter = after;
+            mLimit = limit;
+            mReload = reload;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            long start = SystemClock.uptimeMillis();
+            ArrayList<Cursor> parts = new ArrayList<Cursor>();
+            int remaining = mLimit;
+            int level = mKeyset.getDeepestLevel();
+            do {
+                Uri uri = mUri.buildUpon()
+                        .appendQueryParameter(mLimitParameter, Integer.toString(remaining))
+                        .build();
+                ArrayList<String> args = new ArrayList<String>();
+                String selection = mKeyset.getSelection(mAfter, level, args);
+                Cursor c = mContentResolver.query(uri, null, selection,
+                        args.toArray(new String[args.size()]), mKeyset.getSortOrder());
+                if (c == null) {
+                    break;
+                }
+                parts.add(c);
+                // runs the query and fills the window here rather than on the UI thread
+                remaining -= c.getCount();
+                if (isCancelled()) {
+                    closePages(parts);
+                    return null;
+                }
+                level--;
+            } while (mAfter != null && level >= 0 && remaining > 0);
+
+            Cursor c;
+            if (parts.isEmpty()) {
+                c = null;
+            } else if (parts.size() == 1) {
+                c = parts.get(0);
+            } else {
+                c = new MergeCursor(parts.toArray(new Cursor[parts.size()]));
+            }
+            Log.i(t, "Loaded " + (mLimit - remaining) + " rows of " + mUri
+                    + (mReload ? " again" : "") + " with " + parts.size() + " queries in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+            return c;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor c) {
+            if (c == null) {
+                mTask = null;
+                return;
+            }
+            pageLoaded(this, c);
+        }
+
+        @Override
+        protected void onCancelled(Cursor c) {
+            // cancelled after doInBackground() returned; only called from API 11
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * A page as handed to the adapter. The loader owns the page, so closing
+     * this does nothing, and change notifications are handled by the loader
+     * rather than by each adapter re-querying.
+     */
+    private static class PageCursor extends CursorWrapper {
+        PageCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void registerContentObserver(ContentObserver observer) {
+        }
+
+        @Override
+        public void unregisterContentObserver(ContentObserver observer) {
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+        }
+    }
+}
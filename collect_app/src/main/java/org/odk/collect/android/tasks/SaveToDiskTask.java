@@ -29,6 +29,7 @@ import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.FormRelationsManager;
+import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
@@ -40,6 +41,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -89,7 +91,11 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_validating_message));
 
         try {
-            int validateStatus = formController.validateAnswers(mMarkCompleted);
+            boolean fullValidation = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance())
+                    .getBoolean(PreferencesActivity.KEY_FULL_VALIDATION, false);
+            int validateStatus = fullValidation
+                    ? formController.validateAnswers(mMarkCompleted)
+                    : formController.validateChangedAnswers(mMarkCompleted);
             if (validateStatus != FormEntryController.ANSWER_OK) {
                 // validation failed, pass specific failure
                 saveResult.setSaveResult(validateStatus);
@@ -117,7 +123,8 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
     	Collect.getInstance().getActivityLogger().logInstanceAction(this, "save", Boolean.toString(mMarkCompleted));
 
-        // close all open databases of external data.
+        // release the external data of this form. The connections stay open
+        // in ExternalDataRegistry for the next save or form.
         Collect.getInstance().getExternalDataManager().close();
 
     	// if there is a meta/instanceName field, be sure we are using the latest value
@@ -127,6 +134,11 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     		mInstanceName = updatedSaveName;
     	}
 
+        if (formController.getEvaluationProfiler() != null) {
+            formController.getEvaluationProfiler().writeReport(
+                    formController.getInstancePath().getParentFile().getName());
+        }
+
         try {
     	    exportData(mMarkCompleted);
 
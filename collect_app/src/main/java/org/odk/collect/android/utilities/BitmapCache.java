@@ -0,0 +1,459 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.odk.collect.android.application.Collect;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ShapeDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * App wide cache of images decoded by {@link FileUtils#getBitmapScaledToDisplay}, so that choice
+ * images and media prompts are not decoded again every time a screen is rebuilt.
+ *
+ * Bitmaps are kept in a memory bounded LRU keyed by (path, last modified, target size), so an
+ * edited file is never served stale. Form media can additionally be kept on disk as pre-scaled
+ * thumbnails under {@link Collect#CACHE_PATH}, bounded in size by dropping the least recently
+ * used ones; instance photos should not be, as the copies would outlive the instance.
+ *
+ * Images are decoded on a background pool. A view that needs to be laid out before its image
+ * is ready gets the size from {@link #getSize}, which only reads the image header.
+ *
+ * Bitmaps handed out by the cache are shared between views and must not be recycled by the
+ * caller; see {@link #isShared(Bitmap)}.
+ */
+public class BitmapCache {
+    private static final String TAG = BitmapCache.class.getSimpleName();
+
+    public static final String THUMBNAIL_PATH = Collect.CACHE_PATH + File.separator + "thumbnails";
+
+    // share of the heap the cache may use
+    private static final int HEAP_FRACTION = 8;
+
+    private static final int DECODE_THREADS = 2;
+
+    private static final int THUMBNAIL_QUALITY = 90;
+
+    // the thumbnail cache is trimmed to 3/4 of this once it grows past it
+    private static final long MAX_THUMBNAIL_BYTES = 20L * 1024 * 1024;
+
+    private static BitmapCache sInstance = null;
+
+    public interface Callback {
+        /**
+         * Called on the UI thread once a requested image is available.
+         *
+         * @param bitmap the decoded image, or null if the file could not be decoded
+         */
+        void onBitmapLoaded(Bitmap bitmap);
+    }
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    // every bitmap handed out, weakly held so that isShared() still knows about evicted ones
+    // that are on screen
+    private final Map<Bitmap, Boolean> mShared = Collections
+            .synchronizedMap(new WeakHashMap<Bitmap, Boolean>());
+
+    // the key each image view is waiting for; only touched on the UI thread
+    private final Map<ImageView, String> mPending = new WeakHashMap<ImageView, String>();
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // bytes in THUMBNAIL_PATH, or -1 until they have been counted; guarded by mThumbnailLock
+    private long mThumbnailBytes = -1;
+    private final Object mThumbnailLock = new Object();
+
+    public static synchronized BitmapCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapCache();
+        }
+        return sInstance;
+    }
+
+    private BitmapCache() {
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / HEAP_FRACTION);
+        mMemoryCache = new LruCache<String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return Math.max(1, value.getRowBytes() * value.getHeight() / 1024);
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the image scaled to the display, decoding it only if it is neither in memory nor,
+     * when useDiskCache is set, in the thumbnail cache. Runs on the calling thread, so it must
+     * not be called on the UI thread; use loadBitmap() there.
+     *
+     * @return the shared bitmap, or null if the file could not be decoded
+     */
+    public Bitmap getBitmap(File f, int screenHeight, int screenWidth, boolean useDiskCache) {
+        String key = getKey(f, screenHeight, screenWidth);
+        Bitmap b = getFromMemory(key);
+        if (b != null) {
+            return b;
+        }
+
+        File thumbnail = useDiskCache ? getThumbnailFile(key) : null;
+        if (thumbnail != null && thumbnail.exists()) {
+            b = BitmapFactory.decodeFile(thumbnail.getAbsolutePath());
+            if (b != null) {
+                // keeps it at the young end of the trim order
+                thumbnail.setLastModified(System.currentTimeMillis());
+            }
+        }
+        if (b == null) {
+            b = FileUtils.getBitmapScaledToDisplay(f, screenHeight, screenWidth);
+            if (b != null && thumbnail != null) {
+                writeThumbnail(b, thumbnail);
+            }
+        }
+        if (b != null) {
+            mShared.put(b, Boolean.TRUE);
+            mMemoryCache.put(key, b);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the size getBitmap() gives the image, reading no more than its header, so that a
+     * view can be laid out before the image has been decoded.
+     *
+     * @return {width, height}, or null if the file is not an image
+     */
+    public int[] getSize(File f, int screenHeight, int screenWidth, boolean useDiskCache) {
+        String key = getKey(f, screenHeight, screenWidth);
+        Bitmap b = getFromMemory(key);
+        if (b != null) {
+            return new int[] { b.getWidth(), b.getHeight() };
+        }
+
+        File thumbnail = useDiskCache ? getThumbnailFile(key) : null;
+        if (thumbnail != null && thumbnail.exists()) {
+            BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(thumbnail.getAbsolutePath(), o);
+            if (o.outWidth > 0 && o.outHeight > 0) {
+                return new int[] { o.outWidth, o.outHeight };
+            }
+        }
+
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getAbsolutePath(), o);
+        if (o.outWidth <= 0 || o.outHeight <= 0) {
+            return null;
+        }
+        // the scale of getBitmapScaledToDisplay(), rounded down to a power of 2 as the decoder does
+        int scale = Math.max(o.outWidth / screenWidth, o.outHeight / screenHeight);
+        int sampleSize = 1;
+        while (sampleSize * 2 <= scale) {
+            sampleSize *= 2;
+        }
+        return new int[] { (o.outWidth + sampleSize - 1) / sampleSize,
+                (o.outHeight + sampleSize - 1) / sampleSize };
+    }
+
+    /**
+     * Shows the image in view, decoding it on a background thread if it is not in memory. If the
+     * view is given another image before the decode finishes, the stale result is dropped.
+     * Must be called on the UI thread.
+     *
+     * @param callback optional, told about the result after it has been set on the view
+     */
+    public void loadBitmap(File f, int screenHeight, int screenWidth, ImageView view,
+            boolean useDiskCache, Callback callback) {
+        loadBitmap(f, screenHeight, screenWidth, view, useDiskCache, null, callback);
+    }
+
+    /**
+     * As {@link #loadBitmap(File, int, int, ImageView, boolean, Callback)}, but the image is
+     * shown at displaySize, and an empty drawable of that size holds its place until it has been
+     * decoded, so the layout does not move when it arrives.
+     *
+     * @param displaySize {width, height}, e.g. from getSize(), or null for the decoded size
+     */
+    public void loadBitmap(final File f, final int screenHeight, final int screenWidth,
+            final ImageView view, final boolean useDiskCache, final int[] displaySize,
+            final Callback callback) {
+        final String key = getKey(f, screenHeight, screenWidth);
+        Bitmap b = getFromMemory(key);
+        if (b != null) {
+            mPending.remove(view);
+            setImage(view, b, displaySize);
+            if (callback != null) {
+                callback.onBitmapLoaded(b);
+            }
+            return;
+        }
+
+        mPending.put(view, key);
+        if (displaySize != null) {
+            ShapeDrawable placeholder = new ShapeDrawable();
+            placeholder.getPaint().setColor(Color.TRANSPARENT);
+            placeholder.setIntrinsicWidth(displaySize[0]);
+            placeholder.setIntrinsicHeight(displaySize[1]);
+            view.setImageDrawable(placeholder);
+        } else {
+            view.setImageBitmap(null);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap decoded = null;
+                try {
+                    decoded = getBitmap(f, screenHeight, screenWidth, useDiskCache);
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "Out of memory decoding " + f, e);
+                    clear();
+                }
+                final Bitmap result = decoded;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!key.equals(mPending.get(view))) {
+                            // the view has moved on to another image
+                            return;
+                        }
+                        mPending.remove(view);
+                        setImage(view, result, displaySize);
+                        if (callback != null) {
+                            callback.onBitmapLoaded(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return true if b came from the cache and so may be shown by other views; such bitmaps
+     *         must be left to the garbage collector rather than recycled
+     */
+    public boolean isShared(Bitmap b) {
+        return mShared.containsKey(b);
+    }
+
+    /**
+     * Drops everything held in memory, e.g. when the system is low on memory. The thumbnail
+     * cache on disk is kept.
+     */
+    public void clear() {
+        mMemoryCache.evictAll();
+    }
+
+    private static void setImage(ImageView view, Bitmap b, int[] displaySize) {
+        if (b == null || displaySize == null) {
+            view.setImageBitmap(b);
+        } else {
+            view.setImageDrawable(new SizedBitmapDrawable(view.getResources(), b,
+                    displaySize[0], displaySize[1]));
+        }
+    }
+
+    private Bitmap getFromMemory(String key) {
+        Bitmap b = mMemoryCache.get(key);
+        if (b != null && b.isRecycled()) {
+            mMemoryCache.remove(key);
+            return null;
+        }
+        return b;
+    }
+
+    private static String getKey(File f, int screenHeight, int screenWidth) {
+        return f.getAbsolutePath() + "|" + f.lastModified() + "|" + screenWidth + "x"
+                + screenHeight;
+    }
+
+    private static File getThumbnailFile(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            String name = new BigInteger(1, md.digest(key.getBytes("UTF-8"))).toString(16);
+            return new File(THUMBNAIL_PATH, name);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "MD5 not available, not using the thumbnail cache", e);
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "UTF-8 not available, not using the thumbnail cache", e);
+            return null;
+        }
+    }
+
+    private void writeThumbnail(Bitmap b, File thumbnail) {
+        File dir = thumbnail.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        // write to a temporary name so a half written file is never read back
+        File tmp = new File(dir, thumbnail.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (b.hasAlpha()) {
+                b.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                b.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            }
+            out.close();
+            out = null;
+            if (tmp.renameTo(thumbnail)) {
+                addThumbnail(thumbnail);
+            } else {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write thumbnail " + thumbnail, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a new thumbnail against MAX_THUMBNAIL_BYTES, dropping the least recently used ones
+     * once the cache has grown past it.
+     */
+    private void addThumbnail(File thumbnail) {
+        synchronized (mThumbnailLock) {
+            File dir = thumbnail.getParentFile();
+            if (mThumbnailBytes < 0) {
+                // first write since start up; the new file is counted with the rest
+                mThumbnailBytes = 0;
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        mThumbnailBytes += f.length();
+                    }
+                }
+            } else {
+                mThumbnailBytes += thumbnail.length();
+            }
+            if (mThumbnailBytes <= MAX_THUMBNAIL_BYTES) {
+                return;
+            }
+
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            final long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return lastModified[lhs] < lastModified[rhs] ? -1
+                            : (lastModified[lhs] == lastModified[rhs] ? 0 : 1);
+                }
+            });
+            long target = MAX_THUMBNAIL_BYTES / 4 * 3;
+            int deleted = 0;
+            for (int i = 0; i < order.length && mThumbnailBytes > target; i++) {
+                File f = files[order[i]];
+                long length = f.length();
+                if (f.delete()) {
+                    mThumbnailBytes -= length;
+                    deleted++;
+                }
+            }
+            Log.i(TAG, "Trimmed " + deleted + " thumbnails, " + mThumbnailBytes + " bytes left");
+        }
+    }
+
+    /**
+     * A bitmap drawn at a fixed size, so it takes exactly the place laid out for it.
+     */
+    private static class SizedBitmapDrawable extends BitmapDrawable {
+        private final int mWidth;
+        private final int mHeight;
+
+        SizedBitmapDrawable(Resources res, Bitmap b, int width, int height) {
+            super(res, b);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+    }
+}
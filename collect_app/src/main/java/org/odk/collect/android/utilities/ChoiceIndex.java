@@ -0,0 +1,340 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+
+/**
+ * Choice labels prepared once for matching typed text against them. Labels
+ * are normalized when the index is built, ignoring case and diacritics. For
+ * prefix matching the labels, or every word of every label, are kept in a
+ * sorted array, so the choices starting with the text are a range found by
+ * binary search.
+ *
+ * Each widget asks through its own Query, which remembers the last result.
+ * Text that extends the last text only looks at what matched before.
+ */
+public class ChoiceIndex {
+
+    // what the typed text has to match
+    public static final String MATCH_PREFIX = "prefix";
+    public static final String MATCH_WORD_PREFIX = "word-prefix";
+    public static final String MATCH_SUBSTRING = "substring";
+    public static final String MATCH_CHARS = "chars";
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    // label of each choice, as given and normalized
+    private final String[] mOriginals;
+    private final String[] mLabels;
+    // the labels, and the labels from the start of each of their words,
+    // sorted; each is only built for the first query that needs it
+    private Keys mLabelKeys;
+    private Keys mWordKeys;
+
+    /**
+     * @param labels the label of each choice, null for none
+     */
+    public ChoiceIndex(String[] labels) {
+        mOriginals = labels;
+        mLabels = new String[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            mLabels[i] = normalize(labels[i]);
+        }
+    }
+
+    private synchronized Keys getKeys(boolean words) {
+        if (words ? mWordKeys != null : mLabelKeys != null) {
+            return words ? mWordKeys : mLabelKeys;
+        }
+
+        ArrayList<Key> keys = new ArrayList<Key>(words ? mLabels.length * 2 : mLabels.length);
+        for (int i = 0; i < mLabels.length; i++) {
+            String label = mLabels[i];
+            if (!words) {
+                keys.add(new Key(label, i));
+                continue;
+            }
+            for (int start = 0; start < label.length(); start++) {
+                if (Character.isLetterOrDigit(label.charAt(start))
+                        && (start == 0 || !Character.isLetterOrDigit(label.charAt(start - 1)))) {
+                    keys.add(new Key(label.substring(start), i));
+                }
+            }
+        }
+
+        Key[] sorted = keys.toArray(new Key[keys.size()]);
+        Arrays.sort(sorted);
+        Keys built = new Keys(sorted);
+        if (words) {
+            mWordKeys = built;
+        } else {
+            mLabelKeys = built;
+        }
+        return built;
+    }
+
+    /**
+     * Returns s in lower case, without diacritics and surrounding white space.
+     */
+    public static String normalize(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (Build.VERSION.SDK_INT >= 9 && !isAscii(s)) {
+            s = stripDiacritics(s);
+        }
+        return s.toLowerCase(Locale.getDefault()).trim();
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressLint("NewApi")
+    private static String stripDiacritics(String s) {
+        return DIACRITICS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("");
+    }
+
+    public int size() {
+        return mLabels.length;
+    }
+
+    /**
+     * Returns the label of choice item as it was given, "" for none.
+     */
+    public String getLabel(int item) {
+        return (mOriginals[item] == null) ? "" : mOriginals[item];
+    }
+
+    /**
+     * Returns a new query of the given match type, one of MATCH_PREFIX,
+     * MATCH_WORD_PREFIX, MATCH_SUBSTRING and MATCH_CHARS. Unknown types match
+     * substrings.
+     */
+    public Query newQuery(String matchType) {
+        return new Query(matchType);
+    }
+
+    /**
+     * Matches typed text against the index, keystroke after keystroke.
+     */
+    public class Query {
+        private final String mType;
+
+        // normalized text of the last find, null if there was none
+        private String mLast;
+        // MATCH_PREFIX and MATCH_WORD_PREFIX: the keys starting with mLast
+        private int mLow;
+        private int mHigh;
+        // the other types: every choice matching mLast, in order
+        private int[] mMatches;
+        private int mMatchCount;
+        // marks the choices already returned by a find
+        private int[] mSeen;
+        private int mStamp;
+
+        private Query(String matchType) {
+            if (MATCH_PREFIX.equals(matchType)) {
+                mType = MATCH_PREFIX;
+            } else if (MATCH_WORD_PREFIX.equals(matchType)) {
+                mType = MATCH_WORD_PREFIX;
+            } else if (MATCH_CHARS.equals(matchType)) {
+                mType = MATCH_CHARS;
+            } else {
+                mType = MATCH_SUBSTRING;
+            }
+        }
+
+        /**
+         * Returns the positions of at most limit choices matching text. With
+         * MATCH_PREFIX they are the choices whose label starts with text, in
+         * label order, and with MATCH_WORD_PREFIX the choices with a word
+         * starting with text, in the order of those words. Otherwise they are
+         * in choice order.
+         */
+        public synchronized int[] find(String text, int limit) {
+            String query = normalize(text);
+            if (query.length() == 0) {
+                mLast = null;
+                int[] all = new int[Math.min(limit, mLabels.length)];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = i;
+                }
+                return all;
+            }
+
+            boolean narrowing = mLast != null && query.startsWith(mLast);
+            int[] found;
+            if (mType == MATCH_PREFIX || mType == MATCH_WORD_PREFIX) {
+                found = findPrefix(getKeys(mType == MATCH_WORD_PREFIX), query, narrowing, limit);
+            } else {
+                found = findScan(query, narrowing, limit);
+            }
+            mLast = query;
+            return found;
+        }
+
+        private int[] findPrefix(Keys keys, String query, boolean narrowing, int limit) {
+            String[] sorted = keys.keys;
+            int low = narrowing ? mLow : 0;
+            int high = narrowing ? mHigh : sorted.length;
+
+            // first key not before query
+            int lo = low;
+            int hi = high;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sorted[mid].compareTo(query) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            mLow = lo;
+
+            // first key after those starting with query
+            hi = high;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sorted[mid].startsWith(query)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            mHigh = lo;
+
+            // a choice with several matching words is returned once
+            if (mSeen == null) {
+                mSeen = new int[mLabels.length];
+            }
+            if (++mStamp == 0) {
+                Arrays.fill(mSeen, 0);
+                mStamp = 1;
+            }
+            int[] found = new int[Math.min(limit, mHigh - mLow)];
+            int count = 0;
+            for (int i = mLow; i < mHigh && count < found.length; i++) {
+                int item = keys.items[i];
+                if (mSeen[item] != mStamp) {
+                    mSeen[item] = mStamp;
+                    found[count++] = item;
+                }
+            }
+            return (count == found.length) ? found : head(found, count);
+        }
+
+        private int[] findScan(String query, boolean narrowing, int limit) {
+            int from;
+            if (narrowing) {
+                from = mMatchCount;
+            } else {
+                from = mLabels.length;
+                if (mMatches == null) {
+                    mMatches = new int[mLabels.length];
+                }
+            }
+
+            int count = 0;
+            for (int i = 0; i < from; i++) {
+                int item = narrowing ? mMatches[i] : i;
+                if (matches(mLabels[item], query)) {
+                    mMatches[count++] = item;
+                }
+            }
+            mMatchCount = count;
+            return head(mMatches, Math.min(limit, count));
+        }
+
+        private boolean matches(String label, String query) {
+            if (mType != MATCH_CHARS) {
+                return label.contains(query);
+            }
+
+            // every character of query, each one used once
+            StringBuilder rest = new StringBuilder(label);
+            for (int j = 0; j < query.length(); j++) {
+                int index = rest.indexOf(String.valueOf(query.charAt(j)));
+                if (index == -1) {
+                    return false;
+                }
+                rest.deleteCharAt(index);
+            }
+            return true;
+        }
+    }
+
+    private static int[] head(int[] items, int count) {
+        int[] head = new int[count];
+        System.arraycopy(items, 0, head, 0, count);
+        return head;
+    }
+
+    /**
+     * Sorted keys and the choice each one belongs to.
+     */
+    private static class Keys {
+        final String[] keys;
+        final int[] items;
+
+        Keys(Key[] sorted) {
+            keys = new String[sorted.length];
+            items = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                keys[i] = sorted[i].key;
+                items[i] = sorted[i].item;
+            }
+        }
+    }
+
+    private static class Key implements Comparable<Key> {
+        final String key;
+        final int item;
+
+        Key(String key, int item) {
+            this.key = key;
+            this.item = item;
+        }
+
+        @Override
+        public int compareTo(Key another) {
+            int c = key.compareTo(another.key);
+            return (c != 0) ? c : item - another.item;
+        }
+    }
+
+}
@@ -565,6 +565,10 @@ public class EncryptionUtils {
 		// TODO: confirm that this xml is not already encrypted...
 
 		// Step 1: encrypt the submission and all the media files...
+		// shared media has to become real files to be encrypted
+		if (!MediaBlobStore.getInstance().materialize(instanceXml.getParentFile())) {
+			throw new IOException("Unable to copy shared media into the instance");
+		}
 		List<File> mediaFiles = encryptSubmissionFiles(instanceXml,
 				submissionXml, formInfo);
 
@@ -0,0 +1,196 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * File reads and copies shared by the code paths that handle large media,
+ * zips and CSVs.
+ *
+ * Copies between files go through FileChannel.transferTo, so the bytes never
+ * enter the heap. Whole files are read straight into their array a
+ * BUFFER_SIZE slice at a time; memory mapping them would only add a copy and
+ * mappings that stay until the collector gets to them. Stream copies borrow
+ * their buffer from a small pool instead of allocating one per call, which
+ * keeps extraction of a media zip or a big CSV from churning the collector.
+ */
+public final class FileIOUtils {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int POOL_SIZE = 4;
+    private static final byte[][] sPool = new byte[POOL_SIZE][];
+    private static int sPooled = 0;
+
+    private FileIOUtils() {
+    }
+
+    /**
+     * Takes a BUFFER_SIZE buffer from the pool. Hand it back with
+     * releaseBuffer() once done.
+     */
+    public static synchronized byte[] acquireBuffer() {
+        if (sPooled > 0) {
+            byte[] buffer = sPool[--sPooled];
+            sPool[sPooled] = null;
+            return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    public static synchronized void releaseBuffer(byte[] buffer) {
+        if (buffer != null && buffer.length == BUFFER_SIZE && sPooled < POOL_SIZE) {
+            sPool[sPooled++] = buffer;
+        }
+    }
+
+    /**
+     * Copies a stream to the end using a pooled buffer. Neither stream is
+     * closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            long count = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                count += read;
+            }
+            return count;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Copies a file with FileChannel.transferTo.
+     *
+     * @param force whether to force the copy to disk before returning, for
+     *        when the source is about to be deleted
+     */
+    public static void copy(File sourceFile, File destFile, boolean force) throws IOException {
+        FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            FileOutputStream out = new FileOutputStream(destFile);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long size = src.size();
+                long position = 0;
+                // transferTo may move less than asked for
+                while (position < size) {
+                    long transferred = src.transferTo(position, size - position, dst);
+                    if (transferred <= 0) {
+                        throw new IOException("Unable to copy " + sourceFile.getAbsolutePath());
+                    }
+                    position += transferred;
+                }
+                if (force) {
+                    dst.force(true);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a whole file into a byte array.
+     */
+    public static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file.getName() + " is too large");
+            }
+            byte[] bytes = new byte[(int) size];
+            // a slice at a time, so a runtime that reads into the heap through
+            // a temporary direct buffer only needs a small one
+            int position = 0;
+            while (position < bytes.length) {
+                int read = channel.read(ByteBuffer.wrap(bytes, position,
+                        Math.min(BUFFER_SIZE, bytes.length - position)));
+                if (read < 0) {
+                    throw new IOException("Could not completely read file " + file.getName());
+                }
+                position += read;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Feeds a whole file to a digest through a pooled buffer.
+     */
+    public static void update(MessageDigest digest, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = acquireBuffer();
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a file for reading text, with a buffer large enough that a CSV
+     * parser doesn't go back to the file every few lines.
+     */
+    public static BufferedReader newReader(File file, String charsetName) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return new BufferedReader(new InputStreamReader(in, charsetName), BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
@@ -14,7 +14,6 @@
 
 package org.odk.collect.android.utilities;
 
-import org.apache.commons.io.IOUtils;
 import org.javarosa.xform.parse.XFormParser;
 import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
@@ -29,13 +28,11 @@ import org.odk.collect.android.application.Collect;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
-import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
@@ -69,104 +66,32 @@ public class FileUtils {
 
 
     public static byte[] getFileAsBytes(File file) {
-        byte[] bytes = null;
-        InputStream is = null;
         try {
-            is = new FileInputStream(file);
-
-            // Get the size of the file
-            long length = file.length();
-            if (length > Integer.MAX_VALUE) {
-                Log.e(t, "File " + file.getName() + "is too large");
-                return null;
-            }
-
-            // Create the byte array to hold the data
-            bytes = new byte[(int) length];
-
-            // Read in the bytes
-            int offset = 0;
-            int read = 0;
-            try {
-                while (offset < bytes.length && read >= 0) {
-                    read = is.read(bytes, offset, bytes.length - offset);
-                    offset += read;
-                }
-            } catch (IOException e) {
-                Log.e(t, "Cannot read " + file.getName());
-                e.printStackTrace();
-                return null;
-            }
-
-            // Ensure all the bytes have been read in
-            if (offset < bytes.length) {
-                try {
-                    throw new IOException("Could not completely read file " + file.getName());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-
-            return bytes;
-
+            return FileIOUtils.readFully(file);
         } catch (FileNotFoundException e) {
             Log.e(t, "Cannot find " + file.getName());
             e.printStackTrace();
             return null;
-
-        } finally {
-            // Close the input stream
-            try {
-                is.close();
-            } catch (IOException e) {
-                Log.e(t, "Cannot close input stream for " + file.getName());
-                e.printStackTrace();
-                return null;
-            }
+        } catch (IOException e) {
+            Log.e(t, "Cannot read " + file.getName());
+            e.printStackTrace();
+            return null;
         }
     }
 
 
     public static String getMd5Hash(File file) {
         try {
-            // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
+            // large media are digested from mapped windows rather than
+            // streamed through a small buffer
             MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
-
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long lLength = file.length();
-
-            if (lLength > Integer.MAX_VALUE) {
-                Log.e(t, "File " + file.getName() + "is too large");
-                return null;
-            }
-
-            int length = (int) lLength;
-
-            InputStream is = null;
-            is = new FileInputStream(file);
-
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
-            }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
-            }
+            FileIOUtils.update(md, file);
             byte[] messageDigest = md.digest();
 
             BigInteger number = new BigInteger(1, messageDigest);
             String md5 = number.toString(16);
             while (md5.length() < 32)
                 md5 = "0" + md5;
-            is.close();
             return md5;
 
         } catch (NoSuchAlgorithmException e) {
@@ -213,13 +138,21 @@ public class FileUtils {
 
 
     public static String copyFile(File sourceFile, File destFile) {
+        return copyFile(sourceFile, destFile, false);
+    }
+
+    /**
+     * @param sync whether to force the copy to disk, for when the source is
+     *        deleted next
+     */
+    public static String copyFile(File sourceFile, File destFile, boolean sync) {
         if (sourceFile.exists()) {
-            String errorMessage = actualCopy(sourceFile, destFile);
+            String errorMessage = actualCopy(sourceFile, destFile, sync);
             if (errorMessage != null) {
                 try {
                     Thread.sleep(500);
                     Log.e(t, "Retrying to copy the file after 500ms: " + sourceFile.getAbsolutePath());
-                    errorMessage = actualCopy(sourceFile, destFile);
+                    errorMessage = actualCopy(sourceFile, destFile, sync);
                 } catch (InterruptedException e) {
                     Log.e(t, e.getMessage(), e);
                 }
@@ -232,18 +165,9 @@ public class FileUtils {
         }
     }
 
-    private static String actualCopy(File sourceFile, File destFile) {
-        FileInputStream fileInputStream = null;
-        FileOutputStream fileOutputStream = null;
-        FileChannel src = null;
-        FileChannel dst = null;
+    private static String actualCopy(File sourceFile, File destFile, boolean sync) {
         try {
-            fileInputStream = new FileInputStream(sourceFile);
-            src = fileInputStream.getChannel();
-            fileOutputStream = new FileOutputStream(destFile);
-            dst = fileOutputStream.getChannel();
-            dst.transferFrom(src, 0, src.size());
-            dst.force(true);
+            FileIOUtils.copy(sourceFile, destFile, sync);
             return null;
         } catch (FileNotFoundException e) {
             Log.e(t, "FileNotFoundException while copying file", e);
@@ -254,11 +178,6 @@ public class FileUtils {
         } catch (Exception e) {
             Log.e(t, "Exception while copying file", e);
             return e.getMessage();
-        } finally {
-            IOUtils.closeQuietly(fileInputStream);
-            IOUtils.closeQuietly(fileOutputStream);
-            IOUtils.closeQuietly(src);
-            IOUtils.closeQuietly(dst);
         }
     }
 
@@ -0,0 +1,342 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.preferences.PreferencesActivity;
+import org.opendatakit.httpclientandroidlib.HttpConnection;
+import org.opendatakit.httpclientandroidlib.HttpException;
+import org.opendatakit.httpclientandroidlib.HttpHost;
+import org.opendatakit.httpclientandroidlib.HttpRequest;
+import org.opendatakit.httpclientandroidlib.HttpRequestInterceptor;
+import org.opendatakit.httpclientandroidlib.HttpResponse;
+import org.opendatakit.httpclientandroidlib.HttpResponseInterceptor;
+import org.opendatakit.httpclientandroidlib.auth.params.AuthPNames;
+import org.opendatakit.httpclientandroidlib.client.HttpClient;
+import org.opendatakit.httpclientandroidlib.client.params.AuthPolicy;
+import org.opendatakit.httpclientandroidlib.client.params.ClientPNames;
+import org.opendatakit.httpclientandroidlib.client.params.CookiePolicy;
+import org.opendatakit.httpclientandroidlib.client.params.HttpClientParams;
+import org.opendatakit.httpclientandroidlib.conn.ConnectionKeepAliveStrategy;
+import org.opendatakit.httpclientandroidlib.conn.routing.HttpRoute;
+import org.opendatakit.httpclientandroidlib.impl.client.DecompressingHttpClient;
+import org.opendatakit.httpclientandroidlib.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.opendatakit.httpclientandroidlib.impl.client.DefaultHttpClient;
+import org.opendatakit.httpclientandroidlib.impl.conn.PoolingClientConnectionManager;
+import org.opendatakit.httpclientandroidlib.impl.conn.SchemeRegistryFactory;
+import org.opendatakit.httpclientandroidlib.params.BasicHttpParams;
+import org.opendatakit.httpclientandroidlib.params.CoreConnectionPNames;
+import org.opendatakit.httpclientandroidlib.params.HttpConnectionParams;
+import org.opendatakit.httpclientandroidlib.params.HttpParams;
+import org.opendatakit.httpclientandroidlib.pool.PoolStats;
+import org.opendatakit.httpclientandroidlib.protocol.ExecutionContext;
+import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide HTTP transport. All clients handed out share one thread-safe
+ * pooled connection manager, so that connections to the same server are kept
+ * alive and reused across uploads, form list fetches, form downloads and
+ * manifest fetches.
+ *
+ * Responses are transparently gunzipped. Requests can be gzipped by wrapping
+ * their entity in a {@link GzipCompressingEntity}.
+ *
+ * The total and per-server connection limits come from the preferences and
+ * follow them when they change.
+ *
+ * A failed request never tears the pool down. The connection that failed is
+ * not returned to the pool by the underlying client, and a background thread
+ * evicts expired and idle connections.
+ */
+public final class HttpTransport {
+    private static final String TAG = HttpTransport.class.getSimpleName();
+
+    // keep-alive duration when the server does not send a Keep-Alive timeout
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30000L;
+    // connections idle for longer than this are closed by the monitor
+    public static final long IDLE_TIMEOUT_MS = 60000L;
+    private static final long MONITOR_INTERVAL_MS = 30000L;
+
+    private static HttpTransport singleton = null;
+
+    private final PoolingClientConnectionManager mConnectionManager;
+    // clients differ only in their timeouts; all share mConnectionManager
+    private final Map<Integer, HttpClient> mClients = new HashMap<Integer, HttpClient>();
+    private final IdleConnectionMonitor mMonitor;
+    // SharedPreferences holds its listeners weakly, so this one is kept here
+    private final OnSharedPreferenceChangeListener mPoolLimitsListener =
+            new OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
+                    if (PreferencesActivity.KEY_MAX_CONNECTIONS.equals(key)
+                            || PreferencesActivity.KEY_MAX_CONNECTIONS_PER_SERVER.equals(key)) {
+                        applyPoolLimits(settings);
+                    }
+                }
+            };
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mReusedCount = new AtomicLong();
+
+    public static synchronized HttpTransport getInstance() {
+        if (singleton == null) {
+            singleton = new HttpTransport();
+        }
+        return singleton;
+    }
+
+    private HttpTransport() {
+        mConnectionManager = new PoolingClientConnectionManager(
+                SchemeRegistryFactory.createDefault());
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        applyPoolLimits(settings);
+        settings.registerOnSharedPreferenceChangeListener(mPoolLimitsListener);
+        mMonitor = new IdleConnectionMonitor();
+        mMonitor.start();
+    }
+
+    /**
+     * Set the pool limits. Connections already leased are not affected.
+     *
+     * @param maxTotal maximum number of connections across all routes
+     * @param defaultMaxPerRoute maximum number of connections to any one server
+     */
+    public void setPoolLimits(int maxTotal, int defaultMaxPerRoute) {
+        mConnectionManager.setMaxTotal(maxTotal);
+        mConnectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
+    }
+
+    private void applyPoolLimits(SharedPreferences settings) {
+        int maxTotal = getInt(settings, PreferencesActivity.KEY_MAX_CONNECTIONS,
+                PreferencesActivity.MAX_CONNECTIONS_DEFAULT);
+        int maxPerRoute = getInt(settings, PreferencesActivity.KEY_MAX_CONNECTIONS_PER_SERVER,
+                PreferencesActivity.MAX_CONNECTIONS_PER_SERVER_DEFAULT);
+        setPoolLimits(maxTotal, maxPerRoute);
+        Log.i(TAG, "Pool limits: " + maxTotal + " total, " + maxPerRoute + " per server");
+    }
+
+    private static int getInt(SharedPreferences settings, String key, String defaultValue) {
+        String value = settings.getString(key, defaultValue);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid " + key + " " + value);
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    /**
+     * Override the per-route connection limit for a single server.
+     *
+     * @param scheme "http" or "https"
+     * @param host server host name
+     * @param port server port, or -1 for the scheme default
+     * @param max maximum number of connections to that server
+     */
+    public void setMaxPerRoute(String scheme, String host, int port, int max) {
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        HttpRoute route = new HttpRoute(new HttpHost(host, port, scheme));
+        mConnectionManager.setMaxPerRoute(route, max);
+    }
+
+    /**
+     * Return a client whose connect timeout is {@code timeout} and whose
+     * socket timeout is twice that. Waiting for a free connection when the
+     * pool is at its limit is bounded by {@code timeout} as well. Clients are cached per timeout and are
+     * safe to use from several threads at once.
+     *
+     * @param timeout connection timeout in milliseconds
+     * @return HttpClient backed by the shared connection pool.
+     */
+    public synchronized HttpClient getHttpClient(int timeout) {
+        HttpClient client = mClients.get(timeout);
+        if (client == null) {
+            client = createHttpClient(timeout);
+            mClients.put(timeout, client);
+        }
+        return client;
+    }
+
+    private HttpClient createHttpClient(int timeout) {
+        // configure connection
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, timeout);
+        HttpConnectionParams.setSoTimeout(params, 2 * timeout);
+        // fail rather than wait forever behind long uploads for a pooled connection
+        params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, timeout);
+        // catch connections the server closed while they sat in the pool
+        params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, true);
+        // support redirecting to handle http: => https: transition
+        HttpClientParams.setRedirecting(params, true);
+        // support authenticating
+        HttpClientParams.setAuthenticating(params, true);
+        HttpClientParams.setCookiePolicy(params, CookiePolicy.BROWSER_COMPATIBILITY);
+        // if possible, bias toward digest auth
+        List<String> authPref = new ArrayList<String>();
+        authPref.add(AuthPolicy.DIGEST);
+        authPref.add(AuthPolicy.BASIC);
+        params.setParameter(AuthPNames.TARGET_AUTH_PREF, authPref);
+        params.setParameter(ClientPNames.MAX_REDIRECTS, 1);
+        params.setParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, true);
+
+        DefaultHttpClient httpclient = new DefaultHttpClient(mConnectionManager, params);
+        httpclient.setKeepAliveStrategy(new BoundedKeepAliveStrategy());
+        httpclient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                mRequestCount.incrementAndGet();
+            }
+        });
+        httpclient.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                HttpConnection conn =
+                        (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                // the metrics count the request just completed
+                if (conn != null && conn.getMetrics().getRequestCount() > 1) {
+                    mReusedCount.incrementAndGet();
+                }
+            }
+        });
+
+        // adds Accept-Encoding and gunzips/inflates the response entity
+        return new DecompressingHttpClient(httpclient);
+    }
+
+    /**
+     * Close connections that the server has told us are expired and those
+     * that have been idle for longer than {@link #IDLE_TIMEOUT_MS}. Leased
+     * connections and the pool itself are left untouched.
+     */
+    public void evictStaleConnections() {
+        mConnectionManager.closeExpiredConnections();
+        mConnectionManager.closeIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close every idle connection, e.g. after the device switches networks
+     * and pooled sockets are bound to the old interface.
+     */
+    public void closeIdleConnections() {
+        mConnectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    public Stats getStats() {
+        PoolStats pool = mConnectionManager.getTotalStats();
+        return new Stats(mRequestCount.get(), mReusedCount.get(), pool.getLeased(),
+                pool.getAvailable(), pool.getPending(), pool.getMax());
+    }
+
+    public void logStats() {
+        Log.i(TAG, getStats().toString());
+    }
+
+    /**
+     * Snapshot of the pool and of how often a request went out on an already
+     * open connection.
+     */
+    public static final class Stats {
+        public final long requests;
+        public final long reusedConnections;
+        public final int leased;
+        public final int available;
+        public final int pending;
+        public final int max;
+
+        Stats(long requests, long reusedConnections, int leased, int available, int pending,
+                int max) {
+            this.requests = requests;
+            this.reusedConnections = reusedConnections;
+            this.leased = leased;
+            this.available = available;
+            this.pending = pending;
+            this.max = max;
+        }
+
+        public double getReuseRatio() {
+            return requests == 0 ? 0.0 : ((double) reusedConnections) / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "requests: " + requests + ", reused: " + reusedConnections
+                    + ", leased: " + leased + ", available: " + available
+                    + ", pending: " + pending + ", max: " + max;
+        }
+    }
+
+    /**
+     * Honor the server's Keep-Alive timeout, but never keep a connection
+     * forever when the server does not send one.
+     */
+    private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final ConnectionKeepAliveStrategy mDefault = new DefaultConnectionKeepAliveStrategy();
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = mDefault.getKeepAliveDuration(response, context);
+            if (duration <= 0 || duration > DEFAULT_KEEP_ALIVE_MS) {
+                duration = DEFAULT_KEEP_ALIVE_MS;
+            }
+            return duration;
+        }
+    }
+
+    private class IdleConnectionMonitor extends Thread {
+        IdleConnectionMonitor() {
+            super(TAG + "-monitor");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(MONITOR_INTERVAL_MS);
+                    evictStaleConnections();
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }
+    }
+}
@@ -25,6 +25,10 @@ package org.odk.collect.android.utilities;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Debug;
+import android.util.Log;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -38,9 +42,39 @@ import java.io.IOException;
  * Last modified: 25 May 2016
  */
 public class ImageScaler {
+    private static final String TAG = ImageScaler.class.getSimpleName();
+
     private static final int IMAGE_COMPRESSION = 60;
 
-    public static void resize(String in, String out, int scaledWidth) {
+    // scratch buffer handed to the decoder; safe to share because resize() is synchronized
+    private static final byte[] sTempStorage = new byte[16 * 1024];
+
+    /**
+     * What one call to {@link #resize(String, String, int, Stats)} decoded, and how much memory
+     * was in use while it was at its largest.
+     */
+    public static class Stats {
+        public int sampleSize;
+        public int rotation;
+        public int width;
+        public int height;
+        public long bitmapBytes;
+        public long peakHeapBytes;
+    }
+
+    public static boolean resize(String in, String out, int scaledWidth) {
+        return resize(in, out, scaledWidth, null);
+    }
+
+    /**
+     * Decodes in at the largest power of two reduction that keeps both sides above
+     * scaledWidth, turns it upright according to its EXIF orientation and writes it to out as a
+     * JPEG. Calls are serialized so that at most one full size decode is in memory at a time.
+     *
+     * @return false if in could not be decoded or out could not be written
+     */
+    public static synchronized boolean resize(String in, String out, int scaledWidth,
+            Stats stats) {
         BitmapFactory.Options opts = getDimen(in);
         final int width = opts.outWidth;
         final int height = opts.outHeight;
@@ -59,23 +93,57 @@ public class ImageScaler {
         }
         opts.inSampleSize = inSampleSize;
         opts.inJustDecodeBounds = false;
+        opts.inTempStorage = sTempStorage;
         Bitmap bm = BitmapFactory.decodeFile(in, opts);
+        if (bm == null) {
+            Log.e(TAG, "Could not decode " + in);
+            return false;
+        }
+
+        int rotation = getRotation(in);
+        if (stats != null) {
+            stats.sampleSize = inSampleSize;
+            stats.rotation = rotation;
+            stats.bitmapBytes = (long) bm.getRowBytes() * bm.getHeight();
+            stats.peakHeapBytes = usedMemory();
+        }
+        if (rotation != 0) {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(rotation);
+            Bitmap rotated = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(),
+                    matrix, true);
+            if (stats != null) {
+                // both copies are alive at this point
+                stats.peakHeapBytes = Math.max(stats.peakHeapBytes, usedMemory());
+            }
+            if (rotated != bm) {
+                bm.recycle();
+                bm = rotated;
+            }
+        }
+        if (stats != null) {
+            stats.width = bm.getWidth();
+            stats.height = bm.getHeight();
+        }
+
+        boolean written = false;
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(out);
-            bm.compress(Bitmap.CompressFormat.JPEG, IMAGE_COMPRESSION, fos);
+            written = bm.compress(Bitmap.CompressFormat.JPEG, IMAGE_COMPRESSION, fos);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            bm.recycle();
             try {
-                if (out != null) {
+                if (fos != null) {
                     fos.close();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-
+        return written;
     }
 
     public static BitmapFactory.Options getDimen(String in) {
@@ -84,4 +152,34 @@ public class ImageScaler {
         BitmapFactory.decodeFile(in, opts);
         return opts;
     }
+
+    /**
+     * Degrees to rotate the image clockwise to show it upright. The JPEG written by
+     * {@link #resize} carries no EXIF, so the rotation has to be applied to the pixels.
+     */
+    public static int getRotation(String in) {
+        try {
+            ExifInterface exif = new ExifInterface(in);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read EXIF of " + in, e);
+            return 0;
+        }
+    }
+
+    // bitmap pixels live on the native heap before Honeycomb and on the Java heap after
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
 }
@@ -0,0 +1,697 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Packs the files of sent instances into compressed, append-only segments
+ * under Collect.ARCHIVE_PATH, so they stop sitting in the instances directory
+ * as loose files.
+ *
+ * Every file becomes one gzip member appended to the current segment, and a
+ * line appended to the index records where it went. Removing an instance only
+ * appends a tombstone line. compact() later copies the live members of mostly
+ * dead segments forward and rewrites the index. Nothing is read back until it
+ * is asked for: open() streams a single file, restore() puts the files of an
+ * instance back in its directory for viewing or sending again.
+ *
+ * Instances are keyed by the instance file path stored in the instances table.
+ */
+public class InstanceArchive {
+    private static final String t = "InstanceArchive";
+
+    private static final String INDEX_FILE = "index.txt";
+    private static final String INDEX_TEMP_FILE = "index.tmp";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".gz";
+
+    private static final long MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    // index lines are ADD sentOn segment offset length instancePath name,
+    // or REMOVE instancePath, separated by tabs
+    private static final String ADD = "A";
+    private static final String REMOVE = "R";
+    private static final String SEPARATOR = "\t";
+
+    private static InstanceArchive sInstance = null;
+
+    private static class Record {
+        final String name;
+        final long sentOn;
+        final long length;
+        int segment;
+        long offset;
+
+        Record(String name, long sentOn, int segment, long offset, long length) {
+            this.name = name;
+            this.sentOn = sentOn;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mDir;
+    private final long mMaxSegmentBytes;
+
+    // by instance file path, loaded on first use
+    private Map<String, List<Record>> mInstances = null;
+    private int mCurrentSegment;
+    // index lines that no longer describe a live record
+    private int mDeadLines;
+
+    public static synchronized InstanceArchive getInstance() {
+        if (sInstance == null) {
+            sInstance = new InstanceArchive(new File(Collect.ARCHIVE_PATH), MAX_SEGMENT_BYTES);
+        }
+        return sInstance;
+    }
+
+    InstanceArchive(File dir, long maxSegmentBytes) {
+        mDir = dir;
+        mMaxSegmentBytes = maxSegmentBytes;
+    }
+
+    public synchronized boolean contains(String instancePath) {
+        load();
+        return mInstances.containsKey(instancePath);
+    }
+
+    /**
+     * Moves the files of a sent instance into the archive. The loose files are
+     * only deleted once the segment and the index have reached the disk.
+     *
+     * @param instancePath the instance file path
+     * @param sentOn when the instance was sent, which the age policy uses
+     * @return true if the instance is now archived and its directory removed
+     */
+    public synchronized boolean archive(String instancePath, long sentOn) {
+        File instanceDir = new File(instancePath).getParentFile();
+        if (instanceDir == null || !instanceDir.isDirectory()
+                || Collect.isODKTablesInstanceDataDirectory(instanceDir)) {
+            return false;
+        }
+        File[] files = instanceDir.listFiles();
+        if (files == null || !isStorable(instancePath)) {
+            return false;
+        }
+        for (File f : files) {
+            // the index has no room for nested directories
+            if (!f.isFile() || !isStorable(f.getName())) {
+                Log.w(t, "Not archiving " + instancePath + " because of " + f.getName());
+                return false;
+            }
+        }
+
+        load();
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(t, "Unable to create " + mDir.getAbsolutePath());
+            return false;
+        }
+
+        List<Record> records = new ArrayList<Record>();
+        SegmentWriter writer = new SegmentWriter();
+        try {
+            try {
+                for (File f : files) {
+                    OutputStream out = writer.begin();
+                    long offset = writer.position();
+                    // shared media is archived as a copy under its own name
+                    InputStream in = new FileInputStream(MediaBlobStore.getInstance().resolve(f));
+                    GZIPOutputStream gz = new GZIPOutputStream(new KeepOpenOutputStream(out),
+                            BUFFER_SIZE);
+                    try {
+                        FileIOUtils.copy(in, gz);
+                    } finally {
+                        in.close();
+                        gz.close();
+                    }
+                    records.add(new Record(MediaBlobStore.getMediaName(f), sentOn, writer.segment(), offset,
+                            writer.position() - offset));
+                }
+            } finally {
+                writer.close();
+            }
+
+            List<String> lines = new ArrayList<String>();
+            if (mInstances.containsKey(instancePath)) {
+                // archived before and restored since; the new copy replaces it
+                mDeadLines += mInstances.remove(instancePath).size() + 1;
+                lines.add(REMOVE + SEPARATOR + instancePath);
+            }
+            for (Record r : records) {
+                lines.add(toLine(instancePath, r));
+            }
+            appendIndex(lines);
+            mInstances.put(instancePath, records);
+        } catch (IOException e) {
+            Log.e(t, "Unable to archive " + instancePath + ": " + e.toString());
+            return false;
+        }
+
+        for (File f : files) {
+            f.delete();
+        }
+        instanceDir.delete();
+        return true;
+    }
+
+    /**
+     * Opens one archived file of an instance without restoring the others.
+     *
+     * @return the uncompressed contents, or null if the file is not archived
+     */
+    public synchronized InputStream open(String instancePath, String name) throws IOException {
+        load();
+        List<Record> records = mInstances.get(instancePath);
+        if (records != null) {
+            for (Record r : records) {
+                if (r.name.equals(name)) {
+                    return open(r);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the files of an archived instance back into its directory and
+     * drops it from the archive, so the loose files are the only copy. It is
+     * archived again once it is sent, or when the form it was opened in is
+     * closed while it is still sent.
+     *
+     * @return true if the instance file exists afterwards
+     */
+    public synchronized boolean restore(String instancePath) {
+        File instanceFile = new File(instancePath);
+        load();
+        List<Record> records = mInstances.get(instancePath);
+        if (records == null || instanceFile.exists()) {
+            if (records != null) {
+                // a restore that died after writing the instance file
+                remove(Collections.singleton(instancePath));
+            }
+            return instanceFile.exists();
+        }
+        File instanceDir = instanceFile.getParentFile();
+        if (!instanceDir.exists() && !instanceDir.mkdirs()) {
+            Log.e(t, "Unable to create " + instanceDir.getAbsolutePath());
+            return false;
+        }
+
+        // the instance file goes last, so its presence means a whole instance
+        List<Record> ordered = new ArrayList<Record>(records.size());
+        Record instanceRecord = null;
+        for (Record r : records) {
+            if (r.name.equals(instanceFile.getName())) {
+                instanceRecord = r;
+            } else {
+                ordered.add(r);
+            }
+        }
+        if (instanceRecord != null) {
+            ordered.add(instanceRecord);
+        }
+        try {
+            for (Record r : ordered) {
+                File target = new File(instanceDir, r.name);
+                File temp = new File(instanceDir, r.name + ".restoring");
+                InputStream in = open(r);
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(temp);
+                    FileIOUtils.copy(in, out);
+                } finally {
+                    in.close();
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Unable to rename " + temp.getAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to restore " + instancePath + ": " + e.toString());
+            return false;
+        }
+        Log.i(t, "Restored " + ordered.size() + " files of " + instancePath);
+        if (!instanceFile.exists()) {
+            return false;
+        }
+        remove(Collections.singleton(instancePath));
+        return true;
+    }
+
+    /**
+     * Drops instances from the archive. Their bytes stay in the segments until
+     * compact() reclaims them.
+     */
+    public synchronized void remove(Collection<String> instancePaths) {
+        load();
+        List<String> lines = new ArrayList<String>();
+        for (String instancePath : instancePaths) {
+            List<Record> removed = mInstances.remove(instancePath);
+            if (removed != null) {
+                mDeadLines += removed.size() + 1;
+                lines.add(REMOVE + SEPARATOR + instancePath);
+            }
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            appendIndex(lines);
+        } catch (IOException e) {
+            // they come back on the next load and are dropped again then
+            Log.e(t, "Unable to append to the index: " + e.toString());
+        }
+    }
+
+    /**
+     * Drops the instances sent more than maxAge ago, then the oldest of the
+     * rest until the compressed size of what is left fits in maxBytes, and
+     * compacts the archive.
+     *
+     * @return the instance file paths that were dropped, so their rows can go
+     */
+    public synchronized List<String> applyPolicy(long maxAge, long maxBytes) {
+        load();
+        List<Map.Entry<String, List<Record>>> entries =
+                new ArrayList<Map.Entry<String, List<Record>>>(mInstances.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, List<Record>>>() {
+            @Override
+            public int compare(Map.Entry<String, List<Record>> lhs,
+                               Map.Entry<String, List<Record>> rhs) {
+                long l = lhs.getValue().get(0).sentOn;
+                long r = rhs.getValue().get(0).sentOn;
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        long total = 0;
+        for (Map.Entry<String, List<Record>> entry : entries) {
+            total += getLength(entry.getValue());
+        }
+        long cutoff = System.currentTimeMillis() - maxAge;
+        List<String> dropped = new ArrayList<String>();
+        for (Map.Entry<String, List<Record>> entry : entries) {
+            // oldest first, so once one is kept so are all the rest
+            if (entry.getValue().get(0).sentOn >= cutoff && total <= maxBytes) {
+                break;
+            }
+            dropped.add(entry.getKey());
+            total -= getLength(entry.getValue());
+        }
+        remove(dropped);
+
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.e(t, "Unable to compact the archive: " + e.toString());
+        }
+        Log.i(t, "Dropped " + dropped.size() + " instances, " + mInstances.size()
+                + " remain in " + total + " bytes");
+        return dropped;
+    }
+
+    /**
+     * Deletes segments with nothing live in them, copies the live members of
+     * segments that are more than half dead to the current segment, and
+     * rewrites the index once it is mostly tombstones.
+     */
+    private void compact() throws IOException {
+        Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+        int liveLines = 0;
+        for (List<Record> records : mInstances.values()) {
+            for (Record r : records) {
+                Long bytes = liveBytes.get(r.segment);
+                liveBytes.put(r.segment, (bytes == null ? 0 : bytes) + r.length);
+                liveLines++;
+            }
+        }
+
+        Set<Integer> moving = new HashSet<Integer>();
+        List<File> obsolete = new ArrayList<File>();
+        for (int segment : listSegments()) {
+            if (segment == mCurrentSegment) {
+                continue;
+            }
+            File f = getSegmentFile(segment);
+            Long bytes = liveBytes.get(segment);
+            if (bytes == null) {
+                obsolete.add(f);
+            } else if (bytes * 2 < f.length()) {
+                moving.add(segment);
+                obsolete.add(f);
+            }
+        }
+
+        if (!moving.isEmpty()) {
+            SegmentWriter writer = new SegmentWriter();
+            try {
+                for (List<Record> records : mInstances.values()) {
+                    for (Record r : records) {
+                        if (moving.contains(r.segment)) {
+                            OutputStream out = writer.begin();
+                            long offset = writer.position();
+                            copyRaw(r, out);
+                            r.segment = writer.segment();
+                            r.offset = offset;
+                        }
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        // the index must stop pointing at a segment before it is deleted
+        if (!moving.isEmpty() || mDeadLines > liveLines) {
+            writeIndex();
+        }
+        for (File f : obsolete) {
+            if (!f.delete()) {
+                Log.w(t, "Unable to delete " + f.getAbsolutePath());
+            }
+        }
+    }
+
+    private void load() {
+        if (mInstances != null) {
+            return;
+        }
+        mInstances = new LinkedHashMap<String, List<Record>>();
+        mDeadLines = 0;
+        boolean torn = false;
+
+        File index = new File(mDir, INDEX_FILE);
+        if (index.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(index), "UTF-8"), BUFFER_SIZE);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(SEPARATOR);
+                    if (parts.length == 7 && ADD.equals(parts[0])) {
+                        Record r;
+                        try {
+                            r = new Record(parts[6], Long.parseLong(parts[1]),
+                                    Integer.parseInt(parts[2]), Long.parseLong(parts[3]),
+                                    Long.parseLong(parts[4]));
+                        } catch (NumberFormatException e) {
+                            torn = true;
+                            continue;
+                        }
+                        List<Record> records = mInstances.get(parts[5]);
+                        if (records == null) {
+                            records = new ArrayList<Record>();
+                            mInstances.put(parts[5], records);
+                        }
+                        records.add(r);
+                    } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+                        List<Record> removed = mInstances.remove(parts[1]);
+                        mDeadLines += (removed == null ? 0 : removed.size()) + 1;
+                    } else {
+                        // a line cut short by a crash while appending
+                        torn = true;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(t, "Unable to read the index: " + e.toString());
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        mCurrentSegment = 1;
+        for (int segment : listSegments()) {
+            mCurrentSegment = Math.max(mCurrentSegment, segment);
+        }
+
+        if (torn) {
+            // appending after a partial line would corrupt the next one
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                Log.e(t, "Unable to rewrite the index: " + e.toString());
+            }
+        }
+        Log.i(t, "Loaded " + mInstances.size() + " archived instances");
+    }
+
+    private void appendIndex(List<String> lines) throws IOException {
+        writeLines(new FileOutputStream(new File(mDir, INDEX_FILE), true), lines);
+    }
+
+    private void writeIndex() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, List<Record>> entry : mInstances.entrySet()) {
+            for (Record r : entry.getValue()) {
+                lines.add(toLine(entry.getKey(), r));
+            }
+        }
+        File temp = new File(mDir, INDEX_TEMP_FILE);
+        writeLines(new FileOutputStream(temp), lines);
+        if (!temp.renameTo(new File(mDir, INDEX_FILE))) {
+            throw new IOException("Unable to replace the index");
+        }
+        mDeadLines = 0;
+    }
+
+    private static void writeLines(FileOutputStream out, List<String> lines) throws IOException {
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String toLine(String instancePath, Record r) {
+        return ADD + SEPARATOR + r.sentOn + SEPARATOR + r.segment + SEPARATOR + r.offset
+                + SEPARATOR + r.length + SEPARATOR + instancePath + SEPARATOR + r.name;
+    }
+
+    private static long getLength(List<Record> records) {
+        long length = 0;
+        for (Record r : records) {
+            length += r.length;
+        }
+        return length;
+    }
+
+    private List<Integer> listSegments() {
+        List<Integer> segments = new ArrayList<Integer>();
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(mDir, String.format(Locale.US, "%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private InputStream open(Record r) throws IOException {
+        return new GZIPInputStream(new SegmentInputStream(getSegmentFile(r.segment), r.offset,
+                r.length), BUFFER_SIZE);
+    }
+
+    private void copyRaw(Record r, OutputStream out) throws IOException {
+        InputStream in = new SegmentInputStream(getSegmentFile(r.segment), r.offset, r.length);
+        try {
+            FileIOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isStorable(String value) {
+        return value.indexOf('\t') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1;
+    }
+
+    /**
+     * Appends to the current segment, moving on to a new one once it is full.
+     * Closing syncs the segment, which has to happen before the index may
+     * refer to anything written.
+     */
+    private class SegmentWriter {
+        private FileOutputStream mOut = null;
+        private int mSegment;
+
+        OutputStream begin() throws IOException {
+            if (mOut != null && position() >= mMaxSegmentBytes) {
+                close();
+            }
+            if (mOut == null) {
+                if (getSegmentFile(mCurrentSegment).length() >= mMaxSegmentBytes) {
+                    mCurrentSegment++;
+                }
+                mSegment = mCurrentSegment;
+                mOut = new FileOutputStream(getSegmentFile(mSegment), true);
+            }
+            return mOut;
+        }
+
+        int segment() {
+            return mSegment;
+        }
+
+        long position() throws IOException {
+            return mOut.getChannel().size();
+        }
+
+        void close() throws IOException {
+            if (mOut != null) {
+                try {
+                    mOut.getFD().sync();
+                } finally {
+                    mOut.close();
+                    mOut = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets a gzip stream be finished and released without closing the
+     * segment it was written to.
+     */
+    private static class KeepOpenOutputStream extends FilterOutputStream {
+        KeepOpenOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Reads length bytes of a segment starting at offset.
+     */
+    private static class SegmentInputStream extends InputStream {
+        private final RandomAccessFile mFile;
+        private long mRemaining;
+
+        SegmentInputStream(File segment, long offset, long length) throws IOException {
+            mFile = new RandomAccessFile(segment, "r");
+            try {
+                mFile.seek(offset);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = mFile.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = mFile.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Content-addressed store for media that several instances or form versions
+ * hold identical copies of, such as a parent's photo carried into each child
+ * form.
+ *
+ * Blobs live under Collect.BLOBS_PATH, named by their SHA-256. Where the file
+ * system has hard links, a file placed through the store is a link to its
+ * blob, so it is still a real file to everything that reads it, and the link
+ * count of a blob is its reference count.
+ *
+ * Hard links need API 21 and a file system that has them; the emulated
+ * external storage of most devices does not. There a child instead gets a
+ * small reference file, named after the media with REFERENCE_SUFFIX, that
+ * holds the hash of its blob. The uploader and the archive read through
+ * resolve(), and anything that edits the media in place calls materialize()
+ * first to turn the references back into real files.
+ */
+public class MediaBlobStore {
+    private static final String t = "MediaBlobStore";
+
+    public static final String REFERENCE_SUFFIX = ".blobref";
+
+    private static final String NO_MEDIA = ".nomedia";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static MediaBlobStore sInstance = null;
+
+    private final File mDir;
+    private final File mInstancesDir;
+
+    // null until the first link attempt tells us
+    private Boolean mLinksSupported = null;
+
+    private long mFilesShared = 0;
+    private long mBytesSaved = 0;
+
+    // what reading and copying media costs here, to estimate the time saved
+    private long mHashedBytes = 0;
+    private long mHashMillis = 0;
+    private long mCopiedBytes = 0;
+    private long mCopyMillis = 0;
+
+    public static synchronized MediaBlobStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new MediaBlobStore(new File(Collect.BLOBS_PATH),
+                    new File(Collect.INSTANCES_PATH));
+        }
+        return sInstance;
+    }
+
+    MediaBlobStore(File dir, File instancesDir) {
+        mDir = dir;
+        mInstancesDir = instancesDir;
+    }
+
+    /**
+     * Puts a copy of source at target, sharing the bytes through the store
+     * when it can.
+     *
+     * @return null on success, or an error message as FileUtils.copyFile gives
+     */
+    public synchronized String copy(File source, File target) {
+        // the source may itself be a child whose media is a reference
+        source = resolve(source);
+        if (source.exists()) {
+            String hash = getHash(source);
+            if (hash != null) {
+                File blob = getBlobFile(hash);
+                // adding a blob by copying costs what the plain copy would have
+                boolean saved = blob.exists() || linksSupported();
+                if ((blob.exists() || addBlob(source, blob)) && place(blob, hash, target)) {
+                    if (saved) {
+                        record(source.length());
+                    }
+                    return null;
+                }
+            }
+        }
+        return FileUtils.copyFile(source, target);
+    }
+
+    /**
+     * Replaces a file with a link to the blob of the same content, adding the
+     * blob if it is new, so identical media across form versions are stored
+     * once. Form media must stay real files, so without hard links this does
+     * nothing.
+     */
+    public synchronized void deduplicate(File file) {
+        // more than one link means it already shares its bytes
+        if (!file.isFile() || !linksSupported() || getLinkCount(file) > 1) {
+            return;
+        }
+        String hash = getHash(file);
+        if (hash == null) {
+            return;
+        }
+        File blob = getBlobFile(hash);
+        if (!blob.exists()) {
+            // the file becomes the blob's first reference, nothing to save yet
+            addBlob(file, blob);
+        } else if (!isSameFile(blob, file) && replaceWithLink(blob, file)) {
+            record(file.length());
+        }
+    }
+
+    /**
+     * @return the file to read for the media at file, which is the blob when
+     * file is a reference or the media has one; otherwise file itself
+     */
+    public synchronized File resolve(File file) {
+        File reference = isReference(file) ? file
+                : new File(file.getParentFile(), file.getName() + REFERENCE_SUFFIX);
+        if (!reference.isFile()) {
+            return file;
+        }
+        String hash = readReference(reference);
+        return hash == null ? file : getBlobFile(hash);
+    }
+
+    /**
+     * Replaces every reference in an instance directory with a real copy of
+     * its media, for when the media is about to be shown, edited or
+     * encrypted.
+     *
+     * @return true if no references are left
+     */
+    public synchronized boolean materialize(File instanceDir) {
+        File[] files = instanceDir.listFiles();
+        if (files == null) {
+            return true;
+        }
+        boolean allMaterialized = true;
+        for (File reference : files) {
+            if (!isReference(reference)) {
+                continue;
+            }
+            File blob = resolve(reference);
+            File target = new File(instanceDir, getMediaName(reference));
+            long start = System.currentTimeMillis();
+            if (blob != reference && FileUtils.copyFile(blob, target) == null) {
+                mCopiedBytes += blob.length();
+                mCopyMillis += System.currentTimeMillis() - start;
+                reference.delete();
+            } else {
+                Log.e(t, "Unable to materialize " + target.getAbsolutePath());
+                allMaterialized = false;
+            }
+        }
+        return allMaterialized;
+    }
+
+    /**
+     * Deletes the blobs that neither a link nor a reference file in an
+     * instance still refers to.
+     *
+     * @return the number of bytes freed
+     */
+    public synchronized long prune() {
+        if (!mDir.exists()) {
+            return 0;
+        }
+        File[] buckets = mDir.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+        Set<String> referenced = getReferencedHashes();
+        // without st_nlink (before API 21) only the reference files can tell
+        boolean countsKnown = linksSupported();
+        long freed = 0;
+        for (File bucket : buckets) {
+            File[] blobs = bucket.isDirectory() ? bucket.listFiles() : null;
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                if (referenced.contains(blob.getName())) {
+                    continue;
+                }
+                long count = getLinkCount(blob);
+                if (count == 1 || (count == -1 && !countsKnown)) {
+                    long length = blob.length();
+                    if (blob.delete()) {
+                        freed += length;
+                    }
+                }
+            }
+        }
+        Log.i(t, "Pruned " + freed + " bytes of unreferenced media");
+        return freed;
+    }
+
+    public static boolean isReference(File file) {
+        return file.getName().endsWith(REFERENCE_SUFFIX);
+    }
+
+    /**
+     * @return the name of the media a file holds or refers to
+     */
+    public static String getMediaName(File file) {
+        String name = file.getName();
+        return isReference(file)
+                ? name.substring(0, name.length() - REFERENCE_SUFFIX.length()) : name;
+    }
+
+    private void record(long bytes) {
+        mFilesShared++;
+        mBytesSaved += bytes;
+        // a copy reads as much as hashing does and writes it too, so until
+        // this device has made a copy of its own the hash rate is a floor
+        String estimate;
+        if (mCopiedBytes > 0) {
+            estimate = "about " + (mBytesSaved * mCopyMillis / mCopiedBytes);
+        } else if (mHashedBytes > 0) {
+            estimate = "at least " + (mBytesSaved * mHashMillis / mHashedBytes);
+        } else {
+            estimate = "an unknown number of";
+        }
+        Log.i(t, "Shared instead of copying " + bytes + " bytes; " + mFilesShared
+                + " files and " + mBytesSaved + " bytes saved so far, " + estimate
+                + " ms of copying avoided");
+    }
+
+    /**
+     * Puts the blob at target as a link, or failing that as a reference file,
+     * and removes whichever form target had before.
+     */
+    private boolean place(File blob, String hash, File target) {
+        File reference = new File(target.getParentFile(), target.getName() + REFERENCE_SUFFIX);
+        if (linksSupported()) {
+            if (!replaceWithLink(blob, target)) {
+                return false;
+            }
+            reference.delete();
+            return true;
+        }
+        if (!writeReference(reference, hash)) {
+            return false;
+        }
+        target.delete();
+        return true;
+    }
+
+    private boolean addBlob(File source, File blob) {
+        File bucket = blob.getParentFile();
+        if (!bucket.exists() && !bucket.mkdirs()) {
+            Log.e(t, "Unable to create " + bucket.getAbsolutePath());
+            return false;
+        }
+        File noMedia = new File(mDir, NO_MEDIA);
+        if (!noMedia.exists()) {
+            try {
+                noMedia.createNewFile();
+            } catch (IOException e) {
+                Log.w(t, "Unable to create " + noMedia.getAbsolutePath());
+            }
+        }
+        if (linksSupported()) {
+            return link(source, blob);
+        }
+        // copied under a temporary name so a blob is never seen half written
+        File temp = new File(bucket, blob.getName() + TEMP_SUFFIX);
+        long start = System.currentTimeMillis();
+        if (FileUtils.copyFile(source, temp) != null || !temp.renameTo(blob)) {
+            temp.delete();
+            return false;
+        }
+        mCopiedBytes += source.length();
+        mCopyMillis += System.currentTimeMillis() - start;
+        return true;
+    }
+
+    /**
+     * Links blob to target through a temporary name, so target is never left
+     * missing if the link fails.
+     */
+    private boolean replaceWithLink(File blob, File target) {
+        File temp = new File(target.getParentFile(), target.getName() + TEMP_SUFFIX);
+        temp.delete();
+        if (!link(blob, temp)) {
+            return false;
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeReference(File reference, String hash) {
+        File temp = new File(reference.getParentFile(), reference.getName() + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(hash.getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (temp.renameTo(reference)) {
+                return true;
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to write " + reference.getAbsolutePath() + ": " + e.toString());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        temp.delete();
+        return false;
+    }
+
+    private static String readReference(File reference) {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(reference), "UTF-8"));
+            String hash = in.readLine();
+            return hash == null ? null : hash.trim();
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + reference.getAbsolutePath() + ": " + e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private Set<String> getReferencedHashes() {
+        Set<String> hashes = new HashSet<String>();
+        File[] instanceDirs = mInstancesDir.listFiles();
+        if (instanceDirs == null) {
+            return hashes;
+        }
+        for (File instanceDir : instanceDirs) {
+            File[] files = instanceDir.isDirectory() ? instanceDir.listFiles() : null;
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (isReference(f)) {
+                    String hash = readReference(f);
+                    if (hash != null) {
+                        hashes.add(hash);
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private boolean linksSupported() {
+        if (mLinksSupported == null) {
+            mLinksSupported = Build.VERSION.SDK_INT >= 21 && probeLinks();
+            Log.i(t, "Hard links " + (mLinksSupported ? "are" : "are not") + " available");
+        }
+        return mLinksSupported;
+    }
+
+    private boolean probeLinks() {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            return false;
+        }
+        File probe = new File(mDir, "probe" + TEMP_SUFFIX);
+        File probeLink = new File(mDir, "probe-link" + TEMP_SUFFIX);
+        try {
+            probe.createNewFile();
+            probeLink.delete();
+            return link(probe, probeLink);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            probe.delete();
+            probeLink.delete();
+        }
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(new File(mDir, hash.substring(0, 2)), hash);
+    }
+
+    private String getHash(File file) {
+        try {
+            long start = System.currentTimeMillis();
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            FileIOUtils.update(md, file);
+            String hash = new BigInteger(1, md.digest()).toString(16);
+            while (hash.length() < 64) {
+                hash = "0" + hash;
+            }
+            mHashedBytes += file.length();
+            mHashMillis += System.currentTimeMillis() - start;
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(t, e.toString());
+            return null;
+        } catch (IOException e) {
+            Log.e(t, "Unable to hash " + file.getAbsolutePath() + ": " + e.toString());
+            return null;
+        }
+    }
+
+    // android.system.Os is API 21, so it is reached by reflection
+    private static boolean link(File existing, File newPath) {
+        try {
+            Class<?> os = Class.forName("android.system.Os");
+            Method link = os.getMethod("link", String.class, String.class);
+            link.invoke(null, existing.getAbsolutePath(), newPath.getAbsolutePath());
+            return true;
+        } catch (Exception e) {
+            Log.w(t, "Unable to link " + newPath.getAbsolutePath() + ": " + e.toString());
+            return false;
+        }
+    }
+
+    private static long getLinkCount(File file) {
+        try {
+            Object stat = stat(file);
+            return stat.getClass().getField("st_nlink").getLong(stat);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static boolean isSameFile(File a, File b) {
+        try {
+            Object statA = stat(a);
+            Object statB = stat(b);
+            return statA.getClass().getField("st_ino").getLong(statA)
+                    == statB.getClass().getField("st_ino").getLong(statB)
+                    && statA.getClass().getField("st_dev").getLong(statA)
+                    == statB.getClass().getField("st_dev").getLong(statB);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static Object stat(File file) throws Exception {
+        Class<?> os = Class.forName("android.system.Os");
+        return os.getMethod("stat", String.class).invoke(null, file.getAbsolutePath());
+    }
+}
@@ -51,6 +51,9 @@ import android.util.Log;
 public class MediaUtils {
 	private static final String t = "MediaUtils";
 
+	// stays under SQLite's limit of 999 bound arguments
+	private static final int MEDIA_DELETE_CHUNK = 500;
+
 	private MediaUtils() {
 		// static methods only
 	}
@@ -408,6 +411,41 @@ public class MediaUtils {
 		return count;
 	}
 
+	/**
+	 * Removes the media provider entries of many files at once, with one
+	 * delete per media type for each chunk of paths rather than a query and a
+	 * delete per folder and type. The files themselves are left alone.
+	 *
+	 * @param paths absolute paths of the files
+	 * @return the number of entries removed
+	 */
+	public static final int deleteFilesFromMediaProvider(List<String> paths) {
+		ContentResolver cr = Collect.getInstance().getContentResolver();
+		Uri[] contentUris = { Images.Media.EXTERNAL_CONTENT_URI,
+				Audio.Media.EXTERNAL_CONTENT_URI, Video.Media.EXTERNAL_CONTENT_URI };
+		int count = 0;
+		for (int start = 0; start < paths.size(); start += MEDIA_DELETE_CHUNK) {
+			List<String> chunk = paths.subList(start,
+					Math.min(start + MEDIA_DELETE_CHUNK, paths.size()));
+			StringBuilder select = new StringBuilder(MediaStore.MediaColumns.DATA + " IN (");
+			for (int i = 0; i < chunk.size(); i++) {
+				select.append(i == 0 ? "?" : ",?");
+			}
+			select.append(")");
+			String[] selectArgs = chunk.toArray(new String[chunk.size()]);
+			for (Uri contentUri : contentUris) {
+				try {
+					count += cr.delete(contentUri, select.toString(), selectArgs);
+				} catch (Exception e) {
+					Log.e(t, e.toString());
+				}
+			}
+		}
+		Log.i(t, "removed " + count + " entries from content providers for "
+				+ paths.size() + " files");
+		return count;
+	}
+
 	/**
 	 * Consolidates the file path determination functionality of the various
 	 * media prompts. Beginning with KitKat, the responses use a different
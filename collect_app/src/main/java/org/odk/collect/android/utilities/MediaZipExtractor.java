@@ -0,0 +1,275 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.util.Log;
+
+import org.odk.collect.android.listeners.MediaExtractionListener;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Expands the zips in a form media folder, several entries at a time.
+ *
+ * Each zip is extracted into a hidden working directory next to it. An entry
+ * is written to a .part file and renamed once complete, so after the app is
+ * killed the next run skips the entries that are already there. When every
+ * entry of a zip is in place, the files are renamed into the media folder
+ * and only then is the zip deleted; a zip still present means the work is
+ * unfinished.
+ */
+public final class MediaZipExtractor {
+    private static final String t = "MediaZipExtractor";
+
+    private static final int THREADS = 3;
+    private static final String WORK_DIR_PREFIX = ".";
+    private static final String WORK_DIR_SUFFIX = ".extracting";
+    private static final String PART_SUFFIX = ".part";
+    // report at most this often, in bytes
+    private static final long PROGRESS_STEP = 1024 * 1024;
+
+    private MediaZipExtractor() {
+    }
+
+    private static class Job {
+        final ZipFile zip;
+        final ZipEntry entry;
+        final File target;
+
+        Job(ZipFile zip, ZipEntry entry, File target) {
+            this.zip = zip;
+            this.entry = entry;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Expands every zip in the media folder and deletes the zips that were
+     * fully expanded.
+     *
+     * @param listener may be null
+     * @return true if no zip is left behind
+     */
+    public static boolean extractAll(File mediaDir, final MediaExtractionListener listener) {
+        File[] zipFiles = mediaDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase().endsWith(".zip");
+            }
+        });
+        if (zipFiles == null || zipFiles.length == 0) {
+            return true;
+        }
+
+        long start = System.currentTimeMillis();
+        List<ZipFile> zips = new ArrayList<ZipFile>();
+        List<File> workDirs = new ArrayList<File>();
+        List<Job> jobs = new ArrayList<Job>();
+        long total = 0;
+        long alreadyDone = 0;
+        boolean ok = true;
+        try {
+            for (File zipFile : zipFiles) {
+                File workDir = new File(mediaDir, WORK_DIR_PREFIX + zipFile.getName() + WORK_DIR_SUFFIX);
+                ZipFile zip;
+                try {
+                    zip = new ZipFile(zipFile);
+                } catch (IOException e) {
+                    Log.e(t, "Unable to open " + zipFile.getName() + ": " + e.toString());
+                    ok = false;
+                    continue;
+                }
+                if (!workDir.exists() && !workDir.mkdirs()) {
+                    Log.e(t, "Unable to create " + workDir.getAbsolutePath());
+                    closeQuietly(zip);
+                    ok = false;
+                    continue;
+                }
+                zips.add(zip);
+                workDirs.add(workDir);
+
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String fileName = entry.getName();
+                    if (entry.isDirectory() || fileName.contains("/") || fileName.contains("\\")) {
+                        // a file inside a directory, which media folders don't have
+                        Log.w(t, "Ignored: " + fileName);
+                        continue;
+                    }
+                    long size = getSize(entry);
+                    total += size;
+                    File target = new File(workDir, fileName);
+                    if (target.exists() && target.length() == entry.getSize()) {
+                        // extracted before the app was stopped
+                        alreadyDone += size;
+                        continue;
+                    }
+                    jobs.add(new Job(zip, entry, target));
+                }
+            }
+
+            ok &= extractConcurrently(jobs, total, alreadyDone, listener);
+
+            for (int i = 0; i < zips.size(); i++) {
+                File zipFile = new File(zips.get(i).getName());
+                if (ok && moveAll(workDirs.get(i), mediaDir)) {
+                    closeQuietly(zips.get(i));
+                    if (!zipFile.delete()) {
+                        Log.w(t, "Cannot delete " + zipFile + ". It will be re-unzipped next time.");
+                    }
+                } else {
+                    ok = false;
+                }
+            }
+        } finally {
+            for (ZipFile zip : zips) {
+                closeQuietly(zip);
+            }
+        }
+        Log.i(t, "Extracted " + total + " bytes from " + zipFiles.length + " zips in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return ok;
+    }
+
+    private static boolean extractConcurrently(List<Job> jobs, final long total, long alreadyDone,
+                                               final MediaExtractionListener listener) {
+        if (jobs.isEmpty()) {
+            return true;
+        }
+        final AtomicLong done = new AtomicLong(alreadyDone);
+        final AtomicLong reported = new AtomicLong(alreadyDone);
+        if (listener != null) {
+            listener.extractionProgress(alreadyDone, total);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, jobs.size()));
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (final Job job : jobs) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        extract(job);
+                    } catch (IOException e) {
+                        Log.e(t, "Unable to extract " + job.entry.getName() + ": " + e.toString());
+                        return false;
+                    }
+                    long now = done.addAndGet(getSize(job.entry));
+                    long last = reported.get();
+                    if (listener != null && (now - last >= PROGRESS_STEP || now == total)
+                            && reported.compareAndSet(last, now)) {
+                        listener.extractionProgress(now, total);
+                    }
+                    return true;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        boolean ok = true;
+        for (Future<Boolean> result : results) {
+            try {
+                ok &= result.get();
+            } catch (Exception e) {
+                Log.e(t, "Extraction interrupted: " + e.toString());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private static void extract(Job job) throws IOException {
+        File part = new File(job.target.getParentFile(), job.target.getName() + PART_SUFFIX);
+        InputStream in = job.zip.getInputStream(job.entry);
+        try {
+            OutputStream out = new FileOutputStream(part);
+            try {
+                FileIOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!part.renameTo(job.target)) {
+            throw new IOException("Unable to rename " + part.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Renames the extracted files into the media folder, replacing older
+     * copies, and removes the working directory.
+     */
+    private static boolean moveAll(File workDir, File mediaDir) {
+        File[] files = workDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File f : files) {
+            if (f.getName().endsWith(PART_SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            File target = new File(mediaDir, f.getName());
+            if (target.exists() && !target.delete()) {
+                Log.e(t, "Unable to replace " + target.getAbsolutePath());
+                return false;
+            }
+            if (!f.renameTo(target)) {
+                Log.e(t, "Unable to move " + f.getAbsolutePath());
+                return false;
+            }
+        }
+        return workDir.delete();
+    }
+
+    private static long getSize(ZipEntry entry) {
+        long size = entry.getSize();
+        return size >= 0 ? size : Math.max(entry.getCompressedSize(), 0);
+    }
+
+    private static void closeQuietly(ZipFile zip) {
+        try {
+            zip.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
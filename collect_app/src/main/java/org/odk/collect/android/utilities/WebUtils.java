@@ -41,7 +41,6 @@ import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.auth.AuthScope;
 import org.opendatakit.httpclientandroidlib.auth.Credentials;
 import org.opendatakit.httpclientandroidlib.auth.UsernamePasswordCredentials;
-import org.opendatakit.httpclientandroidlib.auth.params.AuthPNames;
 import org.opendatakit.httpclientandroidlib.client.AuthCache;
 import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
 import org.opendatakit.httpclientandroidlib.client.HttpClient;
@@ -49,17 +48,9 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpHead;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
 import org.opendatakit.httpclientandroidlib.client.params.AuthPolicy;
-import org.opendatakit.httpclientandroidlib.client.params.ClientPNames;
-import org.opendatakit.httpclientandroidlib.client.params.CookiePolicy;
-import org.opendatakit.httpclientandroidlib.client.params.HttpClientParams;
 import org.opendatakit.httpclientandroidlib.client.protocol.ClientContext;
-import org.opendatakit.httpclientandroidlib.conn.ClientConnectionManager;
 import org.opendatakit.httpclientandroidlib.impl.auth.BasicScheme;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicAuthCache;
-import org.opendatakit.httpclientandroidlib.impl.client.DefaultHttpClient;
-import org.opendatakit.httpclientandroidlib.params.BasicHttpParams;
-import org.opendatakit.httpclientandroidlib.params.HttpConnectionParams;
-import org.opendatakit.httpclientandroidlib.params.HttpParams;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 import org.xmlpull.v1.XmlPullParser;
 
@@ -89,7 +80,13 @@ public final class WebUtils {
 	public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
 	public static final String GZIP_CONTENT_ENCODING = "gzip";
 
-	private static ClientConnectionManager httpConnectionManager = null;
+	// advertised by servers on the submission HEAD response when they accept
+	// compressed submissions
+	public static final String OPEN_ROSA_ACCEPT_CONTENT_ENCODING_HEADER = "X-OpenRosa-Accept-Content-Encoding";
+	// the whole multipart body is gzipped (Content-Encoding: gzip on the request)
+	public static final String SUBMISSION_ENCODING_GZIP = "gzip";
+	// only the xml and text parts are gzipped (Content-Encoding: gzip on the part)
+	public static final String SUBMISSION_ENCODING_GZIP_PARTS = "gzip-parts";
 
 	public static final List<AuthScope> buildAuthScopes(String host) {
 		List<AuthScope> asList = new ArrayList<AuthScope>();
@@ -237,48 +234,46 @@ public final class WebUtils {
 	}
 
 	/**
-	 * Create an httpClient with connection timeouts and other parameters set.
-	 * Save and reuse the connection manager across invocations (this is what
-	 * requires synchronized access).
+	 * Return an httpClient with connection timeouts and other parameters set.
+	 * All clients share the pooled connection manager of {@link HttpTransport}.
 	 *
 	 * @param timeout
 	 * @return HttpClient properly configured.
 	 */
-	public static final synchronized HttpClient createHttpClient(int timeout) {
-		// configure connection
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(params, timeout);
-		HttpConnectionParams.setSoTimeout(params, 2 * timeout);
-		// support redirecting to handle http: => https: transition
-		HttpClientParams.setRedirecting(params, true);
-		// support authenticating
-		HttpClientParams.setAuthenticating(params, true);
-		HttpClientParams.setCookiePolicy(params,
-				CookiePolicy.BROWSER_COMPATIBILITY);
-		// if possible, bias toward digest auth (may not be in 4.0 beta 2)
-		List<String> authPref = new ArrayList<String>();
-		authPref.add(AuthPolicy.DIGEST);
-		authPref.add(AuthPolicy.BASIC);
-		// does this work in Google's 4.0 beta 2 snapshot?
-		params.setParameter(AuthPNames.TARGET_AUTH_PREF, authPref);
-		params.setParameter(ClientPNames.MAX_REDIRECTS, 1);
-		params.setParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, true);
-
-		// setup client
-		DefaultHttpClient httpclient;
-
-		// reuse the connection manager across all clients this ODK Collect
-		// creates.
-		if (httpConnectionManager == null) {
-			// let Apache stack create a connection manager.
-			httpclient = new DefaultHttpClient(params);
-			httpConnectionManager = httpclient.getConnectionManager();
-		} else {
-			// reuse the connection manager we already got.
-			httpclient = new DefaultHttpClient(httpConnectionManager, params);
-		}
+	public static final HttpClient createHttpClient(int timeout) {
+		return HttpTransport.getInstance().getHttpClient(timeout);
+	}
 
-		return httpclient;
+	/**
+	 * Determine which compressed submission encoding, if any, the server
+	 * advertised on its HEAD response. Compressing only the xml and text parts
+	 * is preferred because attached media is already compressed.
+	 *
+	 * @param response
+	 * @return SUBMISSION_ENCODING_GZIP_PARTS, SUBMISSION_ENCODING_GZIP or null
+	 */
+	public static final String getAcceptedSubmissionEncoding(HttpResponse response) {
+		boolean parts = false;
+		boolean body = false;
+		Header[] fields = response.getHeaders(OPEN_ROSA_ACCEPT_CONTENT_ENCODING_HEADER);
+		if (fields != null) {
+			for (Header h : fields) {
+				for (String token : h.getValue().split(",")) {
+					token = token.trim().toLowerCase(Locale.ENGLISH);
+					if (SUBMISSION_ENCODING_GZIP_PARTS.equals(token)) {
+						parts = true;
+					} else if (SUBMISSION_ENCODING_GZIP.equals(token)) {
+						body = true;
+					}
+				}
+			}
+		}
+		if (parts) {
+			return SUBMISSION_ENCODING_GZIP_PARTS;
+		} else if (body) {
+			return SUBMISSION_ENCODING_GZIP;
+		}
+		return null;
 	}
 
 	/**
@@ -457,7 +452,7 @@ public final class WebUtils {
 			}
 			return new DocumentFetchResult(doc, isOR);
 		} catch (Exception e) {
-			clearHttpConnectionManager();
+			evictStaleConnections();
 			e.printStackTrace();
 			String cause;
 			Throwable c = e;
@@ -473,15 +468,12 @@ public final class WebUtils {
 		}
 	}
 
-	public static void clearHttpConnectionManager() {
-		// If we get an unexpected exception, the safest thing is to close
-		// all connections
-		// so that if there is garbage on the connection we ensure it is
-		// removed. This
-		// is especially important if the connection times out.
-		if ( httpConnectionManager != null ) {
-			httpConnectionManager.shutdown();
-			httpConnectionManager = null;
-		}
+	/**
+	 * Drop expired and long-idle connections after a failed request. The pool
+	 * itself is kept; the connection that failed has already been discarded
+	 * by the client.
+	 */
+	public static void evictStaleConnections() {
+		HttpTransport.getInstance().evictStaleConnections();
 	}
 }
@@ -91,7 +91,7 @@ public final class ZipUtils {
         FileOutputStream fileOutputStream = null;
         try {
             fileOutputStream = new FileOutputStream(targetFile);
-            IOUtils.copy(zipInputStream, fileOutputStream);
+            FileIOUtils.copy(zipInputStream, fileOutputStream);
         } finally {
             IOUtils.closeQuietly(fileOutputStream);
         }
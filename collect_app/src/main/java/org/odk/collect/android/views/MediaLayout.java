@@ -22,7 +22,7 @@ import org.javarosa.core.reference.ReferenceManager;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.AudioPlayListener;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.widgets.QuestionWidget;
 
 import android.app.Activity;
@@ -218,12 +218,14 @@ public class MediaLayout extends RelativeLayout implements OnClickListener {
                                 .getDefaultDisplay();
                     int screenWidth = display.getWidth();
                     int screenHeight = display.getHeight();
-                    Bitmap b = FileUtils.getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                    if (b != null) {
+                    // only the header is read here; the image is decoded in the background
+                    int[] size = BitmapCache.getInstance().getSize(imageFile, screenHeight, screenWidth, true);
+                    if (size != null) {
                         mImageView = new ImageView(getContext());
                         mImageView.setPadding(2, 2, 2, 2);
                         mImageView.setBackgroundColor(Color.WHITE);
-                        mImageView.setImageBitmap(b);
+                        BitmapCache.getInstance().loadBitmap(imageFile, screenHeight, screenWidth,
+                                mImageView, true, size, null);
                         mImageView.setId(imageId);
 
                         if (bigImageURI != null) {
@@ -40,9 +40,11 @@ import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.widgets.IBinaryWidget;
 import org.odk.collect.android.widgets.QuestionWidget;
 import org.odk.collect.android.widgets.WidgetFactory;
+import org.odk.collect.android.widgets.WidgetPool;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -66,12 +68,34 @@ public class ODKView extends ScrollView implements OnLongClickListener {
     private LinearLayout.LayoutParams mLayout;
     private ArrayList<QuestionWidget> widgets;
     private Handler h = null;
+    // readOnlyOverride the widgets were built with
+    private boolean mReadOnlyOverride = false;
     
     public final static String FIELD_LIST = "field-list";
 
     public ODKView(Context context, final FormEntryPrompt[] questionPrompts,
             FormEntryCaption[] groups, boolean advancingPage) {
+        this(context, questionPrompts, groups, advancingPage, null);
+    }
+
+    /**
+     * @param pool if not null, widgets are taken from this pool where possible
+     */
+    public ODKView(Context context, final FormEntryPrompt[] questionPrompts,
+            FormEntryCaption[] groups, boolean advancingPage, WidgetPool pool) {
+        this(context, questionPrompts, groups, advancingPage, pool, null);
+    }
+
+    /**
+     * @param prebuilt if not null, the widgets for questionPrompts that were
+     *            built ahead of time, e.g. a few at a time while the UI thread
+     *            was idle; null entries are built here
+     */
+    public ODKView(Context context, final FormEntryPrompt[] questionPrompts,
+            FormEntryCaption[] groups, boolean advancingPage, WidgetPool pool,
+            QuestionWidget[] prebuilt) {
         super(context);
+        long start = SystemClock.uptimeMillis();
 
         widgets = new ArrayList<QuestionWidget>();
 
@@ -172,7 +196,8 @@ public class ODKView extends ScrollView implements OnLongClickListener {
 
         boolean first = true;
         int id = 0;
-        for (FormEntryPrompt p : questionPrompts) {
+        for (int i = 0; i < questionPrompts.length; i++) {
+            FormEntryPrompt p = questionPrompts[i];
             if (!first) {
                 View divider = new View(getContext());
                 divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
@@ -183,8 +208,14 @@ public class ODKView extends ScrollView implements OnLongClickListener {
             }
 
             // if question or answer type is not supported, use text widget
-            QuestionWidget qw =
-                WidgetFactory.createWidgetFromPrompt(p, getContext(), readOnlyOverride);
+            QuestionWidget qw;
+            if (prebuilt != null && prebuilt[i] != null) {
+                qw = prebuilt[i];
+            } else if (pool != null) {
+                qw = pool.obtain(p, getContext(), readOnlyOverride);
+            } else {
+                qw = WidgetFactory.createWidgetFromPrompt(p, getContext(), readOnlyOverride);
+            }
             qw.setLongClickable(true);
             qw.setOnLongClickListener(this);
             qw.setId(VIEW_ID + id++);
@@ -196,10 +227,24 @@ public class ODKView extends ScrollView implements OnLongClickListener {
         }
 
         addView(mView);
+        mReadOnlyOverride = readOnlyOverride;
+        if (pool != null) {
+            pool.logStats(SystemClock.uptimeMillis() - start);
+        }
 
         // see if there is an autoplay option. 
         // Only execute it during forward swipes through the form 
-        if ( advancingPage && widgets.size() == 1 ) {
+        if ( advancingPage ) {
+            startAutoplay();
+        }
+    }
+
+    /**
+     * Plays the audio or video of a single question screen marked autoplay. Called by the
+     * constructor when advancing, or by whoever shows a view that was built ahead of time.
+     */
+    public void startAutoplay() {
+        if ( widgets.size() == 1 ) {
 	        final String playOption = widgets.get(0).getPrompt().getFormElement().getAdditionalAttribute(null, "autoplay");
 	        if ( playOption != null ) {
 	        	h = new Handler();
@@ -228,6 +273,28 @@ public class ODKView extends ScrollView implements OnLongClickListener {
     	}
     }
     
+    /**
+     * Whether the widgets of a screen in these groups are read only because an
+     * external app fills the innermost group in, as the constructor decides.
+     */
+    public static boolean isReadOnlyOverride(FormEntryCaption[] groups) {
+        if (groups == null || groups.length == 0) {
+            return false;
+        }
+        String intentString = groups[groups.length - 1].getFormElement()
+                .getAdditionalAttribute(null, "intent");
+        return intentString != null && intentString.length() != 0;
+    }
+
+    /**
+     * Hands this view's widgets to pool. The view must not be shown again.
+     */
+    public void recycleWidgets(WidgetPool pool) {
+        for ( QuestionWidget q : widgets ) {
+            pool.recycle(q, mReadOnlyOverride);
+        }
+    }
+
     protected void onScrollChanged(int l, int t, int oldl, int oldt) {
     	Collect.getInstance().getActivityLogger().logScrollAction(this, t - oldt);
     }
@@ -14,17 +14,14 @@
 
 package org.odk.collect.android.widgets;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.expr.XPathFuncExpr;
-import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.utilities.ChoiceIndex;
 
 import android.content.Context;
 import android.graphics.Color;
@@ -47,46 +44,41 @@ import android.widget.Toast;
  */
 public class AutoCompleteWidget extends QuestionWidget {
 
+    // suggestions shown at most
+    private static final int MAX_SUGGESTIONS = 50;
+
     AutoCompleteAdapter choices;
     AutoCompleteTextView autocomplete;
 
     List<SelectChoice> mItems;
 
-    // Defines which filter to use to display autocomplete possibilities
-    String filterType;
+    // labels of mItems, normalized and indexed when the choices are loaded
+    ChoiceIndex mIndex;
 
-    // The various filter types
-    String match_substring = "substring";
-    String match_prefix = "prefix";
-    String match_chars = "chars";
+    // Defines which filter to use to display autocomplete possibilities, one
+    // of ChoiceIndex.MATCH_SUBSTRING, MATCH_PREFIX, MATCH_WORD_PREFIX or
+    // MATCH_CHARS
+    String filterType;
 
 
     public AutoCompleteWidget(Context context, FormEntryPrompt prompt, String filterType) {
         super(context, prompt);
 
-        // SurveyCTO-added support for dynamic select content (from .csv files)
-        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(prompt.getAppearanceHint());
-        if (xPathFuncExpr != null) {
-            mItems = ExternalDataUtil.populateExternalChoices(prompt, xPathFuncExpr);
-        } else {
-            mItems = prompt.getSelectChoices();
-        }
+        ChoiceCache.Entry entry = ChoiceCache.getEntry(prompt);
+        mItems = entry.choices;
+        mIndex = entry.getIndex(prompt);
 
         mPrompt = prompt;
 
-        choices = new AutoCompleteAdapter(getContext(), android.R.layout.simple_list_item_1);
-        autocomplete = new AutoCompleteTextView(getContext());
-
         // Default to matching substring
         if (filterType != null) {
             this.filterType = filterType;
         } else {
-            this.filterType = match_substring;
+            this.filterType = ChoiceIndex.MATCH_SUBSTRING;
         }
 
-        for (SelectChoice sc : mItems) {
-            choices.add(prompt.getSelectChoiceText(sc));
-        }
+        choices = new AutoCompleteAdapter(getContext(), android.R.layout.simple_list_item_1);
+        autocomplete = new AutoCompleteTextView(getContext());
         choices.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
 
         autocomplete.setAdapter(choices);
@@ -116,9 +108,9 @@ public class AutoCompleteWidget extends QuestionWidget {
     public IAnswerData getAnswer() {
     	clearFocus();
     	String response = autocomplete.getText().toString();
-        for (SelectChoice sc : mItems) {
-            if (response.equals(mPrompt.getSelectChoiceText(sc))) {
-                return new SelectOneData(new Selection(sc));
+        for (int i = 0; i < mItems.size(); ++i) {
+            if (response.equals(mIndex.getLabel(i))) {
+                return new SelectOneData(new Selection(mItems.get(i)));
             }
         }
 
@@ -149,46 +141,47 @@ public class AutoCompleteWidget extends QuestionWidget {
 
     }
 
+    /**
+     * Shows the labels of the choices found by the last filtering.
+     */
     private class AutoCompleteAdapter extends ArrayAdapter<String> implements Filterable {
 
         private ItemsFilter mFilter;
-        public ArrayList<String> mItems;
+        // positions in mItems of the suggestions
+        private int[] mShown = new int[0];
 
 
         public AutoCompleteAdapter(Context context, int textViewResourceId) {
             super(context, textViewResourceId);
-            mItems = new ArrayList<String>();
-        }
-
-
-        @Override
-        public void add(String toAdd) {
-            super.add(toAdd);
-            mItems.add(toAdd);
         }
 
 
         @Override
         public int getCount() {
-            return mItems.size();
+            return mShown.length;
         }
 
 
         @Override
         public String getItem(int position) {
-            return mItems.get(position);
+            return mIndex.getLabel(mShown[position]);
         }
 
 
         @Override
         public int getPosition(String item) {
-            return mItems.indexOf(item);
+            for (int i = 0; i < mShown.length; i++) {
+                if (mIndex.getLabel(mShown[i]).equals(item)) {
+                    return i;
+                }
+            }
+            return -1;
         }
 
 
         public Filter getFilter() {
             if (mFilter == null) {
-                mFilter = new ItemsFilter(mItems);
+                mFilter = new ItemsFilter();
             }
             return mFilter;
         }
@@ -196,99 +189,32 @@ public class AutoCompleteWidget extends QuestionWidget {
 
         @Override
         public long getItemId(int position) {
-            return position;
+            return mShown[position];
         }
 
+        /**
+         * Looks typed text up in the index. Runs on the filter's worker
+         * thread, one keystroke at a time, so the query can narrow down what
+         * the previous keystroke found.
+         */
         private class ItemsFilter extends Filter {
-            final ArrayList<String> mItemsArray;
-
-
-            public ItemsFilter(ArrayList<String> list) {
-                if (list == null) {
-                    mItemsArray = new ArrayList<String>();
-                } else {
-                    mItemsArray = new ArrayList<String>(list);
-                }
-            }
+            private final ChoiceIndex.Query mQuery = mIndex.newQuery(filterType);
 
 
             @Override
             protected FilterResults performFiltering(CharSequence prefix) {
-                // Initiate our results object
-                FilterResults results = new FilterResults();
-
-                // If the adapter array is empty, check the actual items array and use it
-                if (mItems == null) {
-                    mItems = new ArrayList<String>(mItemsArray);
-                }
-
-                // No prefix is sent to filter by so we're going to send back the original array
-                if (prefix == null || prefix.length() == 0) {
-                    results.values = mItemsArray;
-                    results.count = mItemsArray.size();
-                } else {
-                    // Compare lower case strings
-                    String prefixString = prefix.toString().toLowerCase(Locale.getDefault());
-
-                    // Local to here so we're not changing actual array
-                    final ArrayList<String> items = mItems;
-                    final int count = items.size();
-                    final ArrayList<String> newItems = new ArrayList<String>(count);
-
-                    for (int i = 0; i < count; i++) {
-                        final String item = items.get(i);
-                        String item_compare = item.toLowerCase(Locale.getDefault());
-
-                        // Match the strings using the filter specified
-                        if (filterType.equals(match_substring)
-                                && (item_compare.startsWith(prefixString) || item_compare
-                                        .contains(prefixString))) {
-                            newItems.add(item);
-                        } else if (filterType.equals(match_prefix)
-                                && item_compare.startsWith(prefixString)) {
-                            newItems.add(item);
-                        } else if (filterType.equals(match_chars)) {
-                            char[] toMatch = prefixString.toCharArray();
-
-                            boolean matches = true;
-                            for (int j = 0; j < toMatch.length; j++) {
-                                int index = item_compare.indexOf(toMatch[j]);
-                                if (index > -1) {
-                                    item_compare =
-                                        item_compare.substring(0, index)
-                                                + item_compare.substring(index + 1);
-                                } else {
-                                    matches = false;
-                                    break;
-                                }
-                            }
-
-                            if (matches) {
-                                newItems.add(item);
-                            }
-
-                        } else {
-                            // Default to substring
-                            if (item_compare.startsWith(prefixString)
-                                    || item_compare.contains(prefixString)) {
-                                newItems.add(item);
-                            }
-                        }
-                    }
-
-                    // Set and return
-                    results.values = newItems;
-                    results.count = newItems.size();
-                }
+                int[] found = mQuery.find((prefix == null) ? "" : prefix.toString(), MAX_SUGGESTIONS);
 
+                FilterResults results = new FilterResults();
+                results.values = found;
+                results.count = found.length;
                 return results;
             }
 
 
-            @SuppressWarnings("unchecked")
             @Override
             protected void publishResults(CharSequence constraint, FilterResults results) {
-                mItems = (ArrayList<String>) results.values;
+                mShown = (int[]) results.values;
                 // Let the adapter know about the updated list
                 if (results.count > 0) {
                     notifyDataSetChanged();
@@ -0,0 +1,157 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.external.ExternalSelectChoice;
+import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.utilities.ChoiceIndex;
+
+/**
+ * Choices of the select questions shown since the answers of the form last
+ * changed. Choice filters and external choices are evaluated once per answer
+ * change rather than every time a widget for the question is built, the
+ * factory can look at how long a list is without building it twice, and the
+ * labels are only indexed once for the widgets that filter them.
+ *
+ * Only used from the UI thread.
+ */
+public class ChoiceCache {
+
+    // questions kept before the oldest are dropped
+    private static final int MAX_ENTRIES = 32;
+
+    /**
+     * The choices of one question, with what has been worked out from them.
+     */
+    public static class Entry {
+        public final List<SelectChoice> choices;
+
+        private Boolean mHasMedia;
+        private ChoiceIndex mIndex;
+
+        private Entry(List<SelectChoice> choices) {
+            this.choices = choices;
+        }
+
+        /**
+         * Returns true if any choice has an image, audio or video.
+         */
+        public boolean hasMedia(FormEntryPrompt prompt) {
+            if (mHasMedia == null) {
+                mHasMedia = Boolean.FALSE;
+                for (int i = 0; choices != null && i < choices.size(); i++) {
+                    SelectChoice sc = choices.get(i);
+                    if ((sc instanceof ExternalSelectChoice
+                            && ((ExternalSelectChoice) sc).getImage() != null)
+                            || prompt.getSpecialFormSelectChoiceText(sc, FormEntryCaption.TEXT_FORM_IMAGE) != null
+                            || prompt.getSpecialFormSelectChoiceText(sc, FormEntryCaption.TEXT_FORM_AUDIO) != null
+                            || prompt.getSpecialFormSelectChoiceText(sc, "video") != null) {
+                        mHasMedia = Boolean.TRUE;
+                        break;
+                    }
+                }
+            }
+            return mHasMedia.booleanValue();
+        }
+
+        /**
+         * Returns the labels of the choices, indexed for filtering.
+         */
+        public ChoiceIndex getIndex(FormEntryPrompt prompt) {
+            if (mIndex == null) {
+                String[] labels = new String[(choices == null) ? 0 : choices.size()];
+                for (int i = 0; i < labels.length; i++) {
+                    labels[i] = prompt.getSelectChoiceText(choices.get(i));
+                }
+                mIndex = new ChoiceIndex(labels);
+            }
+            return mIndex;
+        }
+    }
+
+    private static final HashMap<String, Entry> sEntries = new HashMap<String, Entry>();
+    private static WeakReference<FormController> sController;
+    private static int sChangeCount;
+
+    private ChoiceCache() {
+    }
+
+    /**
+     * Returns the choices of prompt, evaluating them only if they have not been
+     * since the answers of the form last changed.
+     */
+    public static List<SelectChoice> getChoices(FormEntryPrompt prompt) {
+        return getEntry(prompt).choices;
+    }
+
+    /**
+     * Returns the cached entry for prompt, filling it first if need be. The
+     * whole cache is dropped when a different form is open or its answers,
+     * repeats or language have changed since it was filled.
+     */
+    public static Entry getEntry(FormEntryPrompt prompt) {
+        FormController formController = Collect.getInstance().getFormController();
+        if (formController == null) {
+            return new Entry(evaluate(prompt));
+        }
+        if (sController == null || sController.get() != formController
+                || sChangeCount != formController.getChangeCount()) {
+            sEntries.clear();
+            sController = new WeakReference<FormController>(formController);
+            sChangeCount = formController.getChangeCount();
+        }
+
+        String key = prompt.getIndex().getReference().toString(true);
+        Entry entry = sEntries.get(key);
+        if (entry == null) {
+            if (sEntries.size() >= MAX_ENTRIES) {
+                sEntries.clear();
+            }
+            entry = new Entry(evaluate(prompt));
+            sEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static List<SelectChoice> evaluate(FormEntryPrompt prompt) {
+        // SurveyCTO-added support for dynamic select content (from .csv files)
+        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(prompt.getAppearanceHint());
+        if (xPathFuncExpr != null) {
+            return ExternalDataUtil.populateExternalChoices(prompt, xPathFuncExpr);
+        } else {
+            return prompt.getSelectChoices();
+        }
+    }
+
+}
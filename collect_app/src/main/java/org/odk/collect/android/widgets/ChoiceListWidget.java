@@ -0,0 +1,322 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.ChoiceIndex;
+import org.odk.collect.android.utilities.TextUtils;
+
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.TypedValue;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.CheckedTextView;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+
+/**
+ * ChoiceListWidget handles select-one and select-multiple fields with long
+ * lists of choices. Only the rows on screen are built, from an adapter, and a
+ * box above the list narrows it to the choices whose label contains what was
+ * typed, ignoring case and diacritics. WidgetFactory uses it in place of SelectOneWidget and
+ * SelectMultiWidget when there are more than LARGE_LIST choices and none of
+ * them has media, which this widget does not show.
+ */
+public class ChoiceListWidget extends QuestionWidget {
+
+    /**
+     * Lists longer than this are shown by this widget.
+     */
+    public static final int LARGE_LIST = 100;
+
+    // share of the screen height taken by the list
+    private static final float LIST_HEIGHT = 0.6f;
+
+    private final boolean mMultiple;
+    private final ChoiceCache.Entry mEntry;
+    private final List<SelectChoice> mItems;
+
+    // for select one, the position in mItems of the answer or -1
+    private int mSelected = -1;
+    // for select multiple, whether each item is selected
+    private final boolean[] mChecked;
+
+    // positions in mItems of the choices matching mFilter, in list order
+    private int[] mVisible;
+    private String mFilter = "";
+    // made on the first keystroke, labels are not read until then
+    private ChoiceIndex.Query mQuery;
+
+    private final EditText mFilterBox;
+    private final ListView mList;
+    private final ChoiceAdapter mAdapter;
+
+
+    @SuppressWarnings("unchecked")
+    public ChoiceListWidget(Context context, FormEntryPrompt prompt, boolean multiple) {
+        super(context, prompt);
+        mMultiple = multiple;
+        mEntry = ChoiceCache.getEntry(prompt);
+        mItems = (mEntry.choices == null) ? new ArrayList<SelectChoice>() : mEntry.choices;
+        mChecked = new boolean[multiple ? mItems.size() : 0];
+
+        if (prompt.getAnswerValue() != null) {
+            if (multiple) {
+                List<Selection> ve = (List<Selection>) prompt.getAnswerValue().getValue();
+                for (int i = 0; i < mItems.size(); i++) {
+                    String value = mItems.get(i).getValue();
+                    for (Selection s : ve) {
+                        if (value.equals(s.getValue())) {
+                            mChecked[i] = true;
+                            break;
+                        }
+                    }
+                }
+            } else {
+                String s = ((Selection) prompt.getAnswerValue().getValue()).getValue();
+                for (int i = 0; i < mItems.size(); i++) {
+                    if (mItems.get(i).getValue().equals(s)) {
+                        mSelected = i;
+                        break;
+                    }
+                }
+            }
+        }
+
+        mVisible = new int[mItems.size()];
+        for (int i = 0; i < mVisible.length; i++) {
+            mVisible[i] = i;
+        }
+
+        mFilterBox = new EditText(context);
+        mFilterBox.setId(QuestionWidget.newUniqueId());
+        mFilterBox.setHint(R.string.filter_choices);
+        mFilterBox.setSingleLine(true);
+        mFilterBox.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+        mFilterBox.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                filter(s.toString());
+            }
+        });
+
+        mAdapter = new ChoiceAdapter();
+        mList = new ListView(context);
+        mList.setId(QuestionWidget.newUniqueId());
+        mList.setAdapter(mAdapter);
+        mList.setEnabled(!prompt.isReadOnly());
+        mList.setFocusable(!prompt.isReadOnly());
+        mList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                toggle(mVisible[position]);
+            }
+        });
+        // the form scrolls too, let the list have the gestures that start on it
+        mList.setOnTouchListener(new OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                int action = event.getAction() & MotionEvent.ACTION_MASK;
+                if (action == MotionEvent.ACTION_DOWN) {
+                    v.getParent().requestDisallowInterceptTouchEvent(true);
+                } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    v.getParent().requestDisallowInterceptTouchEvent(false);
+                }
+                return false;
+            }
+        });
+
+        int listHeight = (int) (getResources().getDisplayMetrics().heightPixels * LIST_HEIGHT);
+        LinearLayout answerLayout = new LinearLayout(context);
+        answerLayout.setOrientation(LinearLayout.VERTICAL);
+        answerLayout.addView(mFilterBox, new LinearLayout.LayoutParams(
+                LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+        answerLayout.addView(mList, new LinearLayout.LayoutParams(
+                LinearLayout.LayoutParams.MATCH_PARENT, listHeight));
+        addAnswerView(answerLayout);
+
+        if (mSelected != -1) {
+            mList.setSelection(mSelected);
+        }
+    }
+
+    /**
+     * Shows the choices whose label contains text.
+     */
+    private void filter(String text) {
+        if (text.equals(mFilter)) {
+            return;
+        }
+        if (mQuery == null) {
+            mQuery = mEntry.getIndex(mPrompt).newQuery(ChoiceIndex.MATCH_SUBSTRING);
+        }
+        mFilter = text;
+        mVisible = mQuery.find(text, Integer.MAX_VALUE);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private void toggle(int item) {
+        if (mPrompt.isReadOnly()) {
+            return;
+        }
+        String value = mItems.get(item).getValue();
+        if (mMultiple) {
+            mChecked[item] = !mChecked[item];
+            Collect.getInstance().getActivityLogger().logInstanceAction(this,
+                    mChecked[item] ? "onItemClick.select" : "onItemClick.deselect",
+                    value, mPrompt.getIndex());
+        } else {
+            mSelected = item;
+            Collect.getInstance().getActivityLogger().logInstanceAction(this,
+                    "onCheckedChanged", value, mPrompt.getIndex());
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private boolean isSelected(int item) {
+        return mMultiple ? mChecked[item] : item == mSelected;
+    }
+
+
+    @Override
+    public IAnswerData getAnswer() {
+        if (!mMultiple) {
+            return (mSelected == -1) ? null : new SelectOneData(new Selection(mItems.get(mSelected)));
+        }
+
+        List<Selection> vc = new ArrayList<Selection>();
+        for (int i = 0; i < mChecked.length; i++) {
+            if (mChecked[i]) {
+                vc.add(new Selection(mItems.get(i)));
+            }
+        }
+        return vc.isEmpty() ? null : new SelectMultiData(vc);
+    }
+
+
+    @Override
+    public void clearAnswer() {
+        mSelected = -1;
+        for (int i = 0; i < mChecked.length; i++) {
+            mChecked[i] = false;
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+
+    @Override
+    public void setFocus(Context context) {
+        // Hide the soft keyboard if it's showing.
+        InputMethodManager inputManager =
+            (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputManager.hideSoftInputFromWindow(this.getWindowToken(), 0);
+    }
+
+
+    @Override
+    public void setOnLongClickListener(OnLongClickListener l) {
+        mFilterBox.setOnLongClickListener(l);
+        mList.setOnLongClickListener(l);
+    }
+
+
+    @Override
+    public void cancelLongPress() {
+        super.cancelLongPress();
+        mFilterBox.cancelLongPress();
+        mList.cancelLongPress();
+    }
+
+
+    /**
+     * Rows for the choices matching the filter. Labels are looked up as rows
+     * come on screen.
+     */
+    private class ChoiceAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return mVisible.length;
+        }
+
+        @Override
+        public SelectChoice getItem(int position) {
+            return mItems.get(mVisible[position]);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mVisible[position];
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            CheckedTextView row = (CheckedTextView) convertView;
+            if (row == null) {
+                row = (CheckedTextView) LayoutInflater.from(getContext()).inflate(mMultiple
+                        ? android.R.layout.simple_list_item_multiple_choice
+                        : android.R.layout.simple_list_item_single_choice, parent, false);
+                row.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+            }
+            int item = mVisible[position];
+            String choiceName = mPrompt.getSelectChoiceText(mItems.get(item));
+            row.setText((choiceName != null) ? TextUtils.textToHtml(choiceName) : "");
+            row.setChecked(isSelected(item));
+            row.setEnabled(!mPrompt.isReadOnly());
+            return row;
+        }
+    }
+
+}
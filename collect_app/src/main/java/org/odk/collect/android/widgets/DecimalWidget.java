@@ -69,17 +69,9 @@ public class DecimalWidget extends StringWidget {
         fa[0] = new InputFilter.LengthFilter(15);
         mAnswer.setFilters(fa);
 
-        Double d = getDoubleAnswerValue();
-
-        NumberFormat nf = NumberFormat.getNumberInstance(Locale.US);
-        nf.setMaximumFractionDigits(15);
-        nf.setMaximumIntegerDigits(15);
-        nf.setGroupingUsed(false);
-        if (d != null) {
-        	// truncate to 15 digits max...
-            String dString = nf.format(d);
-            d = Double.parseDouble(dString.replace(',', '.'));
-            mAnswer.setText(d.toString());
+        String s = getAnswerText();
+        if (s != null) {
+            mAnswer.setText(s);
         }
 
         // disable if read only
@@ -93,6 +85,24 @@ public class DecimalWidget extends StringWidget {
     }
 
 
+    @Override
+    protected String getAnswerText() {
+        Double d = getDoubleAnswerValue();
+        if (d == null) {
+            return null;
+        }
+
+        NumberFormat nf = NumberFormat.getNumberInstance(Locale.US);
+        nf.setMaximumFractionDigits(15);
+        nf.setMaximumIntegerDigits(15);
+        nf.setGroupingUsed(false);
+        // truncate to 15 digits max...
+        String dString = nf.format(d);
+        d = Double.parseDouble(dString.replace(',', '.'));
+        return d.toString();
+    }
+
+
     @Override
     public IAnswerData getAnswer() {
     	clearFocus();
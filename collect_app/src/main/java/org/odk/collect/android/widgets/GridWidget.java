@@ -25,18 +25,15 @@ import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSelectChoice;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.views.AudioButton.AudioHandler;
 import org.odk.collect.android.views.ExpandedHeightGridView;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.util.Log;
 import android.util.TypedValue;
@@ -105,13 +102,7 @@ public class GridWidget extends QuestionWidget {
             final boolean quickAdvance) {
         super(context, prompt);
 
-        // SurveyCTO-added support for dynamic select content (from .csv files)
-        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(prompt.getAppearanceHint());
-        if (xPathFuncExpr != null) {
-            mItems = ExternalDataUtil.populateExternalChoices(prompt, xPathFuncExpr);
-        } else {
-            mItems = prompt.getSelectChoices();
-        }
+        mItems = ChoiceCache.getChoices(prompt);
         mPrompt = prompt;
         listener = (AdvanceToNextListener) context;
 
@@ -180,13 +171,14 @@ public class GridWidget extends QuestionWidget {
                 	imageFilename = ReferenceManager._().DeriveReference(imageURI).getLocalURI();
                     final File imageFile = new File(imageFilename);
                     if (imageFile.exists()) {
-                        Bitmap b =
-                            FileUtils
-                                    .getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                        if (b != null) {
-
-                            if (b.getWidth() > maxColumnWidth) {
-                                maxColumnWidth = b.getWidth();
+                        // only the header is read here; the image is decoded in the background
+                        int[] size =
+                            BitmapCache.getInstance()
+                                    .getSize(imageFile, screenHeight, screenWidth, true);
+                        if (size != null) {
+
+                            if (size[0] > maxColumnWidth) {
+                                maxColumnWidth = size[0];
                             }
 
                             ImageView imageView = (ImageView) imageViews[i];
@@ -194,12 +186,13 @@ public class GridWidget extends QuestionWidget {
                             imageView.setBackgroundColor(Color.WHITE);
 
 	                        if ( numColumns > 0 ) {
-	                        	int resizeHeight = (b.getHeight() * resizeWidth) / b.getWidth();
-	                        	b = Bitmap.createScaledBitmap(b, resizeWidth, resizeHeight, false);
+	                        	int resizeHeight = (size[1] * resizeWidth) / size[0];
+	                        	size = new int[] { resizeWidth, resizeHeight };
 	                        }
 
 	                        imageView.setPadding(IMAGE_PADDING, IMAGE_PADDING, IMAGE_PADDING, IMAGE_PADDING);
-	                        imageView.setImageBitmap(b);
+	                        BitmapCache.getInstance().loadBitmap(imageFile, screenHeight, screenWidth,
+	                                imageView, true, size, null);
 	                        imageView.setLayoutParams(new ListView.LayoutParams(ListView.LayoutParams.WRAP_CONTENT, ListView.LayoutParams.WRAP_CONTENT));
 	                        imageView.setScaleType(ScaleType.FIT_XY);
 
@@ -24,7 +24,7 @@ import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.R;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import android.app.Activity;
@@ -182,11 +182,16 @@ public class ImageWidget extends QuestionWidget implements IBinaryWidget {
             File f = new File(mInstanceFolder + File.separator + mBinaryName);
 
             if (f.exists()) {
-                Bitmap bmp = FileUtils.getBitmapScaledToDisplay(f, screenHeight, screenWidth);
-                if (bmp == null) {
-                    mErrorTextView.setVisibility(View.VISIBLE);
-                }
-                mImageView.setImageBitmap(bmp);
+                // instance photos stay out of the on-disk thumbnail cache
+                BitmapCache.getInstance().loadBitmap(f, screenHeight, screenWidth, mImageView,
+                        false, new BitmapCache.Callback() {
+                            @Override
+                            public void onBitmapLoaded(Bitmap bmp) {
+                                if (bmp == null) {
+                                    mErrorTextView.setVisibility(View.VISIBLE);
+                                }
+                            }
+                        });
             } else {
                 mImageView.setImageBitmap(null);
             }
@@ -71,16 +71,22 @@ public class IntegerWidget extends StringWidget {
             setClickable(false);
         }
 
-        Integer i = getIntegerAnswerValue();
-
-        if (i != null) {
-            mAnswer.setText(i.toString());
+        String s = getAnswerText();
+        if (s != null) {
+            mAnswer.setText(s);
         }
         
         setupChangeListener();
     }
 
 
+    @Override
+    protected String getAnswerText() {
+        Integer i = getIntegerAnswerValue();
+        return (i == null) ? null : i.toString();
+    }
+
+
     @Override
     public IAnswerData getAnswer() {
     	clearFocus();
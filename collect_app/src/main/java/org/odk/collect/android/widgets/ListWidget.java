@@ -27,15 +27,12 @@ import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSelectChoice;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.BitmapCache;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.util.Log;
 import android.util.TypedValue;
@@ -74,13 +71,7 @@ public class ListWidget extends QuestionWidget implements OnCheckedChangeListene
     public ListWidget(Context context, FormEntryPrompt prompt, boolean displayLabel) {
         super(context, prompt);
 
-        // SurveyCTO-added support for dynamic select content (from .csv files)
-        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(prompt.getAppearanceHint());
-        if (xPathFuncExpr != null) {
-            mItems = ExternalDataUtil.populateExternalChoices(prompt, xPathFuncExpr);
-        } else {
-            mItems = prompt.getSelectChoices();
-        }
+        mItems = ChoiceCache.getChoices(prompt);
         buttons = new ArrayList<RadioButton>();
 
         // Layout holds the horizontal list of buttons
@@ -128,25 +119,22 @@ public class ListWidget extends QuestionWidget implements OnCheckedChangeListene
                             ReferenceManager._().DeriveReference(imageURI).getLocalURI();
                         final File imageFile = new File(imageFilename);
                         if (imageFile.exists()) {
-                            Bitmap b = null;
-                            try {
-                                Display display =
-                                    ((WindowManager) getContext().getSystemService(
-                                        Context.WINDOW_SERVICE)).getDefaultDisplay();
-                                int screenWidth = display.getWidth();
-                                int screenHeight = display.getHeight();
-                                b =
-                                    FileUtils.getBitmapScaledToDisplay(imageFile, screenHeight,
-                                        screenWidth);
-                            } catch (OutOfMemoryError e) {
-                                errorMsg = "ERROR: " + e.getMessage();
-                            }
-
-                            if (b != null) {
+                            Display display =
+                                ((WindowManager) getContext().getSystemService(
+                                    Context.WINDOW_SERVICE)).getDefaultDisplay();
+                            int screenWidth = display.getWidth();
+                            int screenHeight = display.getHeight();
+                            // only the header is read here; the image is decoded in the background
+                            int[] size =
+                                BitmapCache.getInstance().getSize(imageFile, screenHeight,
+                                    screenWidth, true);
+
+                            if (size != null) {
                                 mImageView = new ImageView(getContext());
                                 mImageView.setPadding(2, 2, 2, 2);
                                 mImageView.setAdjustViewBounds(true);
-                                mImageView.setImageBitmap(b);
+                                BitmapCache.getInstance().loadBitmap(imageFile, screenHeight,
+                                        screenWidth, mImageView, true, size, null);
                                 mImageView.setId(labelId);
                             } else if (errorMsg == null) {
                                 // An error hasn't been logged and loading the image failed, so it's
@@ -22,6 +22,7 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.AudioPlayListener;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.utilities.TextUtils;
 import org.odk.collect.android.views.MediaLayout;
 
@@ -215,13 +216,56 @@ public abstract class QuestionWidget extends RelativeLayout implements AudioPlay
                 imageView.setImageDrawable(null);
                 BitmapDrawable bd = (BitmapDrawable)d;
                 Bitmap bmp = bd.getBitmap();
-                if (bmp != null) {
+                if (bmp != null && !BitmapCache.getInstance().isShared(bmp)) {
                     bmp.recycle();
                 }
             }
         }
     }
 
+    /**
+     * Shows p in this widget instead of the prompt it was created for, so that
+     * the widget can be reused by a later screen. Only called with prompts that
+     * WidgetFactory.getRecycleKey() gives the same key as this widget's prompt.
+     * Widgets that can be reused override this, call rebindQuestion() and load
+     * the answer of the new prompt.
+     *
+     * @return false if this widget can't be reused
+     */
+    public boolean rebind(FormEntryPrompt p) {
+        return false;
+    }
+
+    /**
+     * Replaces the question text, media and help text with those of p.
+     */
+    protected void rebindQuestion(FormEntryPrompt p) {
+        stopAudio();
+        mPrompt = p;
+        mPlayColor = Color.BLUE;
+        mPlayBackgroundColor = Color.WHITE;
+
+        // keep the ids, the answer view is laid out below one of them
+        MediaLayout questionMediaLayout = createQuestionMediaLayout(p);
+        questionMediaLayout.setId(mQuestionMediaLayout.getId());
+        replaceView(mQuestionMediaLayout, questionMediaLayout);
+        mQuestionMediaLayout = questionMediaLayout;
+
+        TextView helpText = createHelpText(p);
+        if (helpText.getVisibility() == View.VISIBLE) {
+            helpText.setId(mHelpTextView.getId());
+        }
+        replaceView(mHelpTextView, helpText);
+        mHelpTextView = helpText;
+    }
+
+    private void replaceView(View old, View v) {
+        int index = indexOfChild(old);
+        ViewGroup.LayoutParams params = old.getLayoutParams();
+        removeViewAt(index);
+        addView(v, index, params);
+    }
+
     // Abstract methods
     public abstract IAnswerData getAnswer();
 
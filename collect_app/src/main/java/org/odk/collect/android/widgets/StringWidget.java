@@ -43,6 +43,8 @@ public class StringWidget extends QuestionWidget {
 
     boolean mReadOnly = false;
     protected EditText mAnswer;
+    // set while rebind() loads a new answer, which the user didn't type
+    private boolean mRebinding = false;
 
     public StringWidget(Context context, FormEntryPrompt prompt, boolean readOnlyOverride) {
     	this(context, prompt, readOnlyOverride, true);
@@ -111,7 +113,7 @@ public class StringWidget extends QuestionWidget {
 
 			@Override
 			public void afterTextChanged(Editable s) {
-				if (!s.toString().equals(oldText)) {
+				if (!mRebinding && !s.toString().equals(oldText)) {
 					Collect.getInstance().getActivityLogger()
 						.logInstanceAction(this, "answerTextChanged", s.toString(),	getPrompt().getIndex());
 				}
@@ -129,6 +131,23 @@ public class StringWidget extends QuestionWidget {
         });
     }
 
+    /**
+     * Returns the stored answer as it should appear in the text field, or null
+     * if there is none.
+     */
+    protected String getAnswerText() {
+        return mPrompt.getAnswerText();
+    }
+
+    @Override
+    public boolean rebind(FormEntryPrompt p) {
+        rebindQuestion(p);
+        mRebinding = true;
+        mAnswer.setText(getAnswerText());
+        mRebinding = false;
+        return true;
+    }
+
     @Override
     public void clearAnswer() {
         mAnswer.setText(null);
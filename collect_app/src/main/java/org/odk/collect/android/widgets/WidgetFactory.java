@@ -48,96 +48,45 @@ public class WidgetFactory {
 
         QuestionWidget questionWidget;
 
-        // Custom Code
-        FormController formController = Collect.getInstance().getFormController();
-        String language = null;
         switch (fep.getControlType()) {
             case Constants.CONTROL_INPUT:
-                switch (fep.getDataType()) {
-                    case Constants.DATATYPE_DATE_TIME:
-//                        questionWidget = new DateTimeWidget(context, fep);
-                        // Custom code
-
-                        if(formController != null)
-                            language = formController.getLanguage();
-                        if(language != null) {
-                            if (language.toLowerCase().equals("amharic") ||
-                                    language.toLowerCase().equals("oromiffa") ||
-                                    language.toLowerCase().equals("tigrinya") ||
-                                    language.toLowerCase().equals("tigrigna") ||
-                                    language.toLowerCase().equals("tigirigna")) {
-                                questionWidget = new EthiopianDateTimeWidget(context, fep);
-                            } else {
-                                questionWidget = new DateTimeWidget(context, fep);
-                            }
-                        }else {
-                            questionWidget = new DateTimeWidget(context, fep);
-                        }
-
-                        break;
-                    case Constants.DATATYPE_DATE:
-//                        questionWidget = new DateWidget(context, fep);
-
-                        if(formController != null)
-                            language = formController.getLanguage();
-                        if(language != null) {
-                            if (language.toLowerCase().equals("amharic") ||
-                                    language.toLowerCase().equals("oromiffa") ||
-                                    language.toLowerCase().equals("tigrinya") ||
-                                    language.toLowerCase().equals("tigrigna") ||
-                                    language.toLowerCase().equals("tigirigna")) {
-                                questionWidget = new EthiopianDateWidget(context, fep);
-                            } else {
-                                questionWidget = new DateWidget(context, fep);
-                            }
-                        }else {
-                            questionWidget = new DateWidget(context, fep);
-                        }
-                        break;
-                    case Constants.DATATYPE_TIME:
-                        questionWidget = new TimeWidget(context, fep);
-                        break;
-                    case Constants.DATATYPE_DECIMAL:
-                    	if ( appearance.startsWith("ex:") ) {
-                            questionWidget = new ExDecimalWidget(context, fep);
-                        } else if (appearance.equals("bearing")) {
-                            questionWidget = new BearingWidget(context, fep);
-                        } else {
-                            questionWidget = new DecimalWidget(context, fep, readOnlyOverride);
-                        }
-                        break;
-                    case Constants.DATATYPE_INTEGER:
-                    	if ( appearance.startsWith("ex:") ) {
-                    		questionWidget = new ExIntegerWidget(context, fep);
-                    	} else {
-                    		questionWidget = new IntegerWidget(context, fep, readOnlyOverride);
-                    	}
-                        break;
-                    case Constants.DATATYPE_GEOPOINT:
-                        questionWidget = new GeoPointWidget(context, fep);
-                        break;
-                    case Constants.DATATYPE_BARCODE:
-                        questionWidget = new BarcodeWidget(context, fep);
-                        break;
-                    case Constants.DATATYPE_TEXT:
-                    	String query = fep.getQuestion().getAdditionalAttribute(null, "query");
-                        if (query != null) {
-                            questionWidget = new ItemsetWidget(context, fep, readOnlyOverride);
-                        } else if (appearance.startsWith("printer")) {
-                            questionWidget = new ExPrinterWidget(context, fep);
-                        } else if (appearance.startsWith("ex:")) {
-                            questionWidget = new ExStringWidget(context, fep);
-                        } else if (appearance.equals("numbers")) {
-                            questionWidget = new StringNumberWidget(context, fep, readOnlyOverride);
-                        } else if (appearance.equals("url")) {
-                            questionWidget = new UrlWidget(context, fep);
-                        } else {
-                            questionWidget = new StringWidget(context, fep, readOnlyOverride);
-                        }
-                        break;
-                    default:
-                        questionWidget = new StringWidget(context, fep, readOnlyOverride);
-                        break;
+                Class<? extends QuestionWidget> inputClass = getInputWidgetClass(fep, appearance);
+                if (inputClass == EthiopianDateTimeWidget.class) {
+                    questionWidget = new EthiopianDateTimeWidget(context, fep);
+                } else if (inputClass == DateTimeWidget.class) {
+                    questionWidget = new DateTimeWidget(context, fep);
+                } else if (inputClass == EthiopianDateWidget.class) {
+                    questionWidget = new EthiopianDateWidget(context, fep);
+                } else if (inputClass == DateWidget.class) {
+                    questionWidget = new DateWidget(context, fep);
+                } else if (inputClass == TimeWidget.class) {
+                    questionWidget = new TimeWidget(context, fep);
+                } else if (inputClass == ExDecimalWidget.class) {
+                    questionWidget = new ExDecimalWidget(context, fep);
+                } else if (inputClass == BearingWidget.class) {
+                    questionWidget = new BearingWidget(context, fep);
+                } else if (inputClass == DecimalWidget.class) {
+                    questionWidget = new DecimalWidget(context, fep, readOnlyOverride);
+                } else if (inputClass == ExIntegerWidget.class) {
+                    questionWidget = new ExIntegerWidget(context, fep);
+                } else if (inputClass == IntegerWidget.class) {
+                    questionWidget = new IntegerWidget(context, fep, readOnlyOverride);
+                } else if (inputClass == GeoPointWidget.class) {
+                    questionWidget = new GeoPointWidget(context, fep);
+                } else if (inputClass == BarcodeWidget.class) {
+                    questionWidget = new BarcodeWidget(context, fep);
+                } else if (inputClass == ItemsetWidget.class) {
+                    questionWidget = new ItemsetWidget(context, fep, readOnlyOverride);
+                } else if (inputClass == ExPrinterWidget.class) {
+                    questionWidget = new ExPrinterWidget(context, fep);
+                } else if (inputClass == ExStringWidget.class) {
+                    questionWidget = new ExStringWidget(context, fep);
+                } else if (inputClass == StringNumberWidget.class) {
+                    questionWidget = new StringNumberWidget(context, fep, readOnlyOverride);
+                } else if (inputClass == UrlWidget.class) {
+                    questionWidget = new UrlWidget(context, fep);
+                } else {
+                    questionWidget = new StringWidget(context, fep, readOnlyOverride);
                 }
                 break;
             case Constants.CONTROL_IMAGE_CHOOSE:
@@ -208,6 +157,8 @@ public class WidgetFactory {
                     questionWidget = new ListWidget(context, fep, true);
                 } else if (appearance.equals("label")) {
                     questionWidget = new LabelWidget(context, fep);
+                } else if (isLargeChoiceList(fep)) {
+                    questionWidget = new ChoiceListWidget(context, fep, false);
                 } else {
                     questionWidget = new SelectOneWidget(context, fep);
                 }
@@ -238,6 +189,8 @@ public class WidgetFactory {
                     questionWidget = new ListMultiWidget(context, fep, true);
                 } else if (appearance.startsWith("label")) {
                     questionWidget = new LabelWidget(context, fep);
+                } else if (isLargeChoiceList(fep)) {
+                    questionWidget = new ChoiceListWidget(context, fep, true);
                 } else {
                     questionWidget = new SelectMultiWidget(context, fep);
                 }
@@ -252,4 +205,106 @@ public class WidgetFactory {
         return questionWidget;
     }
 
+    /**
+     * Returns the class of widget createWidgetFromPrompt() builds for an input
+     * prompt; getRecycleKey() keys on the same decision.
+     *
+     * @param appearance the appearance hint of fep, lower case and never null
+     */
+    private static Class<? extends QuestionWidget> getInputWidgetClass(FormEntryPrompt fep,
+            String appearance) {
+        switch (fep.getDataType()) {
+            case Constants.DATATYPE_DATE_TIME:
+                return isEthiopianLanguage() ? EthiopianDateTimeWidget.class : DateTimeWidget.class;
+            case Constants.DATATYPE_DATE:
+                return isEthiopianLanguage() ? EthiopianDateWidget.class : DateWidget.class;
+            case Constants.DATATYPE_TIME:
+                return TimeWidget.class;
+            case Constants.DATATYPE_DECIMAL:
+                if (appearance.startsWith("ex:")) {
+                    return ExDecimalWidget.class;
+                } else if (appearance.equals("bearing")) {
+                    return BearingWidget.class;
+                }
+                return DecimalWidget.class;
+            case Constants.DATATYPE_INTEGER:
+                return appearance.startsWith("ex:") ? ExIntegerWidget.class : IntegerWidget.class;
+            case Constants.DATATYPE_GEOPOINT:
+                return GeoPointWidget.class;
+            case Constants.DATATYPE_BARCODE:
+                return BarcodeWidget.class;
+            case Constants.DATATYPE_TEXT:
+                if (fep.getQuestion().getAdditionalAttribute(null, "query") != null) {
+                    return ItemsetWidget.class;
+                } else if (appearance.startsWith("printer")) {
+                    return ExPrinterWidget.class;
+                } else if (appearance.startsWith("ex:")) {
+                    return ExStringWidget.class;
+                } else if (appearance.equals("numbers")) {
+                    return StringNumberWidget.class;
+                } else if (appearance.equals("url")) {
+                    return UrlWidget.class;
+                }
+                return StringWidget.class;
+            default:
+                return StringWidget.class;
+        }
+    }
+
+    // Custom Code
+    private static boolean isEthiopianLanguage() {
+        FormController formController = Collect.getInstance().getFormController();
+        String language = (formController == null) ? null : formController.getLanguage();
+        if (language == null) {
+            return false;
+        }
+        language = language.toLowerCase();
+        return language.equals("amharic") || language.equals("oromiffa")
+                || language.equals("tigrinya") || language.equals("tigrigna")
+                || language.equals("tigirigna");
+    }
+
+    /**
+     * Returns true if the choices of fep are too many to build a row for each
+     * one, and have no media that ChoiceListWidget would leave out.
+     */
+    private static boolean isLargeChoiceList(FormEntryPrompt fep) {
+        ChoiceCache.Entry entry = ChoiceCache.getEntry(fep);
+        return entry.choices != null && entry.choices.size() > ChoiceListWidget.LARGE_LIST
+                && !entry.hasMedia(fep);
+    }
+
+    /**
+     * Returns a key shared by all prompts that createWidgetFromPrompt() would
+     * render with the same kind of widget, laid out the same way, so that a
+     * widget built for one of them can be rebound to another. Returns null if
+     * the widget for fep can't be reused.
+     *
+     * @param fep prompt element to be rendered
+     * @param readOnlyOverride a flag to be ORed with JR readonly attribute.
+     */
+    static public String getRecycleKey(FormEntryPrompt fep, boolean readOnlyOverride) {
+        if (fep.getControlType() != Constants.CONTROL_INPUT) {
+            return null;
+        }
+
+        String appearance = fep.getAppearanceHint();
+        if ( appearance == null ) appearance = "";
+        appearance = appearance.toLowerCase(Locale.ENGLISH);
+
+        // only these can be rebound to another prompt
+        Class<? extends QuestionWidget> widgetClass = getInputWidgetClass(fep, appearance);
+        if (widgetClass != StringWidget.class && widgetClass != IntegerWidget.class
+                && widgetClass != DecimalWidget.class) {
+            return null;
+        }
+
+        String helpText = fep.getHelpText();
+        return widgetClass.getName()
+                + "|" + (fep.isReadOnly() || readOnlyOverride)
+                + "|" + (fep.isReadOnly())
+                + "|" + (helpText != null && helpText.length() != 0)
+                + "|" + fep.getQuestion().getAdditionalAttribute(null, "rows");
+    }
+
 }
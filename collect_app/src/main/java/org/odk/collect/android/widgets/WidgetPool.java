@@ -0,0 +1,164 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.widgets;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import org.javarosa.form.api.FormEntryPrompt;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+import android.view.ViewGroup;
+
+/**
+ * Widgets taken off screens that are no longer shown, kept so that the next
+ * screens can rebind them instead of building new ones. Swiping back and
+ * forth through the iterations of a repeat shows the same shape of questions
+ * over and over, and most of the cost of a screen is inflating its widgets.
+ *
+ * A pool belongs to one activity, since its widgets hold that activity's
+ * context, and is only used from the UI thread.
+ */
+public class WidgetPool {
+
+    private static final String TAG = "WidgetPool";
+
+    // spare widgets kept for each key
+    private static final int MAX_PER_KEY = 12;
+
+    private final HashMap<String, LinkedList<QuestionWidget>> mWidgets =
+            new HashMap<String, LinkedList<QuestionWidget>>();
+
+    private int mCreated = 0;
+    private int mReused = 0;
+
+    // Counting allocations slows every allocation down, so it is only done
+    // when asked for with: adb shell setprop log.tag.WidgetPool DEBUG
+    private final boolean mCountAllocations = Log.isLoggable(TAG, Log.DEBUG);
+    // allocations made building widgets that could have been reused, over
+    // the pool's life for a steadier average, and made rebinding pooled ones
+    // since the last screen
+    private int mCreatedReusable = 0;
+    private long mCreatedObjects = 0;
+    private long mCreatedBytes = 0;
+    private long mReusedObjects = 0;
+    private long mReusedBytes = 0;
+
+    /**
+     * Returns a widget showing p, reusing a pooled one if there is a match.
+     */
+    public QuestionWidget obtain(FormEntryPrompt p, Context context,
+            boolean readOnlyOverride) {
+        String key = WidgetFactory.getRecycleKey(p, readOnlyOverride);
+        boolean counting = mCountAllocations && key != null;
+        if (counting) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
+        QuestionWidget qw = null;
+        if (key != null) {
+            LinkedList<QuestionWidget> spare = mWidgets.get(key);
+            while (qw == null && spare != null && !spare.isEmpty()) {
+                qw = spare.removeFirst();
+                if (!qw.rebind(p)) {
+                    qw = null;
+                }
+            }
+        }
+        boolean reused = qw != null;
+        if (reused) {
+            mReused++;
+        } else {
+            mCreated++;
+            qw = WidgetFactory.createWidgetFromPrompt(p, context, readOnlyOverride);
+        }
+        if (counting) {
+            Debug.stopAllocCounting();
+            if (reused) {
+                mReusedObjects += Debug.getThreadAllocCount();
+                mReusedBytes += Debug.getThreadAllocSize();
+            } else {
+                mCreatedReusable++;
+                mCreatedObjects += Debug.getThreadAllocCount();
+                mCreatedBytes += Debug.getThreadAllocSize();
+            }
+        }
+        return qw;
+    }
+
+    /**
+     * Takes qw off the screen it was on and keeps it for reuse, if widgets
+     * like it can be reused at all.
+     */
+    public void recycle(QuestionWidget qw, boolean readOnlyOverride) {
+        String key = WidgetFactory.getRecycleKey(qw.getPrompt(), readOnlyOverride);
+        if (key == null || !key.startsWith(qw.getClass().getName() + "|")) {
+            // subclasses are built differently, don't hand them out
+            return;
+        }
+        LinkedList<QuestionWidget> spare = mWidgets.get(key);
+        if (spare == null) {
+            spare = new LinkedList<QuestionWidget>();
+            mWidgets.put(key, spare);
+        }
+        if (spare.size() >= MAX_PER_KEY) {
+            return;
+        }
+        if (qw.getParent() != null) {
+            ((ViewGroup) qw.getParent()).removeView(qw);
+        }
+        qw.stopAudio();
+        spare.add(qw);
+    }
+
+    /**
+     * Logs how many widgets have been built and reused since the last call.
+     */
+    public void logStats(long elapsedMillis) {
+        Log.i(TAG, "Screen built in " + elapsedMillis + "ms, widgets created: "
+                + mCreated + ", reused: " + mReused);
+        if (mCountAllocations && mCreatedReusable > 0 && mReused > 0) {
+            // what the reused widgets would have allocated had they been built
+            long savedObjects = mCreatedObjects * mReused / mCreatedReusable - mReusedObjects;
+            long savedBytes = mCreatedBytes * mReused / mCreatedReusable - mReusedBytes;
+            Log.d(TAG, "Building " + mCreatedReusable + " reusable widgets allocated "
+                    + mCreatedObjects + " objects, " + mCreatedBytes + " bytes; rebinding "
+                    + mReused + " allocated " + mReusedObjects + " objects, " + mReusedBytes
+                    + " bytes; saved about " + savedObjects + " objects, " + savedBytes
+                    + " bytes");
+        }
+        mCreated = 0;
+        mReused = 0;
+        mReusedObjects = 0;
+        mReusedBytes = 0;
+    }
+
+    public void clear() {
+        mWidgets.clear();
+    }
+}
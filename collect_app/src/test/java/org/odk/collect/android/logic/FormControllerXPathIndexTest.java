@@ -0,0 +1,249 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.logic;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks {@link FormController#getIndexFromXPath} against a plain step-through of the form, and
+ * times both on a synthetic form of N repeat instances with M questions each.
+ */
+public class FormControllerXPathIndexTest {
+
+    private static final int REPEATS = 100;
+    private static final int QUESTIONS = 20;
+
+    @Before
+    public void setUp() {
+        FormController.initializeJavaRosa(null);
+    }
+
+    private static String buildForm(int questions, boolean counted) {
+        StringBuilder instance = new StringBuilder();
+        StringBuilder binds = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        for (int q = 0; q < questions; q++) {
+            instance.append("<q").append(q).append("/>");
+            binds.append("<bind nodeset=\"/data/r/q").append(q).append("\" type=\"string\"");
+            if (q == questions - 1) {
+                // one question that is never relevant
+                binds.append(" relevant=\"false()\"");
+            }
+            binds.append("/>");
+            body.append("<input ref=\"/data/r/q").append(q).append("\"><label>q")
+                    .append(q).append("</label></input>");
+        }
+        return "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+                + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+                + " xmlns:jr=\"http://openrosa.org/javarosa\">"
+                + "<h:head><h:title>xpath index</h:title><model>"
+                + "<instance><data id=\"xpath-index\"><n/><r jr:template=\"\">" + instance
+                + "</r></data></instance>"
+                + "<bind nodeset=\"/data/n\" type=\"int\"/>" + binds
+                + "</model></h:head><h:body>"
+                + "<input ref=\"/data/n\"><label>n</label></input>"
+                + "<group ref=\"/data/r\"><label>r</label><repeat nodeset=\"/data/r\""
+                + (counted ? " jr:count=\"/data/n\"" : "") + ">" + body
+                + "</repeat></group></h:body></h:html>";
+    }
+
+    private static FormController load(String xml) {
+        FormDef fd = XFormUtils.getFormFromInputStream(new ByteArrayInputStream(xml.getBytes()));
+        fd.initialize(true, new InstanceInitializationFactory());
+        return new FormController(null, new FormEntryController(new FormEntryModel(fd)), null);
+    }
+
+    /**
+     * Adds repeats instances of the repeat to a form without jr:count.
+     */
+    private static void addRepeats(FormController fc, int repeats) {
+        fc.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        int added = 0;
+        int event = fc.stepToNextEvent(true);
+        while (event != FormEntryController.EVENT_END_OF_FORM) {
+            if (event == FormEntryController.EVENT_PROMPT_NEW_REPEAT && added < repeats) {
+                fc.newRepeat();
+                added++;
+            }
+            event = fc.stepToNextEvent(true);
+        }
+        fc.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+    }
+
+    /**
+     * The lookup getIndexFromXPath used to do: step through the relevant events until the xpath
+     * matches.
+     */
+    private static FormIndex stepThrough(FormController fc, String xPath) {
+        FormIndex saved = fc.getFormIndex();
+        try {
+            fc.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+            int event = fc.stepToNextEvent(true);
+            while (event != FormEntryController.EVENT_END_OF_FORM) {
+                if (fc.getXPath(fc.getFormIndex()).equals(xPath)) {
+                    return fc.getFormIndex();
+                }
+                event = fc.stepToNextEvent(true);
+            }
+            return null;
+        } finally {
+            fc.jumpToIndex(saved);
+        }
+    }
+
+    private static List<String> allXPaths(FormController fc) {
+        Map<String, Boolean> xPaths = new LinkedHashMap<String, Boolean>();
+        FormIndex saved = fc.getFormIndex();
+        fc.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        int event = fc.stepToNextEvent(true);
+        while (event != FormEntryController.EVENT_END_OF_FORM) {
+            xPaths.put(fc.getXPath(fc.getFormIndex()), Boolean.TRUE);
+            event = fc.stepToNextEvent(true);
+        }
+        fc.jumpToIndex(saved);
+        return new ArrayList<String>(xPaths.keySet());
+    }
+
+    @Test
+    public void matchesStepThroughForEveryIndex() {
+        FormController fc = load(buildForm(QUESTIONS, false));
+        addRepeats(fc, 5);
+        for (String xPath : allXPaths(fc)) {
+            assertEquals(xPath, stepThrough(fc, xPath), fc.getIndexFromXPath(xPath));
+        }
+        // backwards, so every lookup after the first is a hit
+        List<String> xPaths = allXPaths(fc);
+        for (int i = xPaths.size() - 1; i >= 0; i--) {
+            assertEquals(stepThrough(fc, xPaths.get(i)), fc.getIndexFromXPath(xPaths.get(i)));
+        }
+    }
+
+    @Test
+    public void irrelevantAndUnknownXPathsAreNotFound() {
+        FormController fc = load(buildForm(QUESTIONS, false));
+        addRepeats(fc, 2);
+        String xPath = "question./data/r[2]/q" + (QUESTIONS - 1) + "[1]";
+        assertNull(stepThrough(fc, xPath));
+        assertNull(fc.getIndexFromXPath(xPath));
+        assertNull(fc.getIndexFromXPath("question./data/nothing"));
+    }
+
+    @Test
+    public void lookupDoesNotMoveCurrentIndex() {
+        FormController fc = load(buildForm(QUESTIONS, false));
+        addRepeats(fc, 3);
+        fc.stepToNextEvent(true);
+        FormIndex current = fc.getFormIndex();
+        assertNotNull(fc.getIndexFromXPath("question./data/r[3]/q0[1]"));
+        assertEquals(current, fc.getFormIndex());
+    }
+
+    @Test
+    public void changingRepeatCountIsSeenByNextLookup() throws Exception {
+        FormController fc = load(buildForm(3, true));
+        FormIndex n = fc.getIndexFromXPath("question./data/n[1]");
+        assertNotNull(n);
+
+        String[] xPaths = { "question./data/r[2]/q1[1]", "question./data/r[3]/q0[1]",
+                "question./data/r[4]/q0[1]" };
+        int[] counts = { 3, 2, 4, 1 };
+        for (int count : counts) {
+            fc.saveAnswer(n, new IntegerData(count));
+            for (String xPath : xPaths) {
+                assertEquals(count + " " + xPath, stepThrough(fc, xPath),
+                        fc.getIndexFromXPath(xPath));
+            }
+        }
+    }
+
+    @Test
+    public void deletedRepeatIsNotFound() {
+        FormController fc = load(buildForm(QUESTIONS, false));
+        addRepeats(fc, 3);
+        FormIndex last = fc.getIndexFromXPath("question./data/r[3]/q0[1]");
+        assertNotNull(last);
+
+        fc.jumpToIndex(last);
+        fc.deleteRepeat();
+        assertNull(fc.getIndexFromXPath("question./data/r[3]/q0[1]"));
+        assertNotNull(fc.getIndexFromXPath("question./data/r[2]/q0[1]"));
+    }
+
+    /**
+     * Resuming a saved instance looks up two xpaths, usually near the end of the form. Compares
+     * that with the step-through on N x M questions and prints both times.
+     */
+    @Test
+    public void benchmarkResumeLookups() {
+        FormController fc = load(buildForm(QUESTIONS, false));
+        addRepeats(fc, REPEATS);
+        List<String> xPaths = allXPaths(fc);
+        String last = xPaths.get(xPaths.size() - 1);
+        String nearLast = xPaths.get(xPaths.size() - 2);
+
+        long start = System.nanoTime();
+        FormIndex expectedLast = stepThrough(fc, last);
+        FormIndex expectedNearLast = stepThrough(fc, nearLast);
+        long stepThroughNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        FormIndex foundLast = fc.getIndexFromXPath(last);
+        FormIndex foundNearLast = fc.getIndexFromXPath(nearLast);
+        long indexedNanos = System.nanoTime() - start;
+
+        assertEquals(expectedLast, foundLast);
+        assertEquals(expectedNearLast, foundNearLast);
+
+        // many lookups with no change in between: one walk in total
+        start = System.nanoTime();
+        for (String xPath : xPaths) {
+            fc.getIndexFromXPath(xPath);
+        }
+        long allIndexedNanos = System.nanoTime() - start;
+
+        System.out.println(REPEATS + " x " + QUESTIONS + " (" + xPaths.size() + " events): "
+                + "two lookups, step-through " + stepThroughNanos / 1000000 + "ms, indexed "
+                + indexedNanos / 1000000 + "ms; all " + xPaths.size() + " lookups indexed "
+                + allIndexedNanos / 1000000 + "ms");
+    }
+}
@@ -0,0 +1,257 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.logic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendSchedulerTest {
+
+    private static final String SERVER = "https://example.org";
+    private static final String OTHER_SERVER = "https://example.com";
+
+    private static class FakeClock implements SendScheduler.Clock {
+        long now = 1000000L;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        void advance(long ms) {
+            now += ms;
+        }
+    }
+
+    /**
+     * Keeps what was saved so a second scheduler can load it.
+     */
+    private static class MemoryStore implements SendScheduler.Store {
+        final Map<Long, SendScheduler.Entry> entries = new HashMap<Long, SendScheduler.Entry>();
+        final Map<String, SendScheduler.Backoff> servers = new HashMap<String, SendScheduler.Backoff>();
+
+        @Override
+        public void load(Map<Long, SendScheduler.Entry> e, Map<String, SendScheduler.Backoff> s) {
+            for (SendScheduler.Entry entry : entries.values()) {
+                e.put(entry.instanceId, copy(entry));
+            }
+            for (Map.Entry<String, SendScheduler.Backoff> b : servers.entrySet()) {
+                s.put(b.getKey(), new SendScheduler.Backoff(b.getValue().failures,
+                        b.getValue().notBefore));
+            }
+        }
+
+        @Override
+        public void save(Collection<SendScheduler.Entry> e, Map<String, SendScheduler.Backoff> s) {
+            entries.clear();
+            for (SendScheduler.Entry entry : e) {
+                entries.put(entry.instanceId, copy(entry));
+            }
+            servers.clear();
+            for (Map.Entry<String, SendScheduler.Backoff> b : s.entrySet()) {
+                servers.put(b.getKey(), new SendScheduler.Backoff(b.getValue().failures,
+                        b.getValue().notBefore));
+            }
+        }
+
+        private static SendScheduler.Entry copy(SendScheduler.Entry e) {
+            return new SendScheduler.Entry(e.instanceId, e.server, e.bytes,
+                    new SendScheduler.Backoff(e.backoff.failures, e.backoff.notBefore));
+        }
+    }
+
+    /**
+     * Jitter always at the top of its range, so the backoff is deterministic.
+     */
+    private static class MaxRandom extends Random {
+        @Override
+        public double nextDouble() {
+            return 1.0;
+        }
+    }
+
+    private FakeClock mClock;
+    private MemoryStore mStore;
+    private SendScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mStore = new MemoryStore();
+        mScheduler = new SendScheduler(mClock, mStore, new MaxRandom());
+        mScheduler.setCoalesceMs(10000L);
+        mScheduler.setBackoff(30000L, 8 * 30000L);
+        mScheduler.setByteBudget(1000L, 60000L);
+    }
+
+    private static Map<Long, SendScheduler.Entry> pending(Object... idServerBytes) {
+        Map<Long, SendScheduler.Entry> pending = new HashMap<Long, SendScheduler.Entry>();
+        for (int i = 0; i < idServerBytes.length; i += 3) {
+            long id = (Long) idServerBytes[i];
+            pending.put(id, new SendScheduler.Entry(id, (String) idServerBytes[i + 1],
+                    (Long) idServerBytes[i + 2], new SendScheduler.Backoff(0, 0L)));
+        }
+        return pending;
+    }
+
+    @Test
+    public void burstOfTriggersIsCoalescedIntoOneRun() {
+        assertEquals(10000L, mScheduler.onTrigger());
+        mClock.advance(4000L);
+        assertEquals(10000L, mScheduler.onTrigger());
+        mClock.advance(9999L);
+        assertFalse(mScheduler.isRunDue());
+        mClock.advance(1L);
+        assertTrue(mScheduler.isRunDue());
+
+        mScheduler.takeBatch();
+        assertFalse(mScheduler.isRunDue());
+    }
+
+    @Test
+    public void failedInstanceBacksOffExponentiallyAndNeverEarly() {
+        mScheduler.sync(pending(1L, SERVER, 10L));
+
+        long[] expected = { 30000L, 60000L, 120000L, 240000L, 240000L };
+        for (long delay : expected) {
+            assertEquals(Collections.singletonList(1L), mScheduler.takeBatch());
+            mScheduler.onResult(1L, false);
+            assertEquals(mClock.now() + delay, mScheduler.nextDueTime());
+
+            mClock.advance(delay - 1);
+            assertTrue(mScheduler.takeBatch().isEmpty());
+            mClock.advance(1L);
+            // a fresh window, so the budget does not get in the way
+            mClock.advance(60000L);
+        }
+    }
+
+    @Test
+    public void jitterStaysInUpperHalfOfDelay() {
+        SendScheduler low = new SendScheduler(mClock, null, new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.0;
+            }
+        });
+        low.setBackoff(30000L, 240000L);
+        assertEquals(15000L, low.backoffDelay(1));
+        assertEquals(60000L, low.backoffDelay(3));
+        assertEquals(120000L, low.backoffDelay(10));
+    }
+
+    @Test
+    public void failingServerHoldsBackItsOtherInstancesOnly() {
+        mScheduler.sync(pending(1L, SERVER, 10L, 2L, SERVER, 10L, 3L, OTHER_SERVER, 10L));
+        assertEquals(Arrays.asList(1L, 2L, 3L), mScheduler.takeBatch());
+
+        mScheduler.onResult(1L, false);
+        mScheduler.onResult(2L, false);
+        mScheduler.onResult(3L, true);
+        assertFalse(mScheduler.contains(3L));
+
+        // two failures in one batch count once against the server
+        assertEquals(1, mStore.servers.get(SERVER).failures);
+
+        mScheduler.sync(pending(1L, SERVER, 10L, 2L, SERVER, 10L, 4L, SERVER, 10L,
+                5L, OTHER_SERVER, 10L));
+        mClock.advance(1000L);
+        assertEquals(Collections.singletonList(5L), mScheduler.takeBatch());
+    }
+
+    @Test
+    public void byteBudgetLimitsBatchUntilWindowResets() {
+        mScheduler.sync(pending(1L, SERVER, 600L, 2L, SERVER, 600L));
+        assertEquals(Collections.singletonList(1L), mScheduler.takeBatch());
+        mScheduler.onResult(1L, true);
+
+        // 2 is due but does not fit, so the next run is at the end of the window
+        long windowEnd = mClock.now() + 60000L;
+        assertEquals(windowEnd, mScheduler.nextDueTime());
+        assertTrue(mScheduler.takeBatch().isEmpty());
+
+        mClock.now = windowEnd;
+        assertEquals(Collections.singletonList(2L), mScheduler.takeBatch());
+    }
+
+    @Test
+    public void instanceLargerThanBudgetIsNotStarved() {
+        mScheduler.sync(pending(1L, SERVER, 5000L));
+        assertEquals(Collections.singletonList(1L), mScheduler.takeBatch());
+    }
+
+    @Test
+    public void pausedSchedulerHandsOutNothing() {
+        mScheduler.sync(pending(1L, SERVER, 10L));
+        mScheduler.setConditions(true, false);
+        assertTrue(mScheduler.isPaused());
+        assertTrue(mScheduler.takeBatch().isEmpty());
+        assertEquals(-1L, mScheduler.nextDueTime());
+
+        mScheduler.setConditions(true, true);
+        assertEquals(Collections.singletonList(1L), mScheduler.takeBatch());
+    }
+
+    @Test
+    public void syncDropsGoneInstancesAndKeepsBackoff() {
+        mScheduler.sync(pending(1L, SERVER, 10L, 2L, SERVER, 10L));
+        mScheduler.takeBatch();
+        mScheduler.onResult(1L, false);
+        long notBefore = mStore.entries.get(1L).backoff.notBefore;
+
+        mScheduler.sync(pending(1L, SERVER, -1L));
+        assertEquals(1, mScheduler.size());
+        assertFalse(mScheduler.contains(2L));
+        assertEquals(10L, mStore.entries.get(1L).bytes);
+        assertEquals(notBefore, mStore.entries.get(1L).backoff.notBefore);
+    }
+
+    @Test
+    public void backoffSurvivesRestart() {
+        mScheduler.sync(pending(1L, SERVER, 10L));
+        mScheduler.takeBatch();
+        mScheduler.onResult(1L, false);
+        long due = mScheduler.nextDueTime();
+
+        SendScheduler restarted = new SendScheduler(mClock, mStore, new MaxRandom());
+        assertEquals(due, restarted.nextDueTime());
+        assertTrue(restarted.takeBatch().isEmpty());
+        mClock.now = due;
+        List<Long> batch = restarted.takeBatch();
+        assertEquals(Collections.singletonList(1L), batch);
+    }
+}
@@ -0,0 +1,310 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package org.odk.collect.android.tasks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.odk.collect.android.utilities.CountingHttpEntity;
+import org.odk.collect.android.utilities.WebUtils;
+import org.opendatakit.httpclientandroidlib.HttpResponse;
+import org.opendatakit.httpclientandroidlib.auth.AuthScope;
+import org.opendatakit.httpclientandroidlib.auth.UsernamePasswordCredentials;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpHead;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
+import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntity;
+import org.opendatakit.httpclientandroidlib.entity.mime.content.FileBody;
+import org.opendatakit.httpclientandroidlib.impl.client.DefaultHttpClient;
+import org.opendatakit.httpclientandroidlib.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Posts submissions built the way InstanceUploaderTask builds them to a
+ * stand-in server that advertises gzip support on HEAD, challenges the first
+ * POST for credentials, and decodes gzipped bodies and parts.
+ */
+public class InstanceUploaderTaskTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private String mUrl;
+
+    // what the server advertises on HEAD, null for nothing
+    private String mAccepts;
+    // what the server got in the last accepted POST
+    private int mPosts;
+    private String mContentEncoding;
+    private String mTransferEncoding;
+    private Map<String, byte[]> mParts;
+    private Map<String, String> mPartEncodings;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/submission", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/submission";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            if (mAccepts != null) {
+                exchange.getResponseHeaders().add(
+                        WebUtils.OPEN_ROSA_ACCEPT_CONTENT_ENCODING_HEADER, mAccepts);
+            }
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        mPosts++;
+        byte[] body = read(exchange.getRequestBody());
+        if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"collect\"");
+            exchange.sendResponseHeaders(401, -1);
+            return;
+        }
+
+        mContentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        mTransferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+        if (WebUtils.GZIP_CONTENT_ENCODING.equals(mContentEncoding)) {
+            body = gunzip(body);
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        parseMultipart(body, contentType.substring(contentType.indexOf("boundary=") + 9));
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    private void parseMultipart(byte[] body, String boundary) throws IOException {
+        mParts = new HashMap<String, byte[]>();
+        mPartEncodings = new HashMap<String, String>();
+        byte[] delimiter = ("\r\n--" + boundary).getBytes("US-ASCII");
+        // the first boundary has no line break before it
+        int start = indexOf(body, ("--" + boundary).getBytes("US-ASCII"), 0)
+                + delimiter.length - 2;
+        while (body[start] != '-') {
+            int headersEnd = indexOf(body, "\r\n\r\n".getBytes("US-ASCII"), start);
+            String headers = new String(body, start, headersEnd - start, "US-ASCII");
+            int end = indexOf(body, delimiter, headersEnd);
+            byte[] content = new byte[end - headersEnd - 4];
+            System.arraycopy(body, headersEnd + 4, content, 0, content.length);
+
+            String name = null;
+            String encoding = null;
+            for (String header : headers.split("\r\n")) {
+                String lower = header.toLowerCase();
+                if (lower.startsWith("content-disposition:")) {
+                    int i = header.indexOf("name=\"") + 6;
+                    name = header.substring(i, header.indexOf('"', i));
+                } else if (lower.startsWith("content-encoding:")) {
+                    encoding = header.substring(header.indexOf(':') + 1).trim();
+                }
+            }
+            if (WebUtils.GZIP_CONTENT_ENCODING.equals(encoding)) {
+                content = gunzip(content);
+            }
+            mParts.put(name, content);
+            mPartEncodings.put(name, encoding);
+            start = end + delimiter.length;
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        throw new IllegalArgumentException("Malformed multipart body");
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        return read(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private File newFile(String name, byte[] content) throws IOException {
+        File f = mFolder.newFile(name);
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static byte[] submissionXml() throws IOException {
+        StringBuilder b = new StringBuilder("<?xml version='1.0' ?><data id=\"household\">");
+        for (int i = 0; i < 500; i++) {
+            b.append("<member><name>Member ").append(i).append("</name><age>")
+                    .append(i % 90).append("</age></member>");
+        }
+        return b.append("</data>").toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Negotiates with HEAD and posts a submission.xml and a photo, as
+     * InstanceUploaderTask does.
+     *
+     * @return the bytes written to the connection by the accepted POST
+     */
+    private long upload(File xml, File photo) throws IOException {
+        DefaultHttpClient client = new DefaultHttpClient();
+        client.getCredentialsProvider().setCredentials(AuthScope.ANY,
+                new UsernamePasswordCredentials("collect", "secret"));
+
+        HttpResponse head = client.execute(new HttpHead(mUrl));
+        EntityUtils.consume(head.getEntity());
+        String encoding = WebUtils.getAcceptedSubmissionEncoding(head);
+        boolean gzipParts = WebUtils.SUBMISSION_ENCODING_GZIP_PARTS.equals(encoding);
+
+        MultipartEntity entity = InstanceUploaderTask.newSubmissionEntity();
+        InstanceUploaderTask.addTextPart(entity, "xml_submission_file", xml, "text/xml",
+                gzipParts);
+        entity.addPart(photo.getName(), new FileBody(photo, "image/jpeg"));
+        CountingHttpEntity counted =
+                new CountingHttpEntity(InstanceUploaderTask.encodeSubmission(entity, encoding));
+
+        HttpPost post = new HttpPost(mUrl);
+        post.setEntity(counted);
+        HttpResponse response = client.execute(post);
+        EntityUtils.consume(response.getEntity());
+        assertEquals(201, response.getStatusLine().getStatusCode());
+        client.getConnectionManager().shutdown();
+        return counted.getBytesWritten();
+    }
+
+    private void assertReceived(byte[] xml, byte[] photo, File photoFile) {
+        // the challenged POST and the retry, which has to send the body again
+        assertEquals(2, mPosts);
+        assertArrayEquals(xml, mParts.get("xml_submission_file"));
+        assertArrayEquals(photo, mParts.get(photoFile.getName()));
+    }
+
+    @Test
+    public void gzipsTheWholeBodyWhenTheServerAcceptsGzip() throws IOException {
+        mAccepts = "gzip";
+        byte[] xml = submissionXml();
+        byte[] photo = new byte[20000];
+        new Random(1).nextBytes(photo);
+        File photoFile = newFile("photo.jpg", photo);
+
+        long written = upload(newFile("submission.xml", xml), photoFile);
+
+        assertReceived(xml, photo, photoFile);
+        assertEquals("gzip", mContentEncoding);
+        assertEquals("chunked", mTransferEncoding);
+        assertNull(mPartEncodings.get("xml_submission_file"));
+        assertTrue(written < xml.length + photo.length);
+    }
+
+    @Test
+    public void gzipsTextPartsWhenTheServerAcceptsGzipParts() throws IOException {
+        mAccepts = "gzip, gzip-parts";
+        byte[] xml = submissionXml();
+        byte[] photo = new byte[20000];
+        new Random(2).nextBytes(photo);
+        File photoFile = newFile("photo.jpg", photo);
+
+        long written = upload(newFile("submission.xml", xml), photoFile);
+
+        assertReceived(xml, photo, photoFile);
+        assertNull(mContentEncoding);
+        assertEquals("chunked", mTransferEncoding);
+        assertEquals("gzip", mPartEncodings.get("xml_submission_file"));
+        assertNull(mPartEncodings.get(photoFile.getName()));
+        assertTrue(written < xml.length + photo.length);
+    }
+
+    @Test
+    public void postsPlainMultipartToOtherServers() throws IOException {
+        mAccepts = null;
+        byte[] xml = submissionXml();
+        byte[] photo = new byte[20000];
+        new Random(3).nextBytes(photo);
+        File photoFile = newFile("photo.jpg", photo);
+
+        long written = upload(newFile("submission.xml", xml), photoFile);
+
+        assertReceived(xml, photo, photoFile);
+        assertNull(mContentEncoding);
+        assertNull(mTransferEncoding);
+        assertNull(mPartEncodings.get("xml_submission_file"));
+        assertTrue(written > xml.length + photo.length);
+    }
+}
@@ -0,0 +1,326 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages through a 10,000 row instances table the way PagedCursorLoader does,
+ * on a desktop SQLite without row values, and compares it with a single
+ * sorted query. Also prints the time against OFFSET paging and against one
+ * ORed keyset selection.
+ */
+public class KeysetSelectionTest {
+
+    private static final int ROWS = 10000;
+    private static final int PAGE_SIZE = 100;
+
+    private static final String[] STATUSES = {
+            "incomplete", "complete", "submitted", "submissionFailed"
+    };
+
+    private Connection mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        mDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement s = mDb.createStatement();
+        // the columns and indexes InstanceProvider creates
+        s.execute("CREATE TABLE instances (_id integer primary key, displayName text not null, "
+                + "status text not null, jrFormId text not null, jrVersion text)");
+        s.execute("CREATE INDEX instances_status_desc_name ON instances "
+                + "(status DESC, displayName ASC)");
+        s.execute("CREATE INDEX instances_name ON instances (displayName)");
+        s.close();
+
+        Random random = new Random(42);
+        mDb.setAutoCommit(false);
+        PreparedStatement insert = mDb.prepareStatement(
+                "INSERT INTO instances (displayName, status, jrFormId, jrVersion) VALUES (?, ?, ?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            // few distinct names, so many rows tie on everything but _id
+            insert.setString(1, "Household " + random.nextInt(ROWS / 20));
+            insert.setString(2, STATUSES[random.nextInt(STATUSES.length)]);
+            insert.setString(3, "form");
+            // a nullable column to sort by, like the forms' version
+            int version = random.nextInt(4);
+            insert.setString(4, (version == 0) ? null : Integer.toString(version));
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+        mDb.commit();
+        mDb.setAutoCommit(true);
+        s = mDb.createStatement();
+        s.execute("ANALYZE");
+        s.close();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        mDb.close();
+    }
+
+    private static String where(String selection) {
+        return (selection == null) ? "" : " WHERE " + selection;
+    }
+
+    /**
+     * Runs one query, adding the rows to ids and returning the key of the last row.
+     */
+    private String[] query(String sql, List<String> args, String[] sortColumns, List<Long> ids)
+            throws SQLException {
+        PreparedStatement ps = mDb.prepareStatement(sql);
+        for (int i = 0; i < args.size(); i++) {
+            ps.setString(i + 1, args.get(i));
+        }
+        ResultSet rs = ps.executeQuery();
+        String[] last = null;
+        while (rs.next()) {
+            ids.add(rs.getLong("_id"));
+            last = new String[sortColumns.length + 1];
+            for (int i = 0; i < sortColumns.length; i++) {
+                last[i] = rs.getString(sortColumns[i]);
+            }
+            last[sortColumns.length] = rs.getString("_id");
+        }
+        rs.close();
+        ps.close();
+        return last;
+    }
+
+    /**
+     * Reads every row a page at a time, as PagedCursorLoader does.
+     *
+     * @param queries counts the queries run
+     */
+    private List<Long> readByKeyset(KeysetSelection keyset, int[] queries) throws SQLException {
+        List<Long> ids = new ArrayList<Long>();
+        String[] key = null;
+        boolean complete = false;
+        while (!complete) {
+            int remaining = PAGE_SIZE;
+            int level = keyset.getDeepestLevel();
+            String[] pageKey = null;
+            do {
+                List<String> args = new ArrayList<String>();
+                String sql = "SELECT * FROM instances" + where(keyset.getSelection(key, level, args))
+                        + " ORDER BY " + keyset.getSortOrder() + " LIMIT " + remaining;
+                int before = ids.size();
+                String[] last = query(sql, args, keyset.getSortColumns(), ids);
+                queries[0]++;
+                remaining -= ids.size() - before;
+                if (last != null) {
+                    pageKey = last;
+                }
+                level--;
+            } while (key != null && level >= 0 && remaining > 0);
+            complete = remaining > 0;
+            key = pageKey;
+        }
+        return ids;
+    }
+
+    private List<Long> readAll(KeysetSelection keyset) throws SQLException {
+        List<String> args = new ArrayList<String>();
+        String sql = "SELECT * FROM instances" + where(keyset.getSelection(null, 0, args))
+                + " ORDER BY " + keyset.getSortOrder();
+        List<Long> ids = new ArrayList<Long>();
+        query(sql, args, keyset.getSortColumns(), ids);
+        return ids;
+    }
+
+    private List<Long> readByOffset(KeysetSelection keyset) throws SQLException {
+        List<Long> ids = new ArrayList<Long>();
+        for (int offset = 0; ; offset += PAGE_SIZE) {
+            List<String> args = new ArrayList<String>();
+            String sql = "SELECT * FROM instances" + where(keyset.getSelection(null, 0, args))
+                    + " ORDER BY " + keyset.getSortOrder() + " LIMIT " + PAGE_SIZE
+                    + " OFFSET " + offset;
+            int before = ids.size();
+            query(sql, args, keyset.getSortColumns(), ids);
+            if (ids.size() - before < PAGE_SIZE) {
+                return ids;
+            }
+        }
+    }
+
+    /**
+     * The levels ORed into one selection, as the loader used to read a page.
+     */
+    private List<Long> readByOredKeyset(String selection, String[] selectionArgs,
+            String[] sortOrder) throws SQLException {
+        KeysetSelection keyset = new KeysetSelection(selection, selectionArgs, sortOrder);
+        KeysetSelection terms = new KeysetSelection(null, null, sortOrder);
+        List<Long> ids = new ArrayList<Long>();
+        String[] key = null;
+        while (true) {
+            List<String> args = new ArrayList<String>();
+            String where = keyset.getSelection(null, 0, args);
+            if (key != null) {
+                StringBuilder or = new StringBuilder();
+                for (int level = terms.getDeepestLevel(); level >= 0; level--) {
+                    or.append(or.length() == 0 ? "(" : " OR (");
+                    or.append(terms.getSelection(key, level, args)).append(")");
+                }
+                where = (where == null) ? or.toString() : where + " AND (" + or + ")";
+            }
+            String sql = "SELECT * FROM instances" + where(where)
+                    + " ORDER BY " + keyset.getSortOrder() + " LIMIT " + PAGE_SIZE;
+            int before = ids.size();
+            String[] last = query(sql, args, keyset.getSortColumns(), ids);
+            if (ids.size() - before < PAGE_SIZE) {
+                return ids;
+            }
+            key = last;
+        }
+    }
+
+    private String explain(String sql, List<String> args) throws SQLException {
+        PreparedStatement ps = mDb.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+        for (int i = 0; i < args.size(); i++) {
+            ps.setString(i + 1, args.get(i));
+        }
+        ResultSet rs = ps.executeQuery();
+        StringBuilder plan = new StringBuilder();
+        while (rs.next()) {
+            plan.append(rs.getString(4)).append('\n');
+        }
+        rs.close();
+        ps.close();
+        return plan.toString();
+    }
+
+    @Test
+    public void pagesMatchOneSortedQuery() throws SQLException {
+        // InstanceChooserList, DataManagerList, InstanceUploaderList and, with
+        // its nullable descending version, FormChooserList
+        String[] selections = { "status != ?", null, "status=? or status=?", null };
+        String[][] selectionArgs = {
+                { "submitted" }, null, { "complete", "submissionFailed" }, null
+        };
+        String[][] sortOrders = {
+                { "status DESC", "displayName ASC" }, { "displayName ASC" }, { "displayName ASC" },
+                { "displayName ASC", "jrVersion DESC" }
+        };
+        for (int i = 0; i < selections.length; i++) {
+            KeysetSelection keyset = new KeysetSelection(selections[i], selectionArgs[i],
+                    sortOrders[i]);
+            keyset.setNotNull("status", "displayName");
+            List<Long> expected = readAll(keyset);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, readByKeyset(keyset, new int[1]));
+            assertEquals(expected, readByOffset(keyset));
+            assertEquals(expected, readByOredKeyset(selections[i], selectionArgs[i],
+                    sortOrders[i]));
+        }
+    }
+
+    @Test
+    public void everyLevelSeeksTheIndexWithoutSorting() throws SQLException {
+        KeysetSelection keyset = new KeysetSelection("status != ?", new String[] { "submitted" },
+                new String[] { "status DESC", "displayName ASC" });
+        keyset.setNotNull("status");
+        String[] key = { "incomplete", "Household 250", "5000" };
+        String[] seeks = {
+                "(status=? AND displayName=? AND rowid>?)", "(status=? AND displayName>?)",
+                "(status<?)"
+        };
+        for (int level = keyset.getDeepestLevel(); level >= 0; level--) {
+            List<String> args = new ArrayList<String>();
+            String sql = "SELECT * FROM instances" + where(keyset.getSelection(key, level, args))
+                    + " ORDER BY " + keyset.getSortOrder() + " LIMIT " + PAGE_SIZE;
+            String plan = explain(sql, args);
+            String seek = seeks[keyset.getDeepestLevel() - level];
+            assertTrue(plan, plan.contains("USING INDEX instances_status_desc_name " + seek));
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        }
+    }
+
+    @Test
+    public void nullsInADescendingColumnGetTheirOwnLevel() throws SQLException {
+        KeysetSelection keyset = new KeysetSelection(null, null,
+                new String[] { "displayName ASC", "jrVersion DESC" });
+        String[] key = { "Household 250", "2", "5000" };
+        List<String> args = new ArrayList<String>();
+        assertEquals("displayName = ? AND jrVersion IS NULL",
+                keyset.getSelection(key, keyset.getDeepestLevel() - 2, args));
+        assertEquals(Arrays.asList("Household 250"), args);
+
+        keyset.setNotNull("jrVersion");
+        args.clear();
+        assertEquals("displayName > ?",
+                keyset.getSelection(key, keyset.getDeepestLevel() - 2, args));
+    }
+
+    @Test
+    public void benchmark() throws SQLException {
+        String selection = "status != ?";
+        String[] selectionArgs = { "submitted" };
+        String[] sortOrder = { "status DESC", "displayName ASC" };
+        KeysetSelection keyset = new KeysetSelection(selection, selectionArgs, sortOrder);
+        keyset.setNotNull("status");
+        // warm up
+        readByKeyset(keyset, new int[1]);
+        readByOffset(keyset);
+        readByOredKeyset(selection, selectionArgs, sortOrder);
+
+        int[] queries = new int[1];
+        long start = System.nanoTime();
+        int rows = readByKeyset(keyset, queries).size();
+        long keysetNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        readByOffset(keyset);
+        long offsetNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        readByOredKeyset(selection, selectionArgs, sortOrder);
+        long oredNanos = System.nanoTime() - start;
+
+        System.out.println("Paging " + rows + " of " + ROWS + " rows, " + PAGE_SIZE
+                + " a page: keyset " + keysetNanos / 1000000 + "ms in " + queries[0]
+                + " queries, OFFSET " + offsetNanos / 1000000 + "ms, ORed keyset "
+                + oredNanos / 1000000 + "ms");
+    }
+}
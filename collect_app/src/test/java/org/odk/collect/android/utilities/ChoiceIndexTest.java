@@ -0,0 +1,204 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.utilities;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the match types of ChoiceIndex, and times them against lower-casing
+ * and scanning every label on each keystroke, as AutoCompleteWidget used to,
+ * with 20,000 and 200,000 choices.
+ */
+public class ChoiceIndexTest {
+
+    private static final String[] LABELS = {
+            "New York", "Newark", "York", "new haven", "Old New Town", null
+    };
+
+    private static int[] find(String matchType, String text) {
+        return new ChoiceIndex(LABELS).newQuery(matchType).find(text, 10);
+    }
+
+    @Test
+    public void prefixMatchesTheStartOfTheLabel() {
+        assertArrayEquals(new int[] { 3, 0, 1 }, find(ChoiceIndex.MATCH_PREFIX, "NEW"));
+        assertArrayEquals(new int[] { 2 }, find(ChoiceIndex.MATCH_PREFIX, "york"));
+        assertArrayEquals(new int[0], find(ChoiceIndex.MATCH_PREFIX, "town"));
+    }
+
+    @Test
+    public void wordPrefixMatchesTheStartOfAnyWord() {
+        assertArrayEquals(new int[] { 3, 4, 0, 1 }, find(ChoiceIndex.MATCH_WORD_PREFIX, "new"));
+        assertArrayEquals(new int[] { 0, 2 }, find(ChoiceIndex.MATCH_WORD_PREFIX, "york"));
+        assertArrayEquals(new int[] { 4 }, find(ChoiceIndex.MATCH_WORD_PREFIX, "town"));
+        assertArrayEquals(new int[0], find(ChoiceIndex.MATCH_WORD_PREFIX, "ork"));
+    }
+
+    @Test
+    public void substringAndCharsScanInChoiceOrder() {
+        assertArrayEquals(new int[] { 0, 2 }, find(ChoiceIndex.MATCH_SUBSTRING, "ork"));
+        assertArrayEquals(new int[] { 0, 2 }, find("unknown", "ork"));
+        assertArrayEquals(new int[] { 0, 2 }, find(ChoiceIndex.MATCH_CHARS, "kro"));
+    }
+
+    @Test
+    public void emptyTextMatchesEverything() {
+        ChoiceIndex index = new ChoiceIndex(LABELS);
+        assertArrayEquals(new int[] { 0, 1, 2 },
+                index.newQuery(ChoiceIndex.MATCH_PREFIX).find(" ", 3));
+        assertEquals("", index.getLabel(5));
+    }
+
+    @Test
+    public void typingNarrowsAndBackspaceWidens() {
+        String[] types = {
+                ChoiceIndex.MATCH_PREFIX, ChoiceIndex.MATCH_WORD_PREFIX,
+                ChoiceIndex.MATCH_SUBSTRING, ChoiceIndex.MATCH_CHARS
+        };
+        String[] typed = { "n", "ne", "new", "new ", "new y", "new", "o", "ol" };
+        for (String type : types) {
+            ChoiceIndex.Query query = new ChoiceIndex(LABELS).newQuery(type);
+            for (String text : typed) {
+                assertArrayEquals(type + " " + text, find(type, text), query.find(text, 10));
+            }
+        }
+    }
+
+    @Test
+    public void findReturnsEachChoiceOnce() {
+        ChoiceIndex index = new ChoiceIndex(new String[] { "new new", "new", "news" });
+        assertArrayEquals(new int[] { 0, 1, 2 },
+                index.newQuery(ChoiceIndex.MATCH_WORD_PREFIX).find("new", 10));
+        assertArrayEquals(new int[] { 0 },
+                index.newQuery(ChoiceIndex.MATCH_WORD_PREFIX).find("new", 1));
+    }
+
+    private static String[] randomLabels(int count, Random random) {
+        String[] labels = new String[count];
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            b.setLength(0);
+            for (int word = 0; word < 3; word++) {
+                if (word > 0) {
+                    b.append(' ');
+                }
+                int length = 3 + random.nextInt(6);
+                b.append((char) ('A' + random.nextInt(26)));
+                for (int c = 1; c < length; c++) {
+                    b.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            labels[i] = b.toString();
+        }
+        return labels;
+    }
+
+    /**
+     * What AutoCompleteWidget did for each keystroke before the index.
+     */
+    private static List<String> scan(String[] labels, String text, boolean prefix) {
+        String lower = text.toLowerCase(Locale.getDefault());
+        List<String> found = new ArrayList<String>();
+        for (String label : labels) {
+            String compare = label.toLowerCase(Locale.getDefault());
+            if (prefix ? compare.startsWith(lower) : compare.contains(lower)) {
+                found.add(label);
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void benchmark() {
+        for (int count : new int[] { 20000, 200000 }) {
+            Random random = new Random(count);
+            String[] labels = randomLabels(count, random);
+            // type the start of a label that is in the list
+            String target = labels[random.nextInt(count)].toLowerCase(Locale.getDefault());
+            String[] typed = new String[6];
+            for (int i = 0; i < typed.length; i++) {
+                typed[i] = target.substring(0, i + 1);
+            }
+
+            long start = System.nanoTime();
+            ChoiceIndex index = new ChoiceIndex(labels);
+            long loadNanos = System.nanoTime() - start;
+
+            StringBuilder report = new StringBuilder();
+            report.append(count).append(" choices: load ").append(loadNanos / 1000000).append("ms");
+            String[] types = {
+                    ChoiceIndex.MATCH_PREFIX, ChoiceIndex.MATCH_WORD_PREFIX,
+                    ChoiceIndex.MATCH_SUBSTRING
+            };
+            for (String type : types) {
+                ChoiceIndex.Query query = index.newQuery(type);
+                start = System.nanoTime();
+                int[] found = query.find(typed[0], 50);
+                long firstNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 1; i < typed.length; i++) {
+                    found = query.find(typed[i], 50);
+                }
+                long restNanos = (System.nanoTime() - start) / (typed.length - 1);
+                report.append(", ").append(type).append(" first ").append(firstNanos / 1000000)
+                        .append("ms then ").append(restNanos / 1000).append("us a keystroke");
+                if (type != ChoiceIndex.MATCH_SUBSTRING) {
+                    assertEquals(true, found.length > 0);
+                }
+            }
+
+            start = System.nanoTime();
+            List<String> scanned = null;
+            for (String text : typed) {
+                scanned = scan(labels, text, true);
+            }
+            long scanNanos = (System.nanoTime() - start) / typed.length;
+            report.append(", old prefix scan ").append(scanNanos / 1000).append("us a keystroke");
+            System.out.println(report);
+
+            int[] found = index.newQuery(ChoiceIndex.MATCH_PREFIX).find(typed[typed.length - 1],
+                    Integer.MAX_VALUE);
+            List<String> indexed = new ArrayList<String>();
+            for (int item : found) {
+                indexed.add(index.getLabel(item));
+            }
+            List<String> sortedScan = new ArrayList<String>(scanned);
+            String[] a = sortedScan.toArray(new String[0]);
+            String[] b = indexed.toArray(new String[0]);
+            Arrays.sort(a);
+            Arrays.sort(b);
+            assertArrayEquals(a, b);
+        }
+    }
+}
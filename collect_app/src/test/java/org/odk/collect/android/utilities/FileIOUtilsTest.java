@@ -0,0 +1,241 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package org.odk.collect.android.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks FileIOUtils against plain stream code, and times reads, digests and
+ * copies of a 32 MB file, and a run of small stream copies, printing the
+ * throughput and the collections each one caused.
+ */
+public class FileIOUtilsTest {
+
+    private static final int LARGE = 32 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File newFile(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        File f = mFolder.newFile(name);
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static byte[] readStream(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void readFullyReadsEveryByte() throws IOException {
+        for (int size : new int[] { 0, 1, FileIOUtils.BUFFER_SIZE, FileIOUtils.BUFFER_SIZE + 1,
+                3 * 1024 * 1024 + 7 }) {
+            File f = newFile("read" + size, size);
+            assertArrayEquals(readStream(f), FileIOUtils.readFully(f));
+        }
+    }
+
+    @Test
+    public void updateDigestsTheWholeFile() throws Exception {
+        File f = newFile("digest", 3 * 1024 * 1024 + 7);
+        MessageDigest expected = MessageDigest.getInstance("MD5");
+        expected.update(readStream(f));
+        MessageDigest actual = MessageDigest.getInstance("MD5");
+        FileIOUtils.update(actual, f);
+        assertArrayEquals(expected.digest(), actual.digest());
+    }
+
+    @Test
+    public void copiesMatchTheSource() throws IOException {
+        File source = newFile("source", 3 * 1024 * 1024 + 7);
+        for (boolean force : new boolean[] { false, true }) {
+            File dest = new File(mFolder.getRoot(), "dest" + force);
+            FileIOUtils.copy(source, dest, force);
+            assertArrayEquals(readStream(source), readStream(dest));
+        }
+
+        byte[] bytes = readStream(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(bytes.length, FileIOUtils.copy(new ByteArrayInputStream(bytes), out));
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Times a task, returning "MB/s, collections".
+     */
+    private static String time(long bytes, Task task) throws Exception {
+        task.run();
+        long gcs = collections();
+        long start = System.nanoTime();
+        int rounds = 5;
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        long nanos = System.nanoTime() - start;
+        return (bytes * rounds * 1000L / Math.max(1, nanos)) + " MB/s, "
+                + (collections() - gcs) + " GCs";
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * The mapped-window read FileIOUtils used before.
+     */
+    private static byte[] readMapped(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            int size = (int) channel.size();
+            byte[] bytes = new byte[size];
+            int window = 8 * 1024 * 1024;
+            for (int position = 0; position < size; position += window) {
+                int length = Math.min(window, size - position);
+                channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                        .get(bytes, position, length);
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final File large = newFile("large", LARGE);
+        final File copy = new File(mFolder.getRoot(), "copy");
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+
+        System.out.println("readFully " + time(LARGE, new Task() {
+            public void run() throws IOException {
+                FileIOUtils.readFully(large);
+            }
+        }) + "; mapped windows " + time(LARGE, new Task() {
+            public void run() throws IOException {
+                readMapped(large);
+            }
+        }) + "; FileInputStream " + time(LARGE, new Task() {
+            public void run() throws IOException {
+                readStream(large);
+            }
+        }));
+
+        System.out.println("update " + time(LARGE, new Task() {
+            public void run() throws IOException {
+                FileIOUtils.update(md5, large);
+            }
+        }));
+
+        System.out.println("copy " + time(LARGE, new Task() {
+            public void run() throws IOException {
+                FileIOUtils.copy(large, copy, false);
+            }
+        }) + "; forced " + time(LARGE, new Task() {
+            public void run() throws IOException {
+                FileIOUtils.copy(large, copy, true);
+            }
+        }));
+
+        // many small entries, as when extracting a media zip
+        final byte[] entry = new byte[16 * 1024];
+        final int entries = 2000;
+        System.out.println("pooled stream copies " + time(entry.length * entries, new Task() {
+            public void run() throws IOException {
+                for (int i = 0; i < entries; i++) {
+                    FileIOUtils.copy(new ByteArrayInputStream(entry), new NullOutputStream());
+                }
+            }
+        }) + "; new buffer per copy " + time(entry.length * entries, new Task() {
+            public void run() throws IOException {
+                for (int i = 0; i < entries; i++) {
+                    InputStream in = new ByteArrayInputStream(entry);
+                    OutputStream out = new NullOutputStream();
+                    byte[] buffer = new byte[FileIOUtils.BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+            }
+        }));
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
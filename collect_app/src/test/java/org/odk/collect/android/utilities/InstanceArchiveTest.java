@@ -0,0 +1,243 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.odk.collect.android.utilities;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstanceArchiveTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mArchiveDir;
+    private File mInstancesDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mArchiveDir = mFolder.newFolder("archive");
+        mInstancesDir = mFolder.newFolder("instances");
+    }
+
+    private static byte[] content(String instance, String name, int size) {
+        byte[] bytes = new byte[size];
+        new Random((instance + name).hashCode()).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void write(File f, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            FileIOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates an instance directory with the instance file and one attachment.
+     *
+     * @return the instance file path
+     */
+    private String createInstance(String name) throws IOException {
+        File dir = new File(mInstancesDir, name);
+        assertTrue(dir.mkdirs());
+        File instance = new File(dir, name + ".xml");
+        write(instance, content(name, instance.getName(), 2000));
+        write(new File(dir, "photo.jpg"), content(name, "photo.jpg", 20000));
+        return instance.getAbsolutePath();
+    }
+
+    private void assertLoose(String instancePath) throws IOException {
+        File instance = new File(instancePath);
+        String name = instance.getParentFile().getName();
+        assertArrayEquals(content(name, instance.getName(), 2000),
+                FileIOUtils.readFully(instance));
+        assertArrayEquals(content(name, "photo.jpg", 20000),
+                FileIOUtils.readFully(new File(instance.getParentFile(), "photo.jpg")));
+    }
+
+    private void assertArchived(InstanceArchive archive, String instancePath) throws IOException {
+        File instance = new File(instancePath);
+        String name = instance.getParentFile().getName();
+        assertTrue(archive.contains(instancePath));
+        assertFalse(instance.getParentFile().exists());
+        assertArrayEquals(content(name, instance.getName(), 2000),
+                read(archive.open(instancePath, instance.getName())));
+        assertArrayEquals(content(name, "photo.jpg", 20000),
+                read(archive.open(instancePath, "photo.jpg")));
+    }
+
+    private int countSegments() {
+        int count = 0;
+        for (String name : mArchiveDir.list()) {
+            if (name.startsWith("segment-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void archiveRestoreArchiveRoundTrip() throws IOException {
+        InstanceArchive archive = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        String path = createInstance("a");
+
+        assertTrue(archive.archive(path, System.currentTimeMillis()));
+        assertArchived(archive, path);
+        assertNull(archive.open(path, "missing.jpg"));
+
+        assertTrue(archive.restore(path));
+        assertFalse(archive.contains(path));
+        assertLoose(path);
+
+        // viewed and closed again while still sent
+        assertTrue(archive.archive(path, System.currentTimeMillis()));
+        assertArchived(archive, path);
+    }
+
+    @Test
+    public void indexSurvivesReload() throws IOException {
+        InstanceArchive archive = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        String a = createInstance("a");
+        String b = createInstance("b");
+        String c = createInstance("c");
+        long now = System.currentTimeMillis();
+        archive.archive(a, now);
+        archive.archive(b, now);
+        archive.archive(c, now);
+        archive.remove(Collections.singleton(b));
+        archive.restore(c);
+        archive.archive(c, now);
+
+        InstanceArchive reloaded = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        assertArchived(reloaded, a);
+        assertFalse(reloaded.contains(b));
+        assertArchived(reloaded, c);
+    }
+
+    @Test
+    public void tornIndexLineIsIgnored() throws IOException {
+        InstanceArchive archive = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        String a = createInstance("a");
+        archive.archive(a, System.currentTimeMillis());
+        FileOutputStream out = new FileOutputStream(new File(mArchiveDir, "index.txt"), true);
+        try {
+            out.write("A\t123\t1\t".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        InstanceArchive reloaded = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        assertArchived(reloaded, a);
+        String b = createInstance("b");
+        assertTrue(reloaded.archive(b, System.currentTimeMillis()));
+
+        InstanceArchive again = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        assertArchived(again, a);
+        assertArchived(again, b);
+    }
+
+    @Test
+    public void policyDropsOldestAndCompactionKeepsTheRestReadable() throws IOException {
+        // small segments, so each instance ends up in a segment of its own
+        InstanceArchive archive = new InstanceArchive(mArchiveDir, 10000);
+        long now = System.currentTimeMillis();
+        List<String> paths = Arrays.asList(createInstance("a"), createInstance("b"),
+                createInstance("c"), createInstance("d"), createInstance("e"));
+        for (int i = 0; i < paths.size(); i++) {
+            assertTrue(archive.archive(paths.get(i), now - (paths.size() - i) * DAY));
+        }
+        int before = countSegments();
+        assertTrue(before >= paths.size());
+
+        // a and b are older than three and a half days
+        List<String> dropped = archive.applyPolicy(3 * DAY + DAY / 2, Long.MAX_VALUE);
+        assertEquals(paths.subList(0, 2), dropped);
+        assertTrue(countSegments() < before);
+        for (String path : paths.subList(2, paths.size())) {
+            assertArchived(archive, path);
+        }
+
+        // restoring c leaves its segment mostly dead, so it is copied forward
+        assertTrue(archive.restore(paths.get(2)));
+        assertLoose(paths.get(2));
+        archive.applyPolicy(365 * DAY, Long.MAX_VALUE);
+
+        InstanceArchive reloaded = new InstanceArchive(mArchiveDir, 10000);
+        assertFalse(reloaded.contains(paths.get(0)));
+        assertFalse(reloaded.contains(paths.get(2)));
+        assertArchived(reloaded, paths.get(3));
+        assertArchived(reloaded, paths.get(4));
+    }
+
+    @Test
+    public void policyDropsOldestUntilSizeFits() throws IOException {
+        InstanceArchive archive = new InstanceArchive(mArchiveDir, 1024 * 1024);
+        long now = System.currentTimeMillis();
+        String a = createInstance("a");
+        String b = createInstance("b");
+        String c = createInstance("c");
+        archive.archive(a, now - 3000);
+        archive.archive(b, now - 2000);
+        archive.archive(c, now - 1000);
+
+        // random content barely compresses: room for about one instance
+        List<String> dropped = archive.applyPolicy(365 * DAY, 30000);
+        assertEquals(Arrays.asList(a, b), dropped);
+        assertArchived(archive, c);
+    }
+}
@@ -0,0 +1,190 @@
+/* The MIT License (MIT)
+ *
+ *       Copyright (c) 2016 PMA2020
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.odk.collect.android.utilities;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs without android.system.Os, so these cover the reference-file mode that
+ * emulated external storage gets.
+ */
+public class MediaBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mInstancesDir;
+    private MediaBlobStore mStore;
+    private File mParentImage;
+    private byte[] mImageBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        mInstancesDir = mFolder.newFolder("instances");
+        mStore = new MediaBlobStore(mFolder.newFolder("blobs"), mInstancesDir);
+
+        mImageBytes = new byte[64 * 1024];
+        new Random(1).nextBytes(mImageBytes);
+        mParentImage = new File(newInstanceDir("parent"), "photo.jpg");
+        write(mParentImage, mImageBytes);
+    }
+
+    private File newInstanceDir(String name) {
+        File dir = new File(mInstancesDir, name);
+        assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    private static void write(File f, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int pos = 0;
+            while (pos < bytes.length) {
+                pos += in.read(bytes, pos, bytes.length - pos);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void deleteDir(File dir) {
+        for (File f : dir.listFiles()) {
+            assertTrue(f.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void childGetsReferenceToSharedBlob() throws IOException {
+        File first = new File(newInstanceDir("child1"), "photo.jpg");
+        File second = new File(newInstanceDir("child2"), "photo.jpg");
+
+        assertNull(mStore.copy(mParentImage, first));
+        assertNull(mStore.copy(mParentImage, second));
+
+        assertFalse(first.exists());
+        File reference = new File(first.getPath() + MediaBlobStore.REFERENCE_SUFFIX);
+        assertTrue(reference.isFile());
+        assertTrue(reference.length() < 100);
+        assertEquals("photo.jpg", MediaBlobStore.getMediaName(reference));
+
+        File blob = mStore.resolve(first);
+        assertNotEquals(first, blob);
+        assertEquals(blob, mStore.resolve(reference));
+        assertEquals(blob, mStore.resolve(second));
+        assertArrayEquals(mImageBytes, read(blob));
+
+        // the parent keeps its own file
+        assertEquals(mParentImage, mStore.resolve(mParentImage));
+    }
+
+    @Test
+    public void grandchildCopiesFromReference() throws IOException {
+        File child = new File(newInstanceDir("child"), "photo.jpg");
+        File grandchild = new File(newInstanceDir("grandchild"), "photo.jpg");
+
+        assertNull(mStore.copy(mParentImage, child));
+        assertNull(mStore.copy(child, grandchild));
+
+        assertArrayEquals(mImageBytes, read(mStore.resolve(grandchild)));
+    }
+
+    @Test
+    public void recopyReplacesMaterializedFile() throws IOException {
+        File childDir = newInstanceDir("child");
+        File child = new File(childDir, "photo.jpg");
+        assertNull(mStore.copy(mParentImage, child));
+        assertTrue(mStore.materialize(childDir));
+        assertTrue(child.isFile());
+
+        // the parent's photo is retaken and carried over again
+        byte[] retaken = Arrays.copyOf(mImageBytes, mImageBytes.length / 2);
+        write(mParentImage, retaken);
+        assertNull(mStore.copy(mParentImage, child));
+
+        assertFalse(child.exists());
+        assertArrayEquals(retaken, read(mStore.resolve(child)));
+    }
+
+    @Test
+    public void materializeReplacesReferences() throws IOException {
+        File childDir = newInstanceDir("child");
+        File child = new File(childDir, "photo.jpg");
+        assertNull(mStore.copy(mParentImage, child));
+
+        assertTrue(mStore.materialize(childDir));
+
+        assertTrue(child.isFile());
+        assertFalse(new File(child.getPath() + MediaBlobStore.REFERENCE_SUFFIX).exists());
+        assertEquals(child, mStore.resolve(child));
+        assertArrayEquals(mImageBytes, read(child));
+    }
+
+    @Test
+    public void pruneKeepsReferencedBlobs() throws IOException {
+        File firstDir = newInstanceDir("child1");
+        File secondDir = newInstanceDir("child2");
+        assertNull(mStore.copy(mParentImage, new File(firstDir, "photo.jpg")));
+        assertNull(mStore.copy(mParentImage, new File(secondDir, "photo.jpg")));
+        File blob = mStore.resolve(new File(firstDir, "photo.jpg"));
+
+        deleteDir(firstDir);
+        assertEquals(0, mStore.prune());
+        assertTrue(blob.exists());
+
+        deleteDir(secondDir);
+        assertEquals(mImageBytes.length, mStore.prune());
+        assertFalse(blob.exists());
+    }
+}